@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool that runs the handlers of some RPC commands isolated from the I/O threads and from the
+ * handlers of other commands. If the queue is full, the request is rejected and the dispatcher replies with
+ * {@link net.tomp2p.message.Message.Type#OVERLOADED}, so a slow disk or a slow user handler does not make the whole
+ * peer look dead.
+ */
+public class Bulkhead {
+
+	public static final int DEFAULT_THREADS = 2;
+	public static final int DEFAULT_QUEUE_SIZE = 128;
+
+	private final String name;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            The name of the bulkhead, e.g. "storage"
+	 * @param threads
+	 *            The number of threads
+	 * @param queueSize
+	 *            The number of requests that can wait for a thread
+	 */
+	public Bulkhead(final String name, final int threads, final int queueSize) {
+		this.name = name;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new DefaultThreadFactory(
+						ConnectionBean.THREAD_NAME + "bulkhead " + name + " - ", true));
+	}
+
+	/**
+	 * @param runnable
+	 *            The handler to run
+	 * @return False if the bulkhead is full or shut down and the handler has not been scheduled
+	 */
+	public boolean execute(final Runnable runnable) {
+		try {
+			executor.execute(runnable);
+			return true;
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * @return The number of requests waiting for a thread
+	 */
+	public int queued() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return The number of requests that have been rejected
+	 */
+	public long rejected() {
+		return rejected.get();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -31,6 +31,7 @@ public class ChannelClientConfiguration {
     private PipelineFilter pipelineFilter;
     private SignatureFactory signatureFactory;
     private Bindings bindingsOutgoing;
+    private boolean sharedUDP = true;
 
     /**
      * @return The maximum number of permanent (long-lived) connections
@@ -125,4 +126,21 @@ public class ChannelClientConfiguration {
         this.bindingsOutgoing = bindingsOutgoing;
         return this;
     }
+
+    /**
+     * @return True if UDP requests are sent over one shared channel per peer, see {@link SharedUDPChannel}
+     */
+    public boolean isSharedUDP() {
+        return sharedUDP;
+    }
+
+    /**
+     * @param sharedUDP
+     *            True if UDP requests are sent over one shared channel per peer instead of one channel per request
+     * @return This class
+     */
+    public ChannelClientConfiguration sharedUDP(final boolean sharedUDP) {
+        this.sharedUDP = sharedUDP;
+        return this;
+    }
 }
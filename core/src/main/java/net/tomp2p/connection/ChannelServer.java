@@ -43,6 +43,7 @@ import net.tomp2p.futures.FutureDone;
 import net.tomp2p.message.TomP2PCumulationTCP;
 import net.tomp2p.message.TomP2POutbound;
 import net.tomp2p.message.TomP2PSinglePacketUDP;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.utils.Pair;
 
@@ -79,6 +80,8 @@ public final class ChannelServer {
 	private final DropConnectionInboundHandler udpDropConnectionInboundHandler;
 	private final ChannelHandler udpDecoderHandler;
 
+	private final Metrics metrics;
+
 	/**
 	 * Sets parameters and starts network device discovery.
 	 * 
@@ -93,6 +96,26 @@ public final class ChannelServer {
 	 */
 	public ChannelServer(final EventLoopGroup bossGroup, final EventLoopGroup workerGroup, final ChannelServerConfiguration channelServerConfiguration, final Dispatcher dispatcher,
 	        final List<PeerStatusListener> peerStatusListeners) throws IOException {
+		this(bossGroup, workerGroup, channelServerConfiguration, dispatcher, peerStatusListeners, new Metrics());
+	}
+
+	/**
+	 * Sets parameters and starts network device discovery. The encoders and decoders record their metrics.
+	 * 
+	 * @param channelServerConfiguration
+	 *            The server configuration that contains e.g. the handlers
+	 * @param dispatcher
+	 *            The shared dispatcher
+	 * @param peerStatusListeners
+	 *            The status listeners for offline peers
+	 * @param metrics
+	 *            The metrics of this peer
+	 * @throws IOException
+	 *             If device discovery failed.
+	 */
+	public ChannelServer(final EventLoopGroup bossGroup, final EventLoopGroup workerGroup, final ChannelServerConfiguration channelServerConfiguration, final Dispatcher dispatcher,
+	        final List<PeerStatusListener> peerStatusListeners, final Metrics metrics) throws IOException {
+		this.metrics = metrics;
 		this.bossGroup = bossGroup;
 		this.workerGroup = workerGroup;
 		this.interfaceBindings = channelServerConfiguration.bindingsIncoming();
@@ -106,7 +129,7 @@ public final class ChannelServer {
 		
 		this.tcpDropConnectionInboundHandler = new DropConnectionInboundHandler(channelServerConfiguration.maxTCPIncomingConnections());
 		this.udpDropConnectionInboundHandler = new DropConnectionInboundHandler(channelServerConfiguration.maxUDPIncomingConnections());
-		this.udpDecoderHandler = new TomP2PSinglePacketUDP(channelServerConfiguration.signatureFactory());
+		this.udpDecoderHandler = new TomP2PSinglePacketUDP(channelServerConfiguration.signatureFactory(), metrics);
 	}
 
 	/**
@@ -246,7 +269,7 @@ public final class ChannelServer {
 			        new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutFactory.createIdleStateHandlerTomP2P()));
 			handlers.put("timeout1", new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutFactory.createTimeHandler()));
 			handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2PCumulationTCP(
-			        channelServerConfiguration.signatureFactory())));
+			        channelServerConfiguration.signatureFactory(), metrics)));
 		} else {
 			// no need for a timeout handler, since whole packet arrives or nothing
             // different from TCP where the stream can be closed by the remote peer
@@ -257,7 +280,7 @@ public final class ChannelServer {
 			handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, udpDecoderHandler));
 		}
 		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(false,
-		        channelServerConfiguration.signatureFactory())));
+		        channelServerConfiguration.signatureFactory(), metrics)));
 		handlers.put("dispatcher", new Pair<EventExecutorGroup, ChannelHandler>(null, dispatcher));
 		return channelServerConfiguration.pipelineFilter().filter(handlers, tcp, false);
 	}
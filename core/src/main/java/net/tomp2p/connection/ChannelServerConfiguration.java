@@ -50,6 +50,9 @@ public class ChannelServerConfiguration implements ConnectionConfiguration {
     
     private int heartBeatMillis = PeerConnection.HEART_BEAT_MILLIS;
 
+    private int bulkheadThreads = Bulkhead.DEFAULT_THREADS;
+    private int bulkheadQueueSize = Bulkhead.DEFAULT_QUEUE_SIZE;
+
     /**
      * @return True if this peer is behind a firewall and cannot be accessed directly
      */
@@ -265,4 +268,39 @@ public class ChannelServerConfiguration implements ConnectionConfiguration {
 	    this.heartBeatMillis = heartBeatMillis;
 	    return this;
     }
+
+    /**
+     * @return The number of threads of each bulkhead, 0 if the handlers run on the I/O thread
+     */
+    public int bulkheadThreads() {
+        return bulkheadThreads;
+    }
+
+    /**
+     * @param bulkheadThreads
+     *            The number of threads of each bulkhead, that runs slow handlers such as storage or user handlers
+     *            isolated from the I/O threads. Set to 0 to run all handlers on the I/O thread
+     * @return This class
+     */
+    public ChannelServerConfiguration bulkheadThreads(final int bulkheadThreads) {
+        this.bulkheadThreads = bulkheadThreads;
+        return this;
+    }
+
+    /**
+     * @return The number of requests that can wait in each bulkhead before requests are rejected as overloaded
+     */
+    public int bulkheadQueueSize() {
+        return bulkheadQueueSize;
+    }
+
+    /**
+     * @param bulkheadQueueSize
+     *            The number of requests that can wait in each bulkhead before requests are rejected as overloaded
+     * @return This class
+     */
+    public ChannelServerConfiguration bulkheadQueueSize(final int bulkheadQueueSize) {
+        this.bulkheadQueueSize = bulkheadQueueSize;
+        return this;
+    }
 }
@@ -17,6 +17,8 @@ package net.tomp2p.connection;
 
 import java.util.concurrent.ScheduledExecutorService;
 
+import net.tomp2p.metrics.Metrics;
+
 /**
  * A bean that holds sharable configuration settings for the peer. The non-sharable configurations are stored
  * in {@link PeerBean}.
@@ -41,6 +43,7 @@ public class ConnectionBean {
 	private final Reservation reservation;
 	private final ChannelClientConfiguration resourceConfiguration;
 	private final ScheduledExecutorService timer;
+	private final Metrics metrics;
 
 	/**
 	 * The connection bean with unmodifiable objects. Once it is set, it cannot be changed. If it is required
@@ -64,6 +67,34 @@ public class ConnectionBean {
 	public ConnectionBean(final int p2pId, final Dispatcher dispatcher, final Sender sender,
 			final ChannelServer channelServer, final Reservation reservation,
 			final ChannelClientConfiguration resourceConfiguration, final ScheduledExecutorService timer) {
+		this(p2pId, dispatcher, sender, channelServer, reservation, resourceConfiguration, timer, new Metrics());
+	}
+
+	/**
+	 * The connection bean with unmodifiable objects and the metrics that are shared by all peers that use this
+	 * connection bean.
+	 * 
+	 * @param p2pId
+	 *            The P2P ID
+	 * @param dispatcher
+	 *            The dispatcher object that receives all messages
+	 * @param sender
+	 *            The sender object that sends out messages
+	 * @param channelServer
+	 *            The channel server that listens on incoming connections
+	 * @param reservation
+	 *            The connection reservation that is responsible for resource management
+	 * @param resourceConfiguration
+	 *            The configuration that is responsible for the resource numbers
+	 * @param timer
+	 *            The timer for the discovery process
+	 * @param metrics
+	 *            The metrics that are recorded by the connection objects
+	 */
+	public ConnectionBean(final int p2pId, final Dispatcher dispatcher, final Sender sender,
+			final ChannelServer channelServer, final Reservation reservation,
+			final ChannelClientConfiguration resourceConfiguration, final ScheduledExecutorService timer,
+			final Metrics metrics) {
 		this.p2pId = p2pId;
 		this.dispatcher = dispatcher;
 		this.sender = sender;
@@ -71,6 +102,7 @@ public class ConnectionBean {
 		this.reservation = reservation;
 		this.resourceConfiguration = resourceConfiguration;
 		this.timer = timer;
+		this.metrics = metrics;
 	}
 
 	/**
@@ -121,4 +153,11 @@ public class ConnectionBean {
 	public ScheduledExecutorService timer() {
 		return timer;
 	}
+
+	/**
+	 * @return The metrics that are recorded by the connection objects
+	 */
+	public Metrics metrics() {
+		return metrics;
+	}
 }
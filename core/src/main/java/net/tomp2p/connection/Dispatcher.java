@@ -27,10 +27,13 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.tomp2p.connection.PeerException.AbortCause;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
+import net.tomp2p.metrics.Gauge;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
@@ -57,9 +60,28 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
 
     private static final Logger LOG = LoggerFactory.getLogger(Dispatcher.class);
 
+    /** The bulkhead for the storage RPCs, which may block on disk I/O. */
+    public static final String BULKHEAD_STORAGE = "storage";
+    /** The bulkhead for the synchronization RPCs, which compute checksums over large data. */
+    public static final String BULKHEAD_SYNC = "sync";
+    /** The bulkhead for user handlers such as direct data replies. */
+    public static final String BULKHEAD_USER = "user";
+
     private final int p2pID;
     private final PeerBean peerBeanMaster;
     private final int heartBeatMillis;
+    private final Metrics metrics;
+    private final int bulkheadThreads;
+    private final int bulkheadQueueSize;
+    private final AtomicLong overloaded;
+
+    // guarded by this
+    private final Map<String, Bulkhead> bulkheads = new HashMap<String, Bulkhead>();
+
+    /** Copy on write map from the command to the bulkhead that runs its handler. Commands without a bulkhead, such
+     * as ping and neighbor requests, are handled on the I/O thread.
+     */
+    private volatile Map<Integer, Bulkhead> commandBulkheads = Collections.emptyMap();
 
     /** Copy on write map. The key {@link Number320} can be divided into two parts: 
      * - first {@link Number160} is the peerID that registers
@@ -77,9 +99,103 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
      *            .
      */
     public Dispatcher(final int p2pID, final PeerBean peerBeanMaster, final int heartBeatMillis) {
+        this(p2pID, peerBeanMaster, heartBeatMillis, new Metrics());
+    }
+
+    /**
+     * Creates a dispatcher that counts the received requests.
+     * 
+     * @param p2pID
+     *            The P2P ID the dispatcher is looking for incoming messages
+     * @param peerBeanMaster
+     *            The peer bean of the master peer
+     * @param heartBeatMillis
+     *            The heart beat interval for peer connections
+     * @param metrics
+     *            The metrics where the received requests are counted
+     */
+    public Dispatcher(final int p2pID, final PeerBean peerBeanMaster, final int heartBeatMillis, final Metrics metrics) {
+        this(p2pID, peerBeanMaster, heartBeatMillis, metrics, Bulkhead.DEFAULT_THREADS, Bulkhead.DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Creates a dispatcher that runs slow handlers in bulkheads.
+     * 
+     * @param p2pID
+     *            The P2P ID the dispatcher is looking for incoming messages
+     * @param peerBeanMaster
+     *            The peer bean of the master peer
+     * @param heartBeatMillis
+     *            The heart beat interval for peer connections
+     * @param metrics
+     *            The metrics where the received requests are counted
+     * @param bulkheadThreads
+     *            The number of threads of each bulkhead, 0 to run all handlers on the I/O thread
+     * @param bulkheadQueueSize
+     *            The number of requests that can wait in each bulkhead
+     */
+    public Dispatcher(final int p2pID, final PeerBean peerBeanMaster, final int heartBeatMillis,
+            final Metrics metrics, final int bulkheadThreads, final int bulkheadQueueSize) {
         this.p2pID = p2pID;
         this.peerBeanMaster = peerBeanMaster;
         this.heartBeatMillis = heartBeatMillis;
+        this.metrics = metrics;
+        this.bulkheadThreads = bulkheadThreads;
+        this.bulkheadQueueSize = bulkheadQueueSize;
+        this.overloaded = metrics.counter(Metrics.DISPATCHER_OVERLOADED);
+    }
+
+    /**
+     * Runs the handlers of the given commands in the bulkhead with the given name. Handlers of the same bulkhead share
+     * its threads and its queue, handlers of different bulkheads are isolated from each other and from the I/O
+     * threads. Since child peers share the dispatcher of the master peer, the bulkhead is created only once.
+     * 
+     * @param name
+     *            The name of the bulkhead
+     * @param commands
+     *            The commands whose handlers run in the bulkhead
+     * @return The bulkhead, or null if bulkheads are disabled
+     */
+    public synchronized Bulkhead bulkhead(final String name, final int... commands) {
+        if (bulkheadThreads <= 0) {
+            return null;
+        }
+        Bulkhead bulkhead = bulkheads.get(name);
+        if (bulkhead == null) {
+            final Bulkhead newBulkhead = new Bulkhead(name, bulkheadThreads, bulkheadQueueSize);
+            bulkheads.put(name, newBulkhead);
+            metrics.gauge(Metrics.BULKHEAD_PREFIX + name + ".queued", new Gauge() {
+                @Override
+                public long value() {
+                    return newBulkhead.queued();
+                }
+            });
+            bulkhead = newBulkhead;
+        }
+        Map<Integer, Bulkhead> copy = new HashMap<Integer, Bulkhead>(commandBulkheads);
+        for (int command : commands) {
+            copy.put(command, bulkhead);
+        }
+        commandBulkheads = Collections.unmodifiableMap(copy);
+        return bulkhead;
+    }
+
+    /**
+     * @param command
+     *            The command of a request
+     * @return The bulkhead that runs the handler of this command, or null if the handler runs on the I/O thread
+     */
+    public Bulkhead bulkhead(final int command) {
+        return commandBulkheads.get(command);
+    }
+
+    /**
+     * Shuts down the bulkheads. Requests that are already queued are still processed.
+     */
+    public synchronized void shutdown() {
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.shutdown();
+        }
     }
 
     /**
@@ -148,7 +264,8 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
             return;
         }
 
-        Responder responder = new DirectResponder(ctx, message);
+        metrics.requestReceived(message.command());
+        final Responder responder = new DirectResponder(ctx, message);
         final DispatchHandler myHandler = associatedHandler(message);
         if (myHandler != null) {
             boolean isUdp = ctx.channel() instanceof DatagramChannel;
@@ -158,8 +275,26 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
             	message.sender(sender);
             }
             LOG.debug("About to respond to request message {}.", message);
-            PeerConnection peerConnection = new PeerConnection(message.sender(), new DefaultChannelPromise(ctx.channel()).setSuccess(), heartBeatMillis);
-            myHandler.forwardMessage(message, isUdp ? null : peerConnection, responder);
+            final PeerConnection peerConnection = isUdp ? null : new PeerConnection(message.sender(),
+                    new DefaultChannelPromise(ctx.channel()).setSuccess(), heartBeatMillis);
+            final Bulkhead bulkhead = commandBulkheads.get(Integer.valueOf(message.command()));
+            // streamed requests are handled in order on the I/O thread
+            if (bulkhead == null || !message.isDone()) {
+                myHandler.forwardMessage(message, peerConnection, responder);
+            } else if (!bulkhead.execute(new Runnable() {
+                @Override
+                public void run() {
+                    myHandler.forwardMessage(message, peerConnection, responder);
+                }
+            })) {
+                overloaded.incrementAndGet();
+                LOG.debug("Bulkhead {} is full, reject request message {}.", bulkhead.name(), message);
+                if (message.isFireAndForget()) {
+                    responder.responseFireAndForget();
+                } else {
+                    responder.failed(Type.OVERLOADED);
+                }
+            }
         } else {
         	// do better error handling
         	// if a handler is not present at all, print a warning
@@ -32,6 +32,7 @@ import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDone;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerSocketAddress;
@@ -96,9 +97,11 @@ public class PeerCreator {
 		workerGroup = new NioEventLoopGroup(0, new DefaultThreadFactory(ConnectionBean.THREAD_NAME
 				+ "worker-client/server - "));
 		bossGroup = new NioEventLoopGroup(2, new DefaultThreadFactory(ConnectionBean.THREAD_NAME + "boss - "));
-		Dispatcher dispatcher = new Dispatcher(p2pId, peerBean, channelServerConficuration.heartBeatMillis());
+		final Metrics metrics = new Metrics();
+		Dispatcher dispatcher = new Dispatcher(p2pId, peerBean, channelServerConficuration.heartBeatMillis(), metrics,
+				channelServerConficuration.bulkheadThreads(), channelServerConficuration.bulkheadQueueSize());
 		final ChannelServer channelServer = new ChannelServer(bossGroup, workerGroup,
-				channelServerConficuration, dispatcher, peerBean.peerStatusListeners());
+				channelServerConficuration, dispatcher, peerBean.peerStatusListeners(), metrics);
 		if (!channelServer.startup()) {
 			shutdownNetty();
 			throw new IOException("Cannot bind to TCP or UDP port.");
@@ -106,10 +109,14 @@ public class PeerCreator {
 
 		// connection bean
 		Sender sender = new Sender(peerId, peerBean.peerStatusListeners(), channelClientConfiguration,
-				dispatcher);
-		Reservation reservation = new Reservation(workerGroup, channelClientConfiguration);
+				dispatcher, metrics);
+		if (channelClientConfiguration.isSharedUDP()) {
+			sender.sharedUDPChannel(new SharedUDPChannel(workerGroup, channelClientConfiguration,
+					peerBean.peerStatusListeners(), timer, metrics));
+		}
+		Reservation reservation = new Reservation(workerGroup, channelClientConfiguration, metrics);
 		connectionBean = new ConnectionBean(p2pId, dispatcher, sender, channelServer, reservation,
-				channelClientConfiguration, timer);
+				channelClientConfiguration, timer, metrics);
 		this.master = true;
 	}
 
@@ -163,6 +170,10 @@ public class PeerCreator {
 		connectionBean.timer().shutdown();
 
 		LOG.debug("Shutting down client...");
+		connectionBean.dispatcher().shutdown();
+		if (connectionBean.sender().sharedUDPChannel() != null) {
+			connectionBean.sender().sharedUDPChannel().shutdown();
+		}
 		connectionBean.reservation().shutdown().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
 			@Override
 			public void operationComplete(final FutureDone<Void> future) throws Exception {
@@ -17,9 +17,11 @@ package net.tomp2p.connection;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.MessageID;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.rpc.RPC;
@@ -78,6 +80,19 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
 		this.idleTCPSeconds = configuration.idleTCPSeconds();
 		this.idleUDPSeconds = configuration.idleUDPSeconds();
 		this.connectionTimeoutTCPMillis = configuration.connectionTimeoutTCPMillis();
+		recordMetrics(connectionBean.metrics());
+	}
+
+	private void recordMetrics(final Metrics metrics) {
+		final int command = message.command();
+		final long start = System.nanoTime();
+		metrics.requestSent(command);
+		futureResponse.addListener(new BaseFutureAdapter<K>() {
+			@Override
+			public void operationComplete(final K future) throws Exception {
+				metrics.responseReceived(command, System.nanoTime() - start, future.isSuccess());
+			}
+		});
 	}
 
 	/**
@@ -194,6 +209,19 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
 
 	@Override
 	public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+		failed(ctx, cause);
+	}
+
+	/**
+	 * Reports a failure of this request to the peer status listeners and to the future.
+	 * 
+	 * @param ctx
+	 *            The context of the channel of this request, or null if the request has been sent over the
+	 *            {@link SharedUDPChannel}, which must not be closed
+	 * @param cause
+	 *            The cause of the failure
+	 */
+	void failed(final ChannelHandlerContext ctx, final Throwable cause) {
 		LOG.debug("Error originating from {}. Cause {}.", futureResponse.request(), cause);
 		if (futureResponse.isCompleted()) {
 			LOG.warn("Got exception, but ignored it. (FutureResponse completed.): {}.",
@@ -227,32 +255,51 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
 		}
 
 		LOG.debug("Report failure: ", cause);
-		futureResponse.failedLater(cause);
-		ctx.close();
+		if (ctx == null) {
+			futureResponse.failed(cause);
+		} else {
+			futureResponse.failedLater(cause);
+			ctx.close();
+		}
 	}
 
 	@Override
 	protected void channelRead0(final ChannelHandlerContext ctx, final Message responseMessage)
 			throws Exception {
+		responseReceived(ctx, responseMessage);
+	}
+
+	/**
+	 * Checks the response and notifies the future.
+	 * 
+	 * @param ctx
+	 *            The context of the channel of this request, or null if the request has been sent over the
+	 *            {@link SharedUDPChannel}, which must not be closed
+	 * @param responseMessage
+	 *            The response
+	 */
+	void responseReceived(final ChannelHandlerContext ctx, final Message responseMessage) {
 		MessageID recvMessageID = new MessageID(responseMessage);
 		// Error handling
 		if (responseMessage.type() == Message.Type.UNKNOWN_ID) {
 			String msg = "Message was not delivered successfully, unknow ID (peer may be offline or unknown RPC handler): "
 					+ this.message;
-			exceptionCaught(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
+			failed(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
 			return;
 		} if (responseMessage.type() == Message.Type.EXCEPTION) {
 			String msg = "Message caused an exception on the other side, handle as peer_abort: "
 					+ this.message;
-			exceptionCaught(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
+			failed(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
 			return;
 		} if (responseMessage.isRequest()) {
-			ctx.fireChannelRead(responseMessage);
+			if (ctx != null) {
+				ctx.fireChannelRead(responseMessage);
+			}
 			return;
 		} if (!sendMessageID.equals(recvMessageID)) {
 			String msg = "Response message [" + responseMessage
 					+ "] sent to the node is not the same as we expect. We sent [" + this.message + "]";
-			exceptionCaught(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
+			failed(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
 			return;
 		}
 		// We need to exclude RCON Messages from the sanity check because we
@@ -265,12 +312,13 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
 			String msg = "Response message [" + responseMessage + "] sent has a different relay flag than we sent with request message ["
 					+ this.message + "]. Recipient (" + message.recipient().isRelayed() + ") / Sender ("
 					+ responseMessage.sender().isRelayed() + ")";
-			exceptionCaught(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
+			failed(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
 			return;
 		}
 
-		// We got a good answer, let's mark the sender as alive
-		if (responseMessage.isOk() || responseMessage.isNotOk()) {
+		// We got a good answer, let's mark the sender as alive. An overloaded peer is alive as well, it just could
+		// not process this request.
+		if (responseMessage.isOk() || responseMessage.isNotOk() || responseMessage.isOverloaded()) {
 			synchronized (peerBean.peerStatusListeners()) {
 				if (responseMessage.sender().isRelayed()
 						&& !responseMessage.peerSocketAddresses().isEmpty()) {
@@ -292,7 +340,9 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
 			return;
 		}
 
-		if (!message.isKeepAlive()) {
+		if (ctx == null) {
+			futureResponse.response(responseMessage);
+		} else if (!message.isKeepAlive()) {
 			LOG.debug("Good message {}. Close channel {}.", responseMessage, ctx.channel());
 			// set the success now, but trigger the notify when we closed the channel.
 			futureResponse.responseLater(responseMessage);
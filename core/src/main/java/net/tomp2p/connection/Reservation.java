@@ -35,6 +35,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDone;
+import net.tomp2p.metrics.Histogram;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.p2p.RequestConfiguration;
 import net.tomp2p.p2p.RoutingConfiguration;
 
@@ -61,6 +63,8 @@ public class Reservation {
 	private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue);
 	private final EventLoopGroup workerGroup;
 
+	private final Histogram reservationWait;
+
 	// we should be fair, otherwise we see connection timeouts due to unfairness
 	// if busy
 	private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock(true);
@@ -85,8 +89,25 @@ public class Reservation {
 	 *            permanent TCP connections
 	 */
 	public Reservation(final EventLoopGroup workerGroup, final ChannelClientConfiguration channelClientConfiguration) {
+		this(workerGroup, channelClientConfiguration, new Metrics());
+	}
+
+	/**
+	 * Creates a new reservation class that records the time spent waiting for permits.
+	 * 
+	 * @param workerGroup
+	 *            The worker group for both UDP and TCP channels. This will not
+	 *            be shutdown in this class, you need to shutdown it outside.
+	 * @param channelClientConfiguration
+	 *            The configuration with the maximum number of permits
+	 * @param metrics
+	 *            The metrics where the wait times are recorded
+	 */
+	public Reservation(final EventLoopGroup workerGroup, final ChannelClientConfiguration channelClientConfiguration,
+	        final Metrics metrics) {
 
 		this.workerGroup = workerGroup;
+		this.reservationWait = metrics.reservationWait();
 		this.maxPermitsUDP = channelClientConfiguration.maxPermitsUDP();
 		this.maxPermitsTCP = channelClientConfiguration.maxPermitsTCP();
 		this.maxPermitsPermanentTCP = channelClientConfiguration.maxPermitsPermanentTCP();
@@ -326,6 +347,7 @@ public class Reservation {
 		private final FutureDone<Void> futureChannelCreationShutdown;
 		private final int permitsUDP;
 		private final int permitsTCP;
+		private final long created = System.nanoTime();
 
 		/**
 		 * Creates a reservation that returns a {@link ChannelCreator} in a
@@ -375,6 +397,7 @@ public class Reservation {
 
 				channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, permitsUDP, permitsTCP, channelClientConfiguration);
 				addToSet(channelCreator);
+				reservationWait.record(System.nanoTime() - created);
 			} finally {
 				read.unlock();
 			}
@@ -399,6 +422,7 @@ public class Reservation {
 		private final FutureChannelCreator futureChannelCreator;
 		private final FutureDone<Void> futureChannelCreationShutdown;
 		private final int permitsPermanentTCP;
+		private final long created = System.nanoTime();
 
 		/**
 		 * Creates a reservation that returns a {@link ChannelCreator} in a
@@ -440,6 +464,7 @@ public class Reservation {
 				channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, 0, permitsPermanentTCP,
 				        channelClientConfiguration);
 				addToSet(channelCreator);
+				reservationWait.record(System.nanoTime() - created);
 			} finally {
 				read.unlock();
 			}
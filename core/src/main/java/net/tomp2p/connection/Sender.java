@@ -48,6 +48,8 @@ import net.tomp2p.message.Message.Type;
 import net.tomp2p.message.TomP2PCumulationTCP;
 import net.tomp2p.message.TomP2POutbound;
 import net.tomp2p.message.TomP2PSinglePacketUDP;
+import net.tomp2p.metrics.Gauge;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.p2p.builder.PingBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
@@ -75,6 +77,7 @@ public class Sender {
 	private final ChannelClientConfiguration channelClientConfiguration;
 	private final Dispatcher dispatcher;
 	private final InteropRandom random;
+	private final Metrics metrics;
 
 	// this map caches all messages which are meant to be sent by a reverse
 	// connection setup
@@ -82,6 +85,8 @@ public class Sender {
 
 	private PingBuilderFactory pingBuilderFactory;
 
+	private SharedUDPChannel sharedUDPChannel;
+
 	/**
 	 * Creates a new sender with the listeners for offline peers.
 	 * 
@@ -93,10 +98,34 @@ public class Sender {
 	 */
 	public Sender(final Number160 peerId, final List<PeerStatusListener> peerStatusListeners,
 	        final ChannelClientConfiguration channelClientConfiguration, Dispatcher dispatcher) {
+		this(peerId, peerStatusListeners, channelClientConfiguration, dispatcher, new Metrics());
+	}
+
+	/**
+	 * Creates a new sender that records the encoder and decoder metrics and the number of cached requests.
+	 * 
+	 * @param peerStatusListeners
+	 *            The listener for offline peers
+	 * @param channelClientConfiguration
+	 *            The configuration used to get the signature factory
+	 * @param dispatcher
+	 *            The dispatcher for requests on open connections
+	 * @param metrics
+	 *            The metrics of this peer
+	 */
+	public Sender(final Number160 peerId, final List<PeerStatusListener> peerStatusListeners,
+	        final ChannelClientConfiguration channelClientConfiguration, Dispatcher dispatcher, final Metrics metrics) {
 		this.peerStatusListeners = peerStatusListeners;
 		this.channelClientConfiguration = channelClientConfiguration;
 		this.dispatcher = dispatcher;
 		this.random = new InteropRandom(peerId.hashCode());
+		this.metrics = metrics;
+		metrics.gauge(Metrics.SENDER_CACHED_REQUESTS, new Gauge() {
+			@Override
+			public long value() {
+				return cachedRequests.size();
+			}
+		});
 	}
 
 	public ChannelClientConfiguration channelClientConfiguration() {
@@ -112,6 +141,20 @@ public class Sender {
 		return this;
 	}
 
+	public SharedUDPChannel sharedUDPChannel() {
+		return sharedUDPChannel;
+	}
+
+	/**
+	 * @param sharedUDPChannel
+	 *            The channel used for UDP requests that expect a response, or null to create a channel per request
+	 * @return This class
+	 */
+	public Sender sharedUDPChannel(SharedUDPChannel sharedUDPChannel) {
+		this.sharedUDPChannel = sharedUDPChannel;
+		return this;
+	}
+
 	/**
 	 * Sends a message via TCP.
 	 * 
@@ -382,9 +425,9 @@ public class Sender {
 		}
 
 		handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2PCumulationTCP(
-		        channelClientConfiguration.signatureFactory())));
+		        channelClientConfiguration.signatureFactory(), metrics)));
 		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(false,
-		        channelClientConfiguration.signatureFactory())));
+		        channelClientConfiguration.signatureFactory(), metrics)));
 
 		if (peerConnection != null) {
 			// we expect responses on this connection
@@ -506,9 +549,9 @@ public class Sender {
 		}
 
 		handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2PSinglePacketUDP(
-		        channelClientConfiguration.signatureFactory())));
+		        channelClientConfiguration.signatureFactory(), metrics)));
 		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(false,
-		        channelClientConfiguration.signatureFactory())));
+		        channelClientConfiguration.signatureFactory(), metrics)));
 		if (!isFireAndForget) {
 			handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, handler));
 		}
@@ -528,18 +571,38 @@ public class Sender {
 				if (psa.size() > 0) {
 					PeerSocketAddress ps = psa.get(random.nextInt(psa.size()));
 					message.recipientRelay(message.recipient().changePeerSocketAddress(ps).changeRelayed(true));
+					if (sendShared(handler, futureResponse, message, idleUDPSeconds, broadcast)) {
+						return;
+					}
 					channelFuture = channelCreator.createUDP(broadcast, handlers, futureResponse);
 				} else {
 					futureResponse.failed("Peer is relayed, but no is relay given.");
 					return;
 				}
 			} else {
+				if (sendShared(handler, futureResponse, message, idleUDPSeconds, broadcast)) {
+					return;
+				}
 				channelFuture = channelCreator.createUDP(broadcast, handlers, futureResponse);
 			}
 			afterConnect(futureResponse, message, channelFuture, handler == null);
 		}
 	}
 
+	/**
+	 * Sends a request over the shared UDP channel. Broadcasts and fire and forget messages use their own channel.
+	 * 
+	 * @return True if the request has been sent over the shared channel
+	 */
+	private boolean sendShared(final SimpleChannelInboundHandler<Message> handler,
+	        final FutureResponse futureResponse, final Message message, final int idleUDPSeconds,
+	        final boolean broadcast) {
+		if (sharedUDPChannel == null || broadcast || !(handler instanceof RequestHandler)) {
+			return false;
+		}
+		return sharedUDPChannel.send((RequestHandler<?>) handler, futureResponse, message, idleUDPSeconds);
+	}
+
 	/**
 	 * Creates a timeout handler or null if it is a fire and forget message.
 	 * In this case we don't expect a response and we don't need a timeout.
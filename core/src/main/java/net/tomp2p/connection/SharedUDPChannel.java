@@ -0,0 +1,333 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.Cancel;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.TomP2POutbound;
+import net.tomp2p.message.TomP2PSinglePacketUDP;
+import net.tomp2p.metrics.Gauge;
+import net.tomp2p.metrics.Metrics;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatusListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-lived UDP channel that is shared by all UDP requests of a peer. Instead of creating a channel and a pipeline
+ * for each request, the requests are written to this channel and the responses are matched to their request by the
+ * message ID. Flushes are coalesced, so a burst of requests, e.g., from routing or maintenance, is written with one
+ * flush, and many datagrams are read per read loop.
+ *
+ * If a request cannot be registered, e.g., because another request with the same message ID is pending, the caller
+ * sends the request on its own channel.
+ */
+public class SharedUDPChannel {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SharedUDPChannel.class);
+
+	public static final int MAX_MESSAGES_PER_READ = 64;
+
+	private final EventLoopGroup workerGroup;
+	private final ChannelClientConfiguration channelClientConfiguration;
+	private final List<PeerStatusListener> peerStatusListeners;
+	private final ScheduledExecutorService timer;
+	private final Metrics metrics;
+
+	// the pending requests by message ID
+	private final ConcurrentHashMap<Integer, Request> requests = new ConcurrentHashMap<Integer, Request>();
+
+	private final Object lock = new Object();
+	// guarded by lock
+	private ChannelFuture channelFuture = null;
+	private boolean shutdown = false;
+
+	/**
+	 * Creates a shared UDP channel, the channel is bound when the first request is sent.
+	 *
+	 * @param workerGroup
+	 *            The worker group for netty that is shared between TCP and UDP
+	 * @param channelClientConfiguration
+	 *            The configuration with the signature factory and the outgoing bindings
+	 * @param peerStatusListeners
+	 *            The listeners that get notified when a request times out
+	 * @param timer
+	 *            The timer for the request timeouts
+	 * @param metrics
+	 *            The metrics of this peer
+	 */
+	public SharedUDPChannel(final EventLoopGroup workerGroup,
+	        final ChannelClientConfiguration channelClientConfiguration,
+	        final List<PeerStatusListener> peerStatusListeners, final ScheduledExecutorService timer,
+	        final Metrics metrics) {
+		this.workerGroup = workerGroup;
+		this.channelClientConfiguration = channelClientConfiguration;
+		this.peerStatusListeners = peerStatusListeners;
+		this.timer = timer;
+		this.metrics = metrics;
+		metrics.gauge(Metrics.SHARED_UDP_PENDING_REQUESTS, new Gauge() {
+			@Override
+			public long value() {
+				return requests.size();
+			}
+		});
+	}
+
+	/**
+	 * Sends a request over the shared channel.
+	 *
+	 * @param handler
+	 *            The handler that checks the response
+	 * @param futureResponse
+	 *            The future of the request
+	 * @param message
+	 *            The request
+	 * @param timeoutSeconds
+	 *            The time to wait for the response
+	 * @return False if the request could not be registered, in this case nothing has been sent
+	 */
+	public boolean send(final RequestHandler<? extends FutureResponse> handler, final FutureResponse futureResponse,
+	        final Message message, final int timeoutSeconds) {
+		final ChannelFuture channelFuture = channelFuture();
+		if (channelFuture == null) {
+			return false;
+		}
+		final Integer messageId = message.messageId();
+		final Request request = new Request(handler);
+		if (requests.putIfAbsent(messageId, request) != null) {
+			return false;
+		}
+		try {
+			request.timeout = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (requests.remove(messageId, request)) {
+						LOG.debug("Timeout for request {}.", message);
+						// the peer map is updated before the future listeners run
+						timeout(message.recipient());
+						futureResponse.failed("Timeout, no response within " + timeoutSeconds + " seconds.");
+					}
+				}
+			}, timeoutSeconds, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException e) {
+			// the timer has been shut down
+			requests.remove(messageId, request);
+			return false;
+		}
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				requests.remove(messageId, request);
+				request.timeout.cancel(false);
+			}
+		});
+		futureResponse.addCancel(new Cancel() {
+			@Override
+			public void cancel() {
+				requests.remove(messageId, request);
+			}
+		});
+		channelFuture.addListener(new GenericFutureListener<ChannelFuture>() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					futureResponse.failed("Shared UDP channel could not be bound " + future.cause());
+					return;
+				}
+				futureResponse.progressHandler(new ProgressHandler() {
+					@Override
+					public void progress() {
+						future.channel().writeAndFlush(message).addListener(new GenericFutureListener<ChannelFuture>() {
+							@Override
+							public void operationComplete(final ChannelFuture writeFuture) throws Exception {
+								if (!writeFuture.isSuccess()) {
+									LOG.warn("Failed to write the request {} {}.", message, writeFuture.cause());
+									futureResponse.failed(writeFuture.cause());
+								}
+							}
+						});
+					}
+				});
+				futureResponse.progressFirst();
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Notifies the peer status listeners about a request that timed out, as the {@link TimeoutFactory} does for
+	 * requests on their own channel.
+	 */
+	private void timeout(final PeerAddress recipient) {
+		if (peerStatusListeners == null) {
+			return;
+		}
+		synchronized (peerStatusListeners) {
+			for (PeerStatusListener peerStatusListener : peerStatusListeners) {
+				peerStatusListener.peerFailed(recipient, new PeerException(AbortCause.TIMEOUT, "Timeout!"));
+			}
+		}
+	}
+
+	/**
+	 * @return The number of requests that wait for a response
+	 */
+	public int pendingRequests() {
+		return requests.size();
+	}
+
+	/**
+	 * Closes the channel and fails all pending requests.
+	 *
+	 * @return A future that is done when the channel is closed
+	 */
+	public FutureDone<Void> shutdown() {
+		final FutureDone<Void> futureShutdown = new FutureDone<Void>();
+		final ChannelFuture channelFuture;
+		synchronized (lock) {
+			shutdown = true;
+			channelFuture = this.channelFuture;
+		}
+		for (Request request : requests.values()) {
+			request.handler.futureResponse().failed("Shared UDP channel shut down.");
+		}
+		requests.clear();
+		if (channelFuture == null) {
+			return futureShutdown.done();
+		}
+		channelFuture.channel().close().addListener(new GenericFutureListener<ChannelFuture>() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				futureShutdown.done();
+			}
+		});
+		return futureShutdown;
+	}
+
+	private ChannelFuture channelFuture() {
+		synchronized (lock) {
+			if (shutdown) {
+				return null;
+			}
+			if (channelFuture == null || (channelFuture.isDone() && !channelFuture.channel().isActive())) {
+				channelFuture = bind();
+			}
+			return channelFuture;
+		}
+	}
+
+	private ChannelFuture bind() {
+		final Bootstrap b = new Bootstrap();
+		b.group(workerGroup);
+		b.channel(NioDatagramChannel.class);
+		b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
+		b.option(ChannelOption.MAX_MESSAGES_PER_READ, MAX_MESSAGES_PER_READ);
+		b.handler(new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(final Channel ch) throws Exception {
+				ch.pipeline().addLast("flush", new CoalescingFlushHandler());
+				ch.pipeline().addLast("decoder",
+				        new TomP2PSinglePacketUDP(channelClientConfiguration.signatureFactory(), metrics));
+				ch.pipeline().addLast("encoder",
+				        new TomP2POutbound(false, channelClientConfiguration.signatureFactory(), metrics));
+				ch.pipeline().addLast("handler", new ResponseHandler());
+			}
+		});
+		LOG.debug("Bind shared UDP channel.");
+		return b.bind(channelClientConfiguration.bindingsOutgoing().wildCardSocket());
+	}
+
+	/**
+	 * A pending request.
+	 */
+	private static final class Request {
+		private final RequestHandler<? extends FutureResponse> handler;
+		private ScheduledFuture<?> timeout;
+
+		private Request(final RequestHandler<? extends FutureResponse> handler) {
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * Passes the responses to the handler of their request.
+	 */
+	private class ResponseHandler extends SimpleChannelInboundHandler<Message> {
+		@Override
+		protected void channelRead0(final ChannelHandlerContext ctx, final Message responseMessage) throws Exception {
+			final Request request = requests.get(responseMessage.messageId());
+			if (request == null || responseMessage.isRequest()) {
+				LOG.debug("No request found for {}, it may have timed out.", responseMessage);
+				return;
+			}
+			request.handler.responseReceived(null, responseMessage);
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+			// a single bad datagram must not close the shared channel
+			LOG.debug("Error in shared UDP channel.", cause);
+		}
+	}
+
+	/**
+	 * Flushes once after all the writes that are queued in the event loop, instead of once per write.
+	 */
+	private static class CoalescingFlushHandler extends ChannelOutboundHandlerAdapter {
+		// only accessed from the event loop
+		private boolean flushPending = false;
+
+		@Override
+		public void flush(final ChannelHandlerContext ctx) throws Exception {
+			if (flushPending) {
+				return;
+			}
+			flushPending = true;
+			ctx.channel().eventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					flushPending = false;
+					ctx.flush();
+				}
+			});
+		}
+	}
+}
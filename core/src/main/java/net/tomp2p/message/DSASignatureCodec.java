@@ -110,8 +110,8 @@ public class DSASignatureCodec implements SignatureCodec {
 	 */
 	@Override
     public SignatureCodec write(ByteBuf buf) {
-		buf.writeBytes(number1.toByteArray());
-		buf.writeBytes(number2.toByteArray());
+		number1.write(buf);
+		number2.write(buf);
 		return this;
 	}
 
@@ -145,11 +145,8 @@ public class DSASignatureCodec implements SignatureCodec {
 
 	@Override
     public SignatureCodec read(ByteBuf buf) {
-		byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-		buf.readBytes(me);
-		number1 = new Number160(me);
-		buf.readBytes(me);
-		number2 = new Number160(me);
+		number1 = Number160.create(buf);
+		number2 = Number160.create(buf);
 	    return this;
     }
 	
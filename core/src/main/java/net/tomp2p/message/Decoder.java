@@ -46,6 +46,8 @@ public class Decoder {
 
 	public static final AttributeKey<InetSocketAddress> INET_ADDRESS_KEY = AttributeKey.valueOf("inet-addr");
 	public static final AttributeKey<PeerAddress> PEER_ADDRESS_KEY = AttributeKey.valueOf("peer-addr");
+	/** Set on a TCP channel once the other peer announced that it can decode the wire format v2. */
+	public static final AttributeKey<Boolean> WIRE_V2_KEY = AttributeKey.valueOf("wire-v2");
 
 	private static final Logger LOG = LoggerFactory.getLogger(Decoder.class);
 
@@ -55,6 +57,7 @@ public class Decoder {
 
 	// current state - needs to be deleted if we want to reuse
 	private Message message = null;
+	private boolean v2 = false;
 
 	private int neighborSize = -1;
 	private NeighborSet neighborSet = null;
@@ -86,6 +89,8 @@ public class Decoder {
 	private Content lastContent = null;
 
 	private final SignatureFactory signatureFactory;
+	// for TCP, this decoder lives as long as the connection, for UDP only one message
+	private final WireDictionary dictionary = new WireDictionary();
 
 	public Decoder(SignatureFactory signatureFactory) {
 		this.signatureFactory = signatureFactory;
@@ -109,6 +114,9 @@ public class Decoder {
 					final Attribute<PeerAddress> attrPeerAddr = ctx.attr(PEER_ADDRESS_KEY);
 					attrPeerAddr.set(message.sender());
 					message.udp(ctx.channel() instanceof DatagramChannel);
+					if (message.isWireV2Capable() && !message.isUdp()) {
+						ctx.channel().attr(WIRE_V2_KEY).set(Boolean.TRUE);
+					}
 					if (message.isFireAndForget() && message.isUdp()) {
 						TimeoutFactory.removeTimeout(ctx);
 					}
@@ -165,12 +173,22 @@ public class Decoder {
 
 	public boolean decodeHeader(final ByteBuf buf, InetSocketAddress recipient, final InetSocketAddress sender) {
 		if (message == null) {
-			if (buf.readableBytes() < MessageHeaderCodec.HEADER_SIZE) {
+			if (!buf.isReadable()) {
+				return false;
+			}
+			v2 = MessageHeaderCodec.isWireV2(buf);
+			if (v2) {
+				if (MessageHeaderCodec.headerSizeV2(buf, dictionary) < 0) {
+					return false;
+				}
+				message = MessageHeaderCodec.decodeHeaderV2(buf, recipient, sender, dictionary);
+			} else if (buf.readableBytes() < MessageHeaderCodec.HEADER_SIZE) {
 				// we don't have the header yet, we need the full header first
 				// wait for more data
 				return false;
+			} else {
+				message = MessageHeaderCodec.decodeHeader(buf, recipient, sender);
 			}
-			message = MessageHeaderCodec.decodeHeader(buf, recipient, sender);
 			// we have set the content types already
 			message.presetContentTypes(true);
 
@@ -218,12 +236,10 @@ public class Decoder {
 				lastContent = contentTypes.poll();
 				break;
 			case KEY:
-				if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE) {
+				if (number160Size(buf, 0) < 0) {
 					return false;
 				}
-				byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-				buf.readBytes(me);
-				message.key(new Number160(me));
+				message.key(readNumber160(buf));
 				lastContent = contentTypes.poll();
 				break;
 			case BLOOM_FILTER:
@@ -238,26 +254,20 @@ public class Decoder {
 				lastContent = contentTypes.poll();
 				break;
 			case SET_NEIGHBORS:
-				if (neighborSize == -1 && buf.readableBytes() < Utils.BYTE_BYTE_SIZE) {
+				if (neighborSize == -1 && byteCountSize(buf, 0) < 0) {
 					return false;
 				}
 				if (neighborSize == -1) {
-					neighborSize = buf.readUnsignedByte();
+					neighborSize = readByteCount(buf);
 				}
 				if (neighborSet == null) {
 					neighborSet = new NeighborSet(-1, new ArrayList<PeerAddress>(neighborSize));
 				}
 				for (int i = neighborSet.size(); i < neighborSize; i++) {
-					if (buf.readableBytes() < Utils.SHORT_BYTE_SIZE) {
+					if (peerAddressSize(buf, 0) < 0) {
 						return false;
 					}
-					int header = buf.getUnsignedShort(buf.readerIndex());
-					size = PeerAddress.size(header);
-					if (buf.readableBytes() < size) {
-						return false;
-					}
-					PeerAddress pa = new PeerAddress(buf);
-					neighborSet.add(pa);
+					neighborSet.add(readPeerAddress(buf));
 				}
 				message.neighborsSet(neighborSet);
 				lastContent = contentTypes.poll();
@@ -294,30 +304,20 @@ public class Decoder {
 				peerSocketAddresses = null;
 				break;
 			case SET_KEY640:
-				if (keyCollectionSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
+				if (keyCollectionSize == -1 && intCountSize(buf) < 0) {
 					return false;
 				}
 				if (keyCollectionSize == -1) {
-					keyCollectionSize = buf.readInt();
+					keyCollectionSize = readIntCount(buf);
 				}
 				if (keyCollection == null) {
 					keyCollection = new KeyCollection(new ArrayList<Number640>(keyCollectionSize));
 				}
 				for (int i = keyCollection.size(); i < keyCollectionSize; i++) {
-					if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
-							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
+					if (number640Size(buf, 0) < 0) {
 						return false;
 					}
-					byte[] me2 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me2);
-					Number160 locationKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 domainKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 contentKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 versionKey = new Number160(me2);
-					keyCollection.add(new Number640(locationKey, domainKey, contentKey, versionKey));
+					keyCollection.add(readNumber640(buf));
 				}
 				message.keyCollection(keyCollection);
 				lastContent = contentTypes.poll();
@@ -325,11 +325,11 @@ public class Decoder {
 				keyCollection = null;
 				break;
 			case MAP_KEY640_DATA:
-				if (mapSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
+				if (mapSize == -1 && intCountSize(buf) < 0) {
 					return false;
 				}
 				if (mapSize == -1) {
-					mapSize = buf.readInt();
+					mapSize = readIntCount(buf);
 				}
 				if (dataMap == null) {
 					dataMap = new DataMap(new HashMap<Number640, Data>(2 * mapSize));
@@ -346,19 +346,10 @@ public class Decoder {
 				}
 				for (int i = dataMap.size(); i < mapSize; i++) {
 					if (key == null) {
-						if (buf.readableBytes() < 4 * Number160.BYTE_ARRAY_SIZE) {
+						if (number640Size(buf, 0) < 0) {
 							return false;
 						}
-						byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-						buf.readBytes(me3);
-						Number160 locationKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 domainKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 contentKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 versionKey = new Number160(me3);
-						key = new Number640(locationKey, domainKey, contentKey, versionKey);
+						key = readNumber640(buf);
 					}
 					data = Data.decodeHeader(buf, signatureFactory);
 					if (data == null) {
@@ -387,47 +378,42 @@ public class Decoder {
 				dataMap = null;
 				break;
 			case MAP_KEY640_KEYS:
-				if (keyMap640KeysSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
+				if (keyMap640KeysSize == -1 && intCountSize(buf) < 0) {
 					return false;
 				}
 				if (keyMap640KeysSize == -1) {
-					keyMap640KeysSize = buf.readInt();
+					keyMap640KeysSize = readIntCount(buf);
 				}
 				if (keyMap640Keys == null) {
 					keyMap640Keys = new KeyMap640Keys(new TreeMap<Number640, Collection<Number160>>());
 				}
 
-				final int meta = Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
-						+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE;
-
 				for (int i = keyMap640Keys.size(); i < keyMap640KeysSize; i++) {
-					if (buf.readableBytes() < meta + Utils.BYTE_BYTE_SIZE) {
+					final int meta = number640Size(buf, 0);
+					if (meta < 0) {
 						return false;
 					}
-					size = buf.getUnsignedByte(buf.readerIndex() + meta);
-					
-					if (buf.readableBytes() < meta + Utils.BYTE_BYTE_SIZE + (size * Number160.BYTE_ARRAY_SIZE )) {
+					final int countSize = byteCountSize(buf, meta);
+					if (countSize < 0) {
 						return false;
 					}
-					byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me3);
-					Number160 locationKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 domainKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 contentKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 versionKey = new Number160(me3);
-
-					int numBasedOn = buf.readByte();
+					final int numBasedOn = v2 ? Utils.getVarInt(buf, meta) : buf.getUnsignedByte(buf.readerIndex() + meta);
+					int offset = meta + countSize;
+					for (int j = 0; j < numBasedOn; j++) {
+						size = number160Size(buf, offset);
+						if (size < 0) {
+							return false;
+						}
+						offset += size;
+					}
+					final Number640 key640 = readNumber640(buf);
+					readByteCount(buf);
 					Set<Number160> value = new HashSet<Number160>(numBasedOn);
 					for (int j = 0; j < numBasedOn; j++) {
-						buf.readBytes(me3);
-						Number160 basedOnKey = new Number160(me3);
-						value.add(basedOnKey);
+						value.add(readNumber160(buf));
 					}
 
-					keyMap640Keys.put(new Number640(locationKey, domainKey, contentKey, versionKey), value);
+					keyMap640Keys.put(key640, value);
 				}
 
 				message.keyMap640Keys(keyMap640Keys);
@@ -436,32 +422,24 @@ public class Decoder {
 				keyMap640Keys = null;
 				break;
 			case MAP_KEY640_BYTE:
-				if (keyMapByteSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
+				if (keyMapByteSize == -1 && intCountSize(buf) < 0) {
 					return false;
 				}
 				if (keyMapByteSize == -1) {
-					keyMapByteSize = buf.readInt();
+					keyMapByteSize = readIntCount(buf);
 				}
 				if (keyMapByte == null) {
 					keyMapByte = new KeyMapByte(new HashMap<Number640, Byte>(2 * keyMapByteSize));
 				}
 
 				for (int i = keyMapByte.size(); i < keyMapByteSize; i++) {
-					if (buf.readableBytes() < 4 * Number160.BYTE_ARRAY_SIZE + 1) {
+					size = number640Size(buf, 0);
+					if (size < 0 || buf.readableBytes() < size + Utils.BYTE_BYTE_SIZE) {
 						return false;
 					}
-					byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me3);
-					Number160 locationKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 domainKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 contentKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 versionKey = new Number160(me3);
-					
+					final Number640 key640 = readNumber640(buf);
 					byte value = buf.readByte();
-					keyMapByte.put(new Number640(locationKey, domainKey, contentKey, versionKey), value);
+					keyMapByte.put(key640, value);
 				}
 
 				message.keyMapByte(keyMapByte);
@@ -470,11 +448,11 @@ public class Decoder {
 				keyMapByte = null;
 				break;
 			case BYTE_BUFFER:
-				if (bufferSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
+				if (bufferSize == -1 && intCountSize(buf) < 0) {
 					return false;
 				}
 				if (bufferSize == -1) {
-					bufferSize = buf.readInt();
+					bufferSize = readIntCount(buf);
 				}
 				if (buffer == null) {
 					buffer = new DataBuffer();
@@ -518,24 +496,16 @@ public class Decoder {
 				}
 				for (int i = trackerData.size(); i < trackerDataSize; i++) {
 
-					if (buf.readableBytes() < Utils.SHORT_BYTE_SIZE) {
-						return false;
-					}
-
-					int header = buf.getUnsignedShort(buf.readerIndex());
-
-					size = PeerAddress.size(header);
-
-					if (buf.readableBytes() < size) {
+					if (peerAddressSize(buf, 0) < 0) {
 						return false;
 					}
-					PeerAddress pa = new PeerAddress(buf);
+					PeerAddress pa = readPeerAddress(buf);
 
 					currentTrackerData = Data.decodeHeader(buf, signatureFactory);
 					if (currentTrackerData == null) {
 						return false;
 					}
-					trackerData.peerAddresses().put(pa, currentTrackerData);
+					trackerData.put(pa, currentTrackerData);
 					if (message.isSign()) {
 						currentTrackerData.publicKey(message.publicKey(0));
 					}
@@ -586,6 +556,79 @@ public class Decoder {
 		return true;
 	}
 
+	// the size of a count that is an integer in the wire format v1 and a varint in the wire format v2, or -1
+	private int intCountSize(final ByteBuf buf) {
+		if (v2) {
+			return Utils.varIntSize(buf, 0);
+		}
+		return buf.readableBytes() < Utils.INTEGER_BYTE_SIZE ? -1 : Utils.INTEGER_BYTE_SIZE;
+	}
+
+	private int readIntCount(final ByteBuf buf) {
+		return v2 ? Utils.readVarInt(buf) : buf.readInt();
+	}
+
+	// the size of a count that is a byte in the wire format v1 and a varint in the wire format v2, or -1
+	private int byteCountSize(final ByteBuf buf, final int offset) {
+		if (v2) {
+			return Utils.varIntSize(buf, offset);
+		}
+		return buf.readableBytes() < offset + Utils.BYTE_BYTE_SIZE ? -1 : Utils.BYTE_BYTE_SIZE;
+	}
+
+	private int readByteCount(final ByteBuf buf) {
+		return v2 ? Utils.readVarInt(buf) : buf.readUnsignedByte();
+	}
+
+	private int number160Size(final ByteBuf buf, final int offset) {
+		if (v2) {
+			return dictionary.idSize(buf, offset);
+		}
+		return buf.readableBytes() < offset + Number160.BYTE_ARRAY_SIZE ? -1 : Number160.BYTE_ARRAY_SIZE;
+	}
+
+	private Number160 readNumber160(final ByteBuf buf) {
+		if (v2) {
+			return dictionary.readId(buf);
+		}
+		return Number160.create(buf);
+	}
+
+	private int number640Size(final ByteBuf buf, final int offset) {
+		int size = 0;
+		for (int i = 0; i < 4; i++) {
+			final int size160 = number160Size(buf, offset + size);
+			if (size160 < 0) {
+				return -1;
+			}
+			size += size160;
+		}
+		return size;
+	}
+
+	private Number640 readNumber640(final ByteBuf buf) {
+		final Number160 locationKey = readNumber160(buf);
+		final Number160 domainKey = readNumber160(buf);
+		final Number160 contentKey = readNumber160(buf);
+		final Number160 versionKey = readNumber160(buf);
+		return new Number640(locationKey, domainKey, contentKey, versionKey);
+	}
+
+	private int peerAddressSize(final ByteBuf buf, final int offset) {
+		if (v2) {
+			return dictionary.peerAddressSize(buf, offset);
+		}
+		if (buf.readableBytes() < offset + Utils.SHORT_BYTE_SIZE) {
+			return -1;
+		}
+		final int size = PeerAddress.size(buf.getUnsignedShort(buf.readerIndex() + offset));
+		return buf.readableBytes() < offset + size ? -1 : size;
+	}
+
+	private PeerAddress readPeerAddress(final ByteBuf buf) {
+		return v2 ? dictionary.readPeerAddress(buf) : new PeerAddress(buf);
+	}
+
 	public Message prepareFinish() {
 		Message ret = message;
 		message.setDone();
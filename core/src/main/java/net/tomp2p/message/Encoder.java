@@ -18,6 +18,7 @@ import net.tomp2p.peers.PeerSocketAddress;
 import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.AlternativeCompositeByteBuf;
 import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,22 +29,63 @@ public class Encoder {
 
     private boolean header = false;
     private boolean resume = false;
+    private boolean v2 = false;
     private Message message;
 
     private final SignatureFactory signatureFactory;
+    // null if we do not announce the wire format v2
+    private final WireDictionary dictionary;
 
     public Encoder(SignatureFactory signatureFactory) {
+        this(signatureFactory, false);
+    }
+
+    /**
+     * @param signatureFactory
+     *            The factory for the signatures
+     * @param wireV2Capable
+     *            True if the decoder on this connection can decode the wire format v2, which is announced to the
+     *            other peer in every message header
+     */
+    public Encoder(SignatureFactory signatureFactory, boolean wireV2Capable) {
         this.signatureFactory = signatureFactory;
+        this.dictionary = wireV2Capable ? new WireDictionary() : null;
     }
 
     public boolean write(final AlternativeCompositeByteBuf buf, final Message message, SignatureCodec signatureCodec) throws InvalidKeyException,
             SignatureException, IOException {
+        return write(buf, message, signatureCodec, false);
+    }
+
+    /**
+     * Encodes a message or the next part of a streamed message.
+     * 
+     * @param buf
+     *            The buffer to encode to
+     * @param message
+     *            The message
+     * @param signatureCodec
+     *            The signature to reuse, or null to sign the message if needed
+     * @param wireV2
+     *            True if the recipient can decode the wire format v2. Signed messages are always sent in the wire
+     *            format v1, since a relay may need to encode them again with the same signature.
+     * @return True if the message has been completely encoded
+     */
+    public boolean write(final AlternativeCompositeByteBuf buf, final Message message, SignatureCodec signatureCodec,
+            final boolean wireV2) throws InvalidKeyException, SignatureException, IOException {
 
         this.message = message;
         LOG.debug("message for outbound {}", message);
 
         if (!header) {
-            MessageHeaderCodec.encodeHeader(buf, message);
+            final boolean versionFits = message.version() >= 0
+                    && message.version() <= MessageHeaderCodec.MAX_VERSION_V2;
+            v2 = dictionary != null && wireV2 && versionFits && !message.isSign();
+            if (v2) {
+                MessageHeaderCodec.encodeHeaderV2(buf, message, dictionary);
+            } else {
+                MessageHeaderCodec.encodeHeader(buf, message, dictionary != null && versionFits);
+            }
             header = true;
         } else {
             LOG.debug("send a follow-up message {}", message);
@@ -76,7 +118,7 @@ public class Encoder {
         	final Content content = next.content(); 
             switch (content) {
             case KEY:
-                buf.writeBytes(message.key(next.index()).toByteArray());
+                writeNumber160(buf, message.key(next.index()));
                 message.contentReferences().poll();
                 break;
             case INTEGER:
@@ -90,9 +132,9 @@ public class Encoder {
             case SET_NEIGHBORS:
                 NeighborSet neighborSet = message.neighborsSet(next.index());
                 // length
-                buf.writeByte(neighborSet.size());
+                writeByteCount(buf, neighborSet.size());
                 for (PeerAddress neighbor : neighborSet.neighbors()) {
-                    buf.writeBytes(neighbor.toByteArray());
+                    writePeerAddress(buf, neighbor);
                 }
                 message.contentReferences().poll();
                 break;
@@ -115,20 +157,14 @@ public class Encoder {
             case SET_KEY640:
                 KeyCollection keys = message.keyCollection(next.index());
                 // length
-                buf.writeInt(keys.size());
+                writeIntCount(buf, keys.size());
                 if (keys.isConvert()) {
                     for (Number160 key : keys.keysConvert()) {
-                        buf.writeBytes(keys.locationKey().toByteArray());
-                        buf.writeBytes(keys.domainKey().toByteArray());
-                        buf.writeBytes(key.toByteArray());
-                        buf.writeBytes(keys.versionKey().toByteArray());
+                        writeNumber640(buf, keys.locationKey(), keys.domainKey(), key, keys.versionKey());
                     }
                 } else {
                     for (Number640 key : keys.keys()) {
-                        buf.writeBytes(key.locationKey().toByteArray());
-                        buf.writeBytes(key.domainKey().toByteArray());
-                        buf.writeBytes(key.contentKey().toByteArray());
-                        buf.writeBytes(key.versionKey().toByteArray());
+                        writeNumber640(buf, key);
                     }
                 }
                 message.contentReferences().poll();
@@ -136,21 +172,16 @@ public class Encoder {
             case MAP_KEY640_DATA:
                 DataMap dataMap = message.dataMap(next.index());
                 // legnth
-                buf.writeInt(dataMap.size());
+                writeIntCount(buf, dataMap.size());
                 if (dataMap.isConvert()) {
                     for (Entry<Number160, Data> entry : dataMap.dataMapConvert().entrySet()) {
-                    	buf.writeBytes(dataMap.locationKey().toByteArray());
-                        buf.writeBytes(dataMap.domainKey().toByteArray());
-                        buf.writeBytes(entry.getKey().toByteArray());
-                        buf.writeBytes(dataMap.versionKey().toByteArray());
+                        writeNumber640(buf, dataMap.locationKey(), dataMap.domainKey(), entry.getKey(),
+                                dataMap.versionKey());
                         encodeData(buf, entry.getValue(), dataMap.isConvertMeta(), !message.isRequest());
                     }
                 } else {
                     for (Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
-                        buf.writeBytes(entry.getKey().locationKey().toByteArray());
-                        buf.writeBytes(entry.getKey().domainKey().toByteArray());
-                        buf.writeBytes(entry.getKey().contentKey().toByteArray());
-                        buf.writeBytes(entry.getKey().versionKey().toByteArray());
+                        writeNumber640(buf, entry.getKey());
                         encodeData(buf, entry.getValue(), dataMap.isConvertMeta(), !message.isRequest());
                     }
                 }
@@ -159,17 +190,14 @@ public class Encoder {
             case MAP_KEY640_KEYS:
                 KeyMap640Keys keyMap640Keys = message.keyMap640Keys(next.index());
                 // length
-                buf.writeInt(keyMap640Keys.size());
+                writeIntCount(buf, keyMap640Keys.size());
                 for (Entry<Number640, Collection<Number160>> entry : keyMap640Keys.keysMap().entrySet()) {
-                    buf.writeBytes(entry.getKey().locationKey().toByteArray());
-                    buf.writeBytes(entry.getKey().domainKey().toByteArray());
-                    buf.writeBytes(entry.getKey().contentKey().toByteArray());
-                    buf.writeBytes(entry.getKey().versionKey().toByteArray());
+                    writeNumber640(buf, entry.getKey());
                     // write number of based-on keys
-                    buf.writeByte(entry.getValue().size());
+                    writeByteCount(buf, entry.getValue().size());
                     // write based-on keys
                     for (Number160 basedOnKey : entry.getValue()) {
-                        buf.writeBytes(basedOnKey.toByteArray());
+                        writeNumber160(buf, basedOnKey);
                     }
                 }
                 message.contentReferences().poll();
@@ -177,12 +205,9 @@ public class Encoder {
             case MAP_KEY640_BYTE:
                 KeyMapByte keysMap = message.keyMapByte(next.index());
                 // length
-                buf.writeInt(keysMap.size());
+                writeIntCount(buf, keysMap.size());
                 for (Entry<Number640, Byte> entry : keysMap.keysMap().entrySet()) {
-                    buf.writeBytes(entry.getKey().locationKey().toByteArray());
-                    buf.writeBytes(entry.getKey().domainKey().toByteArray());
-                    buf.writeBytes(entry.getKey().contentKey().toByteArray());
-                    buf.writeBytes(entry.getKey().versionKey().toByteArray());
+                    writeNumber640(buf, entry.getKey());
                     buf.writeByte(entry.getValue());
                 }
                 message.contentReferences().poll();
@@ -190,7 +215,7 @@ public class Encoder {
             case BYTE_BUFFER:
                 Buffer buffer = message.buffer(next.index());
                 if (!resume) {
-                    buf.writeInt(buffer.length());
+                    writeIntCount(buf, buffer.length());
                 }
                 // length
                 int readable = buffer.readable();
@@ -210,8 +235,7 @@ public class Encoder {
                 TrackerData trackerData = message.trackerData(next.index());
                 buf.writeByte(trackerData.peerAddresses().size()); // 1 bytes - length, max. 255
                 for (Map.Entry<PeerAddress, Data> entry : trackerData.peerAddresses().entrySet()) {
-                	byte[] me = entry.getKey().toByteArray();
-                    buf.writeBytes(me);
+                    writePeerAddress(buf, entry.getKey());
                     Data data = entry.getValue().duplicate();
                     encodeData(buf, data, false, !message.isRequest());
                 }
@@ -235,6 +259,53 @@ public class Encoder {
         return true;
     }
 
+    // the counts that are an integer in the wire format v1 are a varint in the wire format v2
+    private void writeIntCount(final AlternativeCompositeByteBuf buf, final int count) {
+        if (v2) {
+            Utils.writeVarInt(buf, count);
+        } else {
+            buf.writeInt(count);
+        }
+    }
+
+    // the counts that are a byte in the wire format v1 are a varint in the wire format v2
+    private void writeByteCount(final AlternativeCompositeByteBuf buf, final int count) {
+        if (v2) {
+            Utils.writeVarInt(buf, count);
+        } else {
+            buf.writeByte(count);
+        }
+    }
+
+    private void writeNumber160(final AlternativeCompositeByteBuf buf, final Number160 number160) {
+        if (v2) {
+            dictionary.writeId(buf, number160);
+        } else {
+            number160.write(buf);
+        }
+    }
+
+    private void writeNumber640(final AlternativeCompositeByteBuf buf, final Number640 number640) {
+        writeNumber640(buf, number640.locationKey(), number640.domainKey(), number640.contentKey(),
+                number640.versionKey());
+    }
+
+    private void writeNumber640(final AlternativeCompositeByteBuf buf, final Number160 locationKey,
+            final Number160 domainKey, final Number160 contentKey, final Number160 versionKey) {
+        writeNumber160(buf, locationKey);
+        writeNumber160(buf, domainKey);
+        writeNumber160(buf, contentKey);
+        writeNumber160(buf, versionKey);
+    }
+
+    private void writePeerAddress(final AlternativeCompositeByteBuf buf, final PeerAddress peerAddress) {
+        if (v2) {
+            dictionary.writePeerAddress(buf, peerAddress);
+        } else {
+            buf.writeBytes(peerAddress.toByteArray());
+        }
+    }
+
 	private void encodeData(AlternativeCompositeByteBuf buf, Data data, boolean isConvertMeta, boolean isReply) throws InvalidKeyException, SignatureException, IOException {
 		if(isConvertMeta) {
 			data = data.duplicateMeta();
@@ -254,6 +325,13 @@ public class Encoder {
         return message;
     }
 
+    /**
+     * @return The dictionary of the wire format v2, or null if this encoder does not announce the wire format v2
+     */
+    public WireDictionary dictionary() {
+        return dictionary;
+    }
+
     public void reset() {
         header = false;
         resume = false;
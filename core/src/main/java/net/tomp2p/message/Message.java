@@ -85,8 +85,10 @@ public class Message {
         // REQUEST_1 for TASK is submit new task
         // REQUEST_2 for TASK is status
         // REQUEST_3 for TASK is send back result
+        // OVERLOADED means the handler for this command is busy, the peer is alive
+        // but did not process the request. This is the last type that fits in 4 bits.
         REQUEST_1, REQUEST_2, REQUEST_3, REQUEST_4, REQUEST_FF_1, REQUEST_FF_2, OK, 
-        PARTIALLY_OK, NOT_FOUND, DENIED, UNKNOWN_ID, EXCEPTION, CANCEL, USER1, USER2
+        PARTIALLY_OK, NOT_FOUND, DENIED, UNKNOWN_ID, EXCEPTION, CANCEL, USER1, USER2, OVERLOADED
     };
 
     // Header:
@@ -132,6 +134,8 @@ public class Message {
     private transient boolean sign = false;
     private transient boolean content = false;
     private transient boolean verified = false;
+    private transient boolean wireV2Capable = false;
+    private transient boolean wireV2 = false;
 
     /**
      * Creates message with a random ID.
@@ -434,6 +438,13 @@ public class Message {
         return type == Type.NOT_FOUND || type == Type.DENIED;
     }
 
+    /**
+     * @return True if the peer is alive, but did not process the request because it was overloaded
+     */
+    public boolean isOverloaded() {
+        return type == Type.OVERLOADED;
+    }
+
     /**
      * @return True if the message contained an unexpected error or behavior
      */
@@ -507,6 +518,41 @@ public class Message {
         return (options & 2) > 0;
     }
 
+    /**
+     * @param wireV2Capable
+     *            True if the peer that sent this message over the last hop can decode the wire format v2
+     * @return This class
+     */
+    public Message wireV2Capable(final boolean wireV2Capable) {
+        this.wireV2Capable = wireV2Capable;
+        return this;
+    }
+
+    /**
+     * @return True if the peer that sent this message over the last hop can decode the wire format v2
+     */
+    public boolean isWireV2Capable() {
+        return wireV2Capable;
+    }
+
+    /**
+     * @param wireV2
+     *            True if this message should be encoded with the wire format v2. Only set this if the recipient can
+     *            decode it, e.g. for a reply to a request that was sent by a peer that is wire v2 capable.
+     * @return This class
+     */
+    public Message wireV2(final boolean wireV2) {
+        this.wireV2 = wireV2;
+        return this;
+    }
+
+    /**
+     * @return True if this message should be encoded with the wire format v2
+     */
+    public boolean isWireV2() {
+        return wireV2;
+    }
+
     // Header data ends here *********************************** static payload starts now
 
     public Message key(final Number160 key) {
@@ -47,6 +47,24 @@ public final class MessageHeaderCodec {
 
     public static final int HEADER_SIZE = 58;
 
+    /**
+     * The option bit that tells the recipient that the sender can decode the wire format v2. Peers that do not know
+     * the wire format v2 ignore it.
+     */
+    public static final int WIRE_V2_OPTION = 4;
+
+    /**
+     * The largest P2P version that can be sent with the wire format v2, as the top bit of the 28bit version marks
+     * the wire format v2.
+     */
+    public static final int MAX_VERSION_V2 = (1 << 27) - 1;
+
+    // the top bit of the first integer, which is the top bit of the p2p version
+    private static final int WIRE_V2_FLAG = 0x80000000;
+
+    // version and type, message id, command, options, at least one byte for the content types, two IDs and the ports
+    private static final int MIN_HEADER_SIZE_V2 = 4 + 4 + 1 + 1 + 1 + 1 + 4 + 1;
+
     /**
      * Encodes a message object.
      * 
@@ -61,17 +79,138 @@ public final class MessageHeaderCodec {
      * @return The buffer passed as an argument
      */
     public static void encodeHeader(final AlternativeCompositeByteBuf buffer, final Message message) {
-        
+    	encodeHeader(buffer, message, false);
+    }
+
+    /**
+     * Encodes a message object in the wire format v1, see {@link #encodeHeader(AlternativeCompositeByteBuf, Message)}.
+     * 
+     * @param buffer
+     *            The buffer to encode to
+     * @param message
+     *            The message with the header that will be encoded
+     * @param wireV2Capable
+     *            True to tell the recipient that we can decode the wire format v2
+     */
+    public static void encodeHeader(final AlternativeCompositeByteBuf buffer, final Message message,
+            final boolean wireV2Capable) {
+    	final int options = wireV2Capable ? message.options() | WIRE_V2_OPTION : message.options();
     	final int versionAndType = message.version() << 4 | (message.type().ordinal() & Utils.MASK_0F);
         buffer.writeInt(versionAndType); // 4
         buffer.writeInt(message.messageId()); // 8
         buffer.writeByte(message.command()); // 9
-        buffer.writeBytes(message.sender().peerId().toByteArray()); // 29
+        message.sender().peerId().write(buffer); // 29
         buffer.writeShort((short) message.sender().tcpPort()); // 31
         buffer.writeShort((short) message.sender().udpPort()); // 33
-        buffer.writeBytes(message.recipient().peerId().toByteArray()); // 53
+        message.recipient().peerId().write(buffer); // 53
         buffer.writeInt(encodeContentTypes(message.contentTypes())); // 57
-        buffer.writeByte((message.sender().options() << 4) | message.options()); // 58
+        buffer.writeByte((message.sender().options() << 4) | options); // 58
+    }
+
+    /**
+     * Encodes a message object in the wire format v2. The format looks as follows: 1bit wire v2 flag - 27bit p2p
+     * version - 4bit message type - 32bit message id - 8bit message command - 8bit options - varint content types -
+     * sender id - 16bit sender tcp port - 16bit sender udp port - recipient id. The IDs are encoded with the
+     * dictionary, so on an established connection the header is 17 bytes instead of 58 bytes.
+     * 
+     * @param buffer
+     *            The buffer to encode to
+     * @param message
+     *            The message with the header that will be encoded, its version must not be larger than
+     *            {@link #MAX_VERSION_V2}
+     * @param dictionary
+     *            The dictionary of the connection
+     */
+    public static void encodeHeaderV2(final AlternativeCompositeByteBuf buffer, final Message message,
+            final WireDictionary dictionary) {
+    	final int versionAndType = WIRE_V2_FLAG | message.version() << 4 | (message.type().ordinal() & Utils.MASK_0F);
+        buffer.writeInt(versionAndType);
+        buffer.writeInt(message.messageId());
+        buffer.writeByte(message.command());
+        buffer.writeByte((message.sender().options() << 4) | message.options() | WIRE_V2_OPTION);
+        Utils.writeVarInt(buffer, encodeContentTypes(message.contentTypes()));
+        dictionary.writeId(buffer, message.sender().peerId());
+        buffer.writeShort((short) message.sender().tcpPort());
+        buffer.writeShort((short) message.sender().udpPort());
+        dictionary.writeId(buffer, message.recipient().peerId());
+    }
+
+    /**
+     * @param buffer
+     *            The buffer with at least one readable byte
+     * @return True if the header at the reader index is in the wire format v2
+     */
+    public static boolean isWireV2(final ByteBuf buffer) {
+        return (buffer.getByte(buffer.readerIndex()) & Utils.MASK_80) != 0;
+    }
+
+    /**
+     * @param buffer
+     *            The buffer with a header in the wire format v2 at the reader index
+     * @param dictionary
+     *            The dictionary of the connection
+     * @return The size of the header, or -1 if the header is not completely readable yet
+     */
+    public static int headerSizeV2(final ByteBuf buffer, final WireDictionary dictionary) {
+        if (buffer.readableBytes() < MIN_HEADER_SIZE_V2) {
+            return -1;
+        }
+        int offset = 4 + 4 + 1 + 1;
+        final int contentTypesSize = Utils.varIntSize(buffer, offset);
+        if (contentTypesSize < 0) {
+            return -1;
+        }
+        offset += contentTypesSize;
+        final int senderSize = dictionary.idSize(buffer, offset);
+        if (senderSize < 0) {
+            return -1;
+        }
+        offset += senderSize + 4;
+        final int recipientSize = dictionary.idSize(buffer, offset);
+        if (recipientSize < 0) {
+            return -1;
+        }
+        return offset + recipientSize;
+    }
+
+    /**
+     * Decodes a message object in the wire format v2, see
+     * {@link #encodeHeaderV2(AlternativeCompositeByteBuf, Message, WireDictionary)}. Check with
+     * {@link #headerSizeV2(ByteBuf, WireDictionary)} before that the whole header is readable.
+     * 
+     * @param buffer
+     *            The buffer to decode from
+     * @param recipientSocket
+     *            The recipient of the message
+     * @param senderSocket
+     *            The sender of the packet, which has been set in the socket class
+     * @param dictionary
+     *            The dictionary of the connection
+     * @return The partial message where only the header fields are set
+     */
+    public static Message decodeHeaderV2(final ByteBuf buffer, final InetSocketAddress recipientSocket,
+            final InetSocketAddress senderSocket, final WireDictionary dictionary) {
+        final Message message = new Message();
+        final int versionAndType = buffer.readInt() & ~WIRE_V2_FLAG;
+        message.version(versionAndType >>> 4);
+        message.type(Type.values()[(versionAndType & Utils.MASK_0F)]);
+        message.messageId(buffer.readInt());
+        message.command(buffer.readByte());
+        final int options = buffer.readUnsignedByte();
+        message.options(options & Utils.MASK_0F & ~WIRE_V2_OPTION);
+        message.wireV2Capable(true);
+        final int contentTypes = Utils.readVarInt(buffer);
+        message.hasContent(contentTypes != 0);
+        message.contentTypes(decodeContentTypes(contentTypes, message));
+        final Number160 senderID = dictionary.readId(buffer);
+        final int tcpPort = buffer.readUnsignedShort();
+        final int udpPort = buffer.readUnsignedShort();
+        final Number160 recipientID = dictionary.readId(buffer);
+        message.recipient(new PeerAddress(recipientID, recipientSocket));
+        message.sender(new PeerAddress(senderID, senderSocket.getAddress(), tcpPort, udpPort, options >>> 4));
+        message.senderSocket(senderSocket);
+        message.recipientSocket(recipientSocket);
+        return message;
     }
 
     /**
@@ -110,7 +249,8 @@ public final class MessageHeaderCodec {
         // set the address as we see it, important for port forwarding
         // identification
         final int options = buffer.readUnsignedByte();
-        message.options(options & Utils.MASK_0F);
+        message.options(options & Utils.MASK_0F & ~WIRE_V2_OPTION);
+        message.wireV2Capable((options & WIRE_V2_OPTION) != 0);
         final int senderOptions = options >>> 4;
         final PeerAddress peerAddress = new PeerAddress(senderID, senderSocket.getAddress(), tcpPort, udpPort,
                 senderOptions);
@@ -128,9 +268,7 @@ public final class MessageHeaderCodec {
      * @return A 160bit number from the Netty buffer (deserialized)
      */
     private static Number160 readID(final ByteBuf buffer) {
-        byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-        buffer.readBytes(me);
-        return new Number160(me);
+        return Number160.create(buffer);
     }
 
     /**
@@ -7,6 +7,7 @@ import io.netty.channel.ChannelInboundHandlerAdapter;
 import java.net.InetSocketAddress;
 
 import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.storage.AlternativeCompositeByteBuf;
 
 import org.slf4j.Logger;
@@ -18,12 +19,19 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
 			.getLogger(TomP2PCumulationTCP.class);
 
 	private final Decoder decoder;
+	// may be null
+	private final Metrics metrics;
 	private AlternativeCompositeByteBuf cumulation = null;
 
 	private int lastId = 0;
 
 	public TomP2PCumulationTCP(final SignatureFactory signatureFactory) {
+		this(signatureFactory, null);
+	}
+
+	public TomP2PCumulationTCP(final SignatureFactory signatureFactory, final Metrics metrics) {
 		decoder = new Decoder(signatureFactory);
+		this.metrics = metrics;
 	}
 
 	@Override
@@ -44,7 +52,14 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
 			} else {
 				cumulation.addComponent(buf);
 			}
-			decoding(ctx, sender);
+			if (metrics != null) {
+				metrics.decoderBytes().record(buf.readableBytes());
+				final long start = System.nanoTime();
+				decoding(ctx, sender);
+				metrics.decoderTime().record(System.nanoTime() - start);
+			} else {
+				decoding(ctx, sender);
+			}
 		} catch (Throwable t) {
 			LOG.error("Error in TCP decoding", t);
             throw t;
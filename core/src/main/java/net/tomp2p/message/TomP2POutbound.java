@@ -9,6 +9,7 @@ import io.netty.channel.ChannelPromise;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
 import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.storage.AlternativeCompositeByteBuf;
 
 import org.slf4j.Logger;
@@ -20,15 +21,27 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
     private final boolean preferDirect;
     private final Encoder encoder;
     private final CompByteBufAllocator alloc;
+    // may be null
+    private final Metrics metrics;
     
     public TomP2POutbound(boolean preferDirect, SignatureFactory signatureFactory) {
     	this(preferDirect, signatureFactory, new CompByteBufAllocator());
     }
 
+    public TomP2POutbound(boolean preferDirect, SignatureFactory signatureFactory, Metrics metrics) {
+    	this(preferDirect, signatureFactory, new CompByteBufAllocator(), metrics);
+    }
+
     public TomP2POutbound(boolean preferDirect, SignatureFactory signatureFactory, CompByteBufAllocator alloc) {
+        this(preferDirect, signatureFactory, alloc, null);
+    }
+
+    public TomP2POutbound(boolean preferDirect, SignatureFactory signatureFactory, CompByteBufAllocator alloc,
+            Metrics metrics) {
         this.preferDirect = preferDirect;
-        this.encoder = new Encoder(signatureFactory);
+        this.encoder = new Encoder(signatureFactory, true);
         this.alloc = alloc;
+        this.metrics = metrics;
     }
 
     @Override
@@ -45,8 +58,21 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
                 } else {
                     buf = alloc.compBuffer(); 
                 }
+                final long start = metrics == null ? 0 : System.nanoTime();
+                // on TCP, the dictionary lives as long as the connection, on UDP only for one message. On TCP, we
+                // use the wire format v2 once the other peer told us it can decode it, on UDP only for replies
+                final boolean udp = ctx.channel() instanceof DatagramChannel;
+                if (udp) {
+                    encoder.dictionary().clear();
+                }
+                final boolean wireV2 = message.isWireV2()
+                        || (!udp && Boolean.TRUE.equals(ctx.channel().attr(Decoder.WIRE_V2_KEY).get()));
                 //null means create signature
-                done = encoder.write(buf, message, null);
+                done = encoder.write(buf, message, null, wireV2);
+                if (metrics != null) {
+                    metrics.encoderTime().record(System.nanoTime() - start);
+                    metrics.encoderBytes().record(buf.readableBytes());
+                }
             } else {
                 ctx.write(msg, promise);
                 return;
@@ -9,6 +9,7 @@ import io.netty.channel.socket.DatagramPacket;
 import java.net.InetSocketAddress;
 
 import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.metrics.Metrics;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,9 +20,16 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(TomP2PSinglePacketUDP.class);
 
     private final SignatureFactory signatureFactory;
+    // may be null
+    private final Metrics metrics;
     
     public TomP2PSinglePacketUDP(final SignatureFactory signatureFactory) {
+        this(signatureFactory, null);
+    }
+
+    public TomP2PSinglePacketUDP(final SignatureFactory signatureFactory, final Metrics metrics) {
         this.signatureFactory = signatureFactory;
+        this.metrics = metrics;
     }
 
     @Override
@@ -38,8 +46,14 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
         final InetSocketAddress recipient = d.recipient();
 
         try {
+            final long start = metrics == null ? 0 : System.nanoTime();
+            final int bytes = buf.readableBytes();
             Decoder decoder = new Decoder(signatureFactory);
             boolean finished = decoder.decode(ctx, buf, recipient, sender);
+            if (metrics != null) {
+                metrics.decoderTime().record(System.nanoTime() - start);
+                metrics.decoderBytes().record(bytes);
+            }
             if (finished) {
                 ctx.fireChannelRead(decoder.prepareFinish());
             } else {
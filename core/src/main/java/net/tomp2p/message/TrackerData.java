@@ -15,8 +15,10 @@
  */
 package net.tomp2p.message;
 
-import java.util.Iterator;
+import java.util.AbstractMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
@@ -29,6 +31,9 @@ public class TrackerData {
 
     private final Map<PeerAddress, Data> peerAddresses;
 
+    // index from peer ID to the key in peerAddresses, entries may be stale if the map expires entries
+    private final ConcurrentMap<Number160, PeerAddress> peerIds = new ConcurrentHashMap<Number160, PeerAddress>();
+
     final private boolean couldProvideMoreData;
 
     public TrackerData(Map<PeerAddress, Data> peerAddresses) {
@@ -41,8 +46,15 @@ public class TrackerData {
     	}
     	this.peerAddresses = peerAddresses;
         this.couldProvideMoreData = couldProvideMoreData;
+        for (PeerAddress peerAddress : peerAddresses.keySet()) {
+            peerIds.put(peerAddress.peerId(), peerAddress);
+        }
     }
 
+    /**
+     * @return The peer addresses with their attachements. Use {@link #put(PeerAddress, Data)} and
+     *         {@link #remove(Number160)} to modify this map, otherwise the lookups by peer ID will not find the entry.
+     */
     public Map<PeerAddress, Data> peerAddresses() {
         return peerAddresses;
     }
@@ -64,40 +76,37 @@ public class TrackerData {
 
     public void put(PeerAddress remotePeer, Data attachement) {
         peerAddresses.put(remotePeer, attachement == null ? EMTPY_DATA : attachement);
+        peerIds.put(remotePeer.peerId(), remotePeer);
     }
 
     public Map.Entry<PeerAddress, Data> remove(Number160 remotePeerId) {
-        for (Iterator<Map.Entry<PeerAddress, Data>> iterator = peerAddresses.entrySet().iterator(); iterator
-                .hasNext();) {
-            Map.Entry<PeerAddress, Data> entry = iterator.next();
-            if (entry.getKey().peerId().equals(remotePeerId)) {
-                iterator.remove();
-                return entry;
-            }
+        final PeerAddress peerAddress = peerIds.remove(remotePeerId);
+        if (peerAddress == null) {
+            return null;
+        }
+        final Data data = peerAddresses.remove(peerAddress);
+        if (data == null) {
+            return null;
         }
-        return null;
+        return new AbstractMap.SimpleImmutableEntry<PeerAddress, Data>(peerAddress, data);
     }
 
     public boolean containsKey(Number160 tmpKey) {
-        for (Iterator<Map.Entry<PeerAddress, Data>> iterator = peerAddresses.entrySet().iterator(); iterator
-                .hasNext();) {
-            Map.Entry<PeerAddress, Data> entry = iterator.next();
-            if (entry.getKey().peerId().equals(tmpKey)) {
-                return true;
-            }
-        }
-        return false;
+        return get(tmpKey) != null;
     }
     
     public Map.Entry<PeerAddress, Data> get(Number160 tmpKey) {
-        for (Iterator<Map.Entry<PeerAddress, Data>> iterator = peerAddresses.entrySet().iterator(); iterator
-                .hasNext();) {
-            Map.Entry<PeerAddress, Data> entry = iterator.next();
-            if (entry.getKey().peerId().equals(tmpKey)) {
-                return entry;
-            }
+        final PeerAddress peerAddress = peerIds.get(tmpKey);
+        if (peerAddress == null) {
+            return null;
+        }
+        final Data data = peerAddresses.get(peerAddress);
+        if (data == null) {
+            // expired or removed from the underlying map
+            peerIds.remove(tmpKey, peerAddress);
+            return null;
         }
-        return null;
+        return new AbstractMap.SimpleImmutableEntry<PeerAddress, Data>(peerAddress, data);
     }
     
     @Override
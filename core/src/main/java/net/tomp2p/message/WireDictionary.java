@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.message;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.utils.Utils;
+
+/**
+ * The dictionary of one direction of a connection for the wire format v2. Peer IDs, keys and peer addresses that have
+ * been sent once are sent as a short reference afterwards. The encoder and the decoder of a connection add the entries
+ * in the same order, so both dictionaries stay in sync as long as the messages arrive in order, which is the case for
+ * TCP. For UDP, the dictionary only spans one message.
+ * <p>
+ * An ID is encoded as a variable length tag: 0 is followed by the 20 bytes of a new ID, 1 is {@link Number160#ZERO},
+ * and any other value references a previous ID. A peer address is encoded as a tag: 0 is followed by a new packed
+ * peer address, and any other value references a previous peer address. A packed peer address is one byte with the
+ * options and flags, the relay byte only if there are relays, the ID, the TCP port, the UDP port only if it differs
+ * from the TCP port, the inet address and the relay addresses.
+ * </p>
+ */
+public class WireDictionary {
+
+    /**
+     * The maximum number of IDs and the maximum number of peer addresses. New entries are sent in full afterwards.
+     */
+    public static final int MAX_SIZE = 4096;
+
+    private static final int ID_LITERAL = 0;
+    private static final int ID_ZERO = 1;
+    private static final int ID_REFERENCE = 2;
+
+    private static final int ADDRESS_LITERAL = 0;
+    private static final int ADDRESS_REFERENCE = 1;
+
+    private static final int ADDRESS_HEADER_SIZE = 2;
+    private static final int HAS_RELAYS = 0x10;
+    private static final int SAME_PORTS = 0x20;
+    // the offset of the TCP port in the serialized peer address
+    private static final int PORTS_OFFSET = ADDRESS_HEADER_SIZE + Number160.BYTE_ARRAY_SIZE;
+
+    // used by the encoder
+    private final Map<Number160, Integer> idIndex = new HashMap<Number160, Integer>();
+    private final Map<ByteBuffer, Integer> addressIndex = new HashMap<ByteBuffer, Integer>();
+
+    // used by the decoder
+    private final List<Number160> ids = new ArrayList<Number160>();
+    private final List<PeerAddress> addresses = new ArrayList<PeerAddress>();
+
+    public void writeId(final ByteBuf buf, final Number160 id) {
+        if (id.isZero()) {
+            Utils.writeVarInt(buf, ID_ZERO);
+            return;
+        }
+        final Integer index = idIndex.get(id);
+        if (index != null) {
+            Utils.writeVarInt(buf, index + ID_REFERENCE);
+            return;
+        }
+        Utils.writeVarInt(buf, ID_LITERAL);
+        id.write(buf);
+        if (idIndex.size() < MAX_SIZE) {
+            idIndex.put(id, idIndex.size());
+        }
+    }
+
+    /**
+     * @param buf
+     *            The buffer to read from
+     * @param offset
+     *            The offset from the reader index where the ID starts
+     * @return The number of bytes of the encoded ID, or -1 if it is not completely readable yet
+     */
+    public int idSize(final ByteBuf buf, final int offset) {
+        final int tagSize = Utils.varIntSize(buf, offset);
+        if (tagSize < 0) {
+            return -1;
+        }
+        if (Utils.getVarInt(buf, offset) != ID_LITERAL) {
+            return tagSize;
+        }
+        final int size = tagSize + Number160.BYTE_ARRAY_SIZE;
+        return buf.readableBytes() >= offset + size ? size : -1;
+    }
+
+    public Number160 readId(final ByteBuf buf) {
+        final int tag = Utils.readVarInt(buf);
+        if (tag == ID_ZERO) {
+            return Number160.ZERO;
+        }
+        if (tag == ID_LITERAL) {
+            final Number160 id = Number160.create(buf);
+            if (ids.size() < MAX_SIZE) {
+                ids.add(id);
+            }
+            return id;
+        }
+        final int index = tag - ID_REFERENCE;
+        if (index >= ids.size()) {
+            throw new IllegalStateException("Unknown ID reference " + index + ", the dictionary is out of sync.");
+        }
+        return ids.get(index);
+    }
+
+    public void writePeerAddress(final ByteBuf buf, final PeerAddress peerAddress) {
+        final byte[] me = peerAddress.toByteArray();
+        final ByteBuffer key = ByteBuffer.wrap(me);
+        final Integer index = addressIndex.get(key);
+        if (index != null) {
+            Utils.writeVarInt(buf, index + ADDRESS_REFERENCE);
+            return;
+        }
+        Utils.writeVarInt(buf, ADDRESS_LITERAL);
+        final boolean hasRelays = me[1] != 0;
+        final boolean samePorts = me[PORTS_OFFSET] == me[PORTS_OFFSET + 2]
+                && me[PORTS_OFFSET + 1] == me[PORTS_OFFSET + 3];
+        buf.writeByte((me[0] & Utils.MASK_0F) | (hasRelays ? HAS_RELAYS : 0) | (samePorts ? SAME_PORTS : 0));
+        if (hasRelays) {
+            buf.writeByte(me[1]);
+        }
+        writeId(buf, peerAddress.peerId());
+        buf.writeBytes(me, PORTS_OFFSET, Utils.SHORT_BYTE_SIZE);
+        final int rest = samePorts ? PORTS_OFFSET + 2 * Utils.SHORT_BYTE_SIZE : PORTS_OFFSET + Utils.SHORT_BYTE_SIZE;
+        buf.writeBytes(me, rest, me.length - rest);
+        if (addressIndex.size() < MAX_SIZE) {
+            addressIndex.put(key, addressIndex.size());
+        }
+    }
+
+    /**
+     * @param buf
+     *            The buffer to read from
+     * @param offset
+     *            The offset from the reader index where the peer address starts
+     * @return The number of bytes of the encoded peer address, or -1 if it is not completely readable yet
+     */
+    public int peerAddressSize(final ByteBuf buf, final int offset) {
+        final int tagSize = Utils.varIntSize(buf, offset);
+        if (tagSize < 0) {
+            return -1;
+        }
+        if (Utils.getVarInt(buf, offset) != ADDRESS_LITERAL) {
+            return tagSize;
+        }
+        if (buf.readableBytes() < offset + tagSize + 1) {
+            return -1;
+        }
+        final int flags = buf.getUnsignedByte(buf.readerIndex() + offset + tagSize);
+        int headerSize = 1;
+        int relays = 0;
+        if ((flags & HAS_RELAYS) != 0) {
+            if (buf.readableBytes() < offset + tagSize + 2) {
+                return -1;
+            }
+            relays = buf.getUnsignedByte(buf.readerIndex() + offset + tagSize + 1);
+            headerSize++;
+        }
+        final int idSize = idSize(buf, offset + tagSize + headerSize);
+        if (idSize < 0) {
+            return -1;
+        }
+        int size = tagSize + headerSize + idSize + PeerAddress.size(flags & Utils.MASK_0F, relays) - PORTS_OFFSET;
+        if ((flags & SAME_PORTS) != 0) {
+            size -= Utils.SHORT_BYTE_SIZE;
+        }
+        return buf.readableBytes() >= offset + size ? size : -1;
+    }
+
+    public PeerAddress readPeerAddress(final ByteBuf buf) {
+        final int tag = Utils.readVarInt(buf);
+        if (tag != ADDRESS_LITERAL) {
+            final int index = tag - ADDRESS_REFERENCE;
+            if (index >= addresses.size()) {
+                throw new IllegalStateException("Unknown peer address reference " + index
+                        + ", the dictionary is out of sync.");
+            }
+            return addresses.get(index);
+        }
+        final int flags = buf.readUnsignedByte();
+        final int relays = (flags & HAS_RELAYS) != 0 ? buf.readUnsignedByte() : 0;
+        final byte[] me = new byte[PeerAddress.size(flags & Utils.MASK_0F, relays)];
+        me[0] = (byte) (flags & Utils.MASK_0F);
+        me[1] = (byte) relays;
+        readId(buf).toByteArray(me, ADDRESS_HEADER_SIZE);
+        buf.readBytes(me, PORTS_OFFSET, Utils.SHORT_BYTE_SIZE);
+        final int rest;
+        if ((flags & SAME_PORTS) != 0) {
+            me[PORTS_OFFSET + 2] = me[PORTS_OFFSET];
+            me[PORTS_OFFSET + 3] = me[PORTS_OFFSET + 1];
+            rest = PORTS_OFFSET + 2 * Utils.SHORT_BYTE_SIZE;
+        } else {
+            rest = PORTS_OFFSET + Utils.SHORT_BYTE_SIZE;
+        }
+        buf.readBytes(me, rest, me.length - rest);
+        final PeerAddress peerAddress = new PeerAddress(me);
+        if (addresses.size() < MAX_SIZE) {
+            addresses.add(peerAddress);
+        }
+        return peerAddress;
+    }
+
+    /**
+     * Removes all entries, used before each UDP message.
+     */
+    public void clear() {
+        idIndex.clear();
+        addressIndex.clear();
+        ids.clear();
+        addresses.clear();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with power of two buckets. Recording a value is lock-free and does not allocate, so it can be used on
+ * hot paths. The percentiles are approximated with the upper bound of the bucket, which is at most twice the real
+ * value.
+ */
+public class Histogram {
+
+    // bucket 0 holds the value 0, bucket i holds the values from 2^(i-1) to 2^i - 1
+    private static final int BUCKETS = Long.SIZE + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value
+     *            The value, e.g., a duration in nanoseconds or a number of bytes
+     */
+    public void record(final long value) {
+        final long v = value < 0 ? 0 : value;
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long currentMax = max.get();
+        while (v > currentMax && !max.compareAndSet(currentMax, v)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * @return The number of recorded values
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * @return The sum of all recorded values
+     */
+    public long sum() {
+        return sum.get();
+    }
+
+    /**
+     * @return The largest recorded value
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @return The average of the recorded values or 0 if no value has been recorded
+     */
+    public double mean() {
+        final long c = count.get();
+        return c == 0 ? 0 : sum.get() / (double) c;
+    }
+
+    /**
+     * @param percentile
+     *            The percentile between 0 and 100
+     * @return An upper bound of the value at the given percentile, or 0 if no value has been recorded
+     */
+    public long percentile(final double percentile) {
+        final long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(c * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static long upperBound(final int bucket) {
+        if (bucket == 0) {
+            return 0;
+        }
+        if (bucket == Long.SIZE) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) - 1;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("hist[count=");
+        sb.append(count()).append(",mean=").append((long) mean());
+        sb.append(",p50=").append(percentile(50)).append(",p99=").append(percentile(99));
+        sb.append(",max=").append(max()).append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMapChangeListener;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.rpc.RPC;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The metrics of a peer. The counters and histograms are created once and recorded without locks, so that the
+ * metrics can stay enabled in production. All durations are in nanoseconds. The metrics can be pulled with
+ * {@link #counters()}, {@link #histograms()}, and {@link #gauges()}, or via JMX with {@link #registerMBean(String)}.
+ */
+public class Metrics implements MetricsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Metrics.class);
+
+    public static final String JMX_DOMAIN = "net.tomp2p";
+
+    public static final String RESERVATION_WAIT = "reservation.wait";
+    public static final String SENDER_CACHED_REQUESTS = "sender.cachedRequests";
+    public static final String SHARED_UDP_PENDING_REQUESTS = "sharedUDP.pendingRequests";
+    public static final String PEERMAP_INSERTED = "peermap.inserted";
+    public static final String PEERMAP_REMOVED = "peermap.removed";
+    public static final String PEERMAP_UPDATED = "peermap.updated";
+    public static final String STORAGE_LOCK_HOLD = "storage.lock.hold";
+    public static final String ENCODER_BYTES = "encoder.bytes";
+    public static final String ENCODER_TIME = "encoder.time";
+    public static final String DECODER_BYTES = "decoder.bytes";
+    public static final String DECODER_TIME = "decoder.time";
+    public static final String FUTURE_PREFIX = "future.";
+    public static final String DISPATCHER_OVERLOADED = "dispatcher.overloaded";
+    public static final String BULKHEAD_PREFIX = "bulkhead.";
+
+    private static final int NR_COMMANDS = RPC.Commands.values().length;
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    // indexed by the command number, to avoid a map lookup for every message
+    private final AtomicLong[] requestsSent = new AtomicLong[NR_COMMANDS];
+    private final AtomicLong[] responsesOk = new AtomicLong[NR_COMMANDS];
+    private final AtomicLong[] responsesFailed = new AtomicLong[NR_COMMANDS];
+    private final Histogram[] latencies = new Histogram[NR_COMMANDS];
+    private final AtomicLong[] requestsReceived = new AtomicLong[NR_COMMANDS];
+
+    private final Histogram reservationWait = histogram(RESERVATION_WAIT);
+    private final Histogram storageLockHold = histogram(STORAGE_LOCK_HOLD);
+    private final Histogram encoderBytes = histogram(ENCODER_BYTES);
+    private final Histogram encoderTime = histogram(ENCODER_TIME);
+    private final Histogram decoderBytes = histogram(DECODER_BYTES);
+    private final Histogram decoderTime = histogram(DECODER_TIME);
+
+    private final PeerMapChangeListener peerMapChangeListener = new PeerMapChangeListener() {
+        private final AtomicLong inserted = counter(PEERMAP_INSERTED);
+        private final AtomicLong removed = counter(PEERMAP_REMOVED);
+        private final AtomicLong updated = counter(PEERMAP_UPDATED);
+
+        @Override
+        public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+            inserted.incrementAndGet();
+        }
+
+        @Override
+        public void peerRemoved(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+            removed.incrementAndGet();
+        }
+
+        @Override
+        public void peerUpdated(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+            updated.incrementAndGet();
+        }
+    };
+
+    private volatile ObjectName objectName = null;
+
+    /**
+     * Creates the metrics with the counters and histograms for every RPC command.
+     */
+    public Metrics() {
+        for (RPC.Commands command : RPC.Commands.values()) {
+            final int nr = command.getNr();
+            final String prefix = "rpc." + command.name() + ".";
+            requestsSent[nr] = counter(prefix + "sent");
+            responsesOk[nr] = counter(prefix + "ok");
+            responsesFailed[nr] = counter(prefix + "failed");
+            latencies[nr] = histogram(prefix + "latency");
+            requestsReceived[nr] = counter(prefix + "received");
+        }
+    }
+
+    /**
+     * Returns the counter with the given name, the counter is created if it does not exist. Keep a reference to the
+     * counter on hot paths.
+     *
+     * @param name
+     *            The name of the counter
+     * @return The counter
+     */
+    public AtomicLong counter(final String name) {
+        final AtomicLong counter = counters.get(name);
+        if (counter != null) {
+            return counter;
+        }
+        final AtomicLong newCounter = new AtomicLong();
+        final AtomicLong oldCounter = counters.putIfAbsent(name, newCounter);
+        return oldCounter == null ? newCounter : oldCounter;
+    }
+
+    /**
+     * Returns the histogram with the given name, the histogram is created if it does not exist. Keep a reference to
+     * the histogram on hot paths.
+     *
+     * @param name
+     *            The name of the histogram
+     * @return The histogram
+     */
+    public Histogram histogram(final String name) {
+        final Histogram histogram = histograms.get(name);
+        if (histogram != null) {
+            return histogram;
+        }
+        final Histogram newHistogram = new Histogram();
+        final Histogram oldHistogram = histograms.putIfAbsent(name, newHistogram);
+        return oldHistogram == null ? newHistogram : oldHistogram;
+    }
+
+    /**
+     * Adds or replaces a gauge that is read when the metrics are pulled.
+     *
+     * @param name
+     *            The name of the gauge
+     * @param gauge
+     *            The gauge
+     * @return This class
+     */
+    public Metrics gauge(final String name, final Gauge gauge) {
+        gauges.put(name, gauge);
+        return this;
+    }
+
+    /**
+     * Called when a request is sent.
+     *
+     * @param command
+     *            The RPC command of the request
+     */
+    public void requestSent(final int command) {
+        if (command >= 0 && command < NR_COMMANDS) {
+            requestsSent[command].incrementAndGet();
+        }
+    }
+
+    /**
+     * Called when the future of a request completes.
+     *
+     * @param command
+     *            The RPC command of the request
+     * @param nanos
+     *            The time in nanoseconds between sending the request and the completion
+     * @param success
+     *            True if a response was received
+     */
+    public void responseReceived(final int command, final long nanos, final boolean success) {
+        if (command >= 0 && command < NR_COMMANDS) {
+            (success ? responsesOk : responsesFailed)[command].incrementAndGet();
+            latencies[command].record(nanos);
+        }
+    }
+
+    /**
+     * Called when a request is received by the dispatcher.
+     *
+     * @param command
+     *            The RPC command of the request
+     */
+    public void requestReceived(final int command) {
+        if (command >= 0 && command < NR_COMMANDS) {
+            requestsReceived[command].incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The time spent waiting for connection permits
+     */
+    public Histogram reservationWait() {
+        return reservationWait;
+    }
+
+    /**
+     * @return The time a storage lock is held
+     */
+    public Histogram storageLockHold() {
+        return storageLockHold;
+    }
+
+    /**
+     * @return The number of bytes written by the encoder per write
+     */
+    public Histogram encoderBytes() {
+        return encoderBytes;
+    }
+
+    /**
+     * @return The time spent in the encoder per write
+     */
+    public Histogram encoderTime() {
+        return encoderTime;
+    }
+
+    /**
+     * @return The number of bytes read by the decoder per read
+     */
+    public Histogram decoderBytes() {
+        return decoderBytes;
+    }
+
+    /**
+     * @return The time spent in the decoder per read
+     */
+    public Histogram decoderTime() {
+        return decoderTime;
+    }
+
+    /**
+     * @return The listener that counts insertions, removals, and updates of a peer map
+     */
+    public PeerMapChangeListener peerMapChangeListener() {
+        return peerMapChangeListener;
+    }
+
+    /**
+     * Records the time until the future completes in the histogram {@link #FUTURE_PREFIX} + name and counts the
+     * failed futures.
+     *
+     * @param future
+     *            The future to watch
+     * @param name
+     *            The name of the operation
+     * @return The future
+     */
+    public <K extends BaseFuture> K watch(final K future, final String name) {
+        final long start = System.nanoTime();
+        final Histogram histogram = histogram(FUTURE_PREFIX + name);
+        final AtomicLong failed = counter(FUTURE_PREFIX + name + ".failed");
+        future.addListener(new BaseFutureAdapter<K>() {
+            @Override
+            public void operationComplete(final K future) throws Exception {
+                histogram.record(System.nanoTime() - start);
+                if (future.isFailed()) {
+                    failed.incrementAndGet();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return A snapshot of all counters sorted by name
+     */
+    public SortedMap<String, Long> counters() {
+        final SortedMap<String, Long> retVal = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            retVal.put(entry.getKey(), entry.getValue().get());
+        }
+        return retVal;
+    }
+
+    /**
+     * @return All histograms sorted by name, the histograms are not copied
+     */
+    public SortedMap<String, Histogram> histograms() {
+        return new TreeMap<String, Histogram>(histograms);
+    }
+
+    /**
+     * @return The current values of all gauges sorted by name
+     */
+    public SortedMap<String, Long> gauges() {
+        final SortedMap<String, Long> retVal = new TreeMap<String, Long>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            retVal.put(entry.getKey(), entry.getValue().value());
+        }
+        return retVal;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        return counters();
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        return gauges();
+    }
+
+    @Override
+    public Map<String, Long> getHistogramCounts() {
+        final SortedMap<String, Long> retVal = new TreeMap<String, Long>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            retVal.put(entry.getKey(), entry.getValue().count());
+        }
+        return retVal;
+    }
+
+    @Override
+    public Map<String, Double> getHistogramMeans() {
+        final SortedMap<String, Double> retVal = new TreeMap<String, Double>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            retVal.put(entry.getKey(), entry.getValue().mean());
+        }
+        return retVal;
+    }
+
+    @Override
+    public Map<String, Long> getHistogramP99() {
+        final SortedMap<String, Long> retVal = new TreeMap<String, Long>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            retVal.put(entry.getKey(), entry.getValue().percentile(99));
+        }
+        return retVal;
+    }
+
+    @Override
+    public Map<String, Long> getHistogramMax() {
+        final SortedMap<String, Long> retVal = new TreeMap<String, Long>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            retVal.put(entry.getKey(), entry.getValue().max());
+        }
+        return retVal;
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server under {@link #JMX_DOMAIN}:type=Metrics,name=[name].
+     *
+     * @param name
+     *            The name of the peer, e.g., its peer ID
+     * @return True if the metrics have been registered
+     */
+    public boolean registerMBean(final String name) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName newObjectName = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, newObjectName);
+            objectName = newObjectName;
+            return true;
+        } catch (JMException e) {
+            LOG.warn("Could not register the metrics in JMX.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if they have been registered.
+     */
+    public void unregisterMBean() {
+        final ObjectName current = objectName;
+        if (current == null) {
+            return;
+        }
+        objectName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(current);
+        } catch (JMException e) {
+            LOG.warn("Could not unregister the metrics from JMX.", e);
+        }
+    }
+}
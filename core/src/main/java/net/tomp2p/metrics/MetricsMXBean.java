@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link Metrics}. Durations are in nanoseconds.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return The counters by name
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return The gauges by name
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * @return The number of recorded values of the histograms by name
+     */
+    Map<String, Long> getHistogramCounts();
+
+    /**
+     * @return The mean of the histograms by name
+     */
+    Map<String, Double> getHistogramMeans();
+
+    /**
+     * @return The 99th percentile of the histograms by name
+     */
+    Map<String, Long> getHistogramP99();
+
+    /**
+     * @return The maximum of the histograms by name
+     */
+    Map<String, Long> getHistogramMax();
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.p2p;
+
+import java.util.Collection;
+import java.util.Map;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
+
+/**
+ * An evaluation scheme that evaluates the data of conditional gets itself. Schemes that only implement
+ * {@link EvaluatingSchemeDHT} get the merged data of {@link VotingSchemeDHT#merge(Map, Map, Map)} in
+ * {@link EvaluatingSchemeDHT#evaluate2(Map)}.
+ */
+public interface ConditionalEvaluatingSchemeDHT extends EvaluatingSchemeDHT {
+
+    /**
+     * Evaluates the data of a conditional get, where a peer answers that an entry has not been modified instead of
+     * sending it. Such an answer counts as the data the requester already knows.
+     * 
+     * @param rawData
+     *            The data that has been received from each peer
+     * @param rawNotModified
+     *            The keys of the entries that have not been modified from each peer
+     * @param knownData
+     *            The data the requester already knows
+     * @return The evaluated data, an entry that has not been modified is the known data
+     */
+    public Map<Number640, Data> evaluate7(Map<PeerAddress, Map<Number640, Data>> rawData,
+            Map<PeerAddress, Collection<Number640>> rawNotModified, Map<Number640, Data> knownData);
+}
@@ -29,7 +29,7 @@ import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.DigestResult;
 import net.tomp2p.storage.Data;
 
-public class CumulativeScheme implements EvaluatingSchemeDHT {
+public class CumulativeScheme implements ConditionalEvaluatingSchemeDHT {
     @Override
     public Collection<Number640> evaluate1(Map<PeerAddress, Map<Number640, Number160>> rawKeys480) {
         Set<Number640> result = new HashSet<Number640>();
@@ -57,6 +57,12 @@ public class CumulativeScheme implements EvaluatingSchemeDHT {
         return result;
     }
 
+    @Override
+    public Map<Number640, Data> evaluate7(Map<PeerAddress, Map<Number640, Data>> rawData,
+            Map<PeerAddress, Collection<Number640>> rawNotModified, Map<Number640, Data> knownData) {
+        return evaluate2(VotingSchemeDHT.merge(rawData, rawNotModified, knownData));
+    }
+
     @Override
     public Object evaluate3(Map<PeerAddress, Object> rawKeys) {
         throw new UnsupportedOperationException("cannot cumulate");
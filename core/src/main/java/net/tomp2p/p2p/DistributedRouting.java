@@ -146,6 +146,24 @@ public class DistributedRouting {
         return routing(startPeers, routingBuilder, type, cc);
     }
 
+    /**
+     * Looks for a route to the location key given in the routing builder, starting with the given peers.
+     * 
+     * @param startPeers
+     *            The peers to ask first, e.g., peers that just replied to a ping
+     * @param routingBuilder
+     *            All relevant information for the routing process
+     * @param type
+     *            The type of the routing, there can at most four types
+     * @param cc
+     *            The channel creator
+     * @return a FutureRouting object, is set to complete if the route has been found
+     */
+    public FutureRouting route(final Collection<PeerAddress> startPeers, final RoutingBuilder routingBuilder,
+            final Type type, final ChannelCreator cc) {
+        return routing(startPeers, routingBuilder, type, cc);
+    }
+
     /**
      * Looks for a route to the given peer address.
      * 
@@ -164,6 +182,7 @@ public class DistributedRouting {
             comparator = peerBean.peerMap().createComparator();
         } else {
             comparator = PeerMap.createComparator(routingBuilder.locationKey());
+            peerBean.peerMap().touch(routingBuilder.locationKey());
         }
         final NavigableSet<PeerAddress> queueToAsk = new TreeSet<PeerAddress>(comparator);
         // we can reuse the comparator
@@ -2,23 +2,42 @@ package net.tomp2p.p2p;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.DefaultConnectionConfiguration;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.p2p.builder.RoutingBuilder;
 import net.tomp2p.peers.Maintainable;
+import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Checks periodically the peers that are due for maintenance. The peers that are due are pinged in one batch that
+ * shares one channel reservation. Bags of the peer map that have not been looked up for a while are refreshed with a
+ * lookup of a random key in the bag. Virtual peers that share their peer state add their peer maps to the task of the
+ * master peer, so that a remote peer is pinged only once for all of them.
+ */
 public class MaintenanceTask implements Runnable {
     
     private static final Logger LOG = LoggerFactory.getLogger(MaintenanceTask.class);
@@ -29,10 +48,19 @@ public class MaintenanceTask implements Runnable {
 
     private int intervalMillis = 1000;
 
+    private long refreshIntervalMillis = TimeUnit.MINUTES.toMillis(10);
+
+    private RoutingConfiguration refreshRoutingConfiguration = new RoutingConfiguration(8, 10, 2);
+
     private final List<Maintainable> maintainables = new ArrayList<Maintainable>();
 
     private final Map<BaseFuture, PeerAddress> runningFutures = new HashMap<BaseFuture, PeerAddress>();
 
+    // the bag refresh that is currently running, at most one at a time
+    private FutureDone<Void> runningRefresh = null;
+
+    private final Random random = new Random();
+
     private boolean shutdown = false;
 
     private final Object lock = new Object();
@@ -47,32 +75,155 @@ public class MaintenanceTask implements Runnable {
     @Override
     public void run() {
         synchronized (lock) {
+            if (shutdown) {
+                return;
+            }
+            refresh();
             //make sure we only have 5 pings in parallel
-            if (shutdown || COUNTER.get() > MAX_PING) {
+            final int max = MAX_PING - COUNTER.get();
+            if (max <= 0) {
                 return;
             }
+            final Set<PeerAddress> notInterested = new HashSet<PeerAddress>(runningFutures.values());
+            final List<PeerAddress> batch = new ArrayList<PeerAddress>(max);
             for (Maintainable maintainable : maintainables) {
-                PeerStatistic peerStatistic = maintainable.nextForMaintenance(runningFutures.values());
-                if(peerStatistic == null) {
-                    continue;
+                PeerStatistic peerStatistic;
+                while (batch.size() < max
+                        && (peerStatistic = maintainable.nextForMaintenance(notInterested)) != null) {
+                    if (!notInterested.add(peerStatistic.peerAddress())) {
+                        break;
+                    }
+                    batch.add(peerStatistic.peerAddress());
                 }
-                BaseFuture future = peer.ping().peerAddress(peerStatistic.peerAddress()).start();
-                LOG.debug("Maintenance ping from {} to {}.", peer.peerAddress(), peerStatistic.peerAddress());
-                
-                peer.notifyAutomaticFutures(future);
-                runningFutures.put(future, peerStatistic.peerAddress());
-                COUNTER.incrementAndGet();
-                future.addListener(new BaseFutureAdapter<BaseFuture>() {
-                    @Override
-                    public void operationComplete(BaseFuture future) throws Exception {
-                    	synchronized (lock) {
-                            runningFutures.remove(future);
-                            COUNTER.decrementAndGet();
+            }
+            if (!batch.isEmpty()) {
+                ping(batch);
+            }
+        }
+    }
+
+    /**
+     * Pings the peers with one reservation for all of them. Needs to be called with the lock held.
+     * 
+     * @param batch
+     *            The peers to ping
+     */
+    private void ping(final List<PeerAddress> batch) {
+        LOG.debug("Maintenance ping from {} to {}.", peer.peerAddress(), batch);
+        final List<FutureDone<Void>> futureDones = new ArrayList<FutureDone<Void>>(batch.size());
+        for (final PeerAddress peerAddress : batch) {
+            final FutureDone<Void> futureDone = new FutureDone<Void>();
+            futureDones.add(futureDone);
+            runningFutures.put(futureDone, peerAddress);
+            COUNTER.incrementAndGet();
+            futureDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+                @Override
+                public void operationComplete(FutureDone<Void> future) throws Exception {
+                    synchronized (lock) {
+                        runningFutures.remove(future);
+                        COUNTER.decrementAndGet();
+                    }
+                }
+            });
+        }
+        final FutureChannelCreator fcc = peer.connectionBean().reservation().create(batch.size(), 0);
+        fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    for (FutureDone<Void> futureDone : futureDones) {
+                        futureDone.failed(future);
+                    }
+                    return;
+                }
+                final ChannelCreator cc = future.channelCreator();
+                final FutureResponse[] futureResponses = new FutureResponse[batch.size()];
+                for (int i = 0; i < batch.size(); i++) {
+                    final FutureDone<Void> futureDone = futureDones.get(i);
+                    futureResponses[i] = peer.pingRPC().pingUDP(batch.get(i), cc,
+                            new DefaultConnectionConfiguration());
+                    futureResponses[i].addListener(new BaseFutureAdapter<FutureResponse>() {
+                        @Override
+                        public void operationComplete(FutureResponse future) throws Exception {
+                            if (future.isSuccess()) {
+                                futureDone.done();
+                            } else {
+                                futureDone.failed(future);
+                            }
                         }
+                    });
+                    peer.notifyAutomaticFutures(futureResponses[i]);
+                }
+                Utils.addReleaseListener(cc, futureResponses);
+            }
+        });
+    }
+
+    /**
+     * Looks up a random key in the bag that has not been looked up for the longest time, if it is older than the
+     * refresh interval. Needs to be called with the lock held.
+     */
+    private void refresh() {
+        if (runningRefresh != null) {
+            return;
+        }
+        PeerMap peerMap = null;
+        List<Integer> bags = null;
+        for (Maintainable maintainable : maintainables) {
+            if (maintainable instanceof PeerMap) {
+                bags = ((PeerMap) maintainable).bagsToRefresh(refreshIntervalMillis);
+                if (!bags.isEmpty()) {
+                    peerMap = (PeerMap) maintainable;
+                    break;
+                }
+            }
+        }
+        if (peerMap == null) {
+            return;
+        }
+        final Number160 key = peerMap.randomKey(bags.get(0), random);
+        // mark as touched now, so that the next run picks another bag
+        peerMap.touch(key);
+        LOG.debug("Refresh bag {} of {} with a lookup of {}.", bags.get(0), peerMap.self(), key);
+
+        final RoutingBuilder routingBuilder = new RoutingBuilder();
+        routingBuilder.setLocationKey(key);
+        routingBuilder.setParallel(refreshRoutingConfiguration.parallel());
+        routingBuilder.setMaxNoNewInfo(refreshRoutingConfiguration.maxNoNewInfoDiff());
+        routingBuilder.setMaxDirectHits(refreshRoutingConfiguration.maxDirectHits());
+        routingBuilder.setMaxFailures(refreshRoutingConfiguration.maxFailures());
+        routingBuilder.setMaxSuccess(refreshRoutingConfiguration.maxSuccess());
+
+        final FutureDone<Void> futureRefresh = new FutureDone<Void>();
+        runningRefresh = futureRefresh;
+        futureRefresh.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+            @Override
+            public void operationComplete(FutureDone<Void> future) throws Exception {
+                synchronized (lock) {
+                    runningRefresh = null;
+                }
+            }
+        });
+        final FutureChannelCreator fcc = peer.connectionBean().reservation()
+                .create(refreshRoutingConfiguration.parallel(), 0);
+        fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    futureRefresh.failed(future);
+                    return;
+                }
+                final FutureRouting futureRouting = peer.distributedRouting().route(routingBuilder,
+                        Type.REQUEST_1, future.channelCreator());
+                Utils.addReleaseListener(future.channelCreator(), futureRouting);
+                futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                    @Override
+                    public void operationComplete(FutureRouting future) throws Exception {
+                        futureRefresh.done();
                     }
                 });
             }
-        }
+        });
     }
 
     public FutureDone<Void> shutdown() {
@@ -83,14 +234,18 @@ public class MaintenanceTask implements Runnable {
         final FutureDone<Void> futureShutdown = new FutureDone<Void>();
         synchronized (lock) {
             shutdown = true;
-            final int max = runningFutures.size();
+            final List<BaseFuture> running = new ArrayList<BaseFuture>(runningFutures.keySet());
+            if (runningRefresh != null) {
+                running.add(runningRefresh);
+            }
+            final int max = running.size();
             if (max == 0)
             {
             	futureShutdown.done();
             	return futureShutdown;
             }
             final AtomicInteger counter = new AtomicInteger(0);
-            for (BaseFuture future : runningFutures.keySet()) {
+            for (BaseFuture future : running) {
                 future.addListener(new BaseFutureAdapter<BaseFuture>() {
                     @Override
                     public void operationComplete(BaseFuture future) throws Exception {
@@ -113,7 +268,38 @@ public class MaintenanceTask implements Runnable {
         return this;
     }
     
+    public long refreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
+
+    /**
+     * @param refreshIntervalMillis
+     *            The time after which a bag of the peer map that has not been looked up is refreshed
+     * @return This class
+     */
+    public MaintenanceTask refreshIntervalMillis(long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        return this;
+    }
+
+    public RoutingConfiguration refreshRoutingConfiguration() {
+        return refreshRoutingConfiguration;
+    }
+
+    public MaintenanceTask refreshRoutingConfiguration(RoutingConfiguration refreshRoutingConfiguration) {
+        this.refreshRoutingConfiguration = refreshRoutingConfiguration;
+        return this;
+    }
+
     public void addMaintainable(Maintainable maintainable) {
-        maintainables.add(maintainable);
+        synchronized (lock) {
+            maintainables.add(maintainable);
+        }
+    }
+
+    public boolean removeMaintainable(Maintainable maintainable) {
+        synchronized (lock) {
+            return maintainables.remove(maintainable);
+        }
     }
 }
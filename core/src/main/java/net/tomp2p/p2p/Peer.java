@@ -31,6 +31,7 @@ import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureLateJoin;
 import net.tomp2p.futures.FuturePeerConnection;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.p2p.builder.BootstrapBuilder;
 import net.tomp2p.p2p.builder.BroadcastBuilder;
 import net.tomp2p.p2p.builder.DiscoverBuilder;
@@ -193,6 +194,13 @@ public class Peer {
         return peerCreator.connectionBean();
     }
 
+    /**
+     * @return The metrics of this peer. A peer created with a master peer shares the metrics with its master.
+     */
+    public Metrics metrics() {
+        return peerCreator.connectionBean().metrics();
+    }
+
     /**
      * The ID of this peer.
      * @return
@@ -19,6 +19,7 @@ package net.tomp2p.p2p;
 import io.netty.channel.ChannelHandler;
 import io.netty.util.concurrent.EventExecutorGroup;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.security.PublicKey;
@@ -28,6 +29,8 @@ import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.connection.Bindings;
 import net.tomp2p.connection.ChannelClientConfiguration;
@@ -39,10 +42,17 @@ import net.tomp2p.connection.PeerCreator;
 import net.tomp2p.connection.PingBuilderFactory;
 import net.tomp2p.connection.PipelineFilter;
 import net.tomp2p.connection.Ports;
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.message.MessageHeaderCodec;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.p2p.builder.PingBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerMapConfiguration;
+import net.tomp2p.peers.PeerMapSnapshot;
+import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.peers.SharedPeerState;
 import net.tomp2p.rpc.BloomfilterFactory;
 import net.tomp2p.rpc.BroadcastRPC;
 import net.tomp2p.rpc.DefaultBloomfilterFactory;
@@ -53,6 +63,9 @@ import net.tomp2p.rpc.QuitRPC;
 import net.tomp2p.utils.Pair;
 import net.tomp2p.utils.Utils;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * The builder of a {@link Peer} class.
  * 
@@ -79,6 +92,8 @@ public class PeerBuilder {
 		}
 	};
 
+	private static final Logger LOG = LoggerFactory.getLogger(PeerBuilder.class);
+
 	private static final KeyPair EMPTY_KEYPAIR = new KeyPair(EMPTY_PUBLICKEY, null);
 	// if the permits are chosen too high, then we might run into timeout
 	// as we can't handle that many connections within the time limit
@@ -100,6 +115,9 @@ public class PeerBuilder {
 	private Bindings externalBindings = null;
 	private PeerMap peerMap = null;
 	private Peer masterPeer = null;
+	private SharedPeerState sharedPeerState = null;
+	private File snapshotFile = null;
+	private int snapshotIntervalSeconds = 60;
 	private ChannelServerConfiguration channelServerConfiguration = null;
 	private ChannelClientConfiguration channelClientConfiguration = null;
 	private Boolean behindFirewall = null;
@@ -118,6 +136,7 @@ public class PeerBuilder {
 	private boolean enableRouting = true;
 	private boolean enableMaintenance = true;
 	private boolean enableQuitRPC = true;
+	private boolean enableJmx = false;
 
 	/**
 	 * Creates a peer builder with the provided peer ID and an empty key pair.
@@ -175,6 +194,11 @@ public class PeerBuilder {
 		if (p2pID == -1) {
 			p2pID = 1;
 		}
+		// the top bit of the 28bit version in the message header marks the compact wire format
+		if (p2pID < 0 || p2pID > MessageHeaderCodec.MAX_VERSION_V2) {
+			throw new IllegalArgumentException("The P2P ID must be between 0 and " + MessageHeaderCodec.MAX_VERSION_V2
+			        + ", but was " + p2pID + ".");
+		}
 
 		if (interfaceBindings == null) {
 			interfaceBindings = new Bindings();
@@ -185,9 +209,18 @@ public class PeerBuilder {
 		}
 		channelClientConfiguration.bindingsOutgoing(externalBindings);
 
+		// virtual peers inherit the shared state of the master peer
+		if (sharedPeerState == null && masterPeer != null && masterPeer.peerBean().peerMap() != null) {
+			sharedPeerState = masterPeer.peerBean().peerMap().sharedPeerState();
+		}
+
 		if (peerMap == null) {
-			peerMap = new PeerMap(new PeerMapConfiguration(peerId));
+			peerMap = new PeerMap(new PeerMapConfiguration(peerId).sharedPeerState(sharedPeerState));
 		}
+		final PeerMap peerMap = this.peerMap;
+		// with a shared state, the updates of each virtual peer are applied to all peer maps
+		final PeerStatusListener peerStatusListener = peerMap.sharedPeerState() != null ? peerMap
+		        .sharedPeerState() : peerMap;
 
 		if (masterPeer == null && scheduledExecutorService == null) {
 			scheduledExecutorService = Executors.newScheduledThreadPool(1);
@@ -204,13 +237,25 @@ public class PeerBuilder {
 		final Peer peer = new Peer(p2pID, peerId, peerCreator);
 
 		PeerBean peerBean = peerCreator.peerBean();
-		peerBean.addPeerStatusListener(peerMap);
+		peerBean.addPeerStatusListener(peerStatusListener);
 
 		ConnectionBean connectionBean = peerCreator.connectionBean();
 
 		peerBean.peerMap(peerMap);
 		peerBean.keyPair(keyPair);
 
+		final Metrics metrics = connectionBean.metrics();
+		peerMap.addPeerMapChangeListener(metrics.peerMapChangeListener());
+		if (isEnableJmx() && masterPeer == null && metrics.registerMBean(peerId.toString())) {
+			peer.addShutdownListener(new Shutdown() {
+				@Override
+				public BaseFuture shutdown() {
+					metrics.unregisterMBean();
+					return new FutureDone<Void>().done();
+				}
+			});
+		}
+
 		if (bloomfilterFactory == null) {
 			peerBean.bloomfilterFactory(new DefaultBloomfilterFactory());
 		}
@@ -228,7 +273,7 @@ public class PeerBuilder {
 
 		if (isEnableQuitRPC()) {
 			QuitRPC quitRPC = new QuitRPC(peerBean, connectionBean);
-			quitRPC.addPeerStatusListener(peerMap);
+			quitRPC.addPeerStatusListener(peerStatusListener);
 			peer.quitRPC(quitRPC);
 		}
 
@@ -252,14 +297,42 @@ public class PeerBuilder {
 			peer.distributedRouting(routing);
 		}
 
-		if (maintenanceTask == null && isEnableMaintenanceRpc()) {
-			maintenanceTask = new MaintenanceTask();
+		final MaintenanceTask masterMaintenanceTask = peerMap.sharedPeerState() != null && masterPeer != null ? masterPeer
+		        .peerBean().maintenanceTask() : null;
+		if (maintenanceTask == null && masterMaintenanceTask != null && isEnableMaintenanceRpc()) {
+			// the peer map of a virtual peer is maintained by the master peer. The task is not set in the peer bean, as
+			// the maintenance task must not be shut down with this peer
+			masterMaintenanceTask.addMaintainable(peerMap);
+			peer.addShutdownListener(new Shutdown() {
+				@Override
+				public BaseFuture shutdown() {
+					masterMaintenanceTask.removeMaintainable(peerMap);
+					return new FutureDone<Void>().done();
+				}
+			});
+		} else {
+			if (maintenanceTask == null && isEnableMaintenanceRpc()) {
+				maintenanceTask = new MaintenanceTask();
+			}
+			if (maintenanceTask != null) {
+				maintenanceTask.init(peer, connectionBean.timer());
+				maintenanceTask.addMaintainable(peerMap);
+			}
+			peerBean.maintenanceTask(maintenanceTask);
 		}
-		if (maintenanceTask != null) {
-			maintenanceTask.init(peer, connectionBean.timer());
-			maintenanceTask.addMaintainable(peerMap);
+		if (peerMap.sharedPeerState() != null) {
+			peer.addShutdownListener(new Shutdown() {
+				@Override
+				public BaseFuture shutdown() {
+					peerMap.sharedPeerState().remove(peerMap);
+					return new FutureDone<Void>().done();
+				}
+			});
+		}
+
+		if (snapshotFile != null) {
+			snapshot(peer, peerMap, snapshotFile, snapshotIntervalSeconds);
 		}
-		peerBean.maintenanceTask(maintenanceTask);
 
 		// set the ping builder for the heart beat
 		connectionBean.sender().pingBuilderFactory(new PingBuilderFactory() {
@@ -275,6 +348,46 @@ public class PeerBuilder {
 		return peer;
 	}
 
+	/**
+	 * Loads the peers of the last snapshot into the overflow bags, where the maintenance verifies them, and writes the
+	 * peer map periodically and on shutdown.
+	 */
+	private static void snapshot(final Peer peer, final PeerMap peerMap, final File snapshotFile,
+	        final int intervalSeconds) {
+		try {
+			final int restored = PeerMapSnapshot.load(peerMap, snapshotFile);
+			LOG.debug("Restored {} peers from the snapshot {}.", restored, snapshotFile);
+		} catch (IOException e) {
+			LOG.warn("Could not load the peer map snapshot {}.", snapshotFile, e);
+		}
+		final Runnable writer = new Runnable() {
+			@Override
+			public void run() {
+				// do not replace a snapshot with an empty one if we never got connected
+				if (peerMap.size() == 0) {
+					return;
+				}
+				try {
+					PeerMapSnapshot.write(peerMap, snapshotFile);
+				} catch (IOException e) {
+					LOG.warn("Could not write the peer map snapshot {}.", snapshotFile, e);
+				}
+			}
+		};
+		final ScheduledFuture<?> scheduledFuture = intervalSeconds > 0 ? peer.connectionBean().timer()
+		        .scheduleWithFixedDelay(writer, intervalSeconds, intervalSeconds, TimeUnit.SECONDS) : null;
+		peer.addShutdownListener(new Shutdown() {
+			@Override
+			public BaseFuture shutdown() {
+				if (scheduledFuture != null) {
+					scheduledFuture.cancel(false);
+				}
+				writer.run();
+				return new FutureDone<Void>().done();
+			}
+		});
+	}
+
 	public static ChannelServerConfiguration createDefaultChannelServerConfiguration() {
 		return new ChannelServerConfiguration()
 				.bindingsIncoming(new Bindings())
@@ -426,6 +539,51 @@ public class PeerBuilder {
 		return this;
 	}
 
+	public SharedPeerState sharedPeerState() {
+		return sharedPeerState;
+	}
+
+	/**
+	 * @param sharedPeerState
+	 *            The peer state to share among the virtual peers in this JVM. Virtual peers that are created with
+	 *            {@link #masterPeer(Peer)} inherit the shared state of the master peer, and they are maintained by
+	 *            the maintenance task of the master peer.
+	 * @return This class
+	 */
+	public PeerBuilder sharedPeerState(SharedPeerState sharedPeerState) {
+		this.sharedPeerState = sharedPeerState;
+		return this;
+	}
+
+	public File snapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * @param snapshotFile
+	 *            The file with the snapshot of the peer map. On start, the peers of the snapshot are loaded into the
+	 *            overflow bags and verified by the maintenance. The snapshot is written periodically and on shutdown.
+	 * @return This class
+	 */
+	public PeerBuilder snapshotFile(File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+		return this;
+	}
+
+	public int snapshotIntervalSeconds() {
+		return snapshotIntervalSeconds;
+	}
+
+	/**
+	 * @param snapshotIntervalSeconds
+	 *            The interval to write the snapshot of the peer map, or 0 to write it only on shutdown
+	 * @return This class
+	 */
+	public PeerBuilder snapshotIntervalSeconds(int snapshotIntervalSeconds) {
+		this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+		return this;
+	}
+
 	public ChannelServerConfiguration channelServerConfiguration() {
 		return channelServerConfiguration;
 	}
@@ -548,6 +706,21 @@ public class PeerBuilder {
 		return this;
 	}
 
+	public boolean isEnableJmx() {
+		return enableJmx;
+	}
+
+	/**
+	 * @param enableJmx
+	 *            Set to true to register the metrics of this peer in the platform MBean server. Only a master peer
+	 *            registers its metrics, as the metrics are shared with the peers that use it as master.
+	 * @return This class
+	 */
+	public PeerBuilder enableJmx(boolean enableJmx) {
+		this.enableJmx = enableJmx;
+		return this;
+	}
+
 	public boolean isEnableQuitRPC() {
 		return enableQuitRPC;
 	}
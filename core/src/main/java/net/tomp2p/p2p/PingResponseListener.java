@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.p2p;
+
+import net.tomp2p.message.Message;
+
+/**
+ * Use this interface to add information to the response of a regular ping, e.g., the load of a peer.
+ */
+public interface PingResponseListener {
+
+	/**
+	 * Called before the response to a regular ping is sent.
+	 * 
+	 * @param requestMessage
+	 *            The ping request
+	 * @param responseMessage
+	 *            The response that will be sent, content may be added
+	 */
+	void pingResponse(Message requestMessage, Message responseMessage);
+}
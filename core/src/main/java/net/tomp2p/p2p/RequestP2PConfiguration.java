@@ -33,10 +33,20 @@ public class RequestP2PConfiguration implements RequestConfiguration {
 
     final private boolean forceTCP;
 
+    // the number of duplicate requests to other peers if a peer does not reply in time
+    final private int hedges;
+
+    final private double hedgePercentile;
+
     public RequestP2PConfiguration(int minimumResults, int maxFailure, int parallelDiff) {
         this(minimumResults, maxFailure, parallelDiff, false, false);
     }
 
+    public RequestP2PConfiguration(final int minimumResults, final int maxFailure, final int parallelDiff,
+            final boolean forceUDP, final boolean forceTCP) {
+        this(minimumResults, maxFailure, parallelDiff, forceUDP, forceTCP, 0, 0);
+    }
+
     /**
      * Sets the P2P/DHT configuration and its stop conditions. Based on the message size, either UDP or TCP is used.
      * 
@@ -50,22 +60,33 @@ public class RequestP2PConfiguration implements RequestConfiguration {
      *            Flag to indicate that routing should be done with UDP instead of TCP
      * @param forceTCP
      *            Flag to indicate that routing should be done with TCP instead of UDP
+     * @param hedges
+     *            The number of duplicate requests that are sent to other peers if peers do not reply in time. The
+     *            connections for these requests are reserved in addition to the parallel connections. Duplicate
+     *            requests are only sent for operations that can be canceled once they are finished, e.g., get()
+     * @param hedgePercentile
+     *            The percentile of the round trip times of a peer, e.g. 0.95, after which a duplicate request is sent
      */
     public RequestP2PConfiguration(final int minimumResults, final int maxFailure, final int parallelDiff,
-            final boolean forceUDP, final boolean forceTCP) {
-        if (minimumResults < 0 || maxFailure < 0 || parallelDiff < 0) {
+            final boolean forceUDP, final boolean forceTCP, final int hedges, final double hedgePercentile) {
+        if (minimumResults < 0 || maxFailure < 0 || parallelDiff < 0 || hedges < 0) {
             throw new IllegalArgumentException("Some values need to be larger or equal to zero.");
         }
+        if (hedgePercentile < 0 || hedgePercentile > 1) {
+            throw new IllegalArgumentException("The percentile needs to be between zero and one.");
+        }
         this.minimumResults = minimumResults;
         this.maxFailure = maxFailure;
         this.parallelDiff = parallelDiff;
         this.forceUDP = forceUDP;
         this.forceTCP = forceTCP;
+        this.hedges = hedges;
+        this.hedgePercentile = hedgePercentile;
     }
 
     public RequestP2PConfiguration adjustMinimumResult(int minimumResultsLow) {
         return new RequestP2PConfiguration(Math.min(minimumResultsLow, minimumResults), maxFailure, parallelDiff,
-                forceUDP, forceTCP);
+                forceUDP, forceTCP, hedges, hedgePercentile);
     }
 
     public int minimumResults() {
@@ -80,12 +101,24 @@ public class RequestP2PConfiguration implements RequestConfiguration {
         return parallelDiff;
     }
 
+    public int hedges() {
+        return hedges;
+    }
+
+    public double hedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public boolean isHedging() {
+        return hedges > 0 && hedgePercentile > 0;
+    }
+
     /* (non-Javadoc)
 	 * @see net.tomp2p.p2p.RequestConfiguration#parallel()
 	 */
     @Override
     public int parallel() {
-        return minimumResults + parallelDiff;
+        return minimumResults + parallelDiff + hedges;
     }
 
     /* (non-Javadoc)
@@ -113,6 +146,12 @@ public class RequestP2PConfiguration implements RequestConfiguration {
         sb.append(maxFailure);
         sb.append("pDiff=");
         sb.append(parallelDiff);
+        if (hedges > 0) {
+            sb.append("hedges=");
+            sb.append(hedges);
+            sb.append("@");
+            sb.append(hedgePercentile);
+        }
         return sb.toString();
     }
 }
@@ -31,7 +31,7 @@ import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.DigestResult;
 import net.tomp2p.storage.Data;
 
-public class VotingSchemeDHT implements EvaluatingSchemeDHT {
+public class VotingSchemeDHT implements ConditionalEvaluatingSchemeDHT {
     
     private static final NavigableMap<Number640, Collection<Number160>> emptyMap = new TreeMap<Number640, Collection<Number160>>();
     
@@ -120,6 +120,48 @@ public class VotingSchemeDHT implements EvaluatingSchemeDHT {
         return result;
     }
 
+    @Override
+    public Map<Number640, Data> evaluate7(final Map<PeerAddress, Map<Number640, Data>> rawData,
+            final Map<PeerAddress, Collection<Number640>> rawNotModified, final Map<Number640, Data> knownData) {
+        return evaluate2(merge(rawData, rawNotModified, knownData));
+    }
+
+    /**
+     * Adds the known data to the data of each peer that answered that it has not been modified.
+     * 
+     * @param rawData
+     *            The data that has been received from each peer
+     * @param rawNotModified
+     *            The keys of the entries that have not been modified from each peer
+     * @param knownData
+     *            The data the requester already knows
+     * @return The data of each peer as if all entries had been sent
+     */
+    public static Map<PeerAddress, Map<Number640, Data>> merge(final Map<PeerAddress, Map<Number640, Data>> rawData,
+            final Map<PeerAddress, Collection<Number640>> rawNotModified, final Map<Number640, Data> knownData) {
+        if (rawData == null) {
+            throw new IllegalArgumentException("cannot evaluate, as no result provided");
+        }
+        if (rawNotModified == null || rawNotModified.isEmpty() || knownData == null) {
+            return rawData;
+        }
+        final Map<PeerAddress, Map<Number640, Data>> result = new HashMap<PeerAddress, Map<Number640, Data>>(
+                rawData);
+        for (Map.Entry<PeerAddress, Collection<Number640>> entry : rawNotModified.entrySet()) {
+            final Map<Number640, Data> data = rawData.get(entry.getKey());
+            final Map<Number640, Data> merged = data == null ? new HashMap<Number640, Data>()
+                    : new HashMap<Number640, Data>(data);
+            for (Number640 key : entry.getValue()) {
+                final Data known = knownData.get(key);
+                if (known != null) {
+                    merged.put(key, known);
+                }
+            }
+            result.put(entry.getKey(), merged);
+        }
+        return result;
+    }
+
     @Override
     public Object evaluate3(Map<PeerAddress, Object> rawKeys) {
         return evaluate0(rawKeys);
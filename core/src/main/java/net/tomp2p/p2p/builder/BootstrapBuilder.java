@@ -20,19 +20,31 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
-
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.DefaultConnectionConfiguration;
 import net.tomp2p.connection.Ports;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureBootstrap;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FuturePing;
+import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.futures.FutureWrappedBootstrap;
+import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.p2p.RoutingConfiguration;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapChangeListener;
+import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.utils.Pair;
 import net.tomp2p.utils.Utils;
 
@@ -60,6 +72,9 @@ public class BootstrapBuilder {
     private static final FutureBootstrap FUTURE_BOOTSTRAP_SHUTDOWN = new FutureWrappedBootstrap<FutureBootstrap>()
             .failed0("Peer is shutting down.");
 
+    // the maximum number of restored peers from the peer map that are pinged in a fast bootstrap
+    private static final int MAX_RESTORED_SEEDS = 16;
+
     private static final FutureBootstrap FUTURE_BOOTSTRAP_NO_ADDRESS = new FutureWrappedBootstrap<FutureBootstrap>()
             .failed0("No addresses to bootstrap to have been provided. Or maybe, the provided address has peer ID set to zero.");
 
@@ -81,6 +96,12 @@ public class BootstrapBuilder {
 
     private boolean broadcast = false;
 
+    private boolean fast = false;
+
+    private int readyBags = 3;
+
+    private int fanOut = 8;
+
     public BootstrapBuilder(Peer peer) {
         this.peer = peer;
     }
@@ -190,6 +211,54 @@ public class BootstrapBuilder {
         return this;
     }
 
+    public boolean isFast() {
+        return fast;
+    }
+
+    public BootstrapBuilder fast() {
+        return fast(true);
+    }
+
+    /**
+     * @param fast
+     *            True to ping all seeds in parallel and to look up our own ID and the empty bags concurrently. The
+     *            future is done as soon as {@link #readyBags()} bags are populated, while the lookups continue in the
+     *            background.
+     * @return this instance
+     */
+    public BootstrapBuilder fast(boolean fast) {
+        this.fast = fast;
+        return this;
+    }
+
+    public int readyBags() {
+        return readyBags;
+    }
+
+    /**
+     * @param readyBags
+     *            The number of populated bags after which a fast bootstrap is reported as done
+     * @return this instance
+     */
+    public BootstrapBuilder readyBags(int readyBags) {
+        this.readyBags = readyBags;
+        return this;
+    }
+
+    public int fanOut() {
+        return fanOut;
+    }
+
+    /**
+     * @param fanOut
+     *            The number of bags that are looked up concurrently after the lookup of our own ID
+     * @return this instance
+     */
+    public BootstrapBuilder fanOut(int fanOut) {
+        this.fanOut = fanOut;
+        return this;
+    }
+
     public FutureBootstrap start() {
         if (peer.isShutdown()) {
             return FUTURE_BOOTSTRAP_SHUTDOWN;
@@ -210,14 +279,46 @@ public class BootstrapBuilder {
         if (peerAddress != null && bootstrapTo == null) {
             bootstrapTo = new ArrayList<PeerAddress>(1);
             bootstrapTo.add(peerAddress);
-            return bootstrap();
+            return fast ? fastBootstrap() : bootstrap();
         }
         if (bootstrapTo != null) {
-            return bootstrap();
+            return fast ? fastBootstrap() : bootstrap();
+        }
+        if (fast) {
+            // the peers restored from the snapshot, see PeerBuilder#snapshotFile(File)
+            return fastBootstrap();
         }
         return FUTURE_BOOTSTRAP_NO_ADDRESS;
     }
 
+    private FutureBootstrap fastBootstrap() {
+        final List<PeerAddress> seeds = new ArrayList<PeerAddress>();
+        if (bootstrapTo != null) {
+            seeds.addAll(bootstrapTo);
+        }
+        final List<PeerAddress> restored = new ArrayList<PeerAddress>(peer.peerBean().peerMap().all());
+        restored.addAll(peer.peerBean().peerMap().allOverflow());
+        int added = 0;
+        for (PeerAddress seed : restored) {
+            if (added >= MAX_RESTORED_SEEDS) {
+                break;
+            }
+            if (!seeds.contains(seed) && !seed.peerId().equals(peer.peerID())) {
+                seeds.add(seed);
+                added++;
+            }
+        }
+        if (seeds.isEmpty()) {
+            return FUTURE_BOOTSTRAP_NO_ADDRESS;
+        }
+        final FutureWrappedBootstrap<FutureDone<Void>> result = new FutureWrappedBootstrap<FutureDone<Void>>();
+        result.bootstrapTo(seeds);
+        final FutureDone<Void> futureReady = new FutureDone<Void>();
+        result.waitFor(futureReady);
+        new FastBootstrap(seeds, futureReady).start();
+        return result;
+    }
+
     private FutureBootstrap bootstrap() {
         final FutureWrappedBootstrap<FutureDone<Pair<FutureRouting,FutureRouting>>> result = new FutureWrappedBootstrap<FutureDone<Pair<FutureRouting,FutureRouting>>>();
         result.bootstrapTo(bootstrapTo);
@@ -251,6 +352,183 @@ public class BootstrapBuilder {
         return routingBuilder;
     }
 
+    /**
+     * A bootstrap in stages: the seeds are pinged in parallel, in chunks of at most as many UDP permits as can be
+     * reserved. The first seed that replies starts the lookup of our own ID, and once this lookup is done, the empty
+     * bags are looked up concurrently. Readiness is reported as soon as enough bags are populated.
+     */
+    private final class FastBootstrap implements PeerMapChangeListener {
+        private final List<PeerAddress> seeds;
+        private final FutureDone<Void> futureReady;
+        private final PeerMap peerMap = peer.peerBean().peerMap();
+        private final Random random = new Random();
+        // the ping stage and the lookups that are still running
+        private final AtomicInteger running = new AtomicInteger(1);
+        private final AtomicBoolean selfLookupStarted = new AtomicBoolean(false);
+        private final AtomicBoolean ready = new AtomicBoolean(false);
+
+        private FastBootstrap(final List<PeerAddress> seeds, final FutureDone<Void> futureReady) {
+            this.seeds = seeds;
+            this.futureReady = futureReady;
+        }
+
+        private void start() {
+            peerMap.addPeerMapChangeListener(this);
+            if (peer.pingRPC() == null) {
+                selfLookup(seeds);
+                finished();
+                return;
+            }
+            pingSeeds(0);
+        }
+
+        /**
+         * Pings the seeds starting at the given index, at most as many at once as UDP permits can be reserved. The next
+         * seeds are pinged once all pings of this chunk are done.
+         */
+        private void pingSeeds(final int from) {
+            if (from >= seeds.size()) {
+                finished();
+                return;
+            }
+            final int maxPermitsUDP = peer.connectionBean().sender().channelClientConfiguration().maxPermitsUDP();
+            final int to = Math.min(seeds.size(), from + maxPermitsUDP);
+            final FutureChannelCreator fcc = peer.connectionBean().reservation().create(to - from, 0);
+            fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+                @Override
+                public void operationComplete(final FutureChannelCreator future) throws Exception {
+                    if (!future.isSuccess()) {
+                        finished();
+                        return;
+                    }
+                    final ChannelCreator cc = future.channelCreator();
+                    final AtomicInteger pending = new AtomicInteger(to - from);
+                    final FutureResponse[] futureResponses = new FutureResponse[to - from];
+                    for (int i = from; i < to; i++) {
+                        final PeerAddress seed = seeds.get(i);
+                        futureResponses[i - from] = peer.pingRPC().pingUDP(seed, cc,
+                                new DefaultConnectionConfiguration());
+                        futureResponses[i - from].addListener(new BaseFutureAdapter<FutureResponse>() {
+                            @Override
+                            public void operationComplete(final FutureResponse future) throws Exception {
+                                if (future.isSuccess()) {
+                                    // the peer map has been seeded with the sender of the reply
+                                    selfLookup(Collections.singletonList(future.responseMessage().sender()));
+                                }
+                                if (pending.decrementAndGet() == 0) {
+                                    pingSeeds(to);
+                                }
+                            }
+                        });
+                    }
+                    Utils.addReleaseListener(cc, futureResponses);
+                }
+            });
+        }
+
+        private void selfLookup(final Collection<PeerAddress> startPeers) {
+            if (!selfLookupStarted.compareAndSet(false, true)) {
+                return;
+            }
+            final Number160 self = peer.peerID();
+            lookup(startPeers, self, true);
+        }
+
+        /**
+         * Looks up random keys in the empty bags between the closest populated bag and the farthest bag, the farthest
+         * first.
+         */
+        private void refreshBags() {
+            final List<Integer> bags = peerMap.bagsToRefresh(-1);
+            Collections.sort(bags, Collections.reverseOrder());
+            int started = 0;
+            for (Integer bag : bags) {
+                if (started >= fanOut) {
+                    break;
+                }
+                if (peerMap.bagSize(bag) == 0) {
+                    final Number160 key = peerMap.randomKey(bag, random);
+                    lookup(peerMap.closePeers(key, routingConfiguration.parallel() * 2), key, false);
+                    started++;
+                }
+            }
+            logger.debug("Fast bootstrap of {} looks up {} bags.", peer.peerAddress(), started);
+        }
+
+        private void lookup(final Collection<PeerAddress> startPeers, final Number160 key, final boolean self) {
+            if (peer.distributedRouting() == null || startPeers.isEmpty()) {
+                return;
+            }
+            running.incrementAndGet();
+            final RoutingBuilder routingBuilder = createBuilder(routingConfiguration, forceRoutingOnlyToSelf);
+            routingBuilder.setLocationKey(key);
+            routingBuilder.setBootstrap(self);
+            final FutureChannelCreator fcc = peer.connectionBean().reservation()
+                    .create(routingConfiguration.parallel(), 0);
+            fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+                @Override
+                public void operationComplete(final FutureChannelCreator future) throws Exception {
+                    if (!future.isSuccess()) {
+                        finished();
+                        return;
+                    }
+                    final FutureRouting futureRouting = peer.distributedRouting().route(startPeers,
+                            routingBuilder, Type.REQUEST_1, future.channelCreator());
+                    Utils.addReleaseListener(future.channelCreator(), futureRouting);
+                    futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                        @Override
+                        public void operationComplete(final FutureRouting future) throws Exception {
+                            if (self) {
+                                refreshBags();
+                            }
+                            finished();
+                        }
+                    });
+                }
+            });
+        }
+
+        private void finished() {
+            if (running.decrementAndGet() > 0) {
+                return;
+            }
+            peerMap.removePeerMapChangeListener(this);
+            if (peerMap.size() > 0) {
+                ready();
+            } else if (ready.compareAndSet(false, true)) {
+                futureReady.failed("Could not reach anyone with bootstrap.");
+            }
+        }
+
+        private void ready() {
+            if (ready.compareAndSet(false, true)) {
+                logger.debug("Fast bootstrap of {} is ready with {} peers.", peer.peerAddress(), peerMap.size());
+                // not called while the peer map notifies its listeners
+                peer.connectionBean().timer().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        futureReady.done();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+            if (verified && !ready.get() && peerMap.populatedBags() >= readyBags) {
+                ready();
+            }
+        }
+
+        @Override
+        public void peerRemoved(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        }
+
+        @Override
+        public void peerUpdated(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        }
+    }
+
     private FutureWrappedBootstrap<FutureBootstrap> bootstrapPing(PeerAddress address) {
         final FutureWrappedBootstrap<FutureBootstrap> result = new FutureWrappedBootstrap<FutureBootstrap>();
         final FuturePing futurePing = peer.ping().peerAddress(address).tcpPing().start();
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.peers;
+
+import java.io.Serializable;
+
+/**
+ * A compact representation of a {@link Number640} for storage indexes. A Number640 consists of four Number160
+ * objects, each backed by an int array, which results in nine objects per key. This class packs the 640 bits into ten
+ * longs of a single object. The order is the same as the order of Number640: the keys are compared unsigned and
+ * lexicographically, first by location, then domain, content, and version key.
+ *
+ * Use this class as key in maps that hold many entries and convert it back with {@link #toNumber640()} when the key
+ * leaves the index.
+ */
+public final class CompactNumber640 implements Comparable<CompactNumber640>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int INT_ARRAY_SIZE = Number160.INT_ARRAY_SIZE * 4;
+
+    private static final long LONG_MASK = 0xffffffffL;
+
+    private final long l0, l1, l2, l3, l4, l5, l6, l7, l8, l9;
+
+    /**
+     * Creates a compact key from a Number640.
+     *
+     * @param key
+     *            The key to pack
+     */
+    public CompactNumber640(final Number640 key) {
+        final int[] val = new int[INT_ARRAY_SIZE];
+        copy(key.locationKey(), val, 0);
+        copy(key.domainKey(), val, Number160.INT_ARRAY_SIZE);
+        copy(key.contentKey(), val, Number160.INT_ARRAY_SIZE * 2);
+        copy(key.versionKey(), val, Number160.INT_ARRAY_SIZE * 3);
+        this.l0 = pack(val, 0);
+        this.l1 = pack(val, 1);
+        this.l2 = pack(val, 2);
+        this.l3 = pack(val, 3);
+        this.l4 = pack(val, 4);
+        this.l5 = pack(val, 5);
+        this.l6 = pack(val, 6);
+        this.l7 = pack(val, 7);
+        this.l8 = pack(val, 8);
+        this.l9 = pack(val, 9);
+    }
+
+    private static void copy(final Number160 number160, final int[] val, final int offset) {
+        final int[] tmp = number160.toIntArray();
+        System.arraycopy(tmp, 0, val, offset, Number160.INT_ARRAY_SIZE);
+    }
+
+    private static long pack(final int[] val, final int index) {
+        return ((long) val[index * 2] << Integer.SIZE) | (val[index * 2 + 1] & LONG_MASK);
+    }
+
+    /**
+     * @return The Number640 that has been packed into this key
+     */
+    public Number640 toNumber640() {
+        final long[] longs = new long[] { l0, l1, l2, l3, l4, l5, l6, l7, l8, l9 };
+        final int[] val = new int[INT_ARRAY_SIZE];
+        for (int i = 0; i < longs.length; i++) {
+            val[i * 2] = (int) (longs[i] >>> Integer.SIZE);
+            val[i * 2 + 1] = (int) longs[i];
+        }
+        return new Number640(number160(val, 0), number160(val, 1), number160(val, 2), number160(val, 3));
+    }
+
+    private static Number160 number160(final int[] val, final int index) {
+        final int[] tmp = new int[Number160.INT_ARRAY_SIZE];
+        System.arraycopy(val, index * Number160.INT_ARRAY_SIZE, tmp, 0, Number160.INT_ARRAY_SIZE);
+        return new Number160(tmp);
+    }
+
+    @Override
+    public int compareTo(final CompactNumber640 o) {
+        int diff = compareUnsigned(l0, o.l0);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l1, o.l1);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l2, o.l2);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l3, o.l3);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l4, o.l4);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l5, o.l5);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l6, o.l6);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l7, o.l7);
+        if (diff != 0) {
+            return diff;
+        }
+        diff = compareUnsigned(l8, o.l8);
+        if (diff != 0) {
+            return diff;
+        }
+        return compareUnsigned(l9, o.l9);
+    }
+
+    private static int compareUnsigned(final long x, final long y) {
+        // flipping the sign bit maps the unsigned order onto the signed order
+        final long a = x ^ Long.MIN_VALUE;
+        final long b = y ^ Long.MIN_VALUE;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof CompactNumber640)) {
+            return false;
+        }
+        if (obj == this) {
+            return true;
+        }
+        final CompactNumber640 o = (CompactNumber640) obj;
+        return l0 == o.l0 && l1 == o.l1 && l2 == o.l2 && l3 == o.l3 && l4 == o.l4 && l5 == o.l5 && l6 == o.l6
+                && l7 == o.l7 && l8 == o.l8 && l9 == o.l9;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = l0;
+        hash = 31 * hash + l1;
+        hash = 31 * hash + l2;
+        hash = 31 * hash + l3;
+        hash = 31 * hash + l4;
+        hash = 31 * hash + l5;
+        hash = 31 * hash + l6;
+        hash = 31 * hash + l7;
+        hash = 31 * hash + l8;
+        hash = 31 * hash + l9;
+        return (int) (hash ^ (hash >>> Integer.SIZE));
+    }
+
+    @Override
+    public String toString() {
+        return toNumber640().toString();
+    }
+}
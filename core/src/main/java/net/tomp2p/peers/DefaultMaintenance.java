@@ -16,9 +16,13 @@
 
 package net.tomp2p.peers;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.utils.ConcurrentCacheMap;
@@ -27,27 +31,37 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * The default maintenance implementation.
+ * The default maintenance implementation. Peers are kept in a queue ordered by the time of their next check, so
+ * finding the next peer does not scan the bags. Entries in the queue are checked lazily: a peer that is no longer in
+ * the peer map is dropped and a peer that has been seen online in the meantime is put back with its new time.
  * 
  * @author Thomas Bocek
  * 
  */
-public class DefaultMaintenance implements Maintenance {
+public class DefaultMaintenance implements PeerMapMaintenance {
     
     private static final Logger LOG = LoggerFactory.getLogger(DefaultMaintenance.class);
 
     private final int peerUrgency;
     private final int[] intervalSeconds;
 
+    private final Number160 self;
     private final List<Map<Number160, PeerStatistic>> peerMapVerified;
     private final List<Map<Number160, PeerStatistic>> peerMapNonVerified;
     private final ConcurrentCacheMap<Number160, PeerAddress> offlineMap;
     private final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap;
     private final ConcurrentCacheMap<Number160, PeerAddress> exceptionMap;
 
+    // the peers ordered by the time of their next check, guarded by itself
+    private final PriorityQueue<Due> queue = new PriorityQueue<Due>();
+    // the peers that are in the queue, guarded by queue
+    private final Set<Number160> queued = new HashSet<Number160>();
+
     /**
      * Creates a new maintenance class with the verified and non verified map.
      * 
+     * @param self
+     *            The peer ID of the owner of the peer map
      * @param peerMapVerified
      *            The verified map
      * @param peerMapNonVerified
@@ -63,12 +77,13 @@ public class DefaultMaintenance implements Maintenance {
      *            The number of intervals to test a peer. The longer a peer is available the less often we need to check
      * 
      */
-    private DefaultMaintenance(final List<Map<Number160, PeerStatistic>> peerMapVerified,
+    private DefaultMaintenance(final Number160 self, final List<Map<Number160, PeerStatistic>> peerMapVerified,
             final List<Map<Number160, PeerStatistic>> peerMapNonVerified,
             final ConcurrentCacheMap<Number160, PeerAddress> offlineMap, 
             final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap, 
             final ConcurrentCacheMap<Number160, PeerAddress> exceptionMap, final int peerUrgency,
             final int[] intervalSeconds) {
+        this.self = self;
         this.peerMapVerified = peerMapVerified;
         this.peerMapNonVerified = peerMapNonVerified;
         this.offlineMap = offlineMap;
@@ -89,6 +104,7 @@ public class DefaultMaintenance implements Maintenance {
      *            The number of intervals to test a peer. The longer a peer is available the less often we need to check
      */
     public DefaultMaintenance(final int peerUrgency, final int[] intervalSeconds) {
+        this.self = null;
         this.peerMapVerified = null;
         this.peerMapNonVerified = null;
         this.offlineMap = null;
@@ -98,21 +114,68 @@ public class DefaultMaintenance implements Maintenance {
         this.intervalSeconds = intervalSeconds;
     }
 
+    /**
+     * Without the own peer ID, the bag of a peer is looked up in the maps when the peer is inserted or updated,
+     * which costs a lookup per bag. The {@link PeerMap} calls
+     * {@link #init(Number160, List, List, ConcurrentCacheMap, ConcurrentCacheMap, ConcurrentCacheMap)} instead,
+     * which calculates the bag.
+     */
     @Override
     public Maintenance init(final List<Map<Number160, PeerStatistic>> peerMapVerified,
             final List<Map<Number160, PeerStatistic>> peerMapNonVerified,
             final ConcurrentCacheMap<Number160, PeerAddress> offlineMap, 
             final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap, 
             final ConcurrentCacheMap<Number160, PeerAddress> exceptionMap) {
-        return new DefaultMaintenance(peerMapVerified, peerMapNonVerified, offlineMap, shutdownMap, exceptionMap, peerUrgency,
-                intervalSeconds);
+        return new DefaultMaintenance(null, peerMapVerified, peerMapNonVerified, offlineMap, shutdownMap, exceptionMap,
+                peerUrgency, intervalSeconds);
+    }
+
+    @Override
+    public PeerMapMaintenance init(final Number160 self, final List<Map<Number160, PeerStatistic>> peerMapVerified,
+            final List<Map<Number160, PeerStatistic>> peerMapNonVerified,
+            final ConcurrentCacheMap<Number160, PeerAddress> offlineMap, 
+            final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap, 
+            final ConcurrentCacheMap<Number160, PeerAddress> exceptionMap) {
+        return new DefaultMaintenance(self, peerMapVerified, peerMapNonVerified, offlineMap, shutdownMap, exceptionMap,
+                peerUrgency, intervalSeconds);
+    }
+
+    @Override
+    public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+        schedule(peerAddress.peerId());
+    }
+
+    @Override
+    public void peerRemoved(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        // the queue entry is dropped when it is due
+    }
+
+    @Override
+    public void peerUpdated(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        schedule(peerAddress.peerId());
+    }
+
+    /**
+     * Adds a peer to the queue, if it is not already there. The peer is due immediately, its real time is calculated
+     * when it is taken from the queue.
+     */
+    private void schedule(final Number160 peerId) {
+        final int bagIndex = self != null ? PeerMap.classMember(self, peerId) : bagIndex(peerId);
+        if (bagIndex < 0) {
+            return;
+        }
+        synchronized (queue) {
+            if (queued.add(peerId)) {
+                queue.add(new Due(0, bagIndex, peerId));
+            }
+        }
     }
 
     /**
      * Finds the next peer that should have a maintenance check. Returns null if no maintenance is needed at the moment.
-     * It will return the most important peers first. Importance is as follows: The most important peers are the close
-     * ones in the verified peer map. If a certain threshold in a bag is not reached, the unverified becomes important
-     * too.
+     * The peer that has been waiting the longest for its check is returned first. If two peers are due at the same
+     * time, the one in the closer bag is returned. Peers from the non-verified map are only returned if the verified
+     * bag is below a certain threshold.
      * 
      * @return The next most important peer to check if it is still alive.
      */
@@ -121,49 +184,89 @@ public class DefaultMaintenance implements Maintenance {
                 || shutdownMap == null || exceptionMap == null) {
             throw new IllegalArgumentException("Did not initialize some of the maintenance maps.");
         }
-        int peersBefore = 0;
-        for (int i = 0; i < Number160.BITS; i++) {
-            final Map<Number160, PeerStatistic> mapVerified = peerMapVerified.get(i);
-            boolean urgent = false;
-            synchronized (mapVerified) {
-                final int size = mapVerified.size();
-                peersBefore += size;
-                urgent = isUrgent(i, size, peersBefore);
-            }
-            if (urgent) {
-                final Map<Number160, PeerStatistic> mapNonVerified = peerMapNonVerified.get(i);
-                final PeerStatistic readyForMaintenance = next(mapNonVerified);
-                if (readyForMaintenance != null
-                        && !notInterestedAddresses.contains(readyForMaintenance.peerAddress())) {
-                    LOG.debug("check peer {} from the non-verified map.", readyForMaintenance.peerAddress());
-                    return readyForMaintenance;
+        final long now = System.currentTimeMillis();
+        // check again after the shortest interval, in case we do not get notified about the result
+        final long retry = now + TimeUnit.SECONDS.toMillis(intervalSeconds[0]);
+        final List<Due> postponed = new ArrayList<Due>();
+        try {
+            synchronized (queue) {
+                Due due;
+                while ((due = queue.peek()) != null && due.time <= now) {
+                    queue.poll();
+                    PeerStatistic peerStatistic = get(peerMapVerified.get(due.bagIndex), due.peerId);
+                    final boolean verified = peerStatistic != null;
+                    if (!verified) {
+                        peerStatistic = get(peerMapNonVerified.get(due.bagIndex), due.peerId);
+                    }
+                    if (peerStatistic == null) {
+                        queued.remove(due.peerId);
+                        continue;
+                    }
+                    final long next = nextMaintenance(peerStatistic, intervalSeconds);
+                    if (next > now) {
+                        queue.add(due.time(next));
+                        continue;
+                    }
+                    if ((!verified && !isUrgent(due.bagIndex))
+                            || notInterestedAddresses.contains(peerStatistic.peerAddress())) {
+                        postponed.add(due.time(retry));
+                        continue;
+                    }
+                    queue.add(due.time(retry));
+                    if (!verified) {
+                        LOG.debug("check peer {} from the non-verified map.", peerStatistic.peerAddress());
+                    }
+                    return peerStatistic;
                 }
             }
-            final PeerStatistic readyForMaintenance = next(mapVerified);
-            if (readyForMaintenance != null
-                    && !notInterestedAddresses.contains(readyForMaintenance.peerAddress())) {
-                return readyForMaintenance;
+            return null;
+        } finally {
+            if (!postponed.isEmpty()) {
+                synchronized (queue) {
+                    queue.addAll(postponed);
+                }
             }
         }
-        return null;
     }
 
     /**
-     * Returns a peer with its statistics from a bag that needs maintenance.
-     * 
-     * @param map
-     *            The bag with all the peers
-     * @return A peer that needs maintenance
+     * @return The number of peers that are scheduled for a maintenance check
+     */
+    public int scheduled() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return The bag that contains the peer, or -1 if the peer is in none of the maps
      */
-    private PeerStatistic next(final Map<Number160, PeerStatistic> map) {
+    private int bagIndex(final Number160 peerId) {
+        for (int i = 0; i < peerMapVerified.size(); i++) {
+            if (get(peerMapVerified.get(i), peerId) != null || get(peerMapNonVerified.get(i), peerId) != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static PeerStatistic get(final Map<Number160, PeerStatistic> map, final Number160 peerId) {
         synchronized (map) {
-            for (PeerStatistic peerStatistic : map.values()) {
-                if (needMaintenance(peerStatistic, intervalSeconds)) {
-                    return peerStatistic;
-                }
+            return map.get(peerId);
+        }
+    }
+
+    private boolean isUrgent(final int bagIndex) {
+        int peersBefore = 0;
+        int size = 0;
+        for (int i = 0; i <= bagIndex; i++) {
+            final Map<Number160, PeerStatistic> mapVerified = peerMapVerified.get(i);
+            synchronized (mapVerified) {
+                size = mapVerified.size();
             }
+            peersBefore += size;
         }
-        return null;
+        return isUrgent(bagIndex, size, peersBefore);
     }
 
     /**
@@ -190,6 +293,20 @@ public class DefaultMaintenance implements Maintenance {
      * @return True if the peer needs a maintenance check
      */
     public static boolean needMaintenance(final PeerStatistic peerStatistic, final int[] intervalSeconds) {
+        return System.currentTimeMillis() > nextMaintenance(peerStatistic, intervalSeconds);
+    }
+
+    /**
+     * Calculates the time after which a peer needs a maintenance check. This can be used to order peers in a queue
+     * instead of testing all of them with {@link #needMaintenance(PeerStatistic, int[])}.
+     * 
+     * @param peerStatistic
+     *            The peer with its statistics
+     * @param intervalSeconds
+     *            The number of intervals to test a peer
+     * @return The time in milliseconds after which the peer needs a maintenance check
+     */
+    public static long nextMaintenance(final PeerStatistic peerStatistic, final int[] intervalSeconds) {
         final int onlineSec = peerStatistic.onlineTime() / 1000;
         int index;
         if (onlineSec <= 0) {
@@ -210,7 +327,37 @@ public class DefaultMaintenance implements Maintenance {
         	}
         }
         final int time = intervalSeconds[index];
-        final long lastTimeWhenChecked = System.currentTimeMillis() - peerStatistic.lastSeenOnline();
-        return lastTimeWhenChecked > TimeUnit.SECONDS.toMillis(time);
+        return peerStatistic.lastSeenOnline() + TimeUnit.SECONDS.toMillis(time);
+    }
+
+    /**
+     * An entry in the maintenance queue.
+     */
+    private static final class Due implements Comparable<Due> {
+        private long time;
+        private final int bagIndex;
+        private final Number160 peerId;
+
+        private Due(final long time, final int bagIndex, final Number160 peerId) {
+            this.time = time;
+            this.bagIndex = bagIndex;
+            this.peerId = peerId;
+        }
+
+        /**
+         * Only call this if the entry is not in the queue.
+         */
+        private Due time(final long time) {
+            this.time = time;
+            return this;
+        }
+
+        @Override
+        public int compareTo(final Due o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            return bagIndex - o.bagIndex;
+        }
     }
 }
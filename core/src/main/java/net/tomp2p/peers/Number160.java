@@ -15,19 +15,31 @@
  */
 package net.tomp2p.peers;
 
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.Random;
 
 import net.tomp2p.utils.Utils;
 
 /**
  * This class represents a 160 bit number. This class is preferred over BigInteger as we always have 160bit, and thus,
- * methods can be optimized.
+ * methods can be optimized. The number is stored in two longs and an int, so that comparing, xoring, and hashing
+ * does not need to loop over an array and the distance between two numbers can be compared without creating new
+ * objects.
  * 
  * @author Thomas Bocek
  */
 public final class Number160 extends Number implements Comparable<Number160> {
     private static final long serialVersionUID = -6386562272459272306L;
 
+    // the serialized form is still the backing integer array of earlier versions, e.g., for stored keys
+    private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField("val", int[].class) };
+
     // This key has *always* 160 bit. Do not change.
     public static final int BITS = 160;
 
@@ -37,13 +49,15 @@ public final class Number160 extends Number implements Comparable<Number160> {
 
     private static final int CHAR_MASK = 0xf;
 
+    private static final int LONG_BYTES = Long.SIZE / Byte.SIZE;
+
     private static final int STRING_LENGTH = 42;
 
     // a map used for String <-> Key conversion
     private static final char[] DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c',
             'd', 'e', 'f' };
 
-    // size of the backing integer array
+    // size of the integer array
     public static final int INT_ARRAY_SIZE = BITS / Integer.SIZE;
 
     // size of a byte array
@@ -51,8 +65,13 @@ public final class Number160 extends Number implements Comparable<Number160> {
 
     public static final int CHARS_PER_INT = 8;
 
-    // backing integer array
-    private final int[] val;
+    // the bits 159-96, 95-32, and 31-0
+    private final long high;
+    private final long middle;
+    private final int low;
+
+    // only used while deserializing
+    private transient int[] serialized;
 
     // constants
     public static final Number160 ZERO = new Number160(0);
@@ -65,29 +84,35 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * Create a Key with value 0.
      */
     public Number160() {
-        this.val = new int[INT_ARRAY_SIZE];
+        this(0L, 0L, 0);
     }
 
     /**
-     * Create an instance with an integer array. This integer array will be copied into the backing array.
+     * Create an instance with an integer array. This integer array will be copied into the backing fields.
      * 
      * @param val
-     *            The value to copy to the backing array. Since this class stores 160bit numbers, the array needs to be
+     *            The value to copy to the backing fields. Since this class stores 160bit numbers, the array needs to be
      *            of size 5 or smaller.
      */
     public Number160(final int... val) {
         if (val.length > INT_ARRAY_SIZE) {
             throw new IllegalArgumentException(String.format("Can only deal with arrays of size smaller or equal to %s. Provided array has %s length.", INT_ARRAY_SIZE, val.length));
         }
-        this.val = new int[INT_ARRAY_SIZE];
-        final int len = val.length;
-        for (int i = len - 1, j = INT_ARRAY_SIZE - 1; i >= 0; i--, j--) {
-            this.val[j] = val[i];
+        long high = 0;
+        long middle = 0;
+        int low = 0;
+        for (int i = 0; i < val.length; i++) {
+            high = (high << Integer.SIZE) | (middle >>> Integer.SIZE);
+            middle = (middle << Integer.SIZE) | (low & LONG_MASK);
+            low = val[i];
         }
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
     }
 
     /**
-     * Create a Key from a string. The string has to be of length 42 to fit into the backing array. Note that this
+     * Create a Key from a string. The string has to be of length 42 to fit into the backing fields. Note that this
      * string is *always* in hexadecimal, there is no 0x... required before the number.
      * 
      * @param val
@@ -101,20 +126,24 @@ public final class Number160 extends Number implements Comparable<Number160> {
             throw new IllegalArgumentException(val
                     + " is not in hexadecimal form. Decimal form is not supported yet");
         }
-        this.val = new int[INT_ARRAY_SIZE];
-        final char[] tmp = val.toCharArray();
-        final int len = tmp.length;
-        for (int i = STRING_LENGTH - len, j = 2; i < (STRING_LENGTH - 2); i++, j++) {
-            this.val[i >> 3] <<= 4;
-
-            int digit = Character.digit(tmp[j], 16);
+        long high = 0;
+        long middle = 0;
+        int low = 0;
+        final int len = val.length();
+        for (int j = 2; j < len; j++) {
+            final int digit = Character.digit(val.charAt(j), 16);
             if (digit < 0) {
-                throw new RuntimeException("Not a hexadecimal number \"" + tmp[j]
+                throw new RuntimeException("Not a hexadecimal number \"" + val.charAt(j)
                         + "\". The range is [0-9a-f]");
             }
-            // += or |= does not matter here
-            this.val[i >> 3] += digit & CHAR_MASK;
+            // for hexadecimal, we have 4 bits per char
+            high = (high << 4) | (middle >>> (Long.SIZE - 4));
+            middle = (middle << 4) | (low >>> (Integer.SIZE - 4));
+            low = (low << 4) | digit;
         }
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
     }
 
     /**
@@ -124,8 +153,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            integer value
      */
     public Number160(final int val) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[INT_ARRAY_SIZE - 1] = val;
+        this(0L, 0L, val);
     }
 
     /**
@@ -135,13 +163,11 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            long value
      */
     public Number160(final long val) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[INT_ARRAY_SIZE - 1] = (int) val;
-        this.val[INT_ARRAY_SIZE - 2] = (int) (val >> Integer.SIZE);
+        this(0L, val >>> Integer.SIZE, (int) val);
     }
 
     /**
-     * Creates a new Key using the byte array. The array is copied to the backing int[]
+     * Creates a new Key using the byte array. The array is copied to the backing fields.
      * 
      * @param val
      *            byte array
@@ -151,7 +177,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
     }
 
     /**
-     * Creates a new Key using the byte array. The array is copied to the backing int[] starting at the given offest.
+     * Creates a new Key using the byte array. The array is copied to the backing fields starting at the given offest.
      * 
      * @param val
      *            byte array
@@ -164,11 +190,17 @@ public final class Number160 extends Number implements Comparable<Number160> {
         if (length > BYTE_ARRAY_SIZE) {
             throw new IllegalArgumentException(String.format("Can only deal with byte arrays of size smaller or equal to %s. Provided array has %s length.", BYTE_ARRAY_SIZE, length));
         }
-        this.val = new int[INT_ARRAY_SIZE];
-        for (int i = length + offset - 1, j = BYTE_ARRAY_SIZE - 1, k = 0; i >= offset; i--, j--, k++) {
-            // += or |= does not matter here
-            this.val[j >> 2] |= (val[i] & BYTE_MASK) << ((k % 4) << 3);
+        long high = 0;
+        long middle = 0;
+        int low = 0;
+        for (int i = offset; i < offset + length; i++) {
+            high = (high << Byte.SIZE) | (middle >>> (Long.SIZE - Byte.SIZE));
+            middle = (middle << Byte.SIZE) | (low >>> (Integer.SIZE - Byte.SIZE));
+            low = (low << Byte.SIZE) | (val[i] & BYTE_MASK);
         }
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
     }
 
     /**
@@ -179,10 +211,12 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            can be set to make the random values repeatable.
      */
     public Number160(final Random random) {
-        this.val = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            this.val[i] = random.nextInt();
-        }
+        // keep the order of the random ints of the integer array, so that seeded ids do not change
+        final long high = random.nextInt() & LONG_MASK;
+        this.high = (high << Integer.SIZE) | (random.nextInt() & LONG_MASK);
+        final long middle = random.nextInt() & LONG_MASK;
+        this.middle = (middle << Integer.SIZE) | (random.nextInt() & LONG_MASK);
+        this.low = random.nextInt();
     }
 
     /**
@@ -194,26 +228,68 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            The rest will be filled with this number
      */
     public Number160(final long timestamp, Number160 number96) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[0] = (int) (timestamp >> Integer.SIZE);
-        this.val[1] = (int) timestamp;
-        this.val[2] = number96.val[2];
-        this.val[3] = number96.val[3];
-        this.val[4] = number96.val[4];
+        this(timestamp, number96.middle, number96.low);
+    }
+
+    private Number160(final long high, final long middle, final int low) {
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
+    }
+
+    /**
+     * Reads a number from a Netty buffer without an intermediate byte array. The reader index is advanced by 20 bytes.
+     * 
+     * @param buf
+     *            The Netty buffer
+     * @return The number read from the buffer
+     */
+    public static Number160 create(final ByteBuf buf) {
+        final long high = buf.readLong();
+        final long middle = buf.readLong();
+        return new Number160(high, middle, buf.readInt());
+    }
+
+    /**
+     * Reads a number from a Netty buffer at an absolute index. The reader index is not modified.
+     * 
+     * @param buf
+     *            The Netty buffer
+     * @param index
+     *            The index where the number starts
+     * @return The number read from the buffer
+     */
+    public static Number160 create(final ByteBuf buf, final int index) {
+        return new Number160(buf.getLong(index), buf.getLong(index + LONG_BYTES), buf.getInt(index + 2 * LONG_BYTES));
+    }
+
+    /**
+     * Writes this number to a Netty buffer without an intermediate byte array. The writer index is advanced by 20
+     * bytes.
+     * 
+     * @param buf
+     *            The Netty buffer
+     * @return This class
+     */
+    public Number160 write(final ByteBuf buf) {
+        buf.writeLong(high);
+        buf.writeLong(middle);
+        buf.writeInt(low);
+        return this;
     }
 
     /**
      * @return The first (most significant) 64bits
      */
     public long timestamp() {
-        return ((this.val[0] & LONG_MASK) << Integer.SIZE) + (this.val[1] & LONG_MASK);
+        return high;
     }
     
     /**
      * @return The lower (least significant) 96 bits
      */
     public Number160 number96() {
-        return new Number160(0, 0, this.val[2], this.val[3], this.val[4]);
+        return new Number160(0L, middle, low);
     }
 
     /**
@@ -224,24 +300,17 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return A new key with the result of the xor operation
      */
     public Number160 xor(final Number160 key) {
-        final int[] result = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            result[i] = this.val[i] ^ key.val[i];
-        }
-        return new Number160(result);
+        return new Number160(high ^ key.high, middle ^ key.middle, low ^ key.low);
     }
 
     /**
-     * Returns a copy of the backing array, which is always of size 5.
+     * Returns the number as an integer array, which is always of size 5.
      * 
-     * @return a copy of the backing array
+     * @return a new integer array, the most significant integer first
      */
     public int[] toIntArray() {
-        final int[] retVal = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            retVal[i] = this.val[i];
-        }
-        return retVal;
+        return new int[] { (int) (high >>> Integer.SIZE), (int) high, (int) (middle >>> Integer.SIZE), (int) middle,
+                low };
     }
 
     /**
@@ -257,14 +326,15 @@ public final class Number160 extends Number implements Comparable<Number160> {
         if (offset + BYTE_ARRAY_SIZE > me.length) {
             throw new RuntimeException("array too small");
         }
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            // multiply by four
-            final int idx = offset + (i << 2);
-            me[idx + 0] = (byte) (val[i] >> 24);
-            me[idx + 1] = (byte) (val[i] >> 16);
-            me[idx + 2] = (byte) (val[i] >> 8);
-            me[idx + 3] = (byte) (val[i]);
+        for (int i = 0; i < LONG_BYTES; i++) {
+            final int shift = Long.SIZE - Byte.SIZE - (i << 3);
+            me[offset + i] = (byte) (high >>> shift);
+            me[offset + LONG_BYTES + i] = (byte) (middle >>> shift);
         }
+        me[offset + 16] = (byte) (low >>> 24);
+        me[offset + 17] = (byte) (low >>> 16);
+        me[offset + 18] = (byte) (low >>> 8);
+        me[offset + 19] = (byte) low;
         return offset + BYTE_ARRAY_SIZE;
     }
 
@@ -287,15 +357,29 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return A human readable representation of this key
      */
     public String toString(final boolean removeLeadingZero) {
-        boolean removeZero = removeLeadingZero;
-        final StringBuilder sb = new StringBuilder("0x");
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            toHex(val[i], removeZero, sb);
-            if (removeZero && val[i] != 0) {
-                removeZero = false;
-            }
+        // 4 bits form a char, thus we have 160/4=40 chars in a key
+        final int start = removeLeadingZero ? numberOfLeadingZeros() >>> 2 : 0;
+        final char[] buf = new char[STRING_LENGTH - start];
+        buf[0] = '0';
+        buf[1] = 'x';
+        for (int i = start, j = 2; i < STRING_LENGTH - 2; i++, j++) {
+            buf[j] = DIGITS[digit(i)];
+        }
+        return new String(buf);
+    }
+
+    /**
+     * @param pos
+     *            The position of the hexadecimal digit, 0 is the most significant
+     * @return The value of the digit
+     */
+    private int digit(final int pos) {
+        if (pos < 16) {
+            return (int) (high >>> (60 - (pos << 2))) & CHAR_MASK;
+        } else if (pos < 32) {
+            return (int) (middle >>> (60 - ((pos - 16) << 2))) & CHAR_MASK;
         }
-        return sb.toString();
+        return (low >>> (28 - ((pos - 32) << 2))) & CHAR_MASK;
     }
 
     /**
@@ -304,12 +388,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return True if this number is zero, false otherwise
      */
     public boolean isZero() {
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (this.val[i] != 0) {
-                return false;
-            }
-        }
-        return true;
+        return (high | middle | low) == 0;
     }
 
     /**
@@ -318,15 +397,50 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return The bits used
      */
     public int bitLength() {
-        int bits = 0;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (this.val[i] != 0) {
-                bits += Integer.SIZE - Integer.numberOfLeadingZeros(this.val[i]);
-                bits += Integer.SIZE * (INT_ARRAY_SIZE - ++i);
-                break;
-            }
+        return BITS - numberOfLeadingZeros();
+    }
+
+    /**
+     * @return The number of leading (leftmost) zero bits, 160 if this number is zero
+     */
+    public int numberOfLeadingZeros() {
+        return numberOfLeadingZeros(high, middle, low);
+    }
+
+    /**
+     * Calculates the number of bits used to represent the XOR distance to the other number, without creating the
+     * distance. This is the bit length of {@code xor(key)}.
+     * 
+     * @param key
+     *            The other number
+     * @return The bits used by the distance, 0 if both numbers are equal
+     */
+    public int xorBitLength(final Number160 key) {
+        return BITS - numberOfLeadingZeros(high ^ key.high, middle ^ key.middle, low ^ key.low);
+    }
+
+    /**
+     * Compares the XOR distances of two numbers to a key, without creating the distances. The result is the same as
+     * {@code key.xor(n1).compareTo(key.xor(n2))}.
+     * 
+     * @param key
+     *            The key the distances are measured from
+     * @param n1
+     *            The first number
+     * @param n2
+     *            The second number
+     * @return -1 if the first number is closer to the key, 1 if the second number is closer, and 0 if both are equal
+     */
+    public static int compareDistance(final Number160 key, final Number160 n1, final Number160 n2) {
+        final int result = compareUnsigned(key.high ^ n1.high, key.high ^ n2.high);
+        if (result != 0) {
+            return result;
+        }
+        final int result2 = compareUnsigned(key.middle ^ n1.middle, key.middle ^ n2.middle);
+        if (result2 != 0) {
+            return result2;
         }
-        return bits;
+        return compareUnsigned(key.low ^ n1.low, key.low ^ n2.low);
     }
 
     @Override
@@ -339,7 +453,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
         double d = 0;
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
             d *= LONG_MASK + 1;
-            d += this.val[i] & LONG_MASK;
+            d += unsignedInt(i);
         }
         return d;
     }
@@ -351,38 +465,49 @@ public final class Number160 extends Number implements Comparable<Number160> {
 
     @Override
     public int intValue() {
-        return this.val[INT_ARRAY_SIZE - 1];
+        return low;
     }
 
     /**
      * For debugging...
      * 
      * @param pos
-     *            the position in the internal array
+     *            the position in the integer array
      * @return the long of the unsigned int
      */
     long unsignedInt(final int pos) {
-        return this.val[pos] & LONG_MASK;
+        switch (pos) {
+        case 0:
+            return high >>> Integer.SIZE;
+        case 1:
+            return high & LONG_MASK;
+        case 2:
+            return middle >>> Integer.SIZE;
+        case 3:
+            return middle & LONG_MASK;
+        case 4:
+            return low & LONG_MASK;
+        default:
+            throw new ArrayIndexOutOfBoundsException(pos);
+        }
     }
 
     @Override
     public long longValue() {
-        return ((this.val[INT_ARRAY_SIZE - 1] & LONG_MASK) << Integer.SIZE)
-                + (this.val[INT_ARRAY_SIZE - 2] & LONG_MASK);
+        return ((low & LONG_MASK) << Integer.SIZE) + (middle & LONG_MASK);
     }
 
     @Override
     public int compareTo(final Number160 o) {
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            long b1 = val[i] & LONG_MASK;
-            long b2 = o.val[i] & LONG_MASK;
-            if (b1 < b2) {
-                return -1;
-            } else if (b1 > b2) {
-                return 1;
-            }
+        final int result = compareUnsigned(high, o.high);
+        if (result != 0) {
+            return result;
+        }
+        final int result2 = compareUnsigned(middle, o.middle);
+        if (result2 != 0) {
+            return result2;
         }
-        return 0;
+        return compareUnsigned(low, o.low);
     }
 
     @Override
@@ -394,47 +519,57 @@ public final class Number160 extends Number implements Comparable<Number160> {
             return true;
         }
         final Number160 key = (Number160) obj;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (key.val[i] != val[i]) {
-                return false;
-            }
-        }
-        return true;
+        return high == key.high && middle == key.middle && low == key.low;
     }
 
     @Override
     public int hashCode() {
-        int hashCode = 0;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            hashCode = (int) (31 * hashCode + (val[i] & LONG_MASK));
+        // same value as the hash over the integer array
+        int hashCode = (int) (high >>> Integer.SIZE);
+        hashCode = 31 * hashCode + (int) high;
+        hashCode = 31 * hashCode + (int) (middle >>> Integer.SIZE);
+        hashCode = 31 * hashCode + (int) middle;
+        return 31 * hashCode + low;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("val", toIntArray());
+        out.writeFields();
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final int[] val = (int[]) in.readFields().get("val", null);
+        if (val == null || val.length != INT_ARRAY_SIZE) {
+            throw new InvalidObjectException("A 160bit number needs an integer array of size " + INT_ARRAY_SIZE);
         }
-        return hashCode;
+        this.serialized = val;
     }
 
-    /**
-     * Convert an integer to hex value.
-     * 
-     * @param integer2
-     *            The integer to convert
-     * @param removeLeadingZero
-     *            indicate if leading zeros should be ignored
-     * @param sb
-     *            The string builder where to store the result
-     */
-    private static void toHex(final int integer2, final boolean removeLeadingZero, final StringBuilder sb) {
-        // 4 bits form a char, thus we have 160/4=40 chars in a key, with an
-        // integer array size of 5, this gives 8 chars per integer
-
-        final char[] buf = new char[CHARS_PER_INT];
-        int charPos = CHARS_PER_INT;
-        int integer = integer2;
-        for (int i = 0; i < CHARS_PER_INT && !(removeLeadingZero && integer == 0); i++) {
-            buf[--charPos] = DIGITS[integer & CHAR_MASK];
-            // for hexadecimal, we have 4 bits per char, which ranges from
-            // [0-9a-f]
-            integer >>>= 4;
+    private Object readResolve() {
+        return new Number160(serialized);
+    }
+
+    private static int numberOfLeadingZeros(final long high, final long middle, final int low) {
+        if (high != 0) {
+            return Long.numberOfLeadingZeros(high);
+        } else if (middle != 0) {
+            return Long.SIZE + Long.numberOfLeadingZeros(middle);
         }
-        sb.append(buf, charPos, (CHARS_PER_INT - charPos));
+        return 2 * Long.SIZE + Integer.numberOfLeadingZeros(low);
+    }
+
+    private static int compareUnsigned(final long x, final long y) {
+        // flipping the sign bit maps the unsigned order to the signed order
+        final long x2 = x + Long.MIN_VALUE;
+        final long y2 = y + Long.MIN_VALUE;
+        return (x2 < y2) ? -1 : ((x2 == y2) ? 0 : 1);
+    }
+
+    private static int compareUnsigned(final int x, final int y) {
+        final int x2 = x + Integer.MIN_VALUE;
+        final int y2 = y + Integer.MIN_VALUE;
+        return (x2 < y2) ? -1 : ((x2 == y2) ? 0 : 1);
     }
 
     /**
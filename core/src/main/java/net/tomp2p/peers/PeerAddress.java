@@ -203,9 +203,7 @@ public final class PeerAddress implements Comparable<PeerAddress>, Serializable
         final byte b = (byte) (relays & MASK_1F);
         this.relayType = Utils.createBitSet(b);
         // now comes the ID
-        byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-        channelBuffer.readBytes(me);
-        this.peerId = new Number160(me);
+        this.peerId = Number160.create(channelBuffer);
 
         this.peerSocketAddress = PeerSocketAddress.create(channelBuffer, isIPv4());
 
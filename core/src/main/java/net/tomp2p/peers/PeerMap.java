@@ -23,8 +23,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.PeerException;
@@ -70,9 +72,15 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     private final int offlineCount;
 
     private final Maintenance maintenance;
+
+    // the time when a bag has been looked up the last time, used to refresh bags that have not been used
+    private final AtomicLongArray bagTouched = new AtomicLongArray(Number160.BITS);
     
     private final boolean peerVerification;
 
+    // the state shared with other virtual peers, or null
+    private final SharedPeerState sharedPeerState;
+
     /**
      * Creates the bag for the peers. This peer knows a lot about close peers and the further away the peers are, the
      * less known they are. Distance is measured with XOR of the peer ID. The distance of peer with ID 0x12 and peer
@@ -93,16 +101,52 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         this.peerFilters = peerMapConfiguration.peerFilters();
         this.peerMapVerified = initFixedMap(bagSizeVerified, false);
         this.peerMapOverflow = initFixedMap(bagSizeOverflow, true);
-        // bagSizeVerified * Number160.BITS should be enough
-        this.offlineMap = new ConcurrentCacheMap<Number160, PeerAddress>(
-                peerMapConfiguration.offlineTimeout(), bagSizeVerified * Number160.BITS);
-        this.shutdownMap = new ConcurrentCacheMap<Number160, PeerAddress>(
-                peerMapConfiguration.shutdownTimeout(), bagSizeVerified * Number160.BITS);
-        this.exceptionMap = new ConcurrentCacheMap<Number160, PeerAddress>(
-                peerMapConfiguration.exceptionTimeout(), bagSizeVerified * Number160.BITS);
-        this.maintenance = peerMapConfiguration.maintenance().init(peerMapVerified, peerMapOverflow,
-                offlineMap, shutdownMap, exceptionMap);
+        this.sharedPeerState = peerMapConfiguration.sharedPeerState();
+        if (sharedPeerState != null) {
+            this.offlineMap = sharedPeerState.offlineMap();
+            this.shutdownMap = sharedPeerState.shutdownMap();
+            this.exceptionMap = sharedPeerState.exceptionMap();
+        } else {
+            // bagSizeVerified * Number160.BITS should be enough
+            this.offlineMap = new ConcurrentCacheMap<Number160, PeerAddress>(
+                    peerMapConfiguration.offlineTimeout(), bagSizeVerified * Number160.BITS);
+            this.shutdownMap = new ConcurrentCacheMap<Number160, PeerAddress>(
+                    peerMapConfiguration.shutdownTimeout(), bagSizeVerified * Number160.BITS);
+            this.exceptionMap = new ConcurrentCacheMap<Number160, PeerAddress>(
+                    peerMapConfiguration.exceptionTimeout(), bagSizeVerified * Number160.BITS);
+        }
+        final Maintenance configured = peerMapConfiguration.maintenance();
+        if (configured instanceof PeerMapMaintenance) {
+            final PeerMapMaintenance peerMapMaintenance = ((PeerMapMaintenance) configured).init(self,
+                    peerMapVerified, peerMapOverflow, offlineMap, shutdownMap, exceptionMap);
+            addPeerMapChangeListener(peerMapMaintenance);
+            this.maintenance = peerMapMaintenance;
+        } else {
+            this.maintenance = configured.init(peerMapVerified, peerMapOverflow, offlineMap, shutdownMap,
+                    exceptionMap);
+        }
         this.peerVerification = peerMapConfiguration.isPeerVerification();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < Number160.BITS; i++) {
+            bagTouched.set(i, now);
+        }
+        if (sharedPeerState != null) {
+            sharedPeerState.add(this);
+        }
+    }
+
+    /**
+     * @return The state that is shared with other virtual peers, or null if this peer map has its own state
+     */
+    public SharedPeerState sharedPeerState() {
+        return sharedPeerState;
+    }
+
+    /**
+     * @return The statistics for a newly found peer, which are shared if this is the view of a virtual peer
+     */
+    private PeerStatistic createPeerStatistic(final PeerAddress remotePeer) {
+        return sharedPeerState == null ? new PeerStatistic(remotePeer) : sharedPeerState.peerStatistic(remotePeer);
     }
 
     /**
@@ -223,6 +267,33 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         return size;
     }
 
+    /**
+     * @param classMember
+     *            The index of the bag
+     * @return The number of peers in the verified bag
+     */
+    public int bagSize(final int classMember) {
+        final Map<Number160, PeerStatistic> map = peerMapVerified.get(classMember);
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /**
+     * @return The number of verified bags that contain at least one peer
+     */
+    public int populatedBags() {
+        int populated = 0;
+        for (Map<Number160, PeerStatistic> map : peerMapVerified) {
+            synchronized (map) {
+                if (!map.isEmpty()) {
+                    populated++;
+                }
+            }
+        }
+        return populated;
+    }
+
     /**
      * Each node that has a bag has an ID itself to define what is close. This method returns this ID.
      * 
@@ -320,7 +391,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
                         return peerFound(remotePeer, referrer, peerConnection);
                     }
                     if (map.size() < bagSizeVerified) {
-                        final PeerStatistic peerStatistic = new PeerStatistic(remotePeer);
+                        final PeerStatistic peerStatistic = createPeerStatistic(remotePeer);
                         peerStatistic.successfullyChecked();
                         map.put(remotePeer.peerId(), peerStatistic);
                         insterted = true;
@@ -344,7 +415,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         synchronized (mapOverflow) {
             PeerStatistic peerStatistic = mapOverflow.get(remotePeer.peerId());
             if (peerStatistic == null) {
-            	peerStatistic = new PeerStatistic(remotePeer);
+            	peerStatistic = createPeerStatistic(remotePeer);
             }
             if (firstHand) {
             	peerStatistic.successfullyChecked();
@@ -401,6 +472,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
                 }
                 if (removed) {
                     notifyRemove(remotePeer, peerStatistic);
+                    promote(classMember);
                     return true;
                 }
             }
@@ -416,6 +488,160 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         return false;
     }
 
+    /**
+     * Moves the peer from the overflow bag that has been seen online most recently into the verified bag, so that a
+     * failed peer is replaced without waiting for the maintenance. Only peers that have been checked by ourself since
+     * they have been added are moved, so restored peers are verified first. If there is no such peer, the maintenance
+     * will check the peers in the overflow bag, as the verified bag is now below its threshold.
+     * 
+     * @param classMember
+     *            The bag where a verified peer has been removed
+     */
+    private void promote(final int classMember) {
+        final Map<Number160, PeerStatistic> mapOverflow = peerMapOverflow.get(classMember);
+        PeerStatistic best = null;
+        synchronized (mapOverflow) {
+            for (PeerStatistic peerStatistic : mapOverflow.values()) {
+                if (peerStatistic.lastSeenOnline() >= peerStatistic.created()
+                        && (best == null || peerStatistic.lastSeenOnline() > best.lastSeenOnline())
+                        && !isPeerRemovedTemporarly(peerStatistic.peerAddress())) {
+                    best = peerStatistic;
+                }
+            }
+            if (best == null) {
+                return;
+            }
+            mapOverflow.remove(best.peerAddress().peerId());
+        }
+        final Map<Number160, PeerStatistic> map = peerMapVerified.get(classMember);
+        boolean inserted = false;
+        synchronized (map) {
+            if (map.size() < bagSizeVerified && !map.containsKey(best.peerAddress().peerId())) {
+                map.put(best.peerAddress().peerId(), best);
+                inserted = true;
+            }
+        }
+        // the peer may have failed while it was in neither bag, peerFailed marks it before removing it
+        if (inserted && isPeerRemovedTemporarly(best.peerAddress())) {
+            synchronized (map) {
+                map.remove(best.peerAddress().peerId());
+            }
+            inserted = false;
+        }
+        if (inserted) {
+            LOG.debug("Promoted {} from the overflow map.", best.peerAddress());
+            notifyInsert(best.peerAddress(), true);
+        }
+    }
+
+    /**
+     * Adds a peer from a snapshot of a previous run to the overflow bag. The peer is not used for routing until the
+     * maintenance has verified it with a ping. Peers that we already know, that are marked as offline, or that do not
+     * fit into the overflow bag are not added.
+     * 
+     * @param remotePeer
+     *            The peer from the snapshot
+     * @param lastSeenOnline
+     *            The time the peer has last been seen online in the previous run
+     * @param successfullyChecked
+     *            The number of successful checks in the previous run
+     * @return True if the peer has been added to the overflow bag
+     */
+    boolean restoreOverflow(final PeerAddress remotePeer, final long lastSeenOnline, final int successfullyChecked) {
+        final int classMember = classMember(remotePeer.peerId());
+        if (classMember < 0 || remotePeer.peerId().isZero() || isPeerRemovedTemporarly(remotePeer)
+                || remotePeer.isFirewalledTCP() || remotePeer.isFirewalledUDP() || contains(remotePeer)
+                || reject(remotePeer)) {
+            return false;
+        }
+        final Map<Number160, PeerStatistic> mapOverflow = peerMapOverflow.get(classMember);
+        synchronized (mapOverflow) {
+            if (mapOverflow.containsKey(remotePeer.peerId()) || mapOverflow.size() >= bagSizeOverflow) {
+                return false;
+            }
+            final PeerStatistic peerStatistic = createPeerStatistic(remotePeer);
+            peerStatistic.restore(lastSeenOnline, successfullyChecked);
+            mapOverflow.put(remotePeer.peerId(), peerStatistic);
+        }
+        notifyInsert(remotePeer, false);
+        return true;
+    }
+
+    /**
+     * Marks the bag of the given key as recently looked up. This is called for each routing request.
+     * 
+     * @param key
+     *            The key that has been looked up
+     */
+    public void touch(final Number160 key) {
+        final int classMember = classMember(key);
+        if (classMember >= 0) {
+            bagTouched.set(classMember, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Returns the bags that have not been looked up within the given interval, starting with the one that has not
+     * been looked up the longest. Bags closer than the closest verified peer are not returned, as looking up ourself
+     * during bootstrap already covers them.
+     * 
+     * @param intervalMillis
+     *            The time after which a bag needs a refresh
+     * @return The indexes of the bags that need a refresh
+     */
+    public List<Integer> bagsToRefresh(final long intervalMillis) {
+        final long limit = System.currentTimeMillis() - intervalMillis;
+        int closest = -1;
+        for (int i = 0; i < Number160.BITS && closest < 0; i++) {
+            final Map<Number160, PeerStatistic> map = peerMapVerified.get(i);
+            synchronized (map) {
+                if (!map.isEmpty()) {
+                    closest = i;
+                }
+            }
+        }
+        final List<Integer> result = new ArrayList<Integer>();
+        if (closest < 0) {
+            return result;
+        }
+        for (int i = closest; i < Number160.BITS; i++) {
+            if (bagTouched.get(i) < limit) {
+                result.add(i);
+            }
+        }
+        Collections.sort(result, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer o1, final Integer o2) {
+                final long t1 = bagTouched.get(o1);
+                final long t2 = bagTouched.get(o2);
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Creates a random key that falls into the given bag, which can be used to refresh the bag.
+     * 
+     * @param classMember
+     *            The index of the bag
+     * @param random
+     *            The random number generator
+     * @return A random key in the bag
+     */
+    public Number160 randomKey(final int classMember, final Random random) {
+        final int[] distance = new Number160(random).toIntArray();
+        // the most significant integer is at index 0
+        final int index = distance.length - 1 - (classMember / Integer.SIZE);
+        final int bit = classMember % Integer.SIZE;
+        for (int i = 0; i < index; i++) {
+            distance[i] = 0;
+        }
+        final int mask = bit == Integer.SIZE - 1 ? -1 : (1 << (bit + 1)) - 1;
+        distance[index] = (distance[index] & mask) | (1 << bit);
+        return self.xor(new Number160(distance));
+    }
+
     /**
      * Checks if a peer address is in the verified map.
      * 
@@ -648,7 +874,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return -1 if key1 is closer to key, otherwise 1. 0 is returned if both are equal.
      */
     public static int isCloser(final Number160 id, final Number160 rn, final Number160 rn2) {
-        return distance(id, rn).compareTo(distance(id, rn2));
+        return Number160.compareDistance(id, rn, rn2);
     }
 
     /**
@@ -665,7 +891,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return -1 if first peer is closer, 1 otherwise, 0 if both are equal
      */
     public static int isKadCloser(final Number160 id, final PeerAddress rn, final PeerAddress rn2) {
-        return distance(id, rn.peerId()).compareTo(distance(id, rn2.peerId()));
+        return Number160.compareDistance(id, rn.peerId(), rn2.peerId());
     }
 
     /**
@@ -694,7 +920,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return The bit difference and -1 if they are equal
      */
     static int classMember(final Number160 id1, final Number160 id2) {
-        return distance(id1, id2).bitLength() - 1;
+        return id1.xorBitLength(id2) - 1;
     }
 
     /**
@@ -38,6 +38,7 @@ public class PeerMapConfiguration {
     private Collection<PeerFilter> peerFilters = new ArrayList<PeerFilter>(2);
     private Maintenance maintenance;
     private boolean peerVerification;
+    private SharedPeerState sharedPeerState;
 
     /**
      * Constructor with reasonable defaults.
@@ -235,4 +236,22 @@ public class PeerMapConfiguration {
     	this.peerVerification = peerVerification;
     	return this;
     }
+
+    /**
+     * @return The state that is shared with the other virtual peers in this JVM, or null if the peer map has its own
+     */
+    public SharedPeerState sharedPeerState() {
+        return sharedPeerState;
+    }
+
+    /**
+     * @param sharedPeerState
+     *            The state that is shared with the other virtual peers in this JVM. If set, the offline timeouts and
+     *            the offline count of the shared state are used.
+     * @return this class
+     */
+    public PeerMapConfiguration sharedPeerState(final SharedPeerState sharedPeerState) {
+        this.sharedPeerState = sharedPeerState;
+        return this;
+    }
 }
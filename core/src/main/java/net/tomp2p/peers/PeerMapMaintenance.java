@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.peers;
+
+import java.util.List;
+import java.util.Map;
+
+import net.tomp2p.utils.ConcurrentCacheMap;
+
+/**
+ * A maintenance that is notified about the changes in the peer map, so that it can schedule peers as they are
+ * inserted instead of scanning the bags. The {@link PeerMap} initializes it with its own peer ID and registers it as
+ * {@link PeerMapChangeListener}. Other {@link Maintenance} implementations are initialized as before.
+ * 
+ */
+public interface PeerMapMaintenance extends Maintenance, PeerMapChangeListener {
+
+    /**
+     * Initializes the maintenance class. This may result in a new class.
+     * 
+     * @param self
+     *            The peer ID of the owner of the peer map
+     * @param peerMapVerified
+     *            The map with the bags of verified peers
+     * @param peerMapNonVerified
+     *            The map with the bags of non verified peers
+     * @param offlineMap
+     *            The map with the offline peers
+     * @param shutdownMap The map with the peers that quit friendly
+     * @param exceptionMap The map with the peers that caused an exception
+     * @return The same or a new maintenance class
+     */
+    PeerMapMaintenance init(Number160 self, List<Map<Number160, PeerStatistic>> peerMapVerified,
+            List<Map<Number160, PeerStatistic>> peerMapNonVerified,
+            ConcurrentCacheMap<Number160, PeerAddress> offlineMap, 
+            ConcurrentCacheMap<Number160, PeerAddress> shutdownMap, ConcurrentCacheMap<Number160, PeerAddress> exceptionMap);
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.peers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the routing table that is stored on disk, so that a restarted peer can start with the peers it knew
+ * before. For each peer, the snapshot contains the address, whether the peer was verified, the time it has last been
+ * seen online, and the number of successful checks. The bag is not stored, as it is computed from the peer ID of the
+ * restarted peer. The file is replaced atomically, so a crash while writing leaves the previous snapshot.
+ * <p>
+ * The format is an int magic, a byte version and an int count, followed by the entries. An entry is the length of the
+ * peer address as a short, the peer address, a byte with the flags, the last seen time as a long, and the number of
+ * successful checks as an int.
+ */
+public final class PeerMapSnapshot {
+
+    private static final int MAGIC = 0x546f5032;
+    private static final int VERSION = 1;
+
+    private static final int FLAG_VERIFIED = 0x01;
+
+    private PeerMapSnapshot() {
+    }
+
+    /**
+     * Writes the verified and the overflow peers of the peer map to a file.
+     *
+     * @param peerMap
+     *            The peer map
+     * @param file
+     *            The file to write to
+     * @return The number of peers written
+     * @throws IOException
+     *             If the file cannot be written
+     */
+    public static int write(final PeerMap peerMap, final File file) throws IOException {
+        final List<Entry> entries = new ArrayList<Entry>();
+        collect(peerMap.peerMapVerified(), true, entries);
+        collect(peerMap.peerMapOverflow(), false, entries);
+        final File tmp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                final byte[] me = entry.peerAddress.toByteArray();
+                out.writeShort(me.length);
+                out.write(me);
+                out.writeByte(entry.verified ? FLAG_VERIFIED : 0);
+                out.writeLong(entry.lastSeenOnline);
+                out.writeInt(entry.successfullyChecked);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return entries.size();
+    }
+
+    /**
+     * Reads the peers of a snapshot.
+     *
+     * @param file
+     *            The file to read from
+     * @return The peers in the snapshot, the verified peers first and the closer bags first, or an empty list if the
+     *         file does not exist
+     * @throws IOException
+     *             If the file cannot be read or is not a snapshot
+     */
+    public static List<PeerAddress> read(final File file) throws IOException {
+        final List<Entry> entries = readEntries(file);
+        final List<PeerAddress> peerAddresses = new ArrayList<PeerAddress>(entries.size());
+        for (Entry entry : entries) {
+            peerAddresses.add(entry.peerAddress);
+        }
+        return peerAddresses;
+    }
+
+    /**
+     * Loads the peers of a snapshot into the overflow bags of the peer map together with their statistics. The peers
+     * are not used for routing until the maintenance has verified them with a ping. If a bag cannot hold all peers,
+     * the peers that were verified, checked more often and seen more recently are preferred.
+     *
+     * @param peerMap
+     *            The peer map to load the peers into
+     * @param file
+     *            The file to read from
+     * @return The number of peers added to the overflow bags
+     * @throws IOException
+     *             If the file cannot be read or is not a snapshot
+     */
+    public static int load(final PeerMap peerMap, final File file) throws IOException {
+        final List<Entry> entries = readEntries(file);
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(final Entry o1, final Entry o2) {
+                if (o1.verified != o2.verified) {
+                    return o1.verified ? -1 : 1;
+                }
+                if (o1.successfullyChecked != o2.successfullyChecked) {
+                    return o1.successfullyChecked > o2.successfullyChecked ? -1 : 1;
+                }
+                return o1.lastSeenOnline > o2.lastSeenOnline ? -1 : (o1.lastSeenOnline == o2.lastSeenOnline ? 0 : 1);
+            }
+        });
+        int restored = 0;
+        for (Entry entry : entries) {
+            if (peerMap.restoreOverflow(entry.peerAddress, entry.lastSeenOnline, entry.successfullyChecked)) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    private static List<Entry> readEntries(final File file) throws IOException {
+        final List<Entry> entries = new ArrayList<Entry>();
+        if (!file.exists()) {
+            return entries;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a peer map snapshot: " + file + ".");
+            }
+            final int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unknown peer map snapshot version " + version + ".");
+            }
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                final byte[] me = new byte[in.readUnsignedShort()];
+                in.readFully(me);
+                final PeerAddress peerAddress = new PeerAddress(me);
+                final boolean verified = (in.readUnsignedByte() & FLAG_VERIFIED) != 0;
+                entries.add(new Entry(peerAddress, verified, in.readLong(), in.readInt()));
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    private static void collect(final List<Map<Number160, PeerStatistic>> bags, final boolean verified,
+            final List<Entry> entries) {
+        for (final Map<Number160, PeerStatistic> bag : bags) {
+            synchronized (bag) {
+                for (PeerStatistic peerStatistic : bag.values()) {
+                    entries.add(new Entry(peerStatistic.peerAddress(), verified, peerStatistic.lastSeenOnline(),
+                            peerStatistic.successfullyCheckedCounter()));
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final PeerAddress peerAddress;
+        private final boolean verified;
+        private final long lastSeenOnline;
+        private final int successfullyChecked;
+
+        private Entry(final PeerAddress peerAddress, final boolean verified, final long lastSeenOnline,
+                final int successfullyChecked) {
+            this.peerAddress = peerAddress;
+            this.verified = verified;
+            this.lastSeenOnline = lastSeenOnline;
+            this.successfullyChecked = successfullyChecked;
+        }
+    }
+}
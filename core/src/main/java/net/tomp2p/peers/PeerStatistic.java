@@ -58,6 +58,26 @@ public class PeerStatistic implements Serializable {
 
     }
 
+    /**
+     * Restores the statistics from a snapshot of a previous run. Newer values that are already known are kept.
+     *
+     * @param lastSeenOnline
+     *            The time the peer has last been seen online
+     * @param successfullyChecked
+     *            The number of successful checks
+     */
+    void restore(final long lastSeenOnline, final int successfullyChecked) {
+        long current;
+        do {
+            current = this.lastSeenOnline.get();
+        } while (lastSeenOnline > current && !this.lastSeenOnline.compareAndSet(current, lastSeenOnline));
+        int currentChecked;
+        do {
+            currentChecked = this.successfullyChecked.get();
+        } while (successfullyChecked > currentChecked
+                && !this.successfullyChecked.compareAndSet(currentChecked, successfullyChecked));
+    }
+
     /**
      * Gets the time the peer has last been seen online.
      * 
@@ -99,6 +119,13 @@ public class PeerStatistic implements Serializable {
         return (int) (lastSeenOnline.get() - created);
     }
 
+    /**
+     * @return The peer ID of this peer.
+     */
+    public Number160 peerId() {
+        return peerId;
+    }
+
     /**
      * @return The PeerAddress associated with this peer.
      */
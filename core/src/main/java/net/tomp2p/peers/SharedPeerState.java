@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.peers;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.connection.PeerException;
+import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.utils.ConcurrentCacheMap;
+
+/**
+ * The peer state that is shared among virtual peers running in the same JVM. Each virtual peer has its own
+ * {@link PeerMap}, which is a view with its own bags, but the statistics of a remote peer and the maps of the peers that
+ * went offline exist only once. This class is registered as the {@link PeerStatusListener} of all virtual peers, so
+ * that what one virtual peer learns about a remote peer is applied to all views, and a peer that has been checked by
+ * one virtual peer is not checked again by the others. This class is thread-safe.
+ */
+public class SharedPeerState implements PeerStatusListener {
+
+    private final int offlineCount;
+
+    private final ConcurrentCacheMap<Number160, PeerAddress> offlineMap;
+    private final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap;
+    private final ConcurrentCacheMap<Number160, PeerAddress> exceptionMap;
+
+    // the statistics are kept as long as a view references them, guarded by itself
+    private final Map<Number160, WeakReference<PeerStatistic>> statistics = new WeakHashMap<Number160, WeakReference<PeerStatistic>>();
+
+    private final List<PeerMap> peerMaps = new CopyOnWriteArrayList<PeerMap>();
+
+    /**
+     * Creates the shared peer state with the same defaults as {@link PeerMapConfiguration}.
+     */
+    public SharedPeerState() {
+        this(60, 20, 120, 3, 10 * Number160.BITS);
+    }
+
+    /**
+     * Creates the shared peer state.
+     *
+     * @param offlineTimeout
+     *            The time in seconds a peer is considered offline
+     * @param shutdownTimeout
+     *            The time in seconds a peer is considered offline after it quit friendly
+     * @param exceptionTimeout
+     *            The time in seconds a peer is considered offline after it caused an exception
+     * @param offlineCount
+     *            The number of times that the peer is not reachable. After that the peer is considered offline
+     * @param cacheSize
+     *            The maximum number of peers in each of the offline maps
+     */
+    public SharedPeerState(final int offlineTimeout, final int shutdownTimeout, final int exceptionTimeout,
+            final int offlineCount, final int cacheSize) {
+        this.offlineCount = offlineCount;
+        this.offlineMap = new ConcurrentCacheMap<Number160, PeerAddress>(offlineTimeout, cacheSize);
+        this.shutdownMap = new ConcurrentCacheMap<Number160, PeerAddress>(shutdownTimeout, cacheSize);
+        this.exceptionMap = new ConcurrentCacheMap<Number160, PeerAddress>(exceptionTimeout, cacheSize);
+    }
+
+    /**
+     * Adds a view that will be notified about found and failed peers. This is called by the {@link PeerMap}.
+     *
+     * @param peerMap
+     *            The peer map of a virtual peer
+     */
+    void add(final PeerMap peerMap) {
+        peerMaps.add(peerMap);
+    }
+
+    /**
+     * Removes a view, e.g., if the virtual peer shuts down.
+     *
+     * @param peerMap
+     *            The peer map of a virtual peer
+     * @return True if the view has been removed
+     */
+    public boolean remove(final PeerMap peerMap) {
+        return peerMaps.remove(peerMap);
+    }
+
+    /**
+     * @return The peer maps of the virtual peers
+     */
+    public List<PeerMap> peerMaps() {
+        return peerMaps;
+    }
+
+    /**
+     * Returns the statistics of a remote peer. If no view references the statistics of this peer, new statistics are
+     * created.
+     *
+     * @param remotePeer
+     *            The remote peer
+     * @return The statistics that are shared by all views
+     */
+    public PeerStatistic peerStatistic(final PeerAddress remotePeer) {
+        synchronized (statistics) {
+            final WeakReference<PeerStatistic> reference = statistics.get(remotePeer.peerId());
+            PeerStatistic peerStatistic = reference == null ? null : reference.get();
+            if (peerStatistic == null) {
+                peerStatistic = new PeerStatistic(remotePeer);
+                statistics.put(peerStatistic.peerId(), new WeakReference<PeerStatistic>(peerStatistic));
+            }
+            return peerStatistic;
+        }
+    }
+
+    /**
+     * @return The number of remote peers with statistics
+     */
+    public int size() {
+        synchronized (statistics) {
+            return statistics.size();
+        }
+    }
+
+    @Override
+    public boolean peerFound(final PeerAddress remotePeer, final PeerAddress referrer,
+            final PeerConnection peerConnection) {
+        boolean result = false;
+        for (PeerMap peerMap : peerMaps) {
+            result |= peerMap.peerFound(remotePeer, referrer, peerConnection);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean peerFailed(final PeerAddress remotePeer, final PeerException exception) {
+        PeerException peerException = exception;
+        if (peerException.abortCause() == AbortCause.TIMEOUT) {
+            // count the failure once and not once per view
+            final PeerStatistic peerStatistic;
+            synchronized (statistics) {
+                final WeakReference<PeerStatistic> reference = statistics.get(remotePeer.peerId());
+                peerStatistic = reference == null ? null : reference.get();
+            }
+            if (peerStatistic == null || peerStatistic.failed() < offlineCount) {
+                return false;
+            }
+            peerException = new PeerException(AbortCause.PROBABLY_OFFLINE, "Peer failed in shared peer state.");
+        }
+        boolean result = false;
+        for (PeerMap peerMap : peerMaps) {
+            result |= peerMap.peerFailed(remotePeer, peerException);
+        }
+        return result;
+    }
+
+    ConcurrentCacheMap<Number160, PeerAddress> offlineMap() {
+        return offlineMap;
+    }
+
+    ConcurrentCacheMap<Number160, PeerAddress> shutdownMap() {
+        return shutdownMap;
+    }
+
+    ConcurrentCacheMap<Number160, PeerAddress> exceptionMap() {
+        return exceptionMap;
+    }
+}
@@ -25,8 +25,8 @@ import java.util.Set;
 
 /**
  * A counting Bloom Filter (see http://en.wikipedia.org/wiki/Bloom_filter) that uses java.util.Random as a primitive
- * hash function, and which implements Java's Set interface for convenience. Only the add(), addAll(), contains(), and
- * containsAll() methods are implemented. Calling any other method will yield an UnsupportedOperationException. This
+ * hash function, and which implements Java's Set interface for convenience. Only the add(), addAll(), remove(),
+ * contains(), and containsAll() methods are implemented. Calling any other method will yield an UnsupportedOperationException. This
  * code may be used, modified, and redistributed provided that the author tag below remains intact.
  * 
  * @author Ian Clarke <ian@uprizer.com>
@@ -166,11 +166,24 @@ public class CountingBloomFilter<E> implements Set<E>, Serializable {
     }
 
     /**
-     * Not implemented
+     * Decrements the counters of an object that has been added before. Removing an object that has never been added
+     * may result in false negatives. Counters that reached Integer.MAX_VALUE are never decremented.
+     * 
+     * @param o
+     *            The object to remove
+     * @return This method will always return false
      */
     @Override
     public boolean remove(Object o) {
-        throw new UnsupportedOperationException();
+        Random r = new Random(o.hashCode());
+        for (int x = 0; x < k; x++) {
+            int index = r.nextInt(intArraySize);
+            int old = intSet[index];
+            if (old != Integer.MAX_VALUE && old > 0) {
+                intSet[index] = old - 1;
+            }
+        }
+        return false;
     }
 
     /**
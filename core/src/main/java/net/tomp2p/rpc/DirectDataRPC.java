@@ -21,6 +21,7 @@ import java.io.IOException;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.Dispatcher;
 import net.tomp2p.connection.PeerBean;
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.RequestHandler;
@@ -45,6 +46,7 @@ public class DirectDataRPC extends DispatchHandler {
     public DirectDataRPC(PeerBean peerBean, ConnectionBean connectionBean) {
         super(peerBean, connectionBean);
         register(RPC.Commands.DIRECT_DATA.getNr());
+        bulkhead(Dispatcher.BULKHEAD_USER, RPC.Commands.DIRECT_DATA.getNr());
     }
 
     /**
@@ -86,6 +86,19 @@ public abstract class DispatchHandler {
         this.sign = sign;
     }
 
+    /**
+     * Runs the handler of the given commands in a bulkhead instead of the I/O thread. Use this for handlers that may
+     * block, e.g. on disk I/O or user code.
+     * 
+     * @param name
+     *            The name of the bulkhead, commands of the same bulkhead share its threads
+     * @param commands
+     *            The commands
+     */
+    public void bulkhead(final String name, final int... commands) {
+        connectionBean.dispatcher().bulkhead(name, commands);
+    }
+
     /**
      * @return The peer bean
      */
@@ -141,6 +154,8 @@ public abstract class DispatchHandler {
         replyMessage.version(requestMessage.version());
         replyMessage.messageId(requestMessage.messageId());
         replyMessage.udp(requestMessage.isUdp());
+        // the requester can decode the compact wire format, so we can reply with it
+        replyMessage.wireV2(requestMessage.isWireV2Capable());
         return replyMessage;
     }
 
@@ -17,9 +17,13 @@ package net.tomp2p.rpc;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
@@ -58,6 +62,11 @@ public class NeighborRPC extends DispatchHandler {
 	public static final int NEIGHBOR_SIZE = 30;
 	public static final int NEIGHBOR_LIMIT = 1000;
 
+	// requests that are sent but not answered yet, identical requests to the same peer are attached to those
+	private final ConcurrentMap<NeighborKey, FutureResponse> inFlightRequests = new ConcurrentHashMap<NeighborKey, FutureResponse>();
+
+	private volatile boolean coalesce = true;
+
 	public NeighborRPC(final PeerBean peerBean, final ConnectionBean connectionBean) {
 		this(peerBean, connectionBean, true);
 	}
@@ -79,6 +88,24 @@ public class NeighborRPC extends DispatchHandler {
 		}
 	}
 
+	public boolean isCoalesce() {
+		return coalesce;
+	}
+
+	/**
+	 * Set coalescing of identical neighbor requests. If set to true, a request that is issued while an identical
+	 * request to the same peer is still in flight is not sent, but receives the response of the running request. The
+	 * default is true, since a neighbor request only reads the routing table and the digest of the remote peer.
+	 * 
+	 * @param coalesce
+	 *            True if a request may be attached to an identical in-flight request
+	 * @return This class
+	 */
+	public NeighborRPC coalesce(final boolean coalesce) {
+		this.coalesce = coalesce;
+		return this;
+	}
+
 	/**
 	 * Requests close neighbors from the remote peer. The remote peer may indicate if the data is present on
 	 * that peer.
@@ -101,7 +128,9 @@ public class NeighborRPC extends DispatchHandler {
 	 *            The channel creator that creates connections
 	 * @param configuration
 	 *            The client-side connection configuration
-	 * @return The future response to keep track of future events
+	 * @return The future response to keep track of future events. If coalescing is enabled and an identical request
+	 *         to the same peer is still in flight, no new message is sent and the returned future completes with the
+	 *         response of the in-flight request.
 	 */
 	public FutureResponse closeNeighbors(final PeerAddress remotePeer, final SearchValues searchValues,
 			final Type type, final ChannelCreator channelCreator, final ConnectionConfiguration configuration) {
@@ -131,12 +160,38 @@ public class NeighborRPC extends DispatchHandler {
 				message.bloomFilter(searchValues.contentBloomFilter());
 			}
 		}
-		return send(message, configuration, channelCreator);
+
+		final FutureResponse futureResponse = new FutureResponse(message);
+		if (!coalesce) {
+			return send(futureResponse, configuration, channelCreator);
+		}
+		final NeighborKey neighborKey = new NeighborKey(remotePeer, searchValues, type, configuration.isForceTCP());
+		final FutureResponse inFlight = inFlightRequests.putIfAbsent(neighborKey, futureResponse);
+		if (inFlight != null) {
+			LOG.debug("Attach neighbor request for {} to in-flight request.", remotePeer);
+			inFlight.addListener(new BaseFutureAdapter<FutureResponse>() {
+				@Override
+				public void operationComplete(final FutureResponse future) throws Exception {
+					if (future.isSuccess()) {
+						futureResponse.response(future.responseMessage());
+					} else {
+						futureResponse.failed(future);
+					}
+				}
+			});
+			return futureResponse;
+		}
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				inFlightRequests.remove(neighborKey, futureResponse);
+			}
+		});
+		return send(futureResponse, configuration, channelCreator);
 	}
 
-	private FutureResponse send(final Message message, final ConnectionConfiguration configuration,
+	private FutureResponse send(final FutureResponse futureResponse, final ConnectionConfiguration configuration,
 			final ChannelCreator channelCreator) {
-		FutureResponse futureResponse = new FutureResponse(message);
 		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
 			@Override
 			public void operationComplete(FutureResponse future) throws Exception {
@@ -437,4 +492,37 @@ public class NeighborRPC extends DispatchHandler {
 			return to;
 		}
 	}
+
+	/**
+	 * The recipient and the search values of a neighbor request. Requests with equal keys get the same reply.
+	 */
+	private static final class NeighborKey {
+		private final List<Object> parameters;
+		private final int hashCode;
+
+		private NeighborKey(final PeerAddress remotePeer, final SearchValues searchValues, final Type type,
+				final boolean forceTCP) {
+			this.parameters = Arrays.<Object> asList(remotePeer, type, forceTCP, searchValues.locationKey(),
+					searchValues.domainKey(), searchValues.contentKey(), searchValues.from(), searchValues.to(),
+					searchValues.keyBloomFilter(), searchValues.contentBloomFilter());
+			this.hashCode = parameters.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof NeighborKey)) {
+				return false;
+			}
+			if (obj == this) {
+				return true;
+			}
+			final NeighborKey other = (NeighborKey) obj;
+			return hashCode == other.hashCode && parameters.equals(other.parameters);
+		}
+	}
 }
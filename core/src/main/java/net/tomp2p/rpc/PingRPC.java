@@ -18,6 +18,7 @@ package net.tomp2p.rpc;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
@@ -34,6 +35,7 @@ import net.tomp2p.message.Message.Type;
 import net.tomp2p.message.NeighborSet;
 import net.tomp2p.p2p.PeerReachable;
 import net.tomp2p.p2p.PeerReceivedBroadcastPing;
+import net.tomp2p.p2p.PingResponseListener;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.utils.Utils;
@@ -56,6 +58,7 @@ public class PingRPC extends DispatchHandler {
 	private final List<PeerReachable> reachableListeners = new ArrayList<PeerReachable>(1);
 	private final List<PeerReceivedBroadcastPing> receivedBroadcastPingListeners = new ArrayList<PeerReceivedBroadcastPing>(
 			1);
+	private final List<PingResponseListener> pingResponseListeners = new CopyOnWriteArrayList<PingResponseListener>();
 
 	// used for testing and debugging
 	private final boolean enable;
@@ -372,6 +375,9 @@ public class PingRPC extends DispatchHandler {
 			}
 			if (enable) {
 				responseMessage = createResponseMessage(message, Type.OK);
+				for (PingResponseListener listener : pingResponseListeners) {
+					listener.pingResponse(message, responseMessage);
+				}
 				if (wait) {
 					Thread.sleep(WAIT_TIME);
 				}
@@ -439,4 +445,12 @@ public class PingRPC extends DispatchHandler {
 	public void removePeerReceivedBroadcastPingListener(PeerReceivedBroadcastPing peerReceivedBroadcastPing) {
 		receivedBroadcastPingListeners.remove(peerReceivedBroadcastPing);
 	}
+
+	public void addPingResponseListener(PingResponseListener pingResponseListener) {
+		pingResponseListeners.add(pingResponseListener);
+	}
+
+	public void removePingResponseListener(PingResponseListener pingResponseListener) {
+		pingResponseListeners.remove(pingResponseListener);
+	}
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.Collection;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * A storage that can return the expired keys in bounded batches, so that the expiry of many entries does not have to
+ * copy all of them at once. For a storage that only implements {@link Storage}, the storage layer cuts the result of
+ * {@link Storage#subMapTimeout(long)}.
+ */
+public interface BoundedTimeoutStorage extends Storage {
+
+    /**
+     * @param to
+     *            The keys with an expiration time smaller than this value are returned
+     * @param limit
+     *            The maximum number of keys to return, or a negative number for no limit
+     * @return The expired keys, at most limit
+     */
+    public abstract Collection<Number640> subMapTimeout(long to, int limit);
+}
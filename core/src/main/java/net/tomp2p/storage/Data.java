@@ -253,11 +253,9 @@ public class Data {
 			}
 			// get basedon
 			int index = buf.readerIndex() + indexBasedOnNr + Utils.BYTE_BYTE_SIZE;
-			final byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
 			for (int i = 0; i < numBasedOn; i++) {
-				buf.getBytes(index, me);
+				basedOn.add(Number160.create(buf, index));
 				index += Number160.BYTE_ARRAY_SIZE;
-				basedOn.add(new Number160(me));
 			}
 		} else {
 			indexPublicKeySize = indexBasedOnNr;
@@ -405,7 +403,7 @@ public class Data {
 		if (basedOnFlag) {
 			buf.writeByte(basedOnSet.size() - 1);
 			for (Number160 basedOn : basedOnSet) {
-				buf.writeBytes(basedOn.toByteArray());
+				basedOn.write(buf);
 			}
 		}
 		if (publicKeyFlag) {
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An index of expiration times. Instead of one entry per distinct expiration time, the keys are grouped into buckets
+ * of a fixed time span, which keeps the index small if many entries expire at about the same time. Expired keys can be
+ * fetched in batches of a limited size, so that a storage does not need to collect all expired keys at once. This
+ * class is thread-safe and does not lock.
+ *
+ * @param <K>
+ *            The type of the key
+ */
+public class ExpiryIndex<K> {
+
+    public static final int DEFAULT_BUCKET_MILLIS = 1000;
+
+    private final ConcurrentMap<K, Long> expirations = new ConcurrentHashMap<K, Long>();
+
+    private final ConcurrentSkipListMap<Long, Set<K>> buckets = new ConcurrentSkipListMap<Long, Set<K>>();
+
+    private final long bucketMillis;
+
+    /**
+     * Creates an index with buckets of {@link #DEFAULT_BUCKET_MILLIS}.
+     */
+    public ExpiryIndex() {
+        this(DEFAULT_BUCKET_MILLIS);
+    }
+
+    /**
+     * @param bucketMillis
+     *            The time span in milliseconds of one bucket
+     */
+    public ExpiryIndex(final int bucketMillis) {
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("bucket size must be positive");
+        }
+        this.bucketMillis = bucketMillis;
+    }
+
+    /**
+     * Sets or replaces the expiration time of a key.
+     *
+     * @param key
+     *            The key
+     * @param expiration
+     *            The time in milliseconds when the key expires
+     */
+    public void add(final K key, final long expiration) {
+        final Long oldExpiration = expirations.put(key, expiration);
+        if (oldExpiration != null) {
+            if (bucket(oldExpiration) == bucket(expiration)) {
+                return;
+            }
+            removeFromBucket(key, oldExpiration);
+        }
+        final long bucket = bucket(expiration);
+        while (true) {
+            final Set<K> newSet = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+            final Set<K> oldSet = buckets.putIfAbsent(bucket, newSet);
+            final Set<K> set = oldSet == null ? newSet : oldSet;
+            set.add(key);
+            // the set may have been removed as empty in the meantime, then try again
+            if (buckets.get(bucket) == set) {
+                return;
+            }
+            set.remove(key);
+        }
+    }
+
+    /**
+     * @param key
+     *            The key to remove
+     * @return The expiration time of the key or null if the key has no expiration time
+     */
+    public Long remove(final K key) {
+        final Long expiration = expirations.remove(key);
+        if (expiration != null) {
+            removeFromBucket(key, expiration);
+        }
+        return expiration;
+    }
+
+    private void removeFromBucket(final K key, final long expiration) {
+        final long bucket = bucket(expiration);
+        final Set<K> set = buckets.get(bucket);
+        if (set != null) {
+            set.remove(key);
+            if (set.isEmpty()) {
+                buckets.remove(bucket, set);
+            }
+        }
+    }
+
+    /**
+     * @param key
+     *            The key
+     * @return The expiration time of the key or null if the key has no expiration time
+     */
+    public Long expiration(final K key) {
+        return expirations.get(key);
+    }
+
+    /**
+     * Returns the keys that expire before the given time. The keys are not removed from this index.
+     *
+     * @param to
+     *            The keys with an expiration time smaller than this value are returned
+     * @param limit
+     *            The maximum number of keys to return, or a negative number for no limit
+     * @return The expired keys, older buckets first
+     */
+    public Collection<K> expired(final long to, final int limit) {
+        final Collection<K> retVal = new ArrayList<K>();
+        if (limit == 0) {
+            return retVal;
+        }
+        for (final Map.Entry<Long, Set<K>> entry : buckets.headMap(bucket(to), true).entrySet()) {
+            for (final K key : entry.getValue()) {
+                final Long expiration = expirations.get(key);
+                if (expiration != null && expiration < to) {
+                    retVal.add(key);
+                    if (retVal.size() == limit) {
+                        return retVal;
+                    }
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return The number of keys with an expiration time
+     */
+    public int size() {
+        return expirations.size();
+    }
+
+    /**
+     * Removes all keys.
+     */
+    public void clear() {
+        expirations.clear();
+        buckets.clear();
+    }
+
+    private long bucket(final long expiration) {
+        return expiration / bucketMillis;
+    }
+}
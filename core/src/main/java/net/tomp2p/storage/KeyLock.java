@@ -19,6 +19,8 @@ package net.tomp2p.storage;
 import java.util.HashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
+import net.tomp2p.metrics.Histogram;
+
 //as seen in http://stackoverflow.com/questions/5639870/simple-java-name-based-locks
 public class KeyLock<K> {
     public class RefCounterLock {
@@ -27,6 +29,9 @@ public class KeyLock<K> {
         final private KeyLock<K> keyLock;
         
         private int counter = 0;
+
+        // set by the thread that holds sem
+        private long lockedNanos;
         
         public RefCounterLock(K key, KeyLock<K> keyLock) {
             this.key = key;
@@ -43,6 +48,19 @@ public class KeyLock<K> {
     // TODO: think about doing this with a weak hashmap, maybe counter will not be necessary.
     private final HashMap<K, RefCounterLock> cache = new HashMap<K, RefCounterLock>();
 
+    // records the hold time of the locks if set
+    private volatile Histogram lockHold = null;
+
+    /**
+     * @param lockHold
+     *            The histogram that records how long the locks are held in nanoseconds, or null to not record it
+     * @return This class
+     */
+    public KeyLock<K> lockHold(final Histogram lockHold) {
+        this.lockHold = lockHold;
+        return this;
+    }
+
     public RefCounterLock lock(final K key) {
         final RefCounterLock cur;
         lockInternal.lock();
@@ -58,6 +76,9 @@ public class KeyLock<K> {
             lockInternal.unlock();
         }
         cur.sem.lock();
+        if (lockHold != null && cur.sem.getHoldCount() == 1) {
+            cur.lockedNanos = System.nanoTime();
+        }
         return cur;
     }
 
@@ -76,6 +97,11 @@ public class KeyLock<K> {
                     throw new IllegalArgumentException("lock does not matches the stored lock");
                 }
                 cur.counter--;
+                final Histogram histogram = lockHold;
+                if (histogram != null && cur.sem.getHoldCount() == 1 && cur.lockedNanos != 0) {
+                    histogram.record(System.nanoTime() - cur.lockedNanos);
+                    cur.lockedNanos = 0;
+                }
                 cur.sem.unlock();
                 if (cur.counter == 0) { // last reference
                     cache.remove(lock.key);
@@ -15,26 +15,41 @@
  */
 package net.tomp2p.utils;
 
+import io.netty.util.concurrent.DefaultThreadFactory;
+
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A map with expiration and more or less LRU. Since the maps are separated in segments, the LRU is done for each
- * segment. A segment is chosen based on the hash of the key. If one segments is more loaded than another, then an entry
- * of the loaded segment may get evicted before an entry used least recently from an other segment. The expiration is
- * done best effort. There is no thread checking for timed out entries since the cache has a fixed size. Once an entry
- * times out, it remains in the map until it either is accessed or evicted. A test showed that for the default entry
- * size of 1024, this map has a size of 967 if 1024 items are inserted. This is due to the segmentation and hashing.
+ * A map with expiration and LRU eviction. The entries are stored in a {@link ConcurrentHashMap} whose concurrency
+ * level scales with the number of cores. Each entry is an immutable node that is swapped with the atomic operations of
+ * the {@link ConcurrentHashMap}, so no locks are taken. A get does not allocate, while a put, a replace or a refresh of
+ * an existing key allocates a new node. This is the price for never losing an update to a node that is concurrently
+ * removed because it expired. The entries are counted, and {@link #size()} only scans the map if an entry may have
+ * expired since the last scan. Operations on a single key read the time from a coarse clock that is updated every
+ * {@link #TICK_MILLIS} milliseconds while it is used, so such an entry may be returned up to one tick after it
+ * expired. Expired entries are removed when they are accessed and every {@link #SWEEP_MILLIS} milliseconds by a
+ * background thread. If the map is full, a batch of the least recently used entries is evicted at once, so the cost of
+ * finding them is amortized over many inserts.
  * 
  * @author Thomas Bocek
  * @param <K>
@@ -46,7 +61,8 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     private static final Logger LOG = LoggerFactory.getLogger(ConcurrentCacheMap.class);
 
     /**
-     * Number of segments that can be accessed concurrently.
+     * The minimum number of segments that can be accessed concurrently. More segments are used on machines with many
+     * cores.
      */
     public static final int SEGMENT_NR = 16;
 
@@ -60,25 +76,49 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
      */
     public static final int DEFAULT_TIME_TO_LIVE = 60;
 
-    private final CacheMap<K, ExpiringObject>[] segments;
+    /**
+     * The resolution of the clock that is used for the expiration. The clock stops if it is not read during a tick.
+     */
+    public static final int TICK_MILLIS = 10;
+
+    /**
+     * The interval of the background expiration. It stops when all maps have been garbage collected.
+     */
+    public static final int SWEEP_MILLIS = 1000;
+
+    private static final int CONCURRENCY_LEVEL = Math.max(SEGMENT_NR,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4));
+
+    private final ConcurrentHashMap<K, Node<V>> map;
+
+    private final long timeToLiveMillis;
 
-    private final int timeToLiveSeconds;
+    private final int maxEntries;
+
+    // the number of entries that are evicted at once if the map is full
+    private final int evictBatch;
 
     private final boolean refreshTimeout;
 
+    private final AtomicInteger count = new AtomicInteger();
+
+    // no entry expires before this time, lowered for new entries and raised by a full scan
+    private final AtomicLong earliestExpiry = new AtomicLong(Long.MAX_VALUE);
+
     private final AtomicInteger removedCounter = new AtomicInteger();
 
+    // only one thread evicts at a time, the others do not wait
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
     /**
-     * Creates a new instance of ConcurrentCacheMap using the default values and a {@link CacheMap} for the internal
-     * data structure.
+     * Creates a new instance of ConcurrentCacheMap using the default values.
      */
     public ConcurrentCacheMap() {
         this(DEFAULT_TIME_TO_LIVE, MAX_ENTRIES, true);
     }
 
     /**
-     * Creates a new instance of ConcurrentCacheMap using the supplied values and a {@link CacheMap} for the internal
-     * data structure.
+     * Creates a new instance of ConcurrentCacheMap using the supplied values.
      * 
      * @param timeToLive
      *            The time-to-live value (seconds)
@@ -90,8 +130,7 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     }
 
     /**
-     * Creates a new instance of ConcurrentCacheMap using the supplied values and a {@link CacheMap} for the internal
-     * data structure.
+     * Creates a new instance of ConcurrentCacheMap using the supplied values.
      * 
      * @param timeToLiveSeconds
      *            The time-to-live value (seconds)
@@ -100,149 +139,171 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
      * @param refreshTimeout
      *            If set to true, timeout will be reset in case of {@link #putIfAbsent(Object, Object)}
      */
-    @SuppressWarnings("unchecked")
     public ConcurrentCacheMap(final int timeToLiveSeconds, final int maxEntries, final boolean refreshTimeout) {
-        this.segments = new CacheMap[SEGMENT_NR];
-        final int maxEntriesPerSegment = maxEntries / SEGMENT_NR;
-        for (int i = 0; i < SEGMENT_NR; i++) {
-        	// set updateOnInsert to true, since it should behave as a regular map
-            segments[i] = new CacheMap<K, ExpiringObject>(maxEntriesPerSegment, true);
-        }
-        this.timeToLiveSeconds = timeToLiveSeconds;
+        this.map = new ConcurrentHashMap<K, Node<V>>(Math.max(CONCURRENCY_LEVEL, Math.min(maxEntries, MAX_ENTRIES)),
+                0.75f, CONCURRENCY_LEVEL);
+        this.timeToLiveMillis = TimeUnit.SECONDS.toMillis(timeToLiveSeconds);
+        this.maxEntries = Math.max(0, maxEntries);
+        this.evictBatch = Math.max(1, this.maxEntries / SEGMENT_NR);
         this.refreshTimeout = refreshTimeout;
-    }
-
-    /**
-     * Returns the segment based on the key.
-     * 
-     * @param key
-     *            The key where the hash code identifies the segment
-     * @return The cache map that corresponds to this segment
-     */
-    private CacheMap<K, ExpiringObject> segment(final Object key) {
-        return segments[(key.hashCode() & Integer.MAX_VALUE) % SEGMENT_NR];
+        Sweeper.register(this);
     }
 
     @Override
     public V put(final K key, final V value) {
-    	final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.put(key, newValue);
-        }
-        if (oldValue == null || oldValue.isExpired()) {
+        checkValue(value);
+        final long now = Sweeper.now();
+        final Node<V> oldNode = map.put(key, newNode(value, now));
+        if (oldNode == null) {
+            added();
             return null;
         }
-        return oldValue.getValue();
+        return oldNode.isExpired(now) ? null : oldNode.value;
     }
 
     @Override
     /**
-     * This does not reset the timer!
+     * This does not reset the timer, unless refreshTimeout is set!
      */
     public V putIfAbsent(final K key, final V value) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        ExpiringObject oldValue;
-        synchronized (segment) {
-            if (!segment.containsKey(key)) {
-                oldValue = segment.put(key, newValue);
-            } else {
-                oldValue = segment.get(key);
-                if (oldValue.isExpired()) {
-                    segment.put(key, newValue);
-                } else if (refreshTimeout) {
-                    oldValue = new ExpiringObject(oldValue.getValue(), System.currentTimeMillis());
-                    segment.put(key, oldValue);
+        checkValue(value);
+        final long now = Sweeper.now();
+        while (true) {
+            final Node<V> node = map.get(key);
+            if (node == null) {
+                if (map.putIfAbsent(key, newNode(value, now)) == null) {
+                    added();
+                    return null;
+                }
+                continue;
+            }
+            if (node.isExpired(now)) {
+                if (map.replace(key, node, newNode(value, now))) {
+                    return null;
                 }
+                continue;
             }
+            if (refreshTimeout) {
+                if (!map.replace(key, node, newNode(node.value, now))) {
+                    continue;
+                }
+            } else {
+                node.accessed = now;
+            }
+            return node.value;
         }
-        if (oldValue == null || oldValue.isExpired()) {
-            return null;
+    }
+
+    /**
+     * Creates a node that expires after the time-to-live.
+     */
+    private Node<V> newNode(final V value, final long now) {
+        final long expires = now + timeToLiveMillis;
+        lowerEarliestExpiry(expires);
+        return new Node<V>(value, expires, now);
+    }
+
+    private void lowerEarliestExpiry(final long expires) {
+        long earliest;
+        while (expires < (earliest = earliestExpiry.get()) && !earliestExpiry.compareAndSet(earliest, expires)) {
+            // another thread changed the earliest expiry, try again
+        }
+    }
+
+    /**
+     * Counts a new entry and evicts if the map is full.
+     */
+    private void added() {
+        if (count.incrementAndGet() > maxEntries) {
+            evict();
         }
-        return oldValue.getValue();
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public V get(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-        }
-        if (oldValue != null) {
-            if (expire(segment, (K) key, oldValue)) {
-                return null;
-            } else {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Get found. Key: {}. Value: {}.", key, oldValue.getValue());
-                }
-                return oldValue.getValue();
+        final Node<V> node = map.get(key);
+        if (node == null) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Get not found. Key: {}.", key);
             }
+            return null;
+        }
+        final long now = Sweeper.now();
+        final V value = read(key, node, now);
+        if (value != null) {
+            node.accessed = now;
         }
         if (LOG.isDebugEnabled()) {
-            LOG.debug("Get not found. Key: {}.", key);
+            LOG.debug("Get {}. Key: {}. Value: {}.", value == null ? "expired" : "found", key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the value of a node and removes the node if it is expired.
+     * 
+     * @return The value or null if the node is expired
+     */
+    private V read(final Object key, final Node<V> node, final long now) {
+        if (!node.isExpired(now)) {
+            return node.value;
+        }
+        // if the node has been replaced in the meantime, the new node stays
+        if (unlink(key, node)) {
+            removedCounter.incrementAndGet();
         }
         return null;
     }
 
+    /**
+     * Removes a node from the map, if the key still maps to this node.
+     * 
+     * @return True if the node has been removed
+     */
+    private boolean unlink(final Object key, final Node<V> node) {
+        if (map.remove(key, node)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public V remove(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.remove(key);
-        }
-        if (oldValue == null || oldValue.isExpired()) {
+        final Node<V> node = map.remove(key);
+        if (node == null) {
             return null;
         }
-        return oldValue.getValue();
+        count.decrementAndGet();
+        return node.isExpired(Sweeper.now()) ? null : node.value;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public boolean remove(final Object key, final Object value) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        boolean removed = false;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-            if (oldValue != null && oldValue.equals(value) && !oldValue.isExpired()) {
-                removed = segment.remove(key) != null;
+        while (true) {
+            final Node<V> node = map.get(key);
+            if (node == null || read(key, node, Sweeper.now()) == null || !node.value.equals(value)) {
+                return false;
+            }
+            if (unlink(key, node)) {
+                return true;
             }
         }
-        if (oldValue != null) {
-            expire(segment, (K) key, oldValue);
-        }
-        return removed;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public boolean containsKey(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-        }
-        if (oldValue != null) {
-            if (!expire(segment, (K) key, oldValue)) {
-                return true;
-            }
-        }
-        return false;
-    }	
+        final Node<V> node = map.get(key);
+        return node != null && read(key, node, Sweeper.now()) != null;
+    }
 
     @Override
     public boolean containsValue(final Object value) {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                if (segment.containsValue(value)) {
-                    return true;
-                }
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<K, Node<V>> entry : map.entrySet()) {
+            final V tmp = read(entry.getKey(), entry.getValue(), now);
+            if (tmp != null && tmp.equals(value)) {
+                return true;
             }
         }
         return false;
@@ -250,46 +311,34 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 
     @Override
     public int size() {
-        int size = 0;
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                size += segment.size();
-            }
+        final long now = System.currentTimeMillis();
+        if (now >= earliestExpiry.get()) {
+            expire(now);
         }
-        return size;
+        return Math.max(0, count.get());
     }
 
     @Override
     public boolean isEmpty() {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                if (!segment.isEmpty()) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return size() == 0;
     }
 
     @Override
     public void clear() {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                segment.clear();
-            }
+        for (final K key : map.keySet()) {
+            remove(key);
         }
     }
 
     @Override
     public int hashCode() {
+        final long now = System.currentTimeMillis();
         int hashCode = 0;
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
+        for (final Map.Entry<K, Node<V>> entry : map.entrySet()) {
+            final V value = read(entry.getKey(), entry.getValue(), now);
+            if (value != null) {
                 // as seen in AbstractMap
-                hashCode += segment.hashCode();
+                hashCode += entry.getKey().hashCode() ^ value.hashCode();
             }
         }
         return hashCode;
@@ -297,11 +346,11 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 
     @Override
     public Set<K> keySet() {
+        final long now = System.currentTimeMillis();
         final Set<K> retVal = new HashSet<K>();
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                retVal.addAll(segment.keySet());
+        for (final Map.Entry<K, Node<V>> entry : map.entrySet()) {
+            if (read(entry.getKey(), entry.getValue(), now) != null) {
+                retVal.add(entry.getKey());
             }
         }
         return retVal;
@@ -340,21 +389,11 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 				};
         	}
         };
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                final Iterator<ExpiringObject> iterator = segment.values().iterator();
-                while (iterator.hasNext()) {
-                    final ExpiringObject expiringObject = iterator.next();
-                    if (expiringObject.isExpired()) {
-                        iterator.remove();
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("Remove in entry set: {}.", expiringObject.getValue());
-                        }
-                        removedCounter.incrementAndGet();
-                    } else {
-                        retVal.add(expiringObject.getValue());
-                    }
-                }
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<K, Node<V>> entry : map.entrySet()) {
+            final V value = read(entry.getKey(), entry.getValue(), now);
+            if (value != null) {
+                retVal.add(value);
             }
         }
         return retVal;
@@ -394,36 +433,27 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 				};
         	}
         };
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                final Iterator<Map.Entry<K, ExpiringObject>> iterator = segment.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    final Map.Entry<K, ExpiringObject> entry = iterator.next();
-                    if (entry.getValue().isExpired()) {
-                        iterator.remove();
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("Removed in entry set: {}.", entry.getValue().getValue());
-                        }
-                        removedCounter.incrementAndGet();
-                    } else {
-                        retVal.add(new Map.Entry<K, V>() {
-                            @Override
-                            public K getKey() {
-                                return entry.getKey();
-                            }
-
-                            @Override
-                            public V getValue() {
-                                return entry.getValue().getValue();
-                            }
-
-                            @Override
-                            public V setValue(final V value) {
-                                throw new UnsupportedOperationException("not supported");
-                            }
-                        });
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<K, Node<V>> entry : map.entrySet()) {
+            final K key = entry.getKey();
+            final V value = read(key, entry.getValue(), now);
+            if (value != null) {
+                retVal.add(new Map.Entry<K, V>() {
+                    @Override
+                    public K getKey() {
+                        return key;
                     }
-                }
+
+                    @Override
+                    public V getValue() {
+                        return value;
+                    }
+
+                    @Override
+                    public V setValue(final V value) {
+                        throw new UnsupportedOperationException("not supported");
+                    }
+                });
             }
         }
         return retVal;
@@ -431,153 +461,209 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 
     @Override
     public boolean replace(final K key, final V oldValue, final V newValue) {
-        final ExpiringObject oldValue2 = new ExpiringObject(oldValue, 0L);
-        final ExpiringObject newValue2 = new ExpiringObject(newValue, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue3;
-        boolean replaced = false;
-        synchronized (segment) {
-            oldValue3 = segment.get(key);
-            if (oldValue3 != null && !oldValue3.isExpired() && oldValue2.getValue().equals(oldValue3.getValue())) {
-                segment.put(key, newValue2);
-                replaced = true;
+        checkValue(newValue);
+        while (true) {
+            final Node<V> node = map.get(key);
+            final long now = Sweeper.now();
+            if (node == null || read(key, node, now) == null || !node.value.equals(oldValue)) {
+                return false;
+            }
+            if (map.replace(key, node, new Node<V>(newValue, now + timeToLiveMillis, now))) {
+                return true;
             }
         }
-        if (oldValue3 != null) {
-            expire(segment, key, oldValue3);
-        }
-        return replaced;
     }
 
     @Override
     public V replace(final K key, final V value) {
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-            if (oldValue != null && !oldValue.isExpired()) {
-                segment.put(key, newValue);
+        checkValue(value);
+        while (true) {
+            final Node<V> node = map.get(key);
+            final long now = Sweeper.now();
+            if (node == null || read(key, node, now) == null) {
+                return null;
+            }
+            if (map.replace(key, node, newNode(value, now))) {
+                return node.value;
             }
         }
-        if (oldValue == null) {
-            return null;
-        }
-        if (expire(segment, key, oldValue)) {
-            return null;
-        }
-        return oldValue.getValue();
     }
 
     /**
-     * Expires a key in a segment. If a key value pair is expired, it will get removed.
+     * @return The number of expired objects
+     */
+    public int expiredCounter() {
+        return removedCounter.get();
+    }
+
+    /**
+     * Removes all expired entries and sets the earliest expiry to the one of the remaining entries.
      * 
-     * @param segment
-     *            The segment
-     * @param key
-     *            The key
-     * @param value
-     *            The value
-     * @return True if expired, otherwise false.
+     * @param now
+     *            The current time of the coarse clock
      */
-    private boolean expire(final CacheMap<K, ExpiringObject> segment, final K key, final ExpiringObject value) {
-        if (value.isExpired()) {
-            synchronized (segment) {
-                final ExpiringObject tmp = segment.get(key);
-                if (tmp != null && tmp.equals(value)) {
-                    segment.remove(key);
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Removed in expire: {}.", value.getValue());
-                    }
-                    removedCounter.incrementAndGet();
-                }
+    private void expire(final long now) {
+        // entries that are added during the scan lower it again
+        earliestExpiry.set(Long.MAX_VALUE);
+        long earliest = Long.MAX_VALUE;
+        for (final Map.Entry<K, Node<V>> entry : map.entrySet()) {
+            final Node<V> node = entry.getValue();
+            if (read(entry.getKey(), node, now) != null && node.expires < earliest) {
+                earliest = node.expires;
             }
-            return true;
         }
-        return false;
+        lowerEarliestExpiry(earliest);
     }
 
     /**
-     * Fast expiration. Since the ExpiringObject is ordered the for loop can break early if a object is not expired.
-     * 
-     * @param segment
-     *            The segment
+     * Removes the expired entries and, if the map is still full, a batch of the least recently used entries. Only one
+     * thread evicts at a time, the others continue and may briefly exceed the maximum number of entries.
      */
-    private void expireSegment(final CacheMap<K, ExpiringObject> segment) {
-        final Iterator<ExpiringObject> iterator = segment.values().iterator();
-        while (iterator.hasNext()) {
-            final ExpiringObject expiringObject = iterator.next();
-            if (expiringObject.isExpired()) {
-                iterator.remove();
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Remove in expire segment: {}.", expiringObject.getValue());
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final long now = System.currentTimeMillis();
+            expire(now);
+            final int toEvict = count.get() - maxEntries + evictBatch - 1;
+            if (toEvict <= 0) {
+                return;
+            }
+            // keep the toEvict least recently used entries, the most recently used of them is the head
+            final PriorityQueue<Map.Entry<K, Node<V>>> eldest = new PriorityQueue<Map.Entry<K, Node<V>>>(toEvict + 1,
+                    new Comparator<Map.Entry<K, Node<V>>>() {
+                        @Override
+                        public int compare(final Map.Entry<K, Node<V>> o1, final Map.Entry<K, Node<V>> o2) {
+                            final long a1 = o1.getValue().accessed;
+                            final long a2 = o2.getValue().accessed;
+                            return a1 < a2 ? 1 : (a1 == a2 ? 0 : -1);
+                        }
+                    });
+            for (final Map.Entry<K, Node<V>> entry : map.entrySet()) {
+                eldest.add(entry);
+                if (eldest.size() > toEvict) {
+                    eldest.poll();
                 }
-                removedCounter.incrementAndGet();
-            } else {
-                break;
             }
+            for (final Map.Entry<K, Node<V>> entry : eldest) {
+                unlink(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            evicting.set(false);
         }
     }
 
-    /**
-     * @return The number of expired objects
-     */
-    public int expiredCounter() {
-        return removedCounter.get();
+    private static void checkValue(final Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("An expiring object cannot be null.");
+        }
     }
 
     /**
-     * An object that also holds expiration information.
+     * An entry of the map that also holds expiration information. A node is never changed, except for the time of
+     * the last access, which is only used to find the least recently used entries.
      */
-    private class ExpiringObject {
+    private static final class Node<V> {
         private final V value;
+        private final long expires;
+        private volatile long accessed;
 
-        private final long lastAccessTime;
-
-        /**
-         * Creates a new expiring object with the given time of access.
-         * 
-         * @param value
-         *            The value that is wrapped in this instance
-         * @param lastAccessTimeMillis
-         *            The time of access in milliseconds.
-         */
-        ExpiringObject(final V value, final long lastAccessTimeMillis) {
-            if (value == null) {
-                throw new IllegalArgumentException("An expiring object cannot be null.");
-            }
+        private Node(final V value, final long expires, final long accessed) {
             this.value = value;
-            this.lastAccessTime = lastAccessTimeMillis;
+            this.expires = expires;
+            this.accessed = accessed;
         }
 
-        /**
-         * @return If entry is expired
-         */
-        public boolean isExpired() {
-            return System.currentTimeMillis() >= lastAccessTime + 
-            		(TimeUnit.MILLISECONDS.convert(timeToLiveSeconds, TimeUnit.SECONDS));
+        private boolean isExpired(final long now) {
+            return now >= expires;
         }
+    }
 
-        /**
-         * @return The wrapped value
-         */
-        public V getValue() {
-            return value;
-        }
+    /**
+     * The coarse clock and the background expiration, shared by all maps. The clock and the expiration are separate
+     * tasks on one daemon thread. The clock only ticks while it is read, the first read after it stopped uses the
+     * system time and starts it again. The expiration runs while there are maps, which are referenced weakly, so a map
+     * that is no longer used can be garbage collected. The thread ends when both tasks have stopped.
+     */
+    private static final class Sweeper {
+        private static volatile long now = System.currentTimeMillis();
+        // set by the readers of the clock, reset by the clock
+        private static volatile boolean read = false;
+        private static final AtomicBoolean TICKING = new AtomicBoolean();
+        private static final AtomicBoolean SWEEPING = new AtomicBoolean();
+        // guarded by itself
+        private static final Set<ConcurrentCacheMap<?, ?>> MAPS = Collections
+                .newSetFromMap(new WeakHashMap<ConcurrentCacheMap<?, ?>, Boolean>());
+        private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1,
+                new DefaultThreadFactory("TomP2P cache sweeper - ", true));
+
+        static {
+            TIMER.setKeepAliveTime(SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+            TIMER.allowCoreThreadTimeOut(true);
+        }
+
+        private static final Runnable CLOCK = new Runnable() {
+            @Override
+            public void run() {
+                now = System.currentTimeMillis();
+                if (!read) {
+                    TICKING.set(false);
+                    return;
+                }
+                read = false;
+                TIMER.schedule(this, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        };
 
-        @Override
-        public boolean equals(final Object obj) {
-            if (!(obj instanceof ConcurrentCacheMap.ExpiringObject)) {
-                return false;
+        private static final Runnable SWEEP = new Runnable() {
+            @Override
+            public void run() {
+                final List<ConcurrentCacheMap<?, ?>> copy;
+                synchronized (MAPS) {
+                    copy = new ArrayList<ConcurrentCacheMap<?, ?>>(MAPS);
+                    if (copy.isEmpty()) {
+                        SWEEPING.set(false);
+                        return;
+                    }
+                }
+                final long time = System.currentTimeMillis();
+                for (final ConcurrentCacheMap<?, ?> map : copy) {
+                    try {
+                        if (time >= map.earliestExpiry.get()) {
+                            map.expire(time);
+                        }
+                    } catch (RuntimeException e) {
+                        LOG.error("Could not expire the entries of a cache.", e);
+                    }
+                }
+                TIMER.schedule(this, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        };
+
+        private static long now() {
+            if (!TICKING.get()) {
+                final long time = System.currentTimeMillis();
+                if (TICKING.compareAndSet(false, true)) {
+                    now = time;
+                    read = true;
+                    TIMER.schedule(CLOCK, TICK_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                return time;
+            }
+            if (!read) {
+                read = true;
             }
-            @SuppressWarnings("unchecked")
-            final ExpiringObject exp = (ExpiringObject) obj;
-            return value.equals(exp.value);
+            return now;
         }
 
-        @Override
-        public int hashCode() {
-            return value.hashCode();
+        private static void register(final ConcurrentCacheMap<?, ?> map) {
+            synchronized (MAPS) {
+                MAPS.add(map);
+                if (SWEEPING.compareAndSet(false, true)) {
+                    TIMER.schedule(SWEEP, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -86,6 +86,10 @@ public class Utils {
 	
 	public static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
+	// getInstance is expensive and a digest is not thread-safe, thus, every thread reuses its own digests
+	private static final ThreadLocal<MessageDigest> SHA1 = new DigestThreadLocal("SHA-1");
+	private static final ThreadLocal<MessageDigest> MD5 = new DigestThreadLocal("MD5");
+
 	public static ByteBuffer loadFile(File file) throws IOException {
 		FileInputStream fis = null;
 		FileChannel channel = null;
@@ -104,7 +108,7 @@ public class Utils {
 		try {
 			fis = new FileInputStream(file);
 			channel = fis.getChannel();
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			MessageDigest md = digest(SHA1);
 			for (long offest = 0; offest < channel.size(); offest += 10 * 1024) {
 				ByteBuffer buffer;
 				if (channel.size() - offest < 10 * 1024)
@@ -136,7 +140,7 @@ public class Utils {
 
 	public static Number160 makeSHAHash(ByteBuffer buffer) {
 		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			MessageDigest md = digest(SHA1);
 			md.update(buffer);
 			byte[] digest = md.digest();
 			return new Number160(digest);
@@ -155,7 +159,7 @@ public class Utils {
 	 */
 	public static Number160 makeSHAHash(final ByteBuf buf) {
 		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			MessageDigest md = digest(SHA1);
 			final ByteBuffer[] byteBuffers = buf.nioBuffers();
 			final int len = byteBuffers.length;
 			for (int i = 0; i < len; i++) {
@@ -171,7 +175,7 @@ public class Utils {
 
 	public static Number160 makeSHAHash(DataBuffer buffer) {
 		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			MessageDigest md = digest(SHA1);
 			DataBuffer copy = buffer.shallowCopy();
 			for (ByteBuffer byteBuffer : copy.bufferList()) {
 				md.update(byteBuffer);
@@ -206,7 +210,7 @@ public class Utils {
 	public static byte[] makeMD5Hash(byte[] buffer, int offset, int length) {
 		MessageDigest m;
 		try {
-			m = MessageDigest.getInstance("MD5");
+			m = digest(MD5);
 		} catch (NoSuchAlgorithmException e) {
 			e.printStackTrace();
 			return new byte[0];
@@ -215,6 +219,42 @@ public class Utils {
 		return m.digest();
 	}
 
+	/**
+	 * Returns the digest of the current thread, reset and ready to use.
+	 * 
+	 * @param digests
+	 *            The digests of the threads
+	 * @return The digest of the current thread
+	 * @throws NoSuchAlgorithmException
+	 *             If the algorithm is not available
+	 */
+	private static MessageDigest digest(final ThreadLocal<MessageDigest> digests) throws NoSuchAlgorithmException {
+		final MessageDigest md = digests.get();
+		if (md == null) {
+			throw new NoSuchAlgorithmException("Digest not available.");
+		}
+		md.reset();
+		return md;
+	}
+
+	private static final class DigestThreadLocal extends ThreadLocal<MessageDigest> {
+		private final String algorithm;
+
+		private DigestThreadLocal(final String algorithm) {
+			this.algorithm = algorithm;
+		}
+
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+
 	public static Number160 createRandomNodeID() {
 		// TODO: this hardcoded, bad style
 		byte[] me = new byte[20];
@@ -454,6 +494,83 @@ public class Utils {
 		return (b[0] << 24) + ((b[1] & 0xFF) << 16) + ((b[2] & 0xFF) << 8) + (b[3] & 0xFF);
 	}
 
+	/**
+	 * Writes an unsigned variable length integer, 7 bits per byte, least significant group first. Values below 128
+	 * need one byte, negative values need five bytes.
+	 * 
+	 * @param buf
+	 *            The buffer to write to
+	 * @param value
+	 *            The value, treated as unsigned
+	 */
+	public static void writeVarInt(final ByteBuf buf, final int value) {
+		int v = value;
+		while ((v & ~0x7f) != 0) {
+			buf.writeByte((v & 0x7f) | MASK_80);
+			v >>>= 7;
+		}
+		buf.writeByte(v);
+	}
+
+	/**
+	 * Reads an unsigned variable length integer written by {@link #writeVarInt(ByteBuf, int)}. Check with
+	 * {@link #varIntSize(ByteBuf, int)} before that the whole integer is readable.
+	 * 
+	 * @param buf
+	 *            The buffer to read from
+	 * @return The value
+	 */
+	public static int readVarInt(final ByteBuf buf) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			final int b = buf.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & MASK_80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Reads an unsigned variable length integer without changing the reader index. Check with
+	 * {@link #varIntSize(ByteBuf, int)} before that the whole integer is readable.
+	 * 
+	 * @param buf
+	 *            The buffer to read from
+	 * @param offset
+	 *            The offset from the reader index where the variable length integer starts
+	 * @return The value
+	 */
+	public static int getVarInt(final ByteBuf buf, final int offset) {
+		final int start = buf.readerIndex() + offset;
+		int value = 0;
+		for (int i = 0;; i++) {
+			final int b = buf.getUnsignedByte(start + i);
+			value |= (b & 0x7f) << (7 * i);
+			if ((b & MASK_80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * @param buf
+	 *            The buffer
+	 * @param offset
+	 *            The offset from the reader index where the variable length integer starts
+	 * @return The number of bytes of the variable length integer, or -1 if it is not completely readable yet
+	 */
+	public static int varIntSize(final ByteBuf buf, final int offset) {
+		final int readable = buf.readableBytes();
+		final int start = buf.readerIndex() + offset;
+		for (int i = 0; offset + i < readable && i < 5; i++) {
+			if ((buf.getByte(start + i) & MASK_80) == 0) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * Returns a random element from a collection. This method is pretty slow O(n), but the Java collection
 	 * framework
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatusListener;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the UDP channel that is shared by all UDP requests of a peer.
+ */
+public class TestSharedUDPChannel {
+
+	@Test
+	public void testResponses() throws Exception {
+		Peer sender = null;
+		Peer recv1 = null;
+		ChannelCreator cc = null;
+		try {
+			sender = new PeerBuilder(new Number160("0x9876")).p2pId(55).ports(2424).start();
+			recv1 = new PeerBuilder(new Number160("0x1234")).p2pId(55).ports(8088).start();
+			final SharedUDPChannel sharedUDPChannel = sender.connectionBean().sender().sharedUDPChannel();
+			Assert.assertNotNull(sharedUDPChannel);
+			FutureChannelCreator fcc = sender.connectionBean().reservation().create(20, 0);
+			fcc.awaitUninterruptibly();
+			cc = fcc.channelCreator();
+			// all requests are pending on the same channel at the same time
+			List<FutureResponse> futureResponses = new ArrayList<FutureResponse>();
+			for (int i = 0; i < 20; i++) {
+				futureResponses.add(sender.pingRPC().pingUDP(recv1.peerAddress(), cc,
+				        new DefaultConnectionConfiguration()));
+			}
+			for (FutureResponse futureResponse : futureResponses) {
+				futureResponse.awaitUninterruptibly();
+				Assert.assertTrue(futureResponse.isSuccess());
+				// the response is matched to its request by the message ID
+				Assert.assertEquals(futureResponse.request().messageId(), futureResponse.responseMessage()
+				        .messageId());
+			}
+			Assert.assertEquals(0, sharedUDPChannel.pendingRequests());
+		} finally {
+			if (cc != null) {
+				cc.shutdown().await();
+			}
+			if (sender != null) {
+				sender.shutdown().await();
+			}
+			if (recv1 != null) {
+				recv1.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		Peer sender = null;
+		ChannelCreator cc = null;
+		// a socket that receives the request but never answers
+		final DatagramSocket silent = new DatagramSocket(8089, InetAddress.getByName("127.0.0.1"));
+		try {
+			sender = new PeerBuilder(new Number160("0x9876")).p2pId(55).ports(2424).start();
+			final List<PeerException> failed = new ArrayList<PeerException>();
+			final List<PeerAddress> failedPeers = new ArrayList<PeerAddress>();
+			sender.peerBean().addPeerStatusListener(new PeerStatusListener() {
+				@Override
+				public boolean peerFound(PeerAddress remotePeer, PeerAddress referrer, PeerConnection peerConnection) {
+					return false;
+				}
+
+				@Override
+				public boolean peerFailed(PeerAddress remotePeer, PeerException exception) {
+					synchronized (failed) {
+						failedPeers.add(remotePeer);
+						failed.add(exception);
+					}
+					return false;
+				}
+			});
+			PeerAddress silentPeer = new PeerAddress(new Number160("0x1234"), "127.0.0.1", 8089, 8089);
+			FutureChannelCreator fcc = sender.connectionBean().reservation().create(1, 0);
+			fcc.awaitUninterruptibly();
+			cc = fcc.channelCreator();
+			FutureResponse futureResponse = sender.pingRPC().pingUDP(silentPeer, cc,
+			        new DefaultConnectionConfiguration().idleUDPSeconds(1));
+			Assert.assertEquals(1, sender.connectionBean().sender().sharedUDPChannel().pendingRequests());
+			futureResponse.awaitUninterruptibly();
+			Assert.assertFalse(futureResponse.isSuccess());
+			Assert.assertEquals(0, sender.connectionBean().sender().sharedUDPChannel().pendingRequests());
+			synchronized (failed) {
+				Assert.assertTrue(failedPeers.contains(silentPeer));
+				boolean timeout = false;
+				for (PeerException peerException : failed) {
+					timeout |= peerException.abortCause() == AbortCause.TIMEOUT;
+				}
+				Assert.assertTrue(timeout);
+			}
+		} finally {
+			silent.close();
+			if (cc != null) {
+				cc.shutdown().await();
+			}
+			if (sender != null) {
+				sender.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		Peer sender = null;
+		ChannelCreator cc = null;
+		final DatagramSocket silent = new DatagramSocket(8089, InetAddress.getByName("127.0.0.1"));
+		try {
+			sender = new PeerBuilder(new Number160("0x9876")).p2pId(55).ports(2424).start();
+			final SharedUDPChannel sharedUDPChannel = sender.connectionBean().sender().sharedUDPChannel();
+			PeerAddress silentPeer = new PeerAddress(new Number160("0x1234"), "127.0.0.1", 8089, 8089);
+			FutureChannelCreator fcc = sender.connectionBean().reservation().create(1, 0);
+			fcc.awaitUninterruptibly();
+			cc = fcc.channelCreator();
+			FutureResponse futureResponse = sender.pingRPC().pingUDP(silentPeer, cc,
+			        new DefaultConnectionConfiguration());
+			Assert.assertEquals(1, sharedUDPChannel.pendingRequests());
+
+			// closing the channel fails the pending requests
+			sharedUDPChannel.shutdown().awaitUninterruptibly();
+			futureResponse.awaitUninterruptibly();
+			Assert.assertFalse(futureResponse.isSuccess());
+			Assert.assertEquals(0, sharedUDPChannel.pendingRequests());
+
+			// and no new requests are accepted
+			FutureResponse futureResponse2 = new FutureResponse(futureResponse.request());
+			RequestHandler<FutureResponse> handler = new RequestHandler<FutureResponse>(futureResponse2,
+			        sender.peerBean(), sender.connectionBean(), new DefaultConnectionConfiguration());
+			Assert.assertFalse(sharedUDPChannel.send(handler, futureResponse2, futureResponse.request(), 1));
+		} finally {
+			silent.close();
+			if (cc != null) {
+				cc.shutdown().await();
+			}
+			if (sender != null) {
+				sender.shutdown().await();
+			}
+		}
+	}
+}
@@ -348,6 +348,83 @@ public class TestMessage {
 		compareMessage(m1, m2);
 	}
 
+	@Test
+	public void testEncodeDecodeWireV2() throws Exception {
+		Message m1 = createWireV2Message();
+		Message m2 = encodeDecode(m1);
+		compareMessage(m1, m2);
+		Assert.assertTrue(m2.isWireV2Capable());
+
+		// the same message in the wire format v1 is larger
+		AlternativeCompositeByteBuf v1 = AlternativeCompositeByteBuf.compBuffer();
+		new Encoder(factory).write(v1, createWireV2Message(), null);
+		AlternativeCompositeByteBuf v2 = AlternativeCompositeByteBuf.compBuffer();
+		new Encoder(factory, true).write(v2, createWireV2Message(), null, true);
+		Assert.assertTrue(v2.readableBytes() < v1.readableBytes());
+	}
+
+	private static Message createWireV2Message() throws Exception {
+		Random rnd = new Random(42);
+		Message m1 = Utils2.createDummyMessage();
+		m1.type(Message.Type.OK);
+		m1.wireV2(true);
+		m1.key(new Number160(rnd));
+		m1.key(Number160.ZERO);
+		List<PeerAddress> neighbors = new ArrayList<PeerAddress>();
+		for (PeerAddress neighbor : Utils2.createDummyAddresses(20, 4000, 4000)) {
+			neighbors.add(neighbor);
+		}
+		m1.neighborsSet(new NeighborSet(-1, neighbors));
+		Number160 locationKey = new Number160(rnd);
+		Number160 domainKey = new Number160(rnd);
+		List<Number640> keys = new ArrayList<Number640>();
+		for (int i = 0; i < 10; i++) {
+			keys.add(new Number640(locationKey, domainKey, new Number160(rnd), Number160.ZERO));
+		}
+		m1.keyCollection(new KeyCollection(keys));
+		m1.buffer(new Buffer(Unpooled.wrappedBuffer(new byte[] { 1, 2, 3 })));
+		return m1;
+	}
+
+	@Test
+	public void testWireV2Dictionary() throws Exception {
+		Encoder encoder = new Encoder(factory, true);
+		Decoder decoder = new Decoder(factory);
+		AtomicReference<Message> m2 = new AtomicReference<Message>();
+		for (int i = 0; i < 3; i++) {
+			Message m1 = Utils2.createDummyMessage();
+			m1.key(Number160.createHash(i));
+			AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+			encoder.write(buf, m1, null, true);
+			final int size = buf.readableBytes();
+			encoder.reset();
+			Assert.assertTrue(decoder.decode(mockChannelHandlerContext(buf, m2), buf, m1.recipient()
+					.createSocketTCP(), m1.sender().createSocketTCP()));
+			Message decoded = decoder.prepareFinish();
+			compareMessage(m1, decoded);
+			if (i > 0) {
+				// sender and recipient are references, the key is new
+				Assert.assertEquals(17 + 1 + Number160.BYTE_ARRAY_SIZE, size);
+			}
+		}
+	}
+
+	@Test
+	public void testVarInt() {
+		ByteBuf buf = Unpooled.buffer();
+		int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1 };
+		for (int value : values) {
+			Utils.writeVarInt(buf, value);
+		}
+		for (int value : values) {
+			Assert.assertTrue(Utils.varIntSize(buf, 0) > 0);
+			Assert.assertEquals(value, Utils.getVarInt(buf, 0));
+			Assert.assertEquals(value, Utils.readVarInt(buf));
+		}
+		buf.writeByte(0x80);
+		Assert.assertEquals(-1, Utils.varIntSize(buf, 0));
+	}
+
 	@Test
 	public void testEncodeDecode480Map() throws Exception { // encode
 		Message m1 = Utils2.createDummyMessage();
@@ -0,0 +1,69 @@
+package net.tomp2p.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMetrics {
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.percentile(99));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100, histogram.count());
+        Assert.assertEquals(5050, histogram.sum());
+        Assert.assertEquals(100, histogram.max());
+        Assert.assertEquals(50.5, histogram.mean(), 0.001);
+        // 50 is in the bucket 32..63
+        Assert.assertEquals(63, histogram.percentile(50));
+        Assert.assertEquals(100, histogram.percentile(100));
+        histogram.record(0);
+        Assert.assertEquals(0, histogram.percentile(0.5));
+    }
+
+    @Test
+    public void testPingMetrics() throws Exception {
+        Peer master = null;
+        Peer slave = null;
+        try {
+            master = new PeerBuilder(new Number160("0x1")).ports(4001).enableJmx(true).start();
+            slave = new PeerBuilder(new Number160("0x2")).ports(4002).start();
+            BaseFuture res = slave.ping().peerAddress(master.peerAddress()).start();
+            res.awaitUninterruptibly();
+            Assert.assertEquals(true, res.isSuccess());
+
+            Assert.assertEquals(Long.valueOf(1), slave.metrics().counters().get("rpc.PING.sent"));
+            Assert.assertEquals(Long.valueOf(1), slave.metrics().counters().get("rpc.PING.ok"));
+            Assert.assertEquals(1, slave.metrics().histograms().get("rpc.PING.latency").count());
+            Assert.assertEquals(Long.valueOf(1), master.metrics().counters().get("rpc.PING.received"));
+            Assert.assertTrue(slave.metrics().counters().get(Metrics.PEERMAP_INSERTED) > 0);
+            Assert.assertTrue(slave.metrics().reservationWait().count() > 0);
+            Assert.assertTrue(slave.metrics().encoderBytes().sum() > 0);
+
+            ObjectName name = new ObjectName(Metrics.JMX_DOMAIN + ":type=Metrics,name="
+                    + ObjectName.quote(master.peerID().toString()));
+            Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+            master.shutdown().await();
+            Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+            master = null;
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+            if (slave != null) {
+                slave.shutdown().await();
+            }
+        }
+    }
+}
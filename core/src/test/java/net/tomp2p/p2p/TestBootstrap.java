@@ -1,5 +1,6 @@
 package net.tomp2p.p2p;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -12,6 +13,7 @@ import net.tomp2p.futures.FutureBootstrap;
 import net.tomp2p.futures.FutureDiscover;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMapSnapshot;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -238,4 +240,74 @@ public class TestBootstrap {
             }
         }
     }
+
+    @Test
+    public void testFastBootstrap() throws Exception {
+        final Random rnd = new Random(42);
+        Peer master = null;
+        Peer peer1 = null;
+        Peer peer2 = null;
+        File snapshot = File.createTempFile("tomp2p", ".snapshot");
+        snapshot.delete();
+        try {
+            Peer[] peers = Utils2.createNodes(100, rnd, 5001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            peer1 = new PeerBuilder(new Number160(rnd)).ports(5002).snapshotFile(snapshot).start();
+            FutureBootstrap fb = peer1.bootstrap().peerAddress(master.peerAddress()).fast().readyBags(2).start();
+            fb.awaitUninterruptibly();
+            Assert.assertEquals(true, fb.isSuccess());
+            Assert.assertTrue(peer1.peerBean().peerMap().populatedBags() >= 2);
+            // the snapshot is written on shutdown
+            peer1.shutdown().await();
+            peer1 = null;
+            Assert.assertTrue(PeerMapSnapshot.read(snapshot).size() > 2);
+
+            // a restart with the snapshot only
+            peer2 = new PeerBuilder(new Number160(rnd)).ports(5003).snapshotFile(snapshot).start();
+            fb = peer2.bootstrap().fast().readyBags(2).start();
+            fb.awaitUninterruptibly();
+            Assert.assertEquals(true, fb.isSuccess());
+            Assert.assertTrue(peer2.peerBean().peerMap().size() > 2);
+        } finally {
+            snapshot.delete();
+            if (peer1 != null) {
+                peer1.shutdown().await();
+            }
+            if (peer2 != null) {
+                peer2.shutdown().await();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+    @Test
+    public void testFastBootstrapManySeeds() throws Exception {
+        final Random rnd = new Random(42);
+        Peer master = null;
+        Peer peer1 = null;
+        try {
+            // more seeds than UDP permits can be reserved at once
+            Peer[] peers = Utils2.createNodes(300, rnd, 5001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            List<PeerAddress> seeds = new ArrayList<PeerAddress>();
+            for (Peer peer : peers) {
+                seeds.add(peer.peerAddress());
+            }
+            peer1 = new PeerBuilder(new Number160(rnd)).ports(5002).start();
+            FutureBootstrap fb = peer1.bootstrap().bootstrapTo(seeds).fast().readyBags(2).start();
+            fb.awaitUninterruptibly();
+            Assert.assertEquals(true, fb.isSuccess());
+            Assert.assertTrue(peer1.peerBean().peerMap().populatedBags() >= 2);
+        } finally {
+            if (peer1 != null) {
+                peer1.shutdown().await();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package net.tomp2p.p2p;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -83,4 +85,45 @@ public class TestEvaluation {
         Assert.assertEquals(true, tmp.containsKey(new Number640(new Number160(13),new Number160(13),new Number160(13),new Number160(0))));
         Assert.assertEquals(true, tmp.containsKey(new Number640(new Number160(14),new Number160(14),new Number160(14),new Number160(0))));
     }
+
+    @Test
+    public void testEvaluationNotModified() throws Exception {
+        Number640 key1 = new Number640(new Number160(12), new Number160(12), new Number160(12), new Number160(0));
+        Number640 key2 = new Number640(new Number160(13), new Number160(13), new Number160(13), new Number160(0));
+        Data known1 = new Data(new byte[] { 1, 1 });
+        Data known2 = new Data(new byte[] { 2, 2 });
+        Data changed2 = new Data(new byte[] { 3, 3 });
+        Map<Number640, Data> knownData = new HashMap<Number640, Data>();
+        knownData.put(key1, known1);
+        knownData.put(key2, known2);
+
+        Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>();
+        Map<PeerAddress, Collection<Number640>> rawNotModified = new HashMap<PeerAddress, Collection<Number640>>();
+        // two peers have not modified entries, the third has a changed entry
+        PeerAddress pa1 = Utils2.createAddress(19);
+        rawData.put(pa1, new HashMap<Number640, Data>());
+        rawNotModified.put(pa1, Arrays.asList(key1, key2));
+        PeerAddress pa2 = Utils2.createAddress(20);
+        rawData.put(pa2, new HashMap<Number640, Data>());
+        rawNotModified.put(pa2, Arrays.asList(key1, key2));
+        PeerAddress pa3 = Utils2.createAddress(21);
+        Map<Number640, Data> test3 = new HashMap<Number640, Data>();
+        test3.put(key2, changed2);
+        rawData.put(pa3, test3);
+        rawNotModified.put(pa3, Arrays.asList(key1));
+
+        Map<Number640, Data> tmp = new VotingSchemeDHT().evaluate7(rawData, rawNotModified, knownData);
+        Assert.assertEquals(2, tmp.size());
+        Assert.assertSame(known1, tmp.get(key1));
+        Assert.assertSame(known2, tmp.get(key2));
+        // the changed entry wins if the majority has it
+        rawNotModified.put(pa2, Arrays.asList(key1));
+        rawData.put(pa2, test3);
+        tmp = new VotingSchemeDHT().evaluate7(rawData, rawNotModified, knownData);
+        Assert.assertSame(known1, tmp.get(key1));
+        Assert.assertEquals(changed2, tmp.get(key2));
+        // without not modified entries, this is the same as evaluate2
+        Assert.assertEquals(new VotingSchemeDHT().evaluate2(rawData), new VotingSchemeDHT().evaluate7(rawData,
+                null, knownData));
+    }
 }
@@ -1,10 +1,13 @@
 package net.tomp2p.p2p;
 
+import java.io.File;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.Utils2;
 import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.SharedPeerState;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -37,6 +40,79 @@ public class TestMaintenance {
         
     }
     
+    @Test
+    public void testVirtualPeers() throws Exception {
+        final Random rnd = new Random(42L);
+        Peer master = null;
+        Peer other = null;
+        try {
+            master = new PeerBuilder(new Number160(rnd)).ports(5001).sharedPeerState(new SharedPeerState()).start();
+            Peer[] virtualPeers = new Peer[3];
+            for (int i = 0; i < virtualPeers.length; i++) {
+                virtualPeers[i] = new PeerBuilder(new Number160(rnd)).masterPeer(master).start();
+                // maintained by the master peer
+                Assert.assertNull(virtualPeers[i].peerBean().maintenanceTask());
+                Assert.assertSame(master.peerBean().peerMap().sharedPeerState(), virtualPeers[i].peerBean()
+                        .peerMap().sharedPeerState());
+            }
+            other = new PeerBuilder(new Number160(rnd)).ports(5002).start();
+
+            // a virtual peer contacts an other peer, all virtual peers know it
+            Assert.assertTrue(virtualPeers[1].ping().peerAddress(other.peerAddress()).start()
+                    .awaitUninterruptibly().isSuccess());
+            Assert.assertTrue(master.peerBean().peerMap().contains(other.peerAddress()));
+            for (Peer virtualPeer : virtualPeers) {
+                Assert.assertTrue(virtualPeer.peerBean().peerMap().contains(other.peerAddress()));
+            }
+            Assert.assertEquals(4, master.peerBean().peerMap().sharedPeerState().peerMaps().size());
+            virtualPeers[2].shutdown().awaitUninterruptibly();
+            Assert.assertEquals(3, master.peerBean().peerMap().sharedPeerState().peerMaps().size());
+        } finally {
+            if (other != null) {
+                other.shutdown().await();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testWarmRestart() throws Exception {
+        final Random rnd = new Random(42L);
+        Peer master = null;
+        Peer peer = null;
+        File snapshot = File.createTempFile("tomp2p", ".snapshot");
+        snapshot.delete();
+        try {
+            master = new PeerBuilder(new Number160(rnd)).ports(5001).start();
+            Number160 peerId = new Number160(rnd);
+            peer = new PeerBuilder(peerId).ports(5002).snapshotFile(snapshot).start();
+            Assert.assertTrue(peer.ping().peerAddress(master.peerAddress()).start().awaitUninterruptibly()
+                    .isSuccess());
+            Assert.assertTrue(peer.peerBean().peerMap().contains(master.peerAddress()));
+            // the snapshot is written on shutdown
+            peer.shutdown().awaitUninterruptibly();
+            Assert.assertTrue(snapshot.exists());
+
+            // the restarted peer knows the master, and the maintenance verifies it
+            peer = new PeerBuilder(peerId).ports(5002).snapshotFile(snapshot).start();
+            Assert.assertTrue(peer.peerBean().peerMap().containsOverflow(master.peerAddress()));
+            for (int i = 0; i < 50 && !peer.peerBean().peerMap().contains(master.peerAddress()); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(peer.peerBean().peerMap().contains(master.peerAddress()));
+        } finally {
+            snapshot.delete();
+            if (peer != null) {
+                peer.shutdown().await();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
     private static class Rep implements AutomaticFuture {
         
         private final AtomicInteger counter;
@@ -16,6 +16,13 @@
 
 package net.tomp2p.peers;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.util.Random;
 import java.util.concurrent.ConcurrentSkipListSet;
@@ -282,4 +289,103 @@ public class TestNumber160 {
         n2 = new Number160(Long.MAX_VALUE);
         Assert.assertEquals("0x7FFFFFFFFFFFFFFF".toLowerCase(), n2.toString());
     }
+
+    @Test
+    public void testCompactNumber640() {
+        for (int i = 0; i < 1000; i++) {
+            Number640 n1 = new Number640(rnd);
+            Number640 n2 = new Number640(rnd);
+            CompactNumber640 c1 = new CompactNumber640(n1);
+            CompactNumber640 c2 = new CompactNumber640(n2);
+            Assert.assertEquals(n1, c1.toNumber640());
+            Assert.assertEquals(c1, new CompactNumber640(n1));
+            Assert.assertEquals(c1.hashCode(), new CompactNumber640(n1).hashCode());
+            Assert.assertEquals(Integer.signum(n1.compareTo(n2)), Integer.signum(c1.compareTo(c2)));
+        }
+        Number640 min = new Number640(Number160.ZERO, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+        Number640 max = new Number640(Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE,
+                Number160.MAX_VALUE);
+        Assert.assertEquals(max, new CompactNumber640(max).toNumber640());
+        Assert.assertEquals(-1, new CompactNumber640(min).compareTo(new CompactNumber640(max)));
+        // the version key is compared last
+        Number640 n1 = new Number640(new Number160(1), Number160.ZERO, Number160.ZERO, Number160.MAX_VALUE);
+        Number640 n2 = new Number640(new Number160(2), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+        Assert.assertEquals(-1, new CompactNumber640(n1).compareTo(new CompactNumber640(n2)));
+    }
+
+    @Test
+    public void testCompareDistance() {
+        for (int i = 0; i < 1000; i++) {
+            Number160 key = new Number160(rnd);
+            Number160 n1 = new Number160(rnd);
+            // share a prefix with the key, so that the lower parts are compared as well
+            Number160 n2 = i % 2 == 0 ? new Number160(rnd) : new Number160(key.timestamp(), new Number160(rnd));
+            Assert.assertEquals(key.xor(n1).compareTo(key.xor(n2)), Number160.compareDistance(key, n1, n2));
+            Assert.assertEquals(key.xor(n2).bitLength(), key.xorBitLength(n2));
+            Assert.assertEquals(new BigInteger(1, n1.toByteArray()).bitLength(), n1.bitLength());
+        }
+        Number160 key = new Number160(rnd);
+        Assert.assertEquals(0, Number160.compareDistance(key, key, key));
+        Assert.assertEquals(0, key.xorBitLength(key));
+        Assert.assertEquals(160, Number160.ZERO.numberOfLeadingZeros());
+        Assert.assertEquals(159, Number160.ONE.numberOfLeadingZeros());
+        Assert.assertEquals(0, Number160.MAX_VALUE.numberOfLeadingZeros());
+        Assert.assertEquals(64, new Number160(0, 0, 1 << 31, 0, 0).numberOfLeadingZeros());
+        Assert.assertEquals(128, new Number160(0, 0, 0, 0, 1 << 31).numberOfLeadingZeros());
+    }
+
+    @Test
+    public void testHashCode() {
+        for (int i = 0; i < 1000; i++) {
+            Number160 n1 = new Number160(rnd);
+            // the hash code of the integer array representation
+            int hashCode = 0;
+            for (int val : n1.toIntArray()) {
+                hashCode = 31 * hashCode + val;
+            }
+            Assert.assertEquals(hashCode, n1.hashCode());
+            Assert.assertEquals(n1, new Number160(n1.toIntArray()));
+            Assert.assertEquals(n1, new Number160(n1.toByteArray()));
+            Assert.assertEquals(n1, new Number160(n1.toString()));
+        }
+        Assert.assertEquals(new Number160(new Random(42)), Number160.createHash(42));
+        Assert.assertEquals("0x", Number160.ZERO.toString());
+        Assert.assertEquals("0x0000000000000000000000000000000000000001", Number160.ONE.toString(false));
+    }
+
+    @Test
+    public void testByteBuf() {
+        ByteBuf buf = Unpooled.buffer();
+        for (int i = 0; i < 100; i++) {
+            Number160 n1 = new Number160(rnd);
+            n1.write(buf);
+            Assert.assertEquals(n1, new Number160(buf.array(), buf.writerIndex() - Number160.BYTE_ARRAY_SIZE,
+                    Number160.BYTE_ARRAY_SIZE));
+            Assert.assertEquals(n1, Number160.create(buf, buf.writerIndex() - Number160.BYTE_ARRAY_SIZE));
+            Assert.assertEquals(n1, Number160.create(buf));
+            Assert.assertEquals(buf.writerIndex(), buf.readerIndex());
+        }
+    }
+
+    @Test
+    public void testJavaSerialization() throws Exception {
+        // serialized with the integer array of the previous versions
+        String serialized = "aced00057372001a6e65742e746f6d7032702e70656572732e4e756d626572313630a75e5f735e274f8e"
+                + "0200015b000376616c7400025b49787200106a6176612e6c616e672e4e756d62657286ac951d0b94e08b0200007870"
+                + "757200025b494dba602676eab2a50200007870000000051234567890abcdef1234567890abcdef12345678";
+        byte[] me = new byte[serialized.length() / 2];
+        for (int i = 0; i < me.length; i++) {
+            me[i] = (byte) Integer.parseInt(serialized.substring(i * 2, i * 2 + 2), 16);
+        }
+        Number160 n1 = new Number160("0x1234567890abcdef1234567890abcdef12345678");
+        Assert.assertEquals(n1, new ObjectInputStream(new ByteArrayInputStream(me)).readObject());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(n1);
+        oos.close();
+        Assert.assertEquals(n1, new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject());
+        Assert.assertEquals(1311768467294899695L, n1.longValue());
+        Assert.assertEquals(1.0392900530792776E47, n1.doubleValue(), 0);
+    }
 }
@@ -16,12 +16,14 @@
 
 package net.tomp2p.peers;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Random;
 import java.util.SortedSet;
@@ -31,6 +33,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import net.tomp2p.Utils2;
 import net.tomp2p.connection.PeerException;
 import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.utils.ConcurrentCacheMap;
 import net.tomp2p.utils.Utils;
 
 import org.junit.Assert;
@@ -253,7 +256,8 @@ public class TestPeerMap {
         peerMap.peerFailed(new PeerAddress(new Number160(2)), new PeerException(AbortCause.PROBABLY_OFFLINE, "probably offline"));
         Assert.assertEquals(19, peerMap.size());
         Assert.assertTrue(peerMap.isPeerRemovedTemporarly(new PeerAddress(new Number160(2))));
-        Thread.sleep(1000);
+        // the removed peers may be reported for one more tick of the cache clock
+        Thread.sleep(1000 + 2 * ConcurrentCacheMap.TICK_MILLIS);
         Assert.assertFalse(peerMap.isPeerRemovedTemporarly(new PeerAddress(new Number160(2))));
         Assert.assertFalse(peerMap.isPeerRemovedTemporarly(new PeerAddress(new Number160(100))));
 
@@ -294,7 +298,8 @@ public class TestPeerMap {
         t2.join();
 
         Assert.assertTrue(peerMap.isPeerRemovedTemporarly(new PeerAddress(new Number160(100))));
-        Assert.assertEquals(3, peerMap.size());
+        // the failed peers in bag 6 are replaced by the checked peers 125-127 from the overflow map
+        Assert.assertEquals(6, peerMap.size());
     }
 
     @Test
@@ -425,7 +430,8 @@ public class TestPeerMap {
         for (PeerAddress r1 : listAdded) {
             peerMap.peerFound(r1, r1, null);
         }
-        Assert.assertEquals(47, peerMap.size());
+        // failed peers are replaced by checked peers from the overflow map
+        Assert.assertEquals(57, peerMap.size());
         for (PeerAddress r1 : listRemoved) {
             Assert.assertTrue(peerMap.isPeerRemovedTemporarly(r1));
         }
@@ -495,6 +501,187 @@ public class TestPeerMap {
         Assert.assertEquals(peerStatatistic.peerAddress(), pa3);
     }
 
+    @Test
+    public void testPromote() throws UnknownHostException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.bagSizeVerified(2).bagSizeOverflow(2);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.addPeerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(4, new int[] { 1, 1 }));
+        final PeerMap peerMap = new PeerMap(conf);
+        // all in bag 2
+        PeerAddress pa4 = new PeerAddress(new Number160(4));
+        PeerAddress pa5 = new PeerAddress(new Number160(5));
+        PeerAddress pa6 = new PeerAddress(new Number160(6));
+        PeerAddress pa7 = new PeerAddress(new Number160(7));
+        peerMap.peerFound(pa4, null, null);
+        peerMap.peerFound(pa5, null, null);
+        // checked by us, but the verified bag is full
+        peerMap.peerFound(pa6, null, null);
+        // only reported by pa4
+        peerMap.peerFound(pa7, pa4, null);
+        Assert.assertTrue(peerMap.containsOverflow(pa6));
+        Assert.assertTrue(peerMap.containsOverflow(pa7));
+
+        peerMap.peerFailed(pa4, new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+        Assert.assertTrue(peerMap.contains(pa6));
+        Assert.assertFalse(peerMap.containsOverflow(pa6));
+        // pa7 has not been checked, so it stays in the overflow map and is checked by the maintenance
+        peerMap.peerFailed(pa5, new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+        Assert.assertEquals(1, peerMap.size());
+        Assert.assertTrue(peerMap.containsOverflow(pa7));
+        Assert.assertEquals(pa7, peerMap.nextForMaintenance(new ArrayList<PeerAddress>()).peerAddress());
+    }
+
+    @Test
+    public void testSharedPeerState() throws UnknownHostException {
+        SharedPeerState sharedPeerState = new SharedPeerState(60, 20, 120, 3, 100);
+        PeerMap peerMap1 = new PeerMap(new PeerMapConfiguration(new Number160(1)).sharedPeerState(sharedPeerState));
+        PeerMap peerMap2 = new PeerMap(new PeerMapConfiguration(new Number160(2)).sharedPeerState(sharedPeerState));
+        PeerAddress pa3 = new PeerAddress(new Number160(3));
+        PeerAddress pa4 = new PeerAddress(new Number160(4));
+
+        // one virtual peer found pa3 and pa4, both views know them
+        Assert.assertTrue(sharedPeerState.peerFound(pa3, null, null));
+        Assert.assertTrue(sharedPeerState.peerFound(pa4, null, null));
+        Assert.assertTrue(peerMap1.contains(pa3));
+        Assert.assertTrue(peerMap2.contains(pa3));
+        Assert.assertSame(peerMap1.peerMapVerified().get(1).get(pa3.peerId()),
+                peerMap2.peerMapVerified().get(0).get(pa3.peerId()));
+        Assert.assertEquals(2, sharedPeerState.size());
+
+        // a timeout is counted once for all views
+        sharedPeerState.peerFailed(pa3, new PeerException(AbortCause.TIMEOUT, "timeout"));
+        sharedPeerState.peerFailed(pa3, new PeerException(AbortCause.TIMEOUT, "timeout"));
+        Assert.assertTrue(peerMap1.contains(pa3));
+        Assert.assertTrue(peerMap2.contains(pa3));
+        sharedPeerState.peerFailed(pa3, new PeerException(AbortCause.TIMEOUT, "timeout"));
+        Assert.assertFalse(peerMap1.contains(pa3));
+        Assert.assertFalse(peerMap2.contains(pa3));
+        Assert.assertTrue(peerMap1.isPeerRemovedTemporarly(pa3));
+
+        // a removed view is not updated anymore
+        Assert.assertTrue(sharedPeerState.remove(peerMap2));
+        sharedPeerState.peerFailed(pa4, new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+        Assert.assertFalse(peerMap1.contains(pa4));
+        Assert.assertTrue(peerMap2.contains(pa4));
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        Random rnd = new Random(42L);
+        PeerMap peerMap1 = new PeerMap(new PeerMapConfiguration(ID).bagSizeVerified(2).bagSizeOverflow(4));
+        for (int i = 0; i < 200; i++) {
+            peerMap1.peerFound(Utils2.createAddress(new Number160(rnd)), null, null);
+        }
+        File file = File.createTempFile("tomp2p", ".snapshot");
+        try {
+            int written = PeerMapSnapshot.write(peerMap1, file);
+            Assert.assertEquals(peerMap1.size() + peerMap1.allOverflow().size(), written);
+            List<PeerAddress> peerAddresses = PeerMapSnapshot.read(file);
+            Assert.assertEquals(written, peerAddresses.size());
+            // the verified peers first
+            Assert.assertTrue(peerMap1.contains(peerAddresses.get(0)));
+            Assert.assertTrue(peerMap1.containsOverflow(peerAddresses.get(written - 1)));
+
+            // all peers are restored into the overflow bags with their statistics
+            PeerMap peerMap2 = new PeerMap(new PeerMapConfiguration(ID).bagSizeVerified(2).bagSizeOverflow(10));
+            Assert.assertEquals(written, PeerMapSnapshot.load(peerMap2, file));
+            Assert.assertEquals(0, peerMap2.size());
+            Assert.assertEquals(written, peerMap2.allOverflow().size());
+            PeerAddress verified = peerAddresses.get(0);
+            int classMember = PeerMap.classMember(ID, verified.peerId());
+            PeerStatistic restored = peerMap2.peerMapOverflow().get(classMember).get(verified.peerId());
+            Assert.assertEquals(1, restored.successfullyCheckedCounter());
+            Assert.assertEquals(peerMap1.peerMapVerified().get(classMember).get(verified.peerId()).lastSeenOnline(),
+                    restored.lastSeenOnline());
+
+            // a restored peer becomes verified once it has been checked
+            Assert.assertTrue(peerMap2.peerFound(verified, null, null));
+            Assert.assertTrue(peerMap2.contains(verified));
+            Assert.assertFalse(peerMap2.containsOverflow(verified));
+            // loading again does not add known peers
+            Assert.assertEquals(0, PeerMapSnapshot.load(peerMap2, file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRefresh() throws InterruptedException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        final PeerMap peerMap = new PeerMap(conf);
+        Random rnd = new Random(42L);
+        for (int i = 0; i < 1000; i++) {
+            int bag = rnd.nextInt(Number160.BITS);
+            Assert.assertEquals(bag, PeerMap.classMember(ID, peerMap.randomKey(bag, rnd)));
+        }
+        Assert.assertTrue(peerMap.bagsToRefresh(-1).isEmpty());
+        peerMap.peerFound(new PeerAddress(ID.xor(new Number160(0x300))), null, null);
+        // bags 9 to 159
+        List<Integer> bags = peerMap.bagsToRefresh(-1);
+        Assert.assertEquals(151, bags.size());
+        Assert.assertEquals(Integer.valueOf(9), bags.get(0));
+        // make sure the touch is later than the creation of the map
+        Thread.sleep(2);
+        peerMap.touch(peerMap.randomKey(9, rnd));
+        Assert.assertEquals(Integer.valueOf(9), peerMap.bagsToRefresh(-1).get(150));
+        Assert.assertTrue(peerMap.bagsToRefresh(1000).isEmpty());
+    }
+
+    @Test
+    public void testMaintenanceWithoutListener() throws UnknownHostException {
+        // a maintenance that only implements the init without the own peer ID
+        final AtomicInteger inits = new AtomicInteger();
+        final Maintenance maintenance = new Maintenance() {
+            private List<Map<Number160, PeerStatistic>> peerMapVerified;
+
+            @Override
+            public Maintenance init(List<Map<Number160, PeerStatistic>> peerMapVerified,
+                    List<Map<Number160, PeerStatistic>> peerMapNonVerified,
+                    ConcurrentCacheMap<Number160, PeerAddress> offlineMap,
+                    ConcurrentCacheMap<Number160, PeerAddress> shutdownMap,
+                    ConcurrentCacheMap<Number160, PeerAddress> exceptionMap) {
+                inits.incrementAndGet();
+                this.peerMapVerified = peerMapVerified;
+                return this;
+            }
+
+            @Override
+            public PeerStatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses) {
+                for (Map<Number160, PeerStatistic> bag : peerMapVerified) {
+                    synchronized (bag) {
+                        if (!bag.isEmpty()) {
+                            return bag.values().iterator().next();
+                        }
+                    }
+                }
+                return null;
+            }
+        };
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.addPeerFilter(new DefaultPeerFilter()).maintenance(maintenance);
+        PeerMap peerMap = new PeerMap(conf);
+        Assert.assertEquals(1, inits.get());
+        PeerAddress pa = Utils2.createAddress(12);
+        Assert.assertTrue(peerMap.peerFound(pa, null, null));
+        Assert.assertEquals(pa, peerMap.nextForMaintenance(new ArrayList<PeerAddress>()).peerAddress());
+    }
+
+    @Test
+    public void testDefaultMaintenanceWithoutSelf() throws UnknownHostException {
+        PeerMap peerMap = new PeerMap(new PeerMapConfiguration(ID));
+        // the old init does not get the own peer ID, the bag is found in the maps
+        DefaultMaintenance maintenance = (DefaultMaintenance) new DefaultMaintenance(0, new int[] { 0 }).init(
+                peerMap.peerMapVerified(), peerMap.peerMapOverflow(),
+                new ConcurrentCacheMap<Number160, PeerAddress>(), new ConcurrentCacheMap<Number160, PeerAddress>(),
+                new ConcurrentCacheMap<Number160, PeerAddress>());
+        peerMap.addPeerMapChangeListener(maintenance);
+        PeerAddress pa = Utils2.createAddress(12);
+        Assert.assertTrue(peerMap.peerFound(pa, null, null));
+        Assert.assertEquals(1, maintenance.scheduled());
+        Assert.assertEquals(pa, maintenance.nextForMaintenance(new ArrayList<PeerAddress>()).peerAddress());
+    }
+
     @Test
     public void testClose() throws UnknownHostException {
         for (int i = 1; i < 30; i++) {
@@ -124,6 +124,28 @@ public class TestBloomFilter {
 
         Assert.assertEquals(true, cbs.contains("abc"));
     }
+
+    /**
+     * Test removal of previously added items.
+     */
+    @Test
+    public void testCountingBloomFilterRemove() {
+        final int countingSize = 100;
+        int[] counting = new int[countingSize];
+        CountingBloomFilter<String> cbs = new CountingBloomFilter<String>(bfSize, counting);
+
+        cbs.add("abc");
+        cbs.add("abc");
+        cbs.add("abd");
+
+        cbs.remove("abc");
+        Assert.assertEquals(true, cbs.contains("abc"));
+        cbs.remove("abc");
+        Assert.assertEquals(0, cbs.approximateCount("abc"));
+        Assert.assertEquals(true, cbs.contains("abd"));
+        cbs.remove("abd");
+        Assert.assertEquals(false, cbs.contains("abd"));
+    }
     
     @Test 
     public void intersect() {
@@ -7,6 +7,7 @@ import io.netty.util.concurrent.EventExecutorGroup;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.connection.ChannelClientConfiguration;
@@ -17,6 +18,7 @@ import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDirect;
 import net.tomp2p.futures.FuturePeerConnection;
+import net.tomp2p.futures.FuturePing;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.ProgressListener;
 import net.tomp2p.message.Buffer;
@@ -198,6 +200,67 @@ public class TestDirect {
         }
     }
 
+    @Test
+    public void testOverloaded() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        final CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            sender = new PeerBuilder(new Number160("0x50")).p2pId(55).ports(2424).start();
+            ChannelServerConfiguration csc = PeerBuilder.createDefaultChannelServerConfiguration();
+            csc.bulkheadThreads(1).bulkheadQueueSize(1);
+            recv1 = new PeerBuilder(new Number160("0x20")).p2pId(55).ports(8088).channelServerConfiguration(csc)
+                    .start();
+            recv1.objectDataReply(new ObjectDataReply() {
+                @Override
+                public Object reply(PeerAddress sender, Object request) throws Exception {
+                    blocked.await();
+                    return "yes";
+                }
+            });
+
+            FutureChannelCreator fcc = sender.connectionBean().reservation().create(0, 3);
+            fcc.awaitUninterruptibly();
+            cc = fcc.channelCreator();
+
+            SendDirectBuilder sendDirectBuilder = new SendDirectBuilder(sender, (PeerAddress) null);
+            sendDirectBuilder.object("test");
+            // one request runs, one waits in the queue
+            FutureResponse fd1 = sender.directDataRPC().send(recv1.peerAddress(), sendDirectBuilder, cc);
+            Thread.sleep(500);
+            FutureResponse fd2 = sender.directDataRPC().send(recv1.peerAddress(), sendDirectBuilder, cc);
+            Thread.sleep(500);
+            FutureResponse fd3 = sender.directDataRPC().send(recv1.peerAddress(), sendDirectBuilder, cc);
+            fd3.awaitUninterruptibly();
+            Assert.assertEquals(Message.Type.OVERLOADED, fd3.responseMessage().type());
+
+            // the I/O threads are not blocked by the user handler
+            FuturePing fp = sender.ping().peerAddress(recv1.peerAddress()).start();
+            fp.awaitUninterruptibly();
+            Assert.assertTrue(fp.isSuccess());
+
+            blocked.countDown();
+            fd1.awaitUninterruptibly();
+            fd2.awaitUninterruptibly();
+            Assert.assertTrue(fd1.isSuccess());
+            Assert.assertTrue(fd2.isSuccess());
+            Assert.assertEquals(1, recv1.connectionBean().dispatcher()
+                    .bulkhead(RPC.Commands.DIRECT_DATA.getNr()).rejected());
+        } finally {
+            blocked.countDown();
+            if (cc != null) {
+                cc.shutdown().awaitListenersUninterruptibly();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testOrder() throws Exception {
         Peer sender = null;
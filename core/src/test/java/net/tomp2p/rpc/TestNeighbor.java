@@ -160,6 +160,126 @@ public class TestNeighbor {
         }
     }
 
+    @Test
+    public void testNeigbhorCoalesce() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+            sender = new PeerBuilder(new Number160("0x50")).p2pId(55).ports(2424).start();
+            PeerAddress[] pa = Utils2.createDummyAddresses(300, PORT_TCP, PORT_UDP);
+            for (int i = 0; i < pa.length; i++) {
+                sender.peerBean().peerMap().peerFound(pa[i], null, null);
+            }
+            new NeighborRPC(sender.peerBean(), sender.connectionBean());
+            recv1 = new PeerBuilder(new Number160("0x20")).p2pId(55).ports(8088).start();
+            NeighborRPC neighbors2 = new NeighborRPC(recv1.peerBean(), recv1.connectionBean());
+
+            FutureChannelCreator fcc = recv1.connectionBean().reservation().create(1, 0);
+            fcc.awaitUninterruptibly();
+            ChannelCreator cc = fcc.channelCreator();
+
+            SearchValues v = new SearchValues(new Number160("0x1"), null);
+            FutureResponse fr1 = neighbors2.closeNeighbors(sender.peerAddress(), v, 
+                    Type.REQUEST_2, cc, new DefaultConnectionConfiguration());
+            // same request while the first one is in flight, uses no permit
+            FutureResponse fr2 = neighbors2.closeNeighbors(sender.peerAddress(), v, 
+                    Type.REQUEST_2, cc, new DefaultConnectionConfiguration());
+
+            fr1.awaitUninterruptibly();
+            fr2.awaitUninterruptibly();
+            Assert.assertEquals(true, fr1.isSuccess());
+            Assert.assertEquals(true, fr2.isSuccess());
+            Assert.assertSame(fr1.responseMessage(), fr2.responseMessage());
+            cc.shutdown();
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testNeigbhorCoalesceApart() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+            sender = new PeerBuilder(new Number160("0x50")).p2pId(55).ports(2424).start();
+            new NeighborRPC(sender.peerBean(), sender.connectionBean());
+            recv1 = new PeerBuilder(new Number160("0x20")).p2pId(55).ports(8088).start();
+            NeighborRPC neighbors2 = new NeighborRPC(recv1.peerBean(), recv1.connectionBean());
+
+            FutureChannelCreator fcc = recv1.connectionBean().reservation().create(3, 0);
+            fcc.awaitUninterruptibly();
+            ChannelCreator cc = fcc.channelCreator();
+
+            SearchValues v = new SearchValues(new Number160("0x1"), null);
+            FutureResponse fr1 = neighbors2.closeNeighbors(sender.peerAddress(), v, 
+                    Type.REQUEST_2, cc, new DefaultConnectionConfiguration());
+            // a different type is a different request
+            FutureResponse fr2 = neighbors2.closeNeighbors(sender.peerAddress(), v, 
+                    Type.REQUEST_1, cc, new DefaultConnectionConfiguration());
+            fr1.awaitUninterruptibly();
+            fr2.awaitUninterruptibly();
+            // the first request is done, so the same request is sent again
+            FutureResponse fr3 = neighbors2.closeNeighbors(sender.peerAddress(), v, 
+                    Type.REQUEST_2, cc, new DefaultConnectionConfiguration());
+            fr3.awaitUninterruptibly();
+            Assert.assertEquals(true, fr1.isSuccess());
+            Assert.assertEquals(true, fr2.isSuccess());
+            Assert.assertEquals(true, fr3.isSuccess());
+            Assert.assertNotSame(fr1.responseMessage(), fr2.responseMessage());
+            Assert.assertNotSame(fr1.responseMessage(), fr3.responseMessage());
+            cc.shutdown();
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testNeigbhorCoalesceDisabled() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+            sender = new PeerBuilder(new Number160("0x50")).p2pId(55).ports(2424).start();
+            new NeighborRPC(sender.peerBean(), sender.connectionBean());
+            recv1 = new PeerBuilder(new Number160("0x20")).p2pId(55).ports(8088).start();
+            NeighborRPC neighbors2 = new NeighborRPC(recv1.peerBean(), recv1.connectionBean()).coalesce(false);
+
+            FutureChannelCreator fcc = recv1.connectionBean().reservation().create(2, 0);
+            fcc.awaitUninterruptibly();
+            ChannelCreator cc = fcc.channelCreator();
+
+            SearchValues v = new SearchValues(new Number160("0x1"), null);
+            FutureResponse fr1 = neighbors2.closeNeighbors(sender.peerAddress(), v, 
+                    Type.REQUEST_2, cc, new DefaultConnectionConfiguration());
+            // same request while the first one is in flight, but sent on its own
+            FutureResponse fr2 = neighbors2.closeNeighbors(sender.peerAddress(), v, 
+                    Type.REQUEST_2, cc, new DefaultConnectionConfiguration());
+
+            fr1.awaitUninterruptibly();
+            fr2.awaitUninterruptibly();
+            Assert.assertEquals(true, fr1.isSuccess());
+            Assert.assertEquals(true, fr2.isSuccess());
+            Assert.assertNotSame(fr1.responseMessage(), fr2.responseMessage());
+            cc.shutdown();
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testNeigbhorFail() throws Exception {
         Peer sender = null;
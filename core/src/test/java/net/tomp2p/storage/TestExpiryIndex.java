@@ -0,0 +1,50 @@
+package net.tomp2p.storage;
+
+import java.util.Collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestExpiryIndex {
+
+    @Test
+    public void testExpired() {
+        ExpiryIndex<String> index = new ExpiryIndex<String>(100);
+        index.add("a", 1050);
+        index.add("b", 1099);
+        index.add("c", 1150);
+        index.add("d", 5000);
+        Collection<String> expired = index.expired(1100, -1);
+        Assert.assertEquals(2, expired.size());
+        Assert.assertTrue(expired.contains("a"));
+        Assert.assertTrue(expired.contains("b"));
+        // same bucket, but not yet expired
+        Assert.assertEquals(2, index.expired(1150, -1).size());
+        Assert.assertEquals(3, index.expired(1151, -1).size());
+        Assert.assertEquals(4, index.size());
+    }
+
+    @Test
+    public void testLimit() {
+        ExpiryIndex<Integer> index = new ExpiryIndex<Integer>(10);
+        for (int i = 0; i < 100; i++) {
+            index.add(i, i);
+        }
+        Assert.assertEquals(25, index.expired(1000, 25).size());
+        Assert.assertEquals(0, index.expired(1000, 0).size());
+        Assert.assertEquals(100, index.expired(1000, -1).size());
+    }
+
+    @Test
+    public void testUpdateAndRemove() {
+        ExpiryIndex<String> index = new ExpiryIndex<String>(100);
+        index.add("a", 100);
+        index.add("a", 900);
+        Assert.assertEquals(0, index.expired(500, -1).size());
+        Assert.assertEquals(Long.valueOf(900), index.expiration("a"));
+        Assert.assertEquals(Long.valueOf(900), index.remove("a"));
+        Assert.assertEquals(0, index.expired(1000, -1).size());
+        Assert.assertNull(index.remove("a"));
+        Assert.assertEquals(0, index.size());
+    }
+}
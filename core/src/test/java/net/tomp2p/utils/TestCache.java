@@ -139,6 +139,61 @@ public class TestCache {
         Assert.assertEquals("test0", val);
     }
     
+    @Test
+    public void testEvict() throws InterruptedException {
+        ConcurrentCacheMap<String, String> test = new ConcurrentCacheMap<String, String>(60, 32);
+        for (int i = 0; i < 32; i++) {
+            test.put("hallo" + i, "test" + i);
+        }
+        Thread.sleep(50);
+        test.get("hallo0");
+        Thread.sleep(50);
+        // a batch of two of the least recently used entries is evicted
+        test.put("hallo32", "test32");
+        Assert.assertEquals(31, test.size());
+        Assert.assertEquals("test0", test.get("hallo0"));
+        Assert.assertEquals("test32", test.get("hallo32"));
+    }
+
+    @Test
+    public void testSweep() throws InterruptedException {
+        ConcurrentCacheMap<String, String> test = new ConcurrentCacheMap<String, String>(1, 1024);
+        for (int i = 0; i < 10; i++) {
+            test.put("hallo" + i, "test" + i);
+        }
+        // the entries are removed in the background without being accessed
+        Thread.sleep(1000 + 2 * ConcurrentCacheMap.SWEEP_MILLIS);
+        Assert.assertEquals(10, test.expiredCounter());
+        Assert.assertTrue(test.isEmpty());
+    }
+
+    @Test
+    public void testSizeAfterExpiry() throws InterruptedException {
+        ConcurrentCacheMap<String, String> test = new ConcurrentCacheMap<String, String>(1, 1024);
+        for (int i = 0; i < 10; i++) {
+            test.put("hallo" + i, "test" + i);
+        }
+        Assert.assertEquals(10, test.size());
+        Assert.assertEquals(0, test.expiredCounter());
+        Thread.sleep(1100);
+        // the first size after the expiry removes the expired entries
+        test.put("hallo10", "test10");
+        Assert.assertEquals(1, test.size());
+        Assert.assertEquals(10, test.expiredCounter());
+        Assert.assertFalse(test.isEmpty());
+    }
+
+    @Test
+    public void testRemoveValue() {
+        ConcurrentCacheMap<String, String> test = new ConcurrentCacheMap<String, String>(1, 1024);
+        test.put("hallo0", "test0");
+        Assert.assertFalse(test.remove("hallo0", "test1"));
+        Assert.assertTrue(test.replace("hallo0", "test0", "test1"));
+        Assert.assertTrue(test.remove("hallo0", "test1"));
+        Assert.assertFalse(test.containsKey("hallo0"));
+        Assert.assertNull(test.replace("hallo0", "test2"));
+    }
+
     @Test
     public void testIteratorKey() {
     	String key = "hallo0";
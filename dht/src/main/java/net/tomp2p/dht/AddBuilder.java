@@ -104,6 +104,6 @@ public class AddBuilder extends DHTBuilder<AddBuilder> {
             rnd = new Random();
         }
 
-        return peer.distributedHashTable().add(this);
+        return peer.peer().metrics().watch(peer.distributedHashTable().add(this), "add");
     }
 }
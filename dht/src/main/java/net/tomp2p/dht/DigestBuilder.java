@@ -281,6 +281,6 @@ public class DigestBuilder extends DHTBuilder<DigestBuilder> implements Searchab
         if (evaluationScheme == null) {
             evaluationScheme = new VotingSchemeDHT();
         }
-        return peer.distributedHashTable().digest(this);
+        return peer.peer().metrics().watch(peer.distributedHashTable().digest(this), "digest");
     }
 }
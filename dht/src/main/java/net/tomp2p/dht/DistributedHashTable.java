@@ -18,26 +18,36 @@ package net.tomp2p.dht;
 import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.dht.StorageLayer.GetStatus;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureForkJoin;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.message.KeyCollection;
 import net.tomp2p.message.KeyMap640Keys;
+import net.tomp2p.message.KeyMapByte;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.DistributedRouting;
 import net.tomp2p.p2p.RequestP2PConfiguration;
+import net.tomp2p.p2p.RoutingConfiguration;
 import net.tomp2p.p2p.VotingSchemeDHT;
 import net.tomp2p.p2p.builder.BasicBuilder;
 import net.tomp2p.p2p.builder.RoutingBuilder;
@@ -70,10 +80,38 @@ public class DistributedHashTable {
 
     private final DirectDataRPC directDataRPC;
 
+    private final LatencyStatistic latencyStatistic = new LatencyStatistic();
+
+    // used to send duplicate requests, or null if duplicate requests are not supported
+    private final ScheduledExecutorService timer;
+
+    // gets that are currently routing or waiting for replies, identical gets are attached to those
+    private final ConcurrentMap<GetKey, FutureGet> inFlightGets = new ConcurrentHashMap<GetKey, FutureGet>();
+
     public DistributedHashTable(DistributedRouting routing, StorageRPC storeRCP, DirectDataRPC directDataRPC) {
+        this(routing, storeRCP, directDataRPC, null);
+    }
+
+    public DistributedHashTable(DistributedRouting routing, StorageRPC storeRCP, DirectDataRPC directDataRPC,
+            ScheduledExecutorService timer) {
         this.routing = routing;
         this.storeRCP = storeRCP;
         this.directDataRPC = directDataRPC;
+        this.timer = timer;
+    }
+
+    /**
+     * @return The round trip times of the requests to other peers, which are used for duplicate requests
+     */
+    public LatencyStatistic latencyStatistic() {
+        return latencyStatistic;
+    }
+
+    /**
+     * @return The timer for duplicate requests, or null if duplicate requests are not supported
+     */
+    public ScheduledExecutorService timer() {
+        return timer;
     }
 
     public FuturePut add(final AddBuilder builder) {
@@ -308,6 +346,22 @@ public class DistributedHashTable {
         final FutureGet futureDHT = new FutureGet(builder, builder.requestP2PConfiguration()
                 .minimumResults(), new VotingSchemeDHT());
 
+        if (builder.isCoalesce() && builder.peerFilters() == null) {
+            final GetKey getKey = new GetKey(builder);
+            final FutureGet inFlight = inFlightGets.putIfAbsent(getKey, futureDHT);
+            if (inFlight != null) {
+                logger.debug("coalescing get for lkey={} with in-flight get", builder.locationKey());
+                attach(inFlight, futureDHT, builder.futureChannelCreator());
+                return futureDHT;
+            }
+            futureDHT.addListener(new BaseFutureAdapter<FutureGet>() {
+                @Override
+                public void operationComplete(final FutureGet future) throws Exception {
+                    inFlightGets.remove(getKey, futureDHT);
+                }
+            });
+        }
+
         builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
             public void operationComplete(final FutureChannelCreator future) throws Exception {
@@ -336,6 +390,8 @@ public class DistributedHashTable {
                                         future.channelCreator(), new OperationMapper<FutureGet>() {
                                             Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>();
                                             Map<PeerAddress, DigestResult> rawDigest = new HashMap<PeerAddress, DigestResult>();
+                                            Map<PeerAddress, Number640> rawNextKeys = new HashMap<PeerAddress, Number640>();
+                                            Map<PeerAddress, Collection<Number640>> rawNotModified = new HashMap<PeerAddress, Collection<Number640>>();
 
                                             @Override
                                             public FutureResponse create(ChannelCreator channelCreator,
@@ -357,7 +413,7 @@ public class DistributedHashTable {
                                             @Override
                                             public void response(FutureGet futureDHT) {
 
-                                                futureDHT.receivedData(rawData, rawDigest);
+                                                futureDHT.receivedData(rawData, rawDigest, rawNextKeys, rawNotModified);
 
                                             }
 
@@ -377,6 +433,28 @@ public class DistributedHashTable {
 																new DigestResult(keyMaps.keysMap()));
 													}
 
+													// the peer has more entries than the page
+													KeyCollection nextKey = future.responseMessage()
+															.keyCollection(0);
+													if (nextKey != null && nextKey.keys() != null
+															&& !nextKey.keys().isEmpty()) {
+														rawNextKeys.put(future.request().recipient(), nextKey
+																.keys().iterator().next());
+													}
+
+													// the known data that has not been sent again
+													KeyMapByte status = future.responseMessage().keyMapByte(0);
+													if (status != null && status.keysMap() != null) {
+														Collection<Number640> notModified = new ArrayList<Number640>();
+														for (Map.Entry<Number640, Byte> entry : status.keysMap()
+																.entrySet()) {
+															if (entry.getValue() == GetStatus.NOT_MODIFIED.ordinal()) {
+																notModified.add(entry.getKey());
+															}
+														}
+														rawNotModified.put(future.request().recipient(), notModified);
+													}
+
                                                     logger.debug("set data from {}", future.request()
                                                             .recipient());
                                                 }
@@ -396,6 +474,42 @@ public class DistributedHashTable {
         return futureDHT;
     }
 
+    /**
+     * Attaches a get to an identical get that is already in flight. The result of the running get is handed to the
+     * attached get once it is available. The channels reserved for the attached get are not needed and are released
+     * as soon as the reservation completes.
+     * 
+     * @param inFlight
+     *            The get that routes and contacts the peers
+     * @param futureDHT
+     *            The get that receives the result of the in-flight get
+     * @param futureChannelCreator
+     *            The reservation of the attached get that will be released
+     */
+    private static void attach(final FutureGet inFlight, final FutureGet futureDHT,
+            final FutureChannelCreator futureChannelCreator) {
+        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    future.channelCreator().shutdown();
+                }
+            }
+        });
+        inFlight.addListener(new BaseFutureAdapter<FutureGet>() {
+            @Override
+            public void operationComplete(final FutureGet future) throws Exception {
+                futureDHT.futureRouting(future.futureRouting());
+                if (future.rawData() != null) {
+                    futureDHT.receivedData(future.rawData(), future.rawDigest(), future.rawNextKeys(),
+                            future.rawNotModified());
+                } else {
+                    futureDHT.failed(future);
+                }
+            }
+        });
+    }
+
     public FutureDigest digest(final DigestBuilder builder) {
         final FutureDigest futureDHT = new FutureDigest(builder, builder.requestP2PConfiguration()
                 .minimumResults(), new VotingSchemeDHT());
@@ -583,13 +697,31 @@ public class DistributedHashTable {
             final NavigableSet<PeerAddress> directHit, final NavigableSet<PeerAddress> potentialHit, final boolean cancleOnFinish,
             final FutureChannelCreator futureChannelCreator, final OperationMapper<K> operation,
             final K futureDHT) {
+        return parallelRequests(p2pConfiguration, directHit, potentialHit, cancleOnFinish, futureChannelCreator,
+                operation, futureDHT, null, null);
+    }
+
+    /**
+     * Creates RPCs and executes them parallel. If the configuration allows duplicate requests and the operation is
+     * canceled on finish, a duplicate request is sent to the next peer if a peer does not reply within a percentile of
+     * its round trip times.
+     * 
+     * @param latencyStatistic
+     *            The round trip times of the peers, or null to not send duplicate requests
+     * @param timer
+     *            The timer to send duplicate requests, or null to not send duplicate requests
+     */
+    public static <K extends FutureDHT<?>> K parallelRequests(final RequestP2PConfiguration p2pConfiguration,
+            final NavigableSet<PeerAddress> directHit, final NavigableSet<PeerAddress> potentialHit, final boolean cancleOnFinish,
+            final FutureChannelCreator futureChannelCreator, final OperationMapper<K> operation,
+            final K futureDHT, final LatencyStatistic latencyStatistic, final ScheduledExecutorService timer) {
 
         futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
             public void operationComplete(final FutureChannelCreator future) throws Exception {
                 if (future.isSuccess()) {
                     parallelRequests(p2pConfiguration, directHit, potentialHit, futureDHT, cancleOnFinish,
-                            future.channelCreator(), operation);
+                            future.channelCreator(), operation, latencyStatistic, timer);
                     Utils.addReleaseListener(future.channelCreator(), futureDHT);
                 } else {
                     futureDHT.failed(future);
@@ -599,15 +731,29 @@ public class DistributedHashTable {
         return futureDHT;
     }
 
+    private <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
+            NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future,
+            boolean cancleOnFinish, ChannelCreator channelCreator, OperationMapper<K> operation) {
+        parallelRequests(p2pConfiguration, directHit, potentialHit, future, cancleOnFinish, channelCreator,
+                operation, latencyStatistic, timer);
+    }
+
     //TODO: have two queues, direct queue + potential queue.
     private static <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
     		NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future, boolean cancleOnFinish, ChannelCreator channelCreator,
-            OperationMapper<K> operation) {
+            OperationMapper<K> operation, LatencyStatistic latencyStatistic, ScheduledExecutorService timer) {
         if (p2pConfiguration.minimumResults() == 0) {
             operation.response(future);
             return;
         }
-        FutureResponse[] futures = new FutureResponse[p2pConfiguration.parallel()];
+        // only operations that can be canceled get duplicate requests, a duplicate put would create another replica
+        if (cancleOnFinish && p2pConfiguration.isHedging() && latencyStatistic != null && timer != null) {
+            new HedgedRequests<K>(p2pConfiguration, directHit, potentialHit, future, channelCreator, operation,
+                    latencyStatistic, timer).start();
+            return;
+        }
+        FutureResponse[] futures = new FutureResponse[p2pConfiguration.minimumResults()
+                + p2pConfiguration.parallelDiff()];
         // here we split min and pardiff, par=min+pardiff
         loopRec(directHit, potentialHit, p2pConfiguration.minimumResults(), new AtomicInteger(0),
                 p2pConfiguration.maxFailure(), p2pConfiguration.parallelDiff(),
@@ -730,7 +876,57 @@ public class DistributedHashTable {
             return p2pConfiguration;
         } else {
             return new RequestP2PConfiguration(size, p2pConfiguration.maxFailure(),
-                    p2pConfiguration.parallelDiff());
+                    p2pConfiguration.parallelDiff(), p2pConfiguration.isForceUPD(), p2pConfiguration.isForceTCP(),
+                    p2pConfiguration.hedges(), p2pConfiguration.hedgePercentile());
+        }
+    }
+
+    /**
+     * The parameters of a get that influence which peers are contacted and what they reply. Two gets with equal keys
+     * can share the routing and the storage requests.
+     */
+    private static final class GetKey {
+        private final List<Object> parameters;
+        private final int hashCode;
+
+        private GetKey(final GetBuilder builder) {
+            this.parameters = Arrays.<Object> asList(builder.locationKey(), builder.domainKey(),
+                    builder.versionKey(), builder.contentKeys(), builder.keys(), builder.contentKey(),
+                    builder.keyBloomFilter(), builder.contentBloomFilter(), builder.from(), builder.to(),
+                    builder.isGetLatest(), builder.isWithDigest(), builder.isAll(), builder.isReturnBloomFilter(),
+                    builder.isAscending(), builder.isBloomFilterAnd(), builder.returnNr(), builder.isFastGet(),
+                    builder.keyPair(), builder.isForceTCP(), builder.isForceUDP(), builder.knownData(),
+                    configuration(builder.routingConfiguration()), configuration(builder.requestP2PConfiguration()));
+            this.hashCode = parameters.hashCode();
+        }
+
+        private static List<Object> configuration(final RoutingConfiguration configuration) {
+            return Arrays.<Object> asList(configuration.maxDirectHits(), configuration.maxNoNewInfoDiff(),
+                    configuration.maxFailures(), configuration.maxSuccess(), configuration.parallel(),
+                    configuration.isForceTCP());
+        }
+
+        private static List<Object> configuration(final RequestP2PConfiguration configuration) {
+            return Arrays.<Object> asList(configuration.minimumResults(), configuration.maxFailure(),
+                    configuration.parallelDiff(), configuration.hedges(), configuration.hedgePercentile(),
+                    configuration.isForceUPD(), configuration.isForceTCP());
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof GetKey)) {
+                return false;
+            }
+            if (obj == this) {
+                return true;
+            }
+            final GetKey other = (GetKey) obj;
+            return hashCode == other.hashCode && parameters.equals(other.parameters);
         }
     }
 }
@@ -15,8 +15,13 @@
  */
 package net.tomp2p.dht;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
+import net.tomp2p.p2p.ConditionalEvaluatingSchemeDHT;
 import net.tomp2p.p2p.EvaluatingSchemeDHT;
 import net.tomp2p.p2p.VotingSchemeDHT;
 import net.tomp2p.peers.Number640;
@@ -42,6 +47,10 @@ public class FutureGet extends FutureDHT<FutureGet> {
     private Map<PeerAddress, Map<Number640, Data>> rawData;
     // Digest results
     private Map<PeerAddress, DigestResult> rawDigest;
+    // The start of the next page of the peers that returned a page
+    private Map<PeerAddress, Number640> rawNextKeys;
+    // The keys of the known data that has not been modified
+    private Map<PeerAddress, Collection<Number640>> rawNotModified;
 
     // Flag indicating if the minimum operations for put have been reached.
     private boolean minReached;
@@ -77,12 +86,48 @@ public class FutureGet extends FutureDHT<FutureGet> {
      *            The hashes of the content stored with information from which peer it has been received.
      */
     public void receivedData(final Map<PeerAddress, Map<Number640, Data>> rawData, final Map<PeerAddress, DigestResult> rawDigest) {
+        receivedData(rawData, rawDigest, null);
+    }
+
+    /**
+     * Finish the future and set the keys and data that have been received.
+     * 
+     * @param rawData
+     *            The keys and data that have been received with information from which peer it has been received.
+     * @param rawDigest
+     *            The hashes of the content stored with information from which peer it has been received.
+     * @param rawNextKeys
+     *            The first key of the next page of those peers that have more entries than returned
+     */
+    public void receivedData(final Map<PeerAddress, Map<Number640, Data>> rawData,
+            final Map<PeerAddress, DigestResult> rawDigest, final Map<PeerAddress, Number640> rawNextKeys) {
+        receivedData(rawData, rawDigest, rawNextKeys, null);
+    }
+
+    /**
+     * Finish the future and set the keys and data that have been received.
+     * 
+     * @param rawData
+     *            The keys and data that have been received with information from which peer it has been received.
+     * @param rawDigest
+     *            The hashes of the content stored with information from which peer it has been received.
+     * @param rawNextKeys
+     *            The first key of the next page of those peers that have more entries than returned
+     * @param rawNotModified
+     *            The keys of the known data that has not been modified with information from which peer it has been
+     *            received.
+     */
+    public void receivedData(final Map<PeerAddress, Map<Number640, Data>> rawData,
+            final Map<PeerAddress, DigestResult> rawDigest, final Map<PeerAddress, Number640> rawNextKeys,
+            final Map<PeerAddress, Collection<Number640>> rawNotModified) {
         synchronized (lock) {
             if (!completedAndNotify()) {
                 return;
             }
             this.rawData = rawData;
             this.rawDigest = rawDigest;
+            this.rawNextKeys = rawNextKeys;
+            this.rawNotModified = rawNotModified;
             final int size = rawData.size();
             this.minReached = size >= min;
             this.type = size > 0 ? FutureType.OK : FutureType.FAILED;
@@ -111,6 +156,76 @@ public class FutureGet extends FutureDHT<FutureGet> {
         }
     }
 
+    /**
+     * @return The first key of the next page for each peer that has more entries than returned, or null
+     */
+    public Map<PeerAddress, Number640> rawNextKeys() {
+        synchronized (lock) {
+            return rawNextKeys;
+        }
+    }
+
+    /**
+     * @return The keys of the known data that has not been modified with information from which peer it has been
+     *         received, or null
+     */
+    public Map<PeerAddress, Collection<Number640>> rawNotModified() {
+        synchronized (lock) {
+            return rawNotModified;
+        }
+    }
+
+    /**
+     * Returns the keys of the known data that has not been modified after evaluation. The data of these keys has not
+     * been sent again, the data map contains the known data instead.
+     * 
+     * @return The keys of the entries that have not been modified
+     */
+    public Collection<Number640> notModified() {
+        final Collection<Number640> notModified = new ArrayList<Number640>();
+        final Map<Number640, Data> knownData = knownData();
+        if (knownData == null) {
+            return notModified;
+        }
+        for (Map.Entry<Number640, Data> entry : dataMap().entrySet()) {
+            final Data known = knownData.get(entry.getKey());
+            if (known != null && known.hash().equals(entry.getValue().hash())) {
+                notModified.add(entry.getKey());
+            }
+        }
+        return notModified;
+    }
+
+    private Map<Number640, Data> knownData() {
+        return builder() instanceof GetBuilder ? ((GetBuilder) builder()).knownData() : null;
+    }
+
+    /**
+     * Returns the first key of the next page of a range get with a limit. Since the peers may store different
+     * entries, the page ends where the first peer stopped.
+     * 
+     * @return The first key of the next page, or null if all peers returned all their entries
+     */
+    public Number640 nextKey() {
+        synchronized (lock) {
+            if (rawNextKeys == null) {
+                return null;
+            }
+            final boolean ascending = isAscending();
+            Number640 nextKey = null;
+            for (Number640 key : rawNextKeys.values()) {
+                if (nextKey == null || (ascending ? key.compareTo(nextKey) < 0 : key.compareTo(nextKey) > 0)) {
+                    nextKey = key;
+                }
+            }
+            return nextKey;
+        }
+    }
+
+    private boolean isAscending() {
+        return !(builder() instanceof GetBuilder) || ((GetBuilder) builder()).isAscending();
+    }
+
     /**
      * Return the digest information from the get() after evaluation. The evaluation gets rid of the PeerAddress
      * information, by either a majority vote or cumulation.
@@ -131,7 +246,22 @@ public class FutureGet extends FutureDHT<FutureGet> {
      */
     public Map<Number640, Data> dataMap() {
         synchronized (lock) {
-            return evaluationScheme.evaluate2(rawData);
+            final Map<Number640, Data> dataMap;
+            if (rawNotModified == null || rawNotModified.isEmpty()) {
+                dataMap = evaluationScheme.evaluate2(rawData);
+            } else if (evaluationScheme instanceof ConditionalEvaluatingSchemeDHT) {
+                dataMap = ((ConditionalEvaluatingSchemeDHT) evaluationScheme).evaluate7(rawData, rawNotModified,
+                        knownData());
+            } else {
+                dataMap = evaluationScheme.evaluate2(VotingSchemeDHT.merge(rawData, rawNotModified, knownData()));
+            }
+            final Number640 nextKey = nextKey();
+            if (nextKey == null) {
+                return dataMap;
+            }
+            // entries from the next page may not have been returned by all peers, they are part of the next page
+            final NavigableMap<Number640, Data> page = new TreeMap<Number640, Data>(dataMap);
+            return isAscending() ? page.headMap(nextKey, false) : page.tailMap(nextKey, false);
         }
     }
     
@@ -18,6 +18,7 @@ package net.tomp2p.dht;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 
 import net.tomp2p.p2p.EvaluatingSchemeDHT;
 import net.tomp2p.p2p.VotingSchemeDHT;
@@ -25,6 +26,7 @@ import net.tomp2p.p2p.builder.SearchableBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.storage.Data;
 
 public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuilder {
 
@@ -67,6 +69,12 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
     
     private boolean fastGet = true;
 
+    private boolean coalesce = false;
+
+    private int pageSize = 1000;
+
+    private Map<Number640, Data> knownData;
+
     static {
         NUMBER_ZERO_CONTENT_KEYS.add(Number160.ZERO);
     }
@@ -286,6 +294,74 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
         return this;
     }
 
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * Set coalescing of identical gets. If set to true, a get that is issued while an identical get is still in
+     * flight does not route and contact peers by itself, but receives the result of the running get. The default is
+     * false, since the running get may have been sent before a put of this peer and return the older data.
+     * 
+     * @param coalesce
+     *            True if this get may be attached to an identical in-flight get
+     * @return This class
+     */
+    public GetBuilder coalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+        return this;
+    }
+
+    public GetBuilder coalesce() {
+        this.coalesce = true;
+        return this;
+    }
+
+    public Map<Number640, Data> knownData() {
+        return knownData;
+    }
+
+    /**
+     * Set the data that is already known, e.g., from a previous get. Only the hashes are sent, and the responsible
+     * peers answer that an entry has not been modified instead of sending the same data again. The result of the get
+     * contains the known data for those entries, see {@link FutureGet#notModified()}.
+     * 
+     * @param knownData
+     *            The data that is already known
+     * @return This class
+     */
+    public GetBuilder knownData(Map<Number640, Data> knownData) {
+        this.knownData = knownData;
+        return this;
+    }
+
+    public int pageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Set the number of entries per page for {@link #startPaged()}.
+     * 
+     * @param pageSize
+     *            The maximum number of entries a peer returns for one page
+     * @return This class
+     */
+    public GetBuilder pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Gets a range or all entries of the location and domain key page by page. The next page is only requested once
+     * the caller asks for it, so that large result sets do not have to be kept in memory, neither here nor on the
+     * responsible peers.
+     * 
+     * @return The pages, the first page is requested with {@link PagedGet#next()}
+     */
+    public PagedGet startPaged() {
+        return new PagedGet(this);
+    }
+
     public FutureGet start() {
         if (peer.peer().isShutdown()) {
             return FUTURE_SHUTDOWN;
@@ -311,6 +387,6 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
 				throw new IllegalArgumentException("Content key must be set.");
 			}
 		}
-        return peer.distributedHashTable().get(this);
+        return peer.peer().metrics().watch(peer.distributedHashTable().get(this), "get");
     }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.p2p.RequestP2PConfiguration;
+import net.tomp2p.peers.PeerAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the requests of a DHT operation to the first N of M peers, where N is the minimum number of results and M
+ * additionally includes the parallel difference. The operation completes as soon as N peers replied successfully, and
+ * the requests that are still running are canceled. A failed request is replaced right away with a request to the
+ * next peer. If a peer has not replied within a percentile of its round trip times, a duplicate request is sent to the
+ * next peer, so that a single slow peer does not delay the operation.
+ *
+ * @param <K>
+ *            The type of the DHT future
+ */
+final class HedgedRequests<K extends FutureDHT<?>> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HedgedRequests.class);
+
+    // do not send duplicates faster than this, even if the peers reply within a millisecond
+    private static final int MIN_HEDGE_MILLIS = 5;
+
+    private final NavigableSet<PeerAddress> directHit;
+    private final NavigableSet<PeerAddress> potentialHit;
+    private final RequestP2PConfiguration p2pConfiguration;
+    private final K futureDHT;
+    private final ChannelCreator channelCreator;
+    private final OperationMapper<K> operation;
+    private final LatencyStatistic latencyStatistic;
+    private final ScheduledExecutorService timer;
+
+    // all these values are guarded by this
+    private final List<FutureResponse> running = new ArrayList<FutureResponse>();
+    private int successCounter = 0;
+    private int failedCounter = 0;
+    private int hedgedCounter = 0;
+    private boolean finished = false;
+
+    HedgedRequests(final RequestP2PConfiguration p2pConfiguration, final NavigableSet<PeerAddress> directHit,
+            final NavigableSet<PeerAddress> potentialHit, final K futureDHT, final ChannelCreator channelCreator,
+            final OperationMapper<K> operation, final LatencyStatistic latencyStatistic,
+            final ScheduledExecutorService timer) {
+        this.p2pConfiguration = p2pConfiguration;
+        this.directHit = directHit;
+        this.potentialHit = potentialHit;
+        this.futureDHT = futureDHT;
+        this.channelCreator = channelCreator;
+        this.operation = operation;
+        this.latencyStatistic = latencyStatistic;
+        this.timer = timer;
+    }
+
+    /**
+     * Sends the first requests.
+     */
+    void start() {
+        final List<PeerAddress> first = new ArrayList<PeerAddress>();
+        synchronized (this) {
+            PeerAddress next;
+            while (first.size() < p2pConfiguration.minimumResults() + p2pConfiguration.parallelDiff()
+                    && (next = nextPeer()) != null) {
+                first.add(next);
+            }
+            if (first.isEmpty()) {
+                finished = true;
+            }
+        }
+        if (first.isEmpty()) {
+            operation.response(futureDHT);
+            return;
+        }
+        for (PeerAddress next : first) {
+            send(next);
+        }
+    }
+
+    private void send(final PeerAddress remotePeer) {
+        final long start = System.currentTimeMillis();
+        final FutureResponse futureResponse = operation.create(channelCreator, remotePeer);
+        futureDHT.addRequests(futureResponse);
+        synchronized (this) {
+            if (finished) {
+                // another request completed the operation in the meantime
+                futureResponse.cancel();
+                return;
+            }
+            running.add(futureResponse);
+        }
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                if (future.isSuccess()) {
+                    latencyStatistic.record(remotePeer, System.currentTimeMillis() - start);
+                }
+                completed(future);
+            }
+        });
+        final long delay = latencyStatistic.percentile(remotePeer, p2pConfiguration.hedgePercentile());
+        if (delay >= 0 && !futureResponse.isCompleted()) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    hedge(futureResponse, remotePeer);
+                }
+            }, Math.max(MIN_HEDGE_MILLIS, delay), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void completed(final FutureResponse futureResponse) {
+        PeerAddress next = null;
+        final List<FutureResponse> cancel;
+        synchronized (this) {
+            if (finished || !running.remove(futureResponse)) {
+                return;
+            }
+            operation.interMediateResponse(futureResponse);
+            boolean done;
+            if (futureResponse.isSuccess()) {
+                done = ++successCounter >= p2pConfiguration.minimumResults();
+            } else {
+                done = ++failedCounter > p2pConfiguration.maxFailure();
+                if (!done) {
+                    next = nextPeer();
+                }
+            }
+            if (!done && next == null && running.isEmpty()) {
+                done = true;
+            }
+            if (!done) {
+                cancel = null;
+            } else {
+                finished = true;
+                cancel = new ArrayList<FutureResponse>(running);
+                running.clear();
+            }
+        }
+        if (cancel != null) {
+            for (FutureResponse loser : cancel) {
+                loser.cancel();
+            }
+            operation.response(futureDHT);
+        } else if (next != null) {
+            send(next);
+        }
+    }
+
+    private void hedge(final FutureResponse straggler, final PeerAddress remotePeer) {
+        final PeerAddress next;
+        synchronized (this) {
+            if (finished || straggler.isCompleted() || hedgedCounter >= p2pConfiguration.hedges()
+                    || running.size() >= p2pConfiguration.parallel()) {
+                return;
+            }
+            next = nextPeer();
+            if (next == null) {
+                return;
+            }
+            hedgedCounter++;
+        }
+        LOG.debug("{} did not reply in time, send a duplicate request to {}.", remotePeer, next);
+        send(next);
+    }
+
+    /**
+     * @return The next peer to contact, the direct hits first. Always call this from a synchronized block.
+     */
+    private PeerAddress nextPeer() {
+        final PeerAddress next = directHit.pollFirst();
+        return next != null ? next : potentialHit.pollFirst();
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.storage.Data;
+
+/**
+ * An inverted index for keyword search. The posting list of a term is stored at the hash of the term, split into
+ * {@link #shards()} location keys for frequent terms. Every posting is stored with the document ID as content key, the
+ * value is the number of occurrences and the delta and varint encoded positions of the term in the document.
+ * <p>
+ * A conjunctive query fetches the posting list of the first term. For every further term, the document IDs found so far
+ * are sent as a content bloom filter, so the peer responsible for the term only returns the postings that may match.
+ * The false positives are removed locally. Thus, the terms should be ordered from the most to the least selective.
+ */
+public class KeywordIndex {
+
+    public static final int DEFAULT_SHARDS = 1;
+    public static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+    /**
+     * The size of a bloom filter including its header is sent as unsigned short. A filter for a larger candidate set
+     * is limited to this size and has a higher false positive probability.
+     */
+    public static final int MAX_FILTER_BYTES = 0xFFFF - SimpleBloomFilter.SIZE_HEADER;
+
+    private final PeerDHT peer;
+    private final String name;
+
+    private int shards = DEFAULT_SHARDS;
+    private double falsePositiveProbability = DEFAULT_FALSE_POSITIVE_PROBABILITY;
+    private Number160 domainKey = Number160.ZERO;
+
+    /**
+     * @param peer
+     *            The peer that stores and queries the index
+     * @param name
+     *            The name of the index, which is part of the location keys
+     */
+    public KeywordIndex(final PeerDHT peer, final String name) {
+        this.peer = peer;
+        this.name = name;
+    }
+
+    public int shards() {
+        return shards;
+    }
+
+    /**
+     * @param shards
+     *            The number of location keys a posting list is split into. This needs to be the same for all peers
+     *            that use this index.
+     * @return This class
+     */
+    public KeywordIndex shards(final int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("need at least one shard");
+        }
+        this.shards = shards;
+        return this;
+    }
+
+    public double falsePositiveProbability() {
+        return falsePositiveProbability;
+    }
+
+    /**
+     * @param falsePositiveProbability
+     *            The false positive probability of the bloom filters sent with a query, between 0 and 1. A filter
+     *            that would be larger than {@link #MAX_FILTER_BYTES} is limited to this size.
+     * @return This class
+     */
+    public KeywordIndex falsePositiveProbability(final double falsePositiveProbability) {
+        if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+            throw new IllegalArgumentException("the false positive probability must be between 0 and 1");
+        }
+        this.falsePositiveProbability = falsePositiveProbability;
+        return this;
+    }
+
+    public Number160 domainKey() {
+        return domainKey;
+    }
+
+    public KeywordIndex domainKey(final Number160 domainKey) {
+        this.domainKey = domainKey;
+        return this;
+    }
+
+    /**
+     * Indexes a text. The text is split into lower case terms at every character that is neither a letter nor a digit.
+     *
+     * @param docId
+     *            The ID of the document
+     * @param text
+     *            The text of the document
+     * @return A future that is done when all postings are stored
+     */
+    public FutureDone<Void> add(final Number160 docId, final String text) {
+        return add(docId, termPositions(text));
+    }
+
+    /**
+     * Indexes a document.
+     *
+     * @param docId
+     *            The ID of the document
+     * @param termPositions
+     *            The positions of every term in the document. The terms are converted to lower case, the positions of
+     *            terms that differ only in case are merged.
+     * @return A future that is done when all postings are stored
+     */
+    public FutureDone<Void> add(final Number160 docId, final Map<String, int[]> termPositions) {
+        final Map<String, int[]> normalized = normalize(termPositions);
+        final List<FuturePut> futures = new ArrayList<FuturePut>(normalized.size());
+        for (Map.Entry<String, int[]> entry : normalized.entrySet()) {
+            futures.add(peer.put(locationKey(entry.getKey(), shard(docId))).domainKey(domainKey)
+                    .data(docId, new Data(encode(entry.getValue()))).start());
+        }
+        return UtilsDHT.join(futures);
+    }
+
+    /**
+     * Removes the postings of a document.
+     *
+     * @param docId
+     *            The ID of the document
+     * @param terms
+     *            The terms the document has been indexed with
+     * @return A future that is done when all postings are removed
+     */
+    public FutureDone<Void> remove(final Number160 docId, final Collection<String> terms) {
+        final List<FutureRemove> futures = new ArrayList<FutureRemove>(terms.size());
+        for (String term : terms) {
+            futures.add(peer.remove(locationKey(normalize(term), shard(docId))).domainKey(domainKey)
+                    .contentKey(docId).start());
+        }
+        return UtilsDHT.join(futures);
+    }
+
+    /**
+     * Fetches the posting list of a term.
+     *
+     * @param term
+     *            The term
+     * @return The positions of the term by document ID
+     */
+    public FutureDone<SortedMap<Number160, int[]>> postings(final String term) {
+        return postings(normalize(term), null);
+    }
+
+    /**
+     * Searches the documents that contain all terms.
+     *
+     * @param terms
+     *            The terms, the most selective first
+     * @return The number of occurrences of all terms by document ID
+     */
+    public FutureDone<Map<Number160, Integer>> search(final String... terms) {
+        return search(Arrays.asList(terms));
+    }
+
+    /**
+     * Searches the documents that contain all terms.
+     *
+     * @param terms
+     *            The terms, the most selective first
+     * @return The number of occurrences of all terms by document ID
+     */
+    public FutureDone<Map<Number160, Integer>> search(final List<String> terms) {
+        final FutureDone<Map<Number160, Integer>> futureDone = new FutureDone<Map<Number160, Integer>>();
+        final LinkedHashSet<String> normalized = new LinkedHashSet<String>(terms.size());
+        for (String term : terms) {
+            normalized.add(normalize(term));
+        }
+        if (normalized.isEmpty()) {
+            futureDone.done(new HashMap<Number160, Integer>());
+        } else {
+            searchRec(normalized.iterator(), null, futureDone);
+        }
+        return futureDone;
+    }
+
+    private void searchRec(final Iterator<String> terms, final Map<Number160, Integer> scores,
+            final FutureDone<Map<Number160, Integer>> futureDone) {
+        final String term = terms.next();
+        final SimpleBloomFilter<Number160> filter = scores == null ? null : filter(falsePositiveProbability,
+                scores.keySet());
+        postings(term, filter).addListener(new BaseFutureAdapter<FutureDone<SortedMap<Number160, int[]>>>() {
+            @Override
+            public void operationComplete(final FutureDone<SortedMap<Number160, int[]>> future) throws Exception {
+                if (!future.isSuccess()) {
+                    futureDone.failed(future);
+                    return;
+                }
+                final Map<Number160, Integer> result;
+                if (scores == null) {
+                    result = new HashMap<Number160, Integer>(future.object().size() * 2);
+                    for (Map.Entry<Number160, int[]> entry : future.object().entrySet()) {
+                        result.put(entry.getKey(), entry.getValue().length);
+                    }
+                } else {
+                    // intersect, this also removes the false positives of the bloom filter
+                    result = new HashMap<Number160, Integer>(scores.size() * 2);
+                    for (Map.Entry<Number160, Integer> entry : scores.entrySet()) {
+                        final int[] positions = future.object().get(entry.getKey());
+                        if (positions != null) {
+                            result.put(entry.getKey(), entry.getValue() + positions.length);
+                        }
+                    }
+                }
+                if (result.isEmpty() || !terms.hasNext()) {
+                    futureDone.done(result);
+                } else {
+                    searchRec(terms, result, futureDone);
+                }
+            }
+        });
+    }
+
+    private FutureDone<SortedMap<Number160, int[]>> postings(final String term,
+            final SimpleBloomFilter<Number160> filter) {
+        final FutureDone<SortedMap<Number160, int[]>> futureDone = new FutureDone<SortedMap<Number160, int[]>>();
+        final List<FutureGet> futures = new ArrayList<FutureGet>(shards);
+        for (int i = 0; i < shards; i++) {
+            final GetBuilder getBuilder = peer.get(locationKey(term, i)).domainKey(domainKey).all();
+            if (filter != null) {
+                getBuilder.contentBloomFilter(filter);
+            }
+            futures.add(getBuilder.start());
+        }
+        UtilsDHT.join(futures).addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+            @Override
+            public void operationComplete(final FutureDone<Void> future) throws Exception {
+                final SortedMap<Number160, int[]> result = new TreeMap<Number160, int[]>();
+                for (FutureGet futureGet : futures) {
+                    // a term that is not stored is an empty posting list, a failed get is an unknown one
+                    if (!futureGet.isSuccess()) {
+                        futureDone.failed(futureGet);
+                        return;
+                    }
+                    for (Map.Entry<Number640, Data> entry : futureGet.dataMap().entrySet()) {
+                        result.put(entry.getKey().contentKey(), decode(entry.getValue().toBytes()));
+                    }
+                }
+                futureDone.done(result);
+            }
+        });
+        return futureDone;
+    }
+
+    private Number160 locationKey(final String term, final int shard) {
+        if (shards == 1) {
+            return Number160.createHash(name + "/" + term);
+        }
+        return Number160.createHash(name + "/" + term + "/" + shard);
+    }
+
+    private int shard(final Number160 docId) {
+        return (docId.hashCode() & Integer.MAX_VALUE) % shards;
+    }
+
+    private static String normalize(final String term) {
+        return term.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static Map<String, int[]> normalize(final Map<String, int[]> termPositions) {
+        final Map<String, int[]> result = new HashMap<String, int[]>(termPositions.size() * 2);
+        for (Map.Entry<String, int[]> entry : termPositions.entrySet()) {
+            final String term = normalize(entry.getKey());
+            final int[] existing = result.get(term);
+            if (existing == null) {
+                result.put(term, entry.getValue());
+            } else {
+                final int[] merged = Arrays.copyOf(existing, existing.length + entry.getValue().length);
+                System.arraycopy(entry.getValue(), 0, merged, existing.length, entry.getValue().length);
+                Arrays.sort(merged);
+                result.put(term, merged);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates the bloom filter of the candidates. The filter is limited to {@link #MAX_FILTER_BYTES}, so that its
+     * size fits into the message, even if this raises the false positive probability.
+     *
+     * @param falsePositiveProbability
+     *            The false positive probability
+     * @param candidates
+     *            The document IDs that may match
+     * @return The bloom filter with all candidates
+     */
+    static SimpleBloomFilter<Number160> filter(final double falsePositiveProbability,
+            final Collection<Number160> candidates) {
+        final int expectedElements = Math.max(1, candidates.size());
+        // the same size calculation as in the constructor of the bloom filter
+        final double bitsPerElement = Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2.0)))
+                / Math.log(2.0);
+        final long bytes = ((long) Math.ceil(bitsPerElement * expectedElements) + 7) / 8;
+        final SimpleBloomFilter<Number160> filter;
+        if (bytes <= MAX_FILTER_BYTES) {
+            filter = new SimpleBloomFilter<Number160>(falsePositiveProbability, expectedElements);
+        } else {
+            filter = new SimpleBloomFilter<Number160>(MAX_FILTER_BYTES, expectedElements);
+        }
+        filter.addAll(candidates);
+        return filter;
+    }
+
+    /**
+     * Splits a text into lower case terms.
+     *
+     * @param text
+     *            The text
+     * @return The positions of every term in the text, in ascending order
+     */
+    public static Map<String, int[]> termPositions(final String text) {
+        final Map<String, List<Integer>> positions = new HashMap<String, List<Integer>>();
+        int position = 0;
+        for (String term : text.split("[^\\p{L}\\p{N}]+")) {
+            if (term.isEmpty()) {
+                continue;
+            }
+            final String normalized = normalize(term);
+            List<Integer> list = positions.get(normalized);
+            if (list == null) {
+                list = new ArrayList<Integer>(1);
+                positions.put(normalized, list);
+            }
+            list.add(position++);
+        }
+        final Map<String, int[]> result = new HashMap<String, int[]>(positions.size() * 2);
+        for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+            final int[] array = new int[entry.getValue().size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = entry.getValue().get(i);
+            }
+            result.put(entry.getKey(), array);
+        }
+        return result;
+    }
+
+    /**
+     * Encodes ascending positions as the number of positions followed by the gaps between the positions, every value
+     * as varint with 7 bits per byte.
+     *
+     * @param positions
+     *            The positions in ascending order
+     * @return The encoded positions
+     */
+    static byte[] encode(final int[] positions) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(positions.length + 1);
+        writeVarint(out, positions.length);
+        int last = 0;
+        for (int position : positions) {
+            if (position < last) {
+                throw new IllegalArgumentException("positions need to be in ascending order");
+            }
+            writeVarint(out, position - last);
+            last = position;
+        }
+        return out.toByteArray();
+    }
+
+    static int[] decode(final byte[] encoded) {
+        final int[] offset = new int[1];
+        final int[] positions = new int[readVarint(encoded, offset)];
+        int last = 0;
+        for (int i = 0; i < positions.length; i++) {
+            last += readVarint(encoded, offset);
+            positions[i] = last;
+        }
+        return positions;
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream out, final int value) {
+        int v = value;
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarint(final byte[] buffer, final int[] offset) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = buffer[offset[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.Arrays;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.utils.ConcurrentCacheMap;
+
+/**
+ * The round trip times of the requests to remote peers. For each peer, the most recent samples are kept, so that a
+ * percentile of its round trip times can be calculated. A peer with too few samples falls back to the samples of all
+ * peers. This class is thread-safe.
+ */
+public class LatencyStatistic {
+
+    // the number of samples per peer and the number of samples of all peers
+    private static final int PEER_SAMPLES = 32;
+    private static final int ALL_SAMPLES = 256;
+
+    // the number of samples needed for a percentile
+    private static final int MIN_SAMPLES = 4;
+
+    private final ConcurrentCacheMap<Number160, Samples> peers;
+
+    private final Samples all = new Samples(ALL_SAMPLES);
+
+    /**
+     * Creates a latency statistic that keeps the samples of up to 1024 peers for 10 minutes.
+     */
+    public LatencyStatistic() {
+        this(600, ConcurrentCacheMap.MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a latency statistic.
+     *
+     * @param timeToLiveSeconds
+     *            The time in seconds the samples of a peer are kept after its last request
+     * @param maxPeers
+     *            The maximum number of peers with samples
+     */
+    public LatencyStatistic(final int timeToLiveSeconds, final int maxPeers) {
+        this.peers = new ConcurrentCacheMap<Number160, Samples>(timeToLiveSeconds, maxPeers);
+    }
+
+    /**
+     * Adds a sample of a successful request.
+     *
+     * @param remotePeer
+     *            The peer that replied
+     * @param rttMillis
+     *            The round trip time in milliseconds
+     */
+    public void record(final PeerAddress remotePeer, final long rttMillis) {
+        final int sample = (int) Math.min(Integer.MAX_VALUE, Math.max(0, rttMillis));
+        Samples samples = peers.get(remotePeer.peerId());
+        if (samples == null) {
+            samples = new Samples(PEER_SAMPLES);
+            final Samples existing = peers.putIfAbsent(remotePeer.peerId(), samples);
+            if (existing != null) {
+                samples = existing;
+            }
+        }
+        samples.add(sample);
+        all.add(sample);
+    }
+
+    /**
+     * Calculates a percentile of the round trip times of a peer.
+     *
+     * @param remotePeer
+     *            The peer
+     * @param percentile
+     *            The percentile between 0 and 1, e.g., 0.95
+     * @return The round trip time in milliseconds, or -1 if there are not enough samples
+     */
+    public long percentile(final PeerAddress remotePeer, final double percentile) {
+        final Samples samples = peers.get(remotePeer.peerId());
+        if (samples != null) {
+            final long result = samples.percentile(percentile);
+            if (result >= 0) {
+                return result;
+            }
+        }
+        return all.percentile(percentile);
+    }
+
+    /**
+     * The most recent samples in a ring buffer.
+     */
+    private static final class Samples {
+        private final int[] ring;
+        // guarded by this
+        private int next = 0;
+        private int size = 0;
+
+        private Samples(final int capacity) {
+            this.ring = new int[capacity];
+        }
+
+        private synchronized void add(final int sample) {
+            ring[next] = sample;
+            next = (next + 1) % ring.length;
+            if (size < ring.length) {
+                size++;
+            }
+        }
+
+        private long percentile(final double percentile) {
+            final int[] sorted;
+            synchronized (this) {
+                if (size < MIN_SAMPLES) {
+                    return -1;
+                }
+                sorted = Arrays.copyOf(ring, size);
+            }
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
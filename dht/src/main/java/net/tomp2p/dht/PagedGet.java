@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.NoSuchElementException;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+/**
+ * Gets a range or all entries of a location and domain key page by page. Each page is a range get with the page size
+ * as limit. The responsible peers read only the entries of the page from the storage and return the key where the next
+ * page starts. No state is kept on the responsible peers, and the next page is only requested if the caller asks for
+ * it, thus, the caller controls how fast the entries arrive.
+ *
+ * <pre>
+ * PagedGet pages = peer.get(locationKey).all().pageSize(1000).startPaged();
+ * while (pages.hasNext()) {
+ *     FutureGet page = pages.next().awaitUninterruptibly();
+ *     // process page.dataMap()
+ * }
+ * </pre>
+ *
+ * A failed page can be requested again by calling {@link #next()}.
+ */
+public class PagedGet {
+
+    private final GetBuilder builder;
+
+    private final Number640 from;
+
+    private final Number640 to;
+
+    // guarded by this
+    private Number640 nextKey = null;
+    private FutureGet current = null;
+    private boolean done = false;
+
+    PagedGet(final GetBuilder builder) {
+        if (builder.pageSize() < 1) {
+            throw new IllegalArgumentException("The page size must be at least 1.");
+        }
+        if (builder.isRange()) {
+            this.from = builder.from();
+            this.to = builder.to();
+        } else if (builder.isAll()) {
+            final Number160 domainKey = builder.domainKey() == null ? Number160.ZERO : builder.domainKey();
+            this.from = new Number640(builder.locationKey(), domainKey, Number160.ZERO, Number160.ZERO);
+            this.to = new Number640(builder.locationKey(), domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        } else {
+            throw new IllegalArgumentException("Pages are only available for a range or for all entries.");
+        }
+        this.builder = builder;
+    }
+
+    /**
+     * @return False if the last page has been received. If a page is still running, true is returned.
+     */
+    public synchronized boolean hasNext() {
+        update();
+        return !done;
+    }
+
+    /**
+     * @return The key where the next page starts, or null if the first page has not been received yet
+     */
+    public synchronized Number640 nextKey() {
+        update();
+        return nextKey;
+    }
+
+    /**
+     * Requests the next page. The previous page must have been completed.
+     *
+     * @return The future of the page, its data map contains the entries of this page only
+     */
+    public FutureGet next() {
+        synchronized (this) {
+            update();
+            if (current != null) {
+                throw new IllegalStateException("The previous page is still running.");
+            }
+            if (done) {
+                throw new NoSuchElementException("The last page has been received.");
+            }
+            if (nextKey == null) {
+                builder.from(from).to(to);
+            } else if (builder.isAscending()) {
+                builder.from(nextKey).to(to);
+            } else {
+                builder.from(from).to(nextKey);
+            }
+            // every page needs its own connections
+            builder.returnNr(builder.pageSize()).futureChannelCreator(null);
+            current = builder.start();
+            return current;
+        }
+    }
+
+    /**
+     * Takes over the next key of the page that has been completed. Always call this from a synchronized block.
+     */
+    private void update() {
+        if (current == null || !current.isCompleted()) {
+            return;
+        }
+        if (current.isSuccess()) {
+            nextKey = current.nextKey();
+            done = nextKey == null;
+        }
+        current = null;
+    }
+}
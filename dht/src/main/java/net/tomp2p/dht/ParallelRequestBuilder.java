@@ -106,7 +106,8 @@ public class ParallelRequestBuilder<K extends FutureDHT<?>> extends
             throw new IllegalArgumentException("queue cannot be empty");
         }
 
+        final DistributedHashTable dht = peer.distributedHashTable();
         return DistributedHashTable.<K> parallelRequests(requestP2PConfiguration, directHits, potentialHits, cancelOnFinish,
-                futureChannelCreator, operation, futureDHT);
+                futureChannelCreator, operation, futureDHT, dht.latencyStatistic(), dht.timer());
     }
 }
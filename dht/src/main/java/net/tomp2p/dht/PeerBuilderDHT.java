@@ -64,6 +64,7 @@ public class PeerBuilderDHT {
 			storageLayer = new StorageLayer(storage);
 			storageLayer.start(peer.connectionBean().timer(), storageLayer.storageCheckIntervalMillis());
 		}
+		storageLayer.metrics(peer.metrics());
 		if (peer.peerBean().digestStorage() == null) {
 			peer.peerBean().digestStorage(storageLayer);
 		}
@@ -71,7 +72,8 @@ public class PeerBuilderDHT {
 			storageRPC = new StorageRPC(peer.peerBean(), peer.connectionBean(), storageLayer);
 		}
 		if (dht == null) {
-			dht = new DistributedHashTable(peer.distributedRouting(), storageRPC, peer.directDataRPC());
+			dht = new DistributedHashTable(peer.distributedRouting(), storageRPC, peer.directDataRPC(), peer
+			        .connectionBean().timer());
 		}
 
 		return new PeerDHT(peer, storageLayer, dht, storageRPC);
@@ -219,6 +219,6 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
             versionKey = Number160.ZERO;
         }
 
-        return peer.distributedHashTable().put(this);
+        return peer.peer().metrics().watch(peer.distributedHashTable().put(this), "put");
     }
 }
@@ -0,0 +1,561 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.ConcurrentCacheMap;
+
+/**
+ * A distributed segment tree for range queries over non-negative long positions, e.g., timestamps or time-series IDs.
+ * The interval [lower, upper] is split in halves down to {@link #height()}, every tree node is a location key. An item
+ * is stored in all nodes on the path from level {@link #minLevel()} to the leaf, the content key is the position
+ * followed by the lower 96 bits of the item ID, so a tree node is sorted by position and can be scanned with a range
+ * get. A range query is split into at most two nodes per level, which are fetched in parallel and page by page. The
+ * levels above minLevel are not stored to avoid that few peers store all the data.
+ * <p>
+ * Gets for the nodes of the upper {@link #cacheLevels()} levels are cached for {@link #cacheTTLSeconds()}, as these
+ * nodes are shared by most queries. Identical gets are coalesced by the {@link DistributedHashTable}.
+ */
+public class RangeIndex {
+
+    public static final int DEFAULT_HEIGHT = 16;
+    public static final int DEFAULT_MIN_LEVEL = 2;
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_PARALLEL = 4;
+    public static final int DEFAULT_CACHE_LEVELS = 2;
+    public static final int DEFAULT_CACHE_TTL_SECONDS = 5;
+
+    private final PeerDHT peer;
+    private final String name;
+    private final long lower;
+    private final long upper;
+
+    private int height = DEFAULT_HEIGHT;
+    private int minLevel = DEFAULT_MIN_LEVEL;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int parallel = DEFAULT_PARALLEL;
+    private int cacheLevels = DEFAULT_CACHE_LEVELS;
+    private int cacheTTLSeconds = DEFAULT_CACHE_TTL_SECONDS;
+    private Number160 domainKey = Number160.ZERO;
+
+    private volatile ConcurrentCacheMap<List<Object>, NavigableMap<Number640, Data>> cache;
+
+    /**
+     * @param peer
+     *            The peer that stores and queries the index
+     * @param name
+     *            The name of the index, which is part of the location keys
+     * @param lower
+     *            The lowest position that can be stored
+     * @param upper
+     *            The highest position that can be stored
+     */
+    public RangeIndex(final PeerDHT peer, final String name, final long lower, final long upper) {
+        if (lower < 0 || lower > upper) {
+            throw new IllegalArgumentException("need 0 <= lower <= upper");
+        }
+        this.peer = peer;
+        this.name = name;
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * @param height
+     *            The number of levels below the root, the leaves have this level
+     * @return This class
+     */
+    public RangeIndex height(final int height) {
+        this.height = height;
+        return this;
+    }
+
+    public int minLevel() {
+        return minLevel;
+    }
+
+    /**
+     * @param minLevel
+     *            The highest level that stores items, 0 is the root. Queries for wider ranges are split into more
+     *            nodes.
+     * @return This class
+     */
+    public RangeIndex minLevel(final int minLevel) {
+        this.minLevel = minLevel;
+        return this;
+    }
+
+    public int pageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @param pageSize
+     *            The number of items fetched from a node with one get
+     * @return This class
+     */
+    public RangeIndex pageSize(final int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public int parallel() {
+        return parallel;
+    }
+
+    /**
+     * @param parallel
+     *            The number of nodes that are fetched ahead while iterating
+     * @return This class
+     */
+    public RangeIndex parallel(final int parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    public int cacheLevels() {
+        return cacheLevels;
+    }
+
+    /**
+     * @param cacheLevels
+     *            The number of levels from minLevel on whose gets are cached, 0 disables the cache
+     * @return This class
+     */
+    public RangeIndex cacheLevels(final int cacheLevels) {
+        this.cacheLevels = cacheLevels;
+        return this;
+    }
+
+    public int cacheTTLSeconds() {
+        return cacheTTLSeconds;
+    }
+
+    public RangeIndex cacheTTLSeconds(final int cacheTTLSeconds) {
+        this.cacheTTLSeconds = cacheTTLSeconds;
+        this.cache = null;
+        return this;
+    }
+
+    public Number160 domainKey() {
+        return domainKey;
+    }
+
+    public RangeIndex domainKey(final Number160 domainKey) {
+        this.domainKey = domainKey;
+        return this;
+    }
+
+    /**
+     * Stores an item in all nodes from minLevel to the leaf that contain the position. The puts run in parallel.
+     *
+     * @param position
+     *            The position of the item
+     * @param id
+     *            The ID of the item, only the lower 96 bits are used. Items with the same position and ID overwrite
+     *            each other.
+     * @param data
+     *            The item
+     * @return A future that is done when all puts are done, and failed if one of them failed
+     */
+    public FutureDone<Void> put(final long position, final Number160 id, final Data data) {
+        final Number160 contentKey = contentKey(position, id);
+        final List<Node> path = path(position);
+        final List<BaseFuture> futures = new ArrayList<BaseFuture>(path.size());
+        for (Node node : path) {
+            futures.add(peer.put(node.locationKey()).domainKey(domainKey).data(contentKey, data).start());
+        }
+        invalidateCache();
+        return UtilsDHT.join(futures);
+    }
+
+    /**
+     * Removes an item from all nodes that contain the position.
+     *
+     * @param position
+     *            The position of the item
+     * @param id
+     *            The ID of the item
+     * @return A future that is done when all removes are done
+     */
+    public FutureDone<Void> remove(final long position, final Number160 id) {
+        final Number160 contentKey = contentKey(position, id);
+        final List<Node> path = path(position);
+        final List<BaseFuture> futures = new ArrayList<BaseFuture>(path.size());
+        for (Node node : path) {
+            futures.add(peer.remove(node.locationKey()).domainKey(domainKey).contentKey(contentKey).start());
+        }
+        invalidateCache();
+        return UtilsDHT.join(futures);
+    }
+
+    /**
+     * Queries a range. The results are fetched while iterating, so stopping early or calling
+     * {@link RangeIterator#close()} saves requests.
+     *
+     * @param from
+     *            The lowest position, inclusive
+     * @param to
+     *            The highest position, inclusive
+     * @return An iterator over the items in ascending position
+     */
+    public RangeIterator range(final long from, final long to) {
+        return range(from, to, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Queries a range and stops after limit items.
+     *
+     * @param from
+     *            The lowest position, inclusive
+     * @param to
+     *            The highest position, inclusive
+     * @param limit
+     *            The maximum number of items to return
+     * @return An iterator over the items in ascending position
+     */
+    public RangeIterator range(final long from, final long to, final int limit) {
+        final long s = Math.max(from, lower);
+        final long t = Math.min(to, upper);
+        if (s > t || limit <= 0) {
+            return new RangeIterator(Collections.<Node> emptyList(), s, t, 0);
+        }
+        return new RangeIterator(cover(s, t), s, t, limit);
+    }
+
+    /**
+     * @return The nodes from minLevel to the leaf that contain the position
+     */
+    List<Node> path(final long position) {
+        if (position < lower || position > upper) {
+            throw new IllegalArgumentException("position " + position + " not in [" + lower + ".." + upper + "]");
+        }
+        final List<Node> path = new ArrayList<Node>(height - minLevel + 1);
+        long from = lower;
+        long to = upper;
+        for (int level = 0; level <= height; level++) {
+            if (level >= minLevel) {
+                path.add(new Node(level, from, to));
+            }
+            if (from == to) {
+                break;
+            }
+            final long mid = from + (to - from) / 2;
+            if (position <= mid) {
+                to = mid;
+            } else {
+                from = mid + 1;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * @return The nodes that cover [s..t] from left to right, at most two per level
+     */
+    List<Node> cover(final long s, final long t) {
+        final List<Node> result = new ArrayList<Node>();
+        cover(s, t, lower, upper, 0, result);
+        return result;
+    }
+
+    private void cover(final long s, final long t, final long from, final long to, final int level,
+            final List<Node> result) {
+        if (level >= minLevel && ((s <= from && to <= t) || level >= height || from == to)) {
+            result.add(new Node(level, from, to));
+            return;
+        }
+        final long mid = from + (to - from) / 2;
+        if (s <= mid) {
+            cover(s, t, from, mid, level + 1, result);
+        }
+        if (t > mid) {
+            cover(s, t, mid + 1, to, level + 1, result);
+        }
+    }
+
+    static Number160 contentKey(final long position, final Number160 id) {
+        return new Number160(position, id);
+    }
+
+    private void invalidateCache() {
+        final ConcurrentCacheMap<List<Object>, NavigableMap<Number640, Data>> cache = this.cache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    private ConcurrentCacheMap<List<Object>, NavigableMap<Number640, Data>> cache() {
+        ConcurrentCacheMap<List<Object>, NavigableMap<Number640, Data>> cache = this.cache;
+        if (cache == null) {
+            cache = new ConcurrentCacheMap<List<Object>, NavigableMap<Number640, Data>>(cacheTTLSeconds,
+                    ConcurrentCacheMap.MAX_ENTRIES);
+            this.cache = cache;
+        }
+        return cache;
+    }
+
+    /**
+     * A node of the segment tree.
+     */
+    final class Node {
+        private final int level;
+        private final long from;
+        private final long to;
+        private final Number160 locationKey;
+
+        private Node(final int level, final long from, final long to) {
+            this.level = level;
+            this.from = from;
+            this.to = to;
+            this.locationKey = Number160.createHash(name + "/" + level + "/" + from + "/" + to);
+        }
+
+        int level() {
+            return level;
+        }
+
+        long from() {
+            return from;
+        }
+
+        long to() {
+            return to;
+        }
+
+        Number160 locationKey() {
+            return locationKey;
+        }
+
+        @Override
+        public String toString() {
+            return "node " + level + " [" + from + ".." + to + "]";
+        }
+    }
+
+    /**
+     * An item of a range query.
+     */
+    public static final class Entry {
+        private final long position;
+        private final Number160 id;
+        private final Data data;
+
+        private Entry(final Number160 contentKey, final Data data) {
+            this.position = contentKey.timestamp();
+            this.id = contentKey.number96();
+            this.data = data;
+        }
+
+        public long position() {
+            return position;
+        }
+
+        /**
+         * @return The lower 96 bits of the ID the item was stored with
+         */
+        public Number160 id() {
+            return id;
+        }
+
+        public Data data() {
+            return data;
+        }
+    }
+
+    /**
+     * Streams the result of a range query. The first pages of the next {@link RangeIndex#parallel()} nodes are
+     * requested ahead, {@link #hasNext()} blocks until the page of the current node has arrived. If a get fails, the
+     * query is stopped and {@link #hasNext()} throws an {@link IllegalStateException}, so that an incomplete result
+     * is never taken for the whole range.
+     */
+    public final class RangeIterator implements Iterator<Entry> {
+        private final List<Node> nodes;
+        private final long s;
+        private final long t;
+        private final ArrayDeque<Page> pages = new ArrayDeque<Page>();
+        private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+        private int nextNode = 0;
+        private int remaining;
+        private int requests = 0;
+        private String failedReason = null;
+        private boolean closed = false;
+
+        private RangeIterator(final List<Node> nodes, final long s, final long t, final int limit) {
+            this.nodes = nodes;
+            this.s = s;
+            this.t = t;
+            this.remaining = limit;
+            fill();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (failedReason != null) {
+                throw new IllegalStateException(failedReason);
+            }
+            while (entries.isEmpty() && !closed && remaining > 0) {
+                final Page page = pages.poll();
+                if (page == null) {
+                    return false;
+                }
+                final NavigableMap<Number640, Data> result = page.await();
+                if (result == null) {
+                    failedReason = "could not get the range of " + page.node + ": "
+                            + page.futureGet.failedReason();
+                    close();
+                    throw new IllegalStateException(failedReason);
+                }
+                for (Map.Entry<Number640, Data> entry : result.entrySet()) {
+                    entries.add(new Entry(entry.getKey().contentKey(), entry.getValue()));
+                }
+                if (result.size() >= pageSize) {
+                    // there may be more in this node, continue after the last key
+                    pages.addFirst(new Page(page.node, new Number640(result.lastKey().locationAndDomainAndContentKey(),
+                            Number160.MAX_VALUE)));
+                }
+                fill();
+            }
+            return !entries.isEmpty() && remaining > 0 && !closed;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            final Entry entry = entries.poll();
+            if (remaining == 0) {
+                close();
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops the query and cancels the gets that are in flight.
+         */
+        public void close() {
+            closed = true;
+            for (Page page : pages) {
+                page.cancel();
+            }
+            pages.clear();
+        }
+
+        /**
+         * @return The number of gets that have been sent
+         */
+        public int requests() {
+            return requests;
+        }
+
+        /**
+         * @return The reason why a get failed and the query has been stopped, or null if no get failed
+         */
+        public String failedReason() {
+            return failedReason;
+        }
+
+        private void fill() {
+            while (!closed && pages.size() < parallel && nextNode < nodes.size()) {
+                final Node node = nodes.get(nextNode++);
+                pages.add(new Page(node, new Number640(node.locationKey(), domainKey, contentKey(s, Number160.ZERO),
+                        Number160.ZERO)));
+            }
+        }
+
+        /**
+         * A get of up to pageSize items of a node, starting at a key.
+         */
+        private final class Page {
+            private final Node node;
+            private final Number640 start;
+            private final List<Object> cacheKey;
+            private NavigableMap<Number640, Data> result;
+            private FutureGet futureGet;
+
+            private Page(final Node node, final Number640 start) {
+                this.node = node;
+                this.start = start;
+                if (node.level() < minLevel + cacheLevels && cacheTTLSeconds > 0) {
+                    this.cacheKey = Arrays.<Object> asList(start, t, pageSize);
+                    this.result = cache().get(cacheKey);
+                } else {
+                    this.cacheKey = null;
+                }
+                if (result == null) {
+                    final Number640 end = new Number640(node.locationKey(), domainKey, contentKey(t,
+                            Number160.MAX_VALUE), Number160.MAX_VALUE);
+                    this.futureGet = peer.get(node.locationKey()).domainKey(domainKey).from(start).to(end)
+                            .returnNr(pageSize).ascending().coalesce().start();
+                    requests++;
+                }
+            }
+
+            /**
+             * @return The items of this page, or null if the get failed
+             */
+            private NavigableMap<Number640, Data> await() {
+                if (result != null) {
+                    return result;
+                }
+                futureGet.awaitUninterruptibly();
+                if (!futureGet.isSuccess()) {
+                    return null;
+                }
+                final NavigableMap<Number640, Data> sorted = new TreeMap<Number640, Data>();
+                sorted.putAll(futureGet.dataMap());
+                if (cacheKey != null) {
+                    cache().put(cacheKey, sorted);
+                }
+                result = sorted;
+                return result;
+            }
+
+            private void cancel() {
+                if (futureGet != null) {
+                    futureGet.cancel();
+                }
+            }
+        }
+    }
+}
@@ -159,6 +159,6 @@ public class RemoveBuilder extends DHTBuilder<RemoveBuilder> implements Searchab
             contentKeys.add(contentKey);
         }
 
-        return peer.distributedHashTable().remove(this);
+        return peer.peer().metrics().watch(peer.distributedHashTable().remove(this), "remove");
     }
 }
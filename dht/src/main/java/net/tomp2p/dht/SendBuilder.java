@@ -97,7 +97,7 @@ public class SendBuilder extends DHTBuilder<SendBuilder> implements SendDirectBu
             return FUTURE_SHUTDOWN;
         }
         preBuild("send-builder");
-        return peer.distributedHashTable().direct(this);
+        return peer.peer().metrics().watch(peer.distributedHashTable().direct(this), "direct");
     }
 
     public SendBuilder progressListener(ProgressListener progressListener) {
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.Collection;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.rpc.CountingBloomFilter;
+
+/**
+ * Keeps track of the keys stored in a {@link net.tomp2p.storage.Storage} with two counting bloom filters, one for the
+ * location keys and one for the location, domain, and content keys. If a filter says that a key is not present, the
+ * storage does not need to be locked or queried. A filter may contain false positives, but never false negatives as
+ * long as every stored entry is added once and every removed entry is removed once. If more entries are stored than
+ * the filters were sized for, {@link #isFull()} returns true and the filters should be rebuilt with
+ * {@link #rebuild(Collection)}, otherwise the false positive rate grows until every lookup hits the storage.
+ */
+final class StorageBloomFilter {
+
+	public static final int DEFAULT_EXPECTED_ENTRIES = 4096;
+
+	// 8 counters per entry result in 6 hash functions and a false positive probability of about 2%
+	private static final int COUNTERS_PER_ENTRY = 8;
+
+	private CountingBloomFilter<Number160> locationFilter;
+
+	private CountingBloomFilter<Number480> keyFilter;
+
+	private int expectedEntries;
+
+	// the number of entries in the filters
+	private int entries = 0;
+
+	StorageBloomFilter(final int expectedEntries) {
+		create(expectedEntries);
+	}
+
+	private void create(final int expectedEntries) {
+		this.expectedEntries = expectedEntries;
+		this.locationFilter = new CountingBloomFilter<Number160>(expectedEntries,
+		        new int[expectedEntries * COUNTERS_PER_ENTRY]);
+		this.keyFilter = new CountingBloomFilter<Number480>(expectedEntries,
+		        new int[expectedEntries * COUNTERS_PER_ENTRY]);
+	}
+
+	synchronized void add(final Number640 key) {
+		locationFilter.add(key.locationKey());
+		keyFilter.add(key.locationAndDomainAndContentKey());
+		entries++;
+	}
+
+	void addAll(final Collection<Number640> keys) {
+		for (Number640 key : keys) {
+			add(key);
+		}
+	}
+
+	synchronized void remove(final Number640 key) {
+		locationFilter.remove(key.locationKey());
+		keyFilter.remove(key.locationAndDomainAndContentKey());
+		entries--;
+	}
+
+	void removeAll(final Collection<Number640> keys) {
+		for (Number640 key : keys) {
+			remove(key);
+		}
+	}
+
+	synchronized boolean mayContain(final Number160 locationKey) {
+		return locationFilter.contains(locationKey);
+	}
+
+	synchronized boolean mayContain(final Number480 key) {
+		return locationFilter.contains(key.locationKey()) && keyFilter.contains(key);
+	}
+
+	boolean mayContain(final Number640 key) {
+		return mayContain(key.locationAndDomainAndContentKey());
+	}
+
+	/**
+	 * @param from
+	 *            The lower bound of the range
+	 * @param to
+	 *            The upper bound of the range
+	 * @return False if there is definitely no entry in this range. A range that spans multiple location keys is
+	 *         always assumed to contain entries.
+	 */
+	boolean mayContain(final Number640 from, final Number640 to) {
+		if (!from.locationKey().equals(to.locationKey())) {
+			return true;
+		}
+		if (from.domainKey().equals(to.domainKey()) && from.contentKey().equals(to.contentKey())) {
+			return mayContain(from.locationAndDomainAndContentKey());
+		}
+		return mayContain(from.locationKey());
+	}
+
+	/**
+	 * @return True if more entries are stored than the filters were sized for
+	 */
+	synchronized boolean isFull() {
+		return entries > expectedEntries;
+	}
+
+	/**
+	 * @return The number of entries the filters are sized for
+	 */
+	synchronized int expectedEntries() {
+		return expectedEntries;
+	}
+
+	/**
+	 * Replaces the filters with filters that are sized for twice the number of keys, but not smaller than the current
+	 * filters, and adds the keys. The keys must not be modified while the filters are rebuilt.
+	 * 
+	 * @param keys
+	 *            All keys in the storage
+	 */
+	synchronized void rebuild(final Collection<Number640> keys) {
+		create(Math.max(expectedEntries, keys.size() * 2));
+		entries = 0;
+		addAll(keys);
+	}
+}
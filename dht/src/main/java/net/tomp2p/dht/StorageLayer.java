@@ -29,13 +29,18 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import net.tomp2p.metrics.Histogram;
+import net.tomp2p.metrics.Metrics;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number480;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.storage.BoundedTimeoutStorage;
 import net.tomp2p.storage.Data;
 import net.tomp2p.storage.DigestStorage;
 import net.tomp2p.storage.KeyLock;
@@ -50,6 +55,8 @@ public class StorageLayer implements DigestStorage {
 
 	private static final Logger LOG = LoggerFactory.getLogger(StorageLayer.class);
 
+	public static final int DEFAULT_EXPIRY_BATCH_SIZE = 1000;
+
 	public enum ProtectionEnable {
 		ALL, NONE
 	};
@@ -63,6 +70,10 @@ public class StorageLayer implements DigestStorage {
 		OK, FAILED_NOT_ABSENT, FAILED_SECURITY, FAILED, VERSION_FORK, NOT_FOUND, DELETED
 	};
 
+	public enum GetStatus {
+		OK, NOT_MODIFIED
+	};
+
 	// Hash of public key is always preferred
 	private ProtectionMode protectionDomainMode = ProtectionMode.MASTER_PUBLIC_KEY;
 
@@ -93,8 +104,70 @@ public class StorageLayer implements DigestStorage {
 
 	final private Storage backend;
 
+	// keys that are stored in the backend, misses are answered without locking or accessing the backend
+	final private StorageBloomFilter storageBloomFilter;
+
+	// held for reading while the backend and the bloom filters are modified, held for writing while they are rebuilt
+	final private ReadWriteLock bloomFilterLock = new ReentrantReadWriteLock();
+
+	private volatile int expiryBatchSize = DEFAULT_EXPIRY_BATCH_SIZE;
+
 	public StorageLayer(Storage backend) {
+		this(backend, StorageBloomFilter.DEFAULT_EXPECTED_ENTRIES);
+	}
+
+	/**
+	 * Creates a storage layer. The keys already present in the backend are added to the bloom filters that are used
+	 * to answer lookups for absent keys.
+	 * 
+	 * @param backend
+	 *            The storage that holds the data
+	 * @param expectedEntries
+	 *            The expected number of entries, used to size the bloom filters. The filters are sized for at least
+	 *            twice the number of entries already in the backend, and are rebuilt with twice the size once more
+	 *            entries are stored.
+	 */
+	public StorageLayer(Storage backend, int expectedEntries) {
 		this.backend = backend;
+		final Collection<Number640> keys = backend.map().keySet();
+		this.storageBloomFilter = new StorageBloomFilter(Math.max(expectedEntries, keys.size() * 2));
+		storageBloomFilter.addAll(keys);
+	}
+
+	/**
+	 * Rebuilds the bloom filters from the backend if more entries are stored than they were sized for.
+	 */
+	private void growBloomFilter() {
+		if (!storageBloomFilter.isFull()) {
+			return;
+		}
+		bloomFilterLock.writeLock().lock();
+		try {
+			// another thread may have rebuilt them already
+			if (storageBloomFilter.isFull()) {
+				storageBloomFilter.rebuild(backend.map().keySet());
+				LOG.debug("rebuilt the storage bloom filters for {} entries", storageBloomFilter.expectedEntries());
+			}
+		} finally {
+			bloomFilterLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Records how long the data locks of this storage layer are held.
+	 * 
+	 * @param metrics
+	 *            The metrics of the peer
+	 * @return This class
+	 */
+	public StorageLayer metrics(Metrics metrics) {
+		final Histogram lockHold = metrics.storageLockHold();
+		dataLock.lockHold(lockHold);
+		dataLock160.lockHold(lockHold);
+		dataLock320.lockHold(lockHold);
+		dataLock480.lockHold(lockHold);
+		dataLock640.lockHold(lockHold);
+		return this;
 	}
 
 	public void protection(ProtectionEnable protectionDomainEnable, ProtectionMode protectionDomainMode,
@@ -167,7 +240,15 @@ public class StorageLayer implements DigestStorage {
 			tmp.put(key, newData);
 			boolean versionFork = getLatestInternal(tmp).size() > 1;
 
-			retVal = backend.put(key, newData);
+			bloomFilterLock.readLock().lock();
+			try {
+				retVal = backend.put(key, newData);
+				if (retVal && !contains) {
+					storageBloomFilter.add(key);
+				}
+			} finally {
+				bloomFilterLock.readLock().unlock();
+			}
 			if (retVal) {
 				long expiration = newData.expirationMillis();
 				// handle timeout
@@ -183,6 +264,7 @@ public class StorageLayer implements DigestStorage {
 			}
 		} finally {
 			dataLock480.unlock(lock);
+			growBloomFilter();
 		}
 	}
 
@@ -199,13 +281,24 @@ public class StorageLayer implements DigestStorage {
 				return new Pair<Data, Enum<?>>(null, PutStatus.NOT_FOUND);
 			}
 			backend.removeTimeout(key);
-			return new Pair<Data, Enum<?>>(backend.remove(key, returnData), PutStatus.OK);
+			final Data removed;
+			bloomFilterLock.readLock().lock();
+			try {
+				removed = backend.remove(key, returnData);
+				storageBloomFilter.remove(key);
+			} finally {
+				bloomFilterLock.readLock().unlock();
+			}
+			return new Pair<Data, Enum<?>>(removed, PutStatus.OK);
 		} finally {
 			dataLock640.unlock(lock);
 		}
 	}
 
 	public Data get(Number640 key) {
+		if (!storageBloomFilter.mayContain(key)) {
+			return null;
+		}
 		KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
 		try {
 			return getInternal(key);
@@ -216,7 +309,8 @@ public class StorageLayer implements DigestStorage {
 
 	private Data getInternal(Number640 key) {
 		Data data = backend.get(key);
-		if (data != null && !data.hasPrepareFlag()) {
+		// expired entries that have not yet been removed by the maintenance are not returned
+		if (data != null && !data.hasPrepareFlag() && !hasExpired(data, System.currentTimeMillis())) {
 			return data;
 		} else {
 			return null;
@@ -224,6 +318,9 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public NavigableMap<Number640, Data> get(Number640 from, Number640 to, int limit, boolean ascending) {
+		if (!storageBloomFilter.mayContain(from, to)) {
+			return new TreeMap<Number640, Data>();
+		}
 		KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
@@ -235,7 +332,58 @@ public class StorageLayer implements DigestStorage {
 		}
 	}
 
+	/**
+	 * Gets a page of the entries in a range. Only the entries of the page are read from the backend. Entries that
+	 * are not yet confirmed are skipped and do not count towards the limit.
+	 * 
+	 * @param from
+	 *            The first key of the range
+	 * @param to
+	 *            The last key of the range
+	 * @param limit
+	 *            The number of entries in the page
+	 * @param ascending
+	 *            True if the page starts at from, false if the page starts at to
+	 * @return Up to limit + 1 entries. If there are more entries in the range than in the page, the additional entry
+	 *         is the first entry of the next page, that is, the last entry if ascending, the first otherwise
+	 */
+	public NavigableMap<Number640, Data> getPage(Number640 from, Number640 to, int limit, boolean ascending) {
+		if (!storageBloomFilter.mayContain(from, to)) {
+			return new TreeMap<Number640, Data>();
+		}
+		KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
+		try {
+			final NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>();
+			Number640 last = null;
+			while (true) {
+				// the last key of the previous read is read again
+				final int read = limit + 1 - result.size() + (last == null ? 0 : 1);
+				final NavigableMap<Number640, Data> tmp = ascending ? backend.subMap(last == null ? from : last, to,
+				        read, true) : backend.subMap(from, last == null ? to : last, read, false);
+				final boolean more = tmp.size() == read;
+				if (last != null) {
+					tmp.remove(last);
+				}
+				if (tmp.isEmpty()) {
+					return result;
+				}
+				last = ascending ? tmp.lastKey() : tmp.firstKey();
+				removePrepared(tmp);
+				result.putAll(tmp);
+				// only read again if unconfirmed entries were skipped
+				if (!more || result.size() > limit) {
+					return result;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	public Map<Number640, Data> getLatestVersion(Number640 key) {
+		if (!storageBloomFilter.mayContain(key)) {
+			return new HashMap<Number640, Data>();
+		}
 		KeyLock<Number480>.RefCounterLock lock = dataLock480.lock(key.locationDomainAndContentKey());
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(key.minVersionKey(), key.maxVersionKey(), -1, true);
@@ -261,15 +409,20 @@ public class StorageLayer implements DigestStorage {
     }
 
 	private void removePrepared(final NavigableMap<Number640, Data> tmp) {
+		final long now = System.currentTimeMillis();
 		final Iterator<Map.Entry<Number640, Data>> iterator = tmp.entrySet().iterator();
 	    while (iterator.hasNext()) {
 	    	final Map.Entry<Number640, Data> entry = iterator.next();
-	    	if (entry.getValue().hasPrepareFlag()) {
+	    	if (entry.getValue().hasPrepareFlag() || hasExpired(entry.getValue(), now)) {
 	    		iterator.remove();
 	    	} 
 	    }
     }
 
+	private static boolean hasExpired(final Data data, final long now) {
+		return data.expirationMillis() < now;
+	}
+
 	private void deletePredecessors(Number640 key, NavigableMap<Number640, Data> sortedMap) {
 		Data version = sortedMap.remove(key);
 		// check if version has been already deleted
@@ -296,6 +449,9 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public boolean contains(Number640 key) {
+		if (!storageBloomFilter.mayContain(key)) {
+			return false;
+		}
 		KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
 		try {
 			return backend.contains(key);
@@ -306,6 +462,9 @@ public class StorageLayer implements DigestStorage {
 
 	public Map<Number640, Data> get(Number640 from, Number640 to, SimpleBloomFilter<Number160> contentBloomFilter,
 	        SimpleBloomFilter<Number160> versionBloomFilter, int limit, boolean ascending, boolean isBloomFilterAnd) {
+		if (!storageBloomFilter.mayContain(from, to)) {
+			return new TreeMap<Number640, Data>();
+		}
 		KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
@@ -382,7 +541,14 @@ public class StorageLayer implements DigestStorage {
 					return null;
 				}
 			}
-			SortedMap<Number640, Data> result = backend.remove(from, to, true);
+			final SortedMap<Number640, Data> result;
+			bloomFilterLock.readLock().lock();
+			try {
+				result = backend.remove(from, to, true);
+				storageBloomFilter.removeAll(result.keySet());
+			} finally {
+				bloomFilterLock.readLock().unlock();
+			}
 			for (Map.Entry<Number640, Data> entry : result.entrySet()) {
 				Data data = entry.getValue();
 				if (data.publicKey() == null || data.publicKey().equals(publicKey)) {
@@ -410,31 +576,93 @@ public class StorageLayer implements DigestStorage {
 		}
 	}
 
-	public void checkTimeout() {
-		long time = System.currentTimeMillis();
-		Collection<Number640> toRemove = backend.subMapTimeout(time);
-		if (toRemove.size() > 0) {
-			for (Number640 key : toRemove) {
+	/**
+	 * Removes at most {@link #expiryBatchSize()} expired entries. A maintenance tick removes batches until none are left
+	 * or half of the interval has passed, the rest is removed in the next ticks. Expired entries that are still
+	 * stored are not returned by the gets. No lock is held for longer than one entry. Removals
+	 * are grouped by location key and the responsibility is checked once per location key.
+	 * 
+	 * @return True if there may be more expired entries than have been removed
+	 */
+	public boolean checkTimeout() {
+		final long time = System.currentTimeMillis();
+		final int batchSize = expiryBatchSize;
+		final Collection<Number640> toRemove = subMapTimeout(time, batchSize);
+		if (toRemove.isEmpty()) {
+			return false;
+		}
+		final Map<Number160, Collection<Number640>> byLocationKey = new HashMap<Number160, Collection<Number640>>();
+		for (final Number640 key : toRemove) {
+			Collection<Number640> keys = byLocationKey.get(key.locationKey());
+			if (keys == null) {
+				keys = new ArrayList<Number640>();
+				byLocationKey.put(key.locationKey(), keys);
+			}
+			keys.add(key);
+		}
+		for (final Map.Entry<Number160, Collection<Number640>> entry : byLocationKey.entrySet()) {
+			for (final Number640 key : entry.getValue()) {
 				KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
 				try {
-					backend.remove(key, false);
+					bloomFilterLock.readLock().lock();
+					try {
+						if (backend.remove(key, false) != null) {
+							storageBloomFilter.remove(key);
+						}
+					} finally {
+						bloomFilterLock.readLock().unlock();
+					}
 					backend.removeTimeout(key);
 				} finally {
 					lock.unlock();
 				}
-				// remove responsibility if we don't have any data stored under
-				// locationkey
-				Number160 locationKey = key.locationKey();
-				KeyLock<Number160>.RefCounterLock lock1 = dataLock160.lock(locationKey);
-				try {
-					if (isEmpty(locationKey)) {
-						backend.removeResponsibility(locationKey);
-					}
-				} finally {
-					lock1.unlock();
+			}
+			// remove responsibility if we don't have any data stored under
+			// locationkey
+			final Number160 locationKey = entry.getKey();
+			KeyLock<Number160>.RefCounterLock lock1 = dataLock160.lock(locationKey);
+			try {
+				if (isEmpty(locationKey)) {
+					backend.removeResponsibility(locationKey);
 				}
+			} finally {
+				lock1.unlock();
 			}
 		}
+		return batchSize >= 0 && toRemove.size() >= batchSize;
+	}
+
+	private Collection<Number640> subMapTimeout(final long time, final int batchSize) {
+		if (backend instanceof BoundedTimeoutStorage) {
+			return ((BoundedTimeoutStorage) backend).subMapTimeout(time, batchSize);
+		}
+		final Collection<Number640> expired = backend.subMapTimeout(time);
+		if (batchSize < 0 || expired.size() <= batchSize) {
+			return expired;
+		}
+		final Collection<Number640> batch = new ArrayList<Number640>(batchSize);
+		for (final Iterator<Number640> iterator = expired.iterator(); batch.size() < batchSize;) {
+			batch.add(iterator.next());
+		}
+		return batch;
+	}
+
+	/**
+	 * @return The maximum number of expired entries that are removed in one batch
+	 */
+	public int expiryBatchSize() {
+		return expiryBatchSize;
+	}
+
+	/**
+	 * @param expiryBatchSize
+	 *            The maximum number of expired entries that are removed in one batch, a negative number removes all
+	 *            expired entries at once
+	 * @return This class
+	 */
+	public StorageLayer expiryBatchSize(int expiryBatchSize) {
+		this.expiryBatchSize = expiryBatchSize;
+		return this;
 	}
 
 	private boolean isEmpty(Number160 locationKey) {
@@ -450,6 +678,9 @@ public class StorageLayer implements DigestStorage {
 	@Override
     public DigestInfo digest(Number640 from, Number640 to, int limit, boolean ascending) {
 		DigestInfo digestInfo = new DigestInfo();
+		if (!storageBloomFilter.mayContain(from, to)) {
+			return digestInfo;
+		}
 		KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
 		try {
 			Map<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
@@ -471,6 +702,9 @@ public class StorageLayer implements DigestStorage {
     public DigestInfo digest(Number320 locationAndDomainKey, SimpleBloomFilter<Number160> keyBloomFilter,
 	        SimpleBloomFilter<Number160> contentBloomFilter, int limit, boolean ascending, boolean isBloomFilterAnd) {
 		DigestInfo digestInfo = new DigestInfo();
+		if (!storageBloomFilter.mayContain(locationAndDomainKey.locationKey())) {
+			return digestInfo;
+		}
 		KeyLock<Number320>.RefCounterLock lock = dataLock320.lock(locationAndDomainKey);
 		try {
 			Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
@@ -508,6 +742,9 @@ public class StorageLayer implements DigestStorage {
     public DigestInfo digest(Collection<Number640> number640s) {
 		DigestInfo digestInfo = new DigestInfo();
 		for (Number640 number640 : number640s) {
+			if (!storageBloomFilter.mayContain(number640)) {
+				continue;
+			}
 			KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(number640);
 			try {
 				if (backend.contains(number640)) {
@@ -686,10 +923,16 @@ public class StorageLayer implements DigestStorage {
 		KeyLock<Number160>.RefCounterLock lock = responsibilityLock.lock(locationKey);
 		try {
 			if (!keepData) {
-				backend.remove(
-						new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO),
-						new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE),
-						false);
+				bloomFilterLock.readLock().lock();
+				try {
+					NavigableMap<Number640, Data> removed = backend.remove(
+							new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO),
+							new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE),
+							false);
+					storageBloomFilter.removeAll(removed.keySet());
+				} finally {
+					bloomFilterLock.readLock().unlock();
+				}
 			}
         	backend.removeResponsibility(locationKey);
         } finally {
@@ -709,15 +952,26 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	private class StorageMaintenanceTask implements Runnable {
+		private final long budgetMillis;
+
+		private StorageMaintenanceTask(long budgetMillis) {
+			this.budgetMillis = budgetMillis;
+		}
+
 		@Override
 		public void run() {
-			checkTimeout();
+			// remove batches until all expired entries are gone or the time budget of this tick is used up
+			final long until = System.currentTimeMillis() + budgetMillis;
+			while (checkTimeout() && System.currentTimeMillis() < until) {
+				// next batch
+			}
 		}
 	}
 
 	public void start(ScheduledExecutorService timer, int storageIntervalMillis) {
-		timer.scheduleAtFixedRate(new StorageMaintenanceTask(), storageIntervalMillis, storageIntervalMillis,
-		        TimeUnit.MILLISECONDS);
+		// half of the interval, so that the ticks do not queue up
+		timer.scheduleAtFixedRate(new StorageMaintenanceTask(storageIntervalMillis / 2), storageIntervalMillis,
+		        storageIntervalMillis, TimeUnit.MILLISECONDS);
 	}
 
 	public Enum<?> updateMeta(Number320 locationAndDomainKey, PublicKey publicKey, PublicKey newPublicKey) {
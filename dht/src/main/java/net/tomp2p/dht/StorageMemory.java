@@ -19,40 +19,39 @@ package net.tomp2p.dht;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 
+import net.tomp2p.peers.CompactNumber640;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number480;
 import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.BoundedTimeoutStorage;
 import net.tomp2p.storage.Data;
-import net.tomp2p.storage.Storage;
+import net.tomp2p.storage.ExpiryIndex;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class StorageMemory implements Storage {
+public class StorageMemory implements BoundedTimeoutStorage {
 
 	public static final int DEFAULT_STORAGE_CHECK_INTERVAL= 60 * 1000;
     private static final Logger LOG = LoggerFactory.getLogger(StorageMemory.class);
     
 
-    // Core
-    final private NavigableMap<Number640, Data> dataMap = new ConcurrentSkipListMap<Number640, Data>();
+    // Core, the keys are stored compact and converted to Number640 when they leave this class
+    final private NavigableMap<CompactNumber640, Data> dataMap = new ConcurrentSkipListMap<CompactNumber640, Data>();
 
     // Maintenance
-    final private Map<Number640, Long> timeoutMap = new ConcurrentHashMap<Number640, Long>();
-    final private ConcurrentSkipListMap<Long, Set<Number640>> timeoutMapRev = new ConcurrentSkipListMap<Long, Set<Number640>>();
+    final private ExpiryIndex<CompactNumber640> timeoutIndex;
 
     // Protection
     final private Map<Number320, PublicKey> protectedMap = new ConcurrentHashMap<Number320, PublicKey>();
@@ -69,40 +68,53 @@ public class StorageMemory implements Storage {
     }
     
     public StorageMemory(int storageCheckIntervalMillis) {
+    	this(storageCheckIntervalMillis, ExpiryIndex.DEFAULT_BUCKET_MILLIS);
+    }
+
+    /**
+     * @param storageCheckIntervalMillis
+     *            The interval in milliseconds to check for expired entries
+     * @param timeoutBucketMillis
+     *            The time span in milliseconds of the buckets that group entries with similar expiration times
+     */
+    public StorageMemory(int storageCheckIntervalMillis, int timeoutBucketMillis) {
     	this.storageCheckIntervalMillis = storageCheckIntervalMillis;
+    	this.timeoutIndex = new ExpiryIndex<CompactNumber640>(timeoutBucketMillis);
     }
 
     // Core
     @Override
     public boolean put(Number640 key, Data value) {
-        dataMap.put(key, value);
+        dataMap.put(new CompactNumber640(key), value);
         return true;
     }
 
     @Override
     public Data get(Number640 key) {
-        return dataMap.get(key);
+        return dataMap.get(new CompactNumber640(key));
     }
 
     @Override
     public boolean contains(Number640 key) {
-        return dataMap.containsKey(key);
+        return dataMap.containsKey(new CompactNumber640(key));
     }
 
     @Override
     public int contains(Number640 fromKey, Number640 toKey) {
-        NavigableMap<Number640, Data> tmp = dataMap.subMap(fromKey, true, toKey, true);
+        NavigableMap<CompactNumber640, Data> tmp = dataMap.subMap(new CompactNumber640(fromKey), true,
+                new CompactNumber640(toKey), true);
         return tmp.size();
     }
 
     @Override
     public Data remove(Number640 key, boolean returnData) {
-    	return dataMap.remove(key);
+    	return dataMap.remove(new CompactNumber640(key));
     }
 
     @Override
     public NavigableMap<Number640, Data> remove(Number640 fromKey, Number640 toKey, boolean returnData) {
-        NavigableMap<Number640, Data> tmp = dataMap.subMap(fromKey, true, toKey, true);
+        NavigableMap<CompactNumber640, Data> tmp = dataMap.subMap(new CompactNumber640(fromKey), true,
+                new CompactNumber640(toKey), true);
         
         // new TreeMap<Number640, Data>(tmp); is not possible as this may lead to no such element exception:
         //
@@ -125,8 +137,8 @@ public class StorageMemory implements Storage {
         // the reason is that the size in TreeMap.buildFromSorted is stored beforehand, then iteratated. If the size changes,
         // then you will call next() that returns null and an exception is thrown.
         final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
-        for(Map.Entry<Number640, Data> entry:tmp.entrySet()) {
-        	retVal.put(entry.getKey(), entry.getValue());
+        for(Map.Entry<CompactNumber640, Data> entry:tmp.entrySet()) {
+        	retVal.put(entry.getKey().toNumber640(), entry.getValue());
         }
         
         tmp.clear();
@@ -136,7 +148,8 @@ public class StorageMemory implements Storage {
     @Override
     public NavigableMap<Number640, Data> subMap(Number640 fromKey, Number640 toKey, int limit,
             boolean ascending) {
-    	final NavigableMap<Number640, Data> tmp = dataMap.subMap(fromKey, true, toKey, true);
+    	final NavigableMap<CompactNumber640, Data> tmp = dataMap.subMap(new CompactNumber640(fromKey), true,
+    			new CompactNumber640(toKey), true);
         final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
         if (limit < 0) {
         	
@@ -160,16 +173,15 @@ public class StorageMemory implements Storage {
             // 
             // the reason is that the size in TreeMap.buildFromSorted is stored beforehand, then iteratated. If the size changes,
             // then you will call next() that returns null and an exception is thrown.
-        	for(Map.Entry<Number640, Data> entry:(ascending ? tmp : tmp.descendingMap()).entrySet()) {
-            	retVal.put(entry.getKey(), entry.getValue());
+        	for(Map.Entry<CompactNumber640, Data> entry:(ascending ? tmp : tmp.descendingMap()).entrySet()) {
+            	retVal.put(entry.getKey().toNumber640(), entry.getValue());
             }
         } else {
-            limit = Math.min(limit, tmp.size());
-            Iterator<Map.Entry<Number640, Data>> iterator = ascending ? tmp.entrySet().iterator() : tmp
+            Iterator<Map.Entry<CompactNumber640, Data>> iterator = ascending ? tmp.entrySet().iterator() : tmp
                     .descendingMap().entrySet().iterator();
             for (int i = 0; iterator.hasNext() && i < limit; i++) {
-                Map.Entry<Number640, Data> entry = iterator.next();
-                retVal.put(entry.getKey(), entry.getValue());
+                Map.Entry<CompactNumber640, Data> entry = iterator.next();
+                retVal.put(entry.getKey().toNumber640(), entry.getValue());
             }
         }
         return retVal;
@@ -199,8 +211,8 @@ public class StorageMemory implements Storage {
         // the reason is that the size in TreeMap.buildFromSorted is stored beforehand, then iteratated. If the size changes,
         // then you will call next() that returns null and an exception is thrown.
         final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
-        for(final Map.Entry<Number640, Data> entry:dataMap.entrySet()) {
-        	retVal.put(entry.getKey(), entry.getValue());
+        for(final Map.Entry<CompactNumber640, Data> entry:dataMap.entrySet()) {
+        	retVal.put(entry.getKey().toNumber640(), entry.getValue());
         }
     	
         return retVal;
@@ -209,41 +221,25 @@ public class StorageMemory implements Storage {
     // Maintenance
     @Override
     public void addTimeout(Number640 key, long expiration) {
-        Long oldExpiration = timeoutMap.put(key, expiration);
-        Set<Number640> tmp = putIfAbsent2(expiration,
-                Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>()));
-        tmp.add(key);
-        if (oldExpiration == null) {
-            return;
-        }
-        removeRevTimeout(key, oldExpiration);
+        timeoutIndex.add(new CompactNumber640(key), expiration);
     }
 
     @Override
     public void removeTimeout(Number640 key) {
-        Long expiration = timeoutMap.remove(key);
-        if (expiration == null) {
-            return;
-        }
-        removeRevTimeout(key, expiration);
+        timeoutIndex.remove(new CompactNumber640(key));
     }
 
-    private void removeRevTimeout(Number640 key, Long expiration) {
-        Set<Number640> tmp = timeoutMapRev.get(expiration);
-        if (tmp != null) {
-            tmp.remove(key);
-            if (tmp.isEmpty()) {
-                timeoutMapRev.remove(expiration);
-            }
-        }
+    @Override
+    public Collection<Number640> subMapTimeout(long to) {
+        return subMapTimeout(to, -1);
     }
 
     @Override
-    public Collection<Number640> subMapTimeout(long to) {
-        SortedMap<Long, Set<Number640>> tmp = timeoutMapRev.subMap(0L, to);
-        Collection<Number640> toRemove = new ArrayList<Number640>();
-        for (Set<Number640> set : tmp.values()) {
-            toRemove.addAll(set);
+    public Collection<Number640> subMapTimeout(long to, int limit) {
+        Collection<CompactNumber640> tmp = timeoutIndex.expired(to, limit);
+        Collection<Number640> toRemove = new ArrayList<Number640>(tmp.size());
+        for (CompactNumber640 key : tmp) {
+            toRemove.add(key.toNumber640());
         }
         return toRemove;
     }
@@ -264,11 +260,6 @@ public class StorageMemory implements Storage {
         return !other.equals(publicKey);
     }
 
-    private Set<Number640> putIfAbsent2(long expiration, Set<Number640> hashSet) {
-        Set<Number640> timeouts = timeoutMapRev.putIfAbsent(expiration, hashSet);
-        return timeouts == null ? hashSet : timeouts;
-    }
-
 	@Override
 	public Collection<Number160> findPeerIDsForResponsibleContent(Number160 locationKey) {
 		return responsibilityMap.get(locationKey);
@@ -338,8 +329,7 @@ public class StorageMemory implements Storage {
     public void close() {
         dataMap.clear();
         protectedMap.clear();
-        timeoutMap.clear();
-        timeoutMapRev.clear();
+        timeoutIndex.clear();
     }
 
 	@Override
@@ -20,17 +20,22 @@ import java.io.IOException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Random;
+import java.util.TreeMap;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.Dispatcher;
 import net.tomp2p.connection.PeerBean;
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.RequestHandler;
 import net.tomp2p.connection.Responder;
+import net.tomp2p.dht.StorageLayer.GetStatus;
 import net.tomp2p.dht.StorageLayer.PutStatus;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.DataMap;
@@ -85,6 +90,13 @@ public class StorageRPC extends DispatchHandler {
         		RPC.Commands.DIGEST_BLOOMFILTER.getNr(), RPC.Commands.PUT_META.getNr(), 
 				RPC.Commands.DIGEST_META_VALUES.getNr(), RPC.Commands.PUT_CONFIRM.getNr(),
 				RPC.Commands.GET_LATEST.getNr(), RPC.Commands.GET_LATEST_WITH_DIGEST.getNr());
+        // the storage may block on disk I/O, keep it away from the I/O threads
+        bulkhead(Dispatcher.BULKHEAD_STORAGE, RPC.Commands.PUT.getNr(), 
+        		RPC.Commands.GET.getNr(), RPC.Commands.ADD.getNr(), 
+        		RPC.Commands.REMOVE.getNr(), RPC.Commands.DIGEST.getNr(), 
+        		RPC.Commands.DIGEST_BLOOMFILTER.getNr(), RPC.Commands.PUT_META.getNr(), 
+				RPC.Commands.DIGEST_META_VALUES.getNr(), RPC.Commands.PUT_CONFIRM.getNr(),
+				RPC.Commands.GET_LATEST.getNr(), RPC.Commands.GET_LATEST_WITH_DIGEST.getNr());
         this.factory = peerBean.bloomfilterFactory();
         this.storageLayer = storageLayer;
     }
@@ -512,6 +524,14 @@ public class StorageRPC extends DispatchHandler {
             message.keyCollection(new KeyCollection(getBuilder.keys()));
         }
 
+        if (getBuilder.knownData() != null && !getBuilder.knownData().isEmpty()) {
+            final NavigableMap<Number640, Collection<Number160>> knownHashes = new TreeMap<Number640, Collection<Number160>>();
+            for (Map.Entry<Number640, Data> entry : getBuilder.knownData().entrySet()) {
+                knownHashes.put(entry.getKey(), Collections.singleton(entry.getValue().hash()));
+            }
+            message.keyMap640Keys(new KeyMap640Keys(knownHashes));
+        }
+
         final FutureResponse futureResponse = new FutureResponse(message);
         final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
                 peerBean(), connectionBean(), getBuilder);
@@ -831,12 +851,74 @@ public class StorageRPC extends DispatchHandler {
         final boolean isCollection = contentKeys != null && returnNr == null;
         final boolean isBloomFilterAnd = isBloomFilterAnd(message);
 
-        final Map<Number640, Data> result = doGet(locationKey, domainKey, contentKeys, contentBloomFilter,
-                versionBloomFilter, limit, ascending, isRange, isCollection, isBloomFilterAnd);
+        final Map<Number640, Data> result;
+        if (limit >= 0 && !isCollection && contentBloomFilter == null && versionBloomFilter == null) {
+            result = getPage(locationKey, domainKey, contentKeys, limit, ascending, isRange, responseMessage);
+        } else {
+            result = doGet(locationKey, domainKey, contentKeys, contentBloomFilter, versionBloomFilter, limit,
+                    ascending, isRange, isCollection, isBloomFilterAnd);
+        }
+        notModified(result, message.keyMap640Keys(0), responseMessage);
         responseMessage.setDataMap(new DataMap(result));
         return responseMessage;
     }
 
+    /**
+     * Removes the entries the requester already knows from the result and tells the requester that they have not been
+     * modified.
+     * 
+     * @param result
+     *            The entries that will be returned
+     * @param knownHashes
+     *            The hashes of the data the requester knows, or null if this is not a conditional get
+     * @param responseMessage
+     *            The response, which gets the keys of the entries that have not been modified
+     */
+    private static void notModified(final Map<Number640, Data> result, final KeyMap640Keys knownHashes,
+            final Message responseMessage) {
+        if (knownHashes == null || knownHashes.keysMap() == null) {
+            return;
+        }
+        final Map<Number640, Byte> notModified = new HashMap<Number640, Byte>();
+        for (Map.Entry<Number640, Collection<Number160>> entry : knownHashes.keysMap().entrySet()) {
+            final Data data = result.get(entry.getKey());
+            if (data != null && entry.getValue() != null && entry.getValue().contains(data.hash())) {
+                result.remove(entry.getKey());
+                notModified.put(entry.getKey(), (byte) GetStatus.NOT_MODIFIED.ordinal());
+            }
+        }
+        if (!notModified.isEmpty()) {
+            responseMessage.keyMapByte(new KeyMapByte(notModified));
+        }
+    }
+
+    /**
+     * Gets a page of a range or of all entries of a location and domain key. If there are more entries, the key of
+     * the first entry of the next page is added to the response, so that the requester can continue from there. The
+     * requester asks for the next page, thus, no state is kept here.
+     */
+    private NavigableMap<Number640, Data> getPage(final Number160 locationKey, final Number160 domainKey,
+            final KeyCollection contentKeys, final int limit, final boolean ascending, final boolean isRange,
+            final Message responseMessage) {
+        final Number640 min;
+        final Number640 max;
+        if (isRange) {
+            Iterator<Number640> iterator = contentKeys.keys().iterator();
+            min = iterator.next();
+            max = iterator.next();
+        } else {
+            min = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
+            max = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        }
+        final NavigableMap<Number640, Data> result = storageLayer.getPage(min, max, limit, ascending);
+        if (result.size() > limit) {
+            final Number640 next = ascending ? result.lastKey() : result.firstKey();
+            result.remove(next);
+            responseMessage.keyCollection(new KeyCollection(Collections.singletonList(next)));
+        }
+        return result;
+    }
+
 	private Map<Number640, Data> doGet(final Number160 locationKey, final Number160 domainKey,
             final KeyCollection contentKeys, final SimpleBloomFilter<Number160> contentBloomFilter,
             final SimpleBloomFilter<Number160> versionBloomFilter, final int limit, final boolean ascending,
@@ -1,5 +1,13 @@
 package net.tomp2p.dht;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+
 public class UtilsDHT {
 	public static int dataSize(PutBuilder putBuilder) {
     	if(putBuilder.isPutMeta() && putBuilder.changePublicKey()!=null) {
@@ -21,4 +29,34 @@ public class UtilsDHT {
 	    //we don't know how much, at least one.
 	    return 1;
     }
+
+    /**
+     * Waits for all futures.
+     * 
+     * @param futures
+     *            The futures to wait for
+     * @return A future that is done when all futures are done, and failed as soon as one of them failed
+     */
+    public static FutureDone<Void> join(final List<? extends BaseFuture> futures) {
+        final FutureDone<Void> futureDone = new FutureDone<Void>();
+        final AtomicInteger counter = new AtomicInteger(futures.size());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        for (BaseFuture future : futures) {
+            future.addListener(new BaseFutureAdapter<BaseFuture>() {
+                @Override
+                public void operationComplete(final BaseFuture future) throws Exception {
+                    if (!future.isSuccess() && failed.compareAndSet(false, true)) {
+                        futureDone.failed(future);
+                    }
+                    if (counter.decrementAndGet() == 0 && !failed.get()) {
+                        futureDone.done();
+                    }
+                }
+            });
+        }
+        if (futures.isEmpty()) {
+            futureDone.done();
+        }
+        return futureDone;
+    }
 }
@@ -13,13 +13,16 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -92,6 +95,55 @@ public class TestDHT {
 
 	}
 
+	@Test
+	public void testGetCoalesce() throws Exception {
+		PeerDHT master = null;
+		try {
+			PeerDHT[] peers = UtilsDHT2.createNodes(10, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			Number160 locationKey = Number160.createHash("test");
+			FuturePut futurePut = master.put(locationKey).data(new Data("test")).start();
+			futurePut.awaitUninterruptibly();
+			Assert.assertEquals(true, futurePut.isSuccess());
+
+			FutureGet futureGet1 = peers[1].get(locationKey).coalesce().start();
+			// identical, attached to the first get
+			FutureGet futureGet2 = peers[1].get(locationKey).coalesce().start();
+			// a different domain is a different get
+			FutureGet futureGet3 = peers[1].get(locationKey).domainKey(Number160.ONE).coalesce().start();
+			// not coalesced
+			FutureGet futureGet4 = peers[1].get(locationKey).start();
+			futureGet1.awaitUninterruptibly();
+			futureGet2.awaitUninterruptibly();
+			futureGet3.awaitUninterruptibly();
+			futureGet4.awaitUninterruptibly();
+
+			Assert.assertEquals(true, futureGet1.isSuccess());
+			Assert.assertEquals(true, futureGet2.isSuccess());
+			Assert.assertEquals("test", futureGet2.data().object());
+			// one routing and one set of storage requests for both
+			Assert.assertSame(futureGet1.futureRouting(), futureGet2.futureRouting());
+			Assert.assertNotNull(futureGet1.futureRequests());
+			Assert.assertNull(futureGet2.futureRequests());
+
+			Assert.assertNotSame(futureGet1.futureRouting(), futureGet3.futureRouting());
+			Assert.assertNotNull(futureGet3.futureRequests());
+			Assert.assertNotSame(futureGet1.futureRouting(), futureGet4.futureRouting());
+			Assert.assertNotNull(futureGet4.futureRequests());
+
+			// the first get is done, so the same get routes again
+			FutureGet futureGet5 = peers[1].get(locationKey).coalesce().start();
+			futureGet5.awaitUninterruptibly();
+			Assert.assertEquals(true, futureGet5.isSuccess());
+			Assert.assertNotSame(futureGet1.futureRouting(), futureGet5.futureRouting());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
 	@Test
 	public void testPutVersion() throws Exception {
 		final Random rnd = new Random(42L);
@@ -847,6 +899,111 @@ public class TestDHT {
 		}
 	}
 
+	@Test
+	public void testPagedGet() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+
+			// initialize test data
+			Number160 lKey = new Number160(rnd);
+			Number160 dKey = new Number160(rnd);
+			NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+			for (int i = 0; i < 25; i++) {
+				dataMap.put(new Number640(lKey, dKey, new Number160(rnd), Number160.ZERO), new Data(i));
+			}
+			for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+				FuturePut fput = peers[rnd.nextInt(100)].put(lKey).domainKey(dKey)
+				        .data(entry.getKey().contentKey(), entry.getValue()).start();
+				fput.awaitUninterruptibly();
+				Assert.assertTrue(fput.isSuccess());
+			}
+
+			// get all entries in pages of 10
+			for (boolean ascending : new boolean[] { true, false }) {
+				PagedGet pages = peers[rnd.nextInt(100)].get(lKey).domainKey(dKey).all().ascending(ascending)
+				        .pageSize(10).startPaged();
+				List<Number640> fetched = new ArrayList<Number640>();
+				List<Integer> pageSizes = new ArrayList<Integer>();
+				while (pages.hasNext()) {
+					FutureGet page = pages.next().awaitUninterruptibly();
+					Assert.assertTrue(page.isSuccess());
+					pageSizes.add(page.dataMap().size());
+					fetched.addAll(new TreeMap<Number640, Data>(page.dataMap()).keySet());
+				}
+				Assert.assertEquals(Arrays.asList(10, 10, 5), pageSizes);
+				// every entry is received once
+				Assert.assertEquals(dataMap.size(), fetched.size());
+				Assert.assertEquals(dataMap.keySet(), new TreeSet<Number640>(fetched));
+				Assert.assertNull(pages.nextKey());
+			}
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testConditionalGet() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+
+			// initialize test data
+			Number160 lKey = new Number160(rnd);
+			Number160 dKey = new Number160(rnd);
+			Number160 changed = new Number160(rnd);
+			for (int i = 0; i < 5; i++) {
+				FuturePut fput = peers[rnd.nextInt(100)].put(lKey).domainKey(dKey)
+				        .data(i == 0 ? changed : new Number160(rnd), new Data(i)).start();
+				fput.awaitUninterruptibly();
+				Assert.assertTrue(fput.isSuccess());
+			}
+			FutureGet fget = peers[rnd.nextInt(100)].get(lKey).domainKey(dKey).all().start();
+			fget.awaitUninterruptibly();
+			Assert.assertTrue(fget.isSuccess());
+			Map<Number640, Data> known = fget.dataMap();
+			Assert.assertEquals(5, known.size());
+
+			// nothing has changed, the peers do not send the data again
+			fget = peers[rnd.nextInt(100)].get(lKey).domainKey(dKey).all().knownData(known).start();
+			fget.awaitUninterruptibly();
+			Assert.assertTrue(fget.isSuccess());
+			for (Map<Number640, Data> received : fget.rawData().values()) {
+				Assert.assertTrue(received.isEmpty());
+			}
+			Assert.assertEquals(known, fget.dataMap());
+			Assert.assertEquals(known.keySet(), new HashSet<Number640>(fget.notModified()));
+
+			// one entry has changed, only this one is sent
+			FuturePut fput = peers[rnd.nextInt(100)].put(lKey).domainKey(dKey).data(changed, new Data(-1)).start();
+			fput.awaitUninterruptibly();
+			Assert.assertTrue(fput.isSuccess());
+			fget = peers[rnd.nextInt(100)].get(lKey).domainKey(dKey).all().knownData(known).start();
+			fget.awaitUninterruptibly();
+			Assert.assertTrue(fget.isSuccess());
+			Number640 changedKey = new Number640(lKey, dKey, changed, Number160.ZERO);
+			for (Map<Number640, Data> received : fget.rawData().values()) {
+				Assert.assertEquals(Collections.singleton(changedKey), received.keySet());
+			}
+			Assert.assertEquals(known.keySet(), fget.dataMap().keySet());
+			Assert.assertEquals(Integer.valueOf(-1), fget.dataMap().get(changedKey).object());
+			Assert.assertEquals(4, fget.notModified().size());
+			Assert.assertFalse(fget.notModified().contains(changedKey));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
 	@Test
 	public void testData() throws Exception {
 		PeerDHT master = null;
@@ -0,0 +1,144 @@
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.futures.Cancel;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.p2p.RequestP2PConfiguration;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHedgedRequests {
+	final private static Random rnd = new Random(42L);
+
+	@Test
+	public void testLatencyStatistic() throws Exception {
+		LatencyStatistic latencyStatistic = new LatencyStatistic();
+		PeerAddress peer1 = new PeerAddress(new Number160(1));
+		PeerAddress peer2 = new PeerAddress(new Number160(2));
+		Assert.assertEquals(-1, latencyStatistic.percentile(peer1, 0.95));
+		for (int i = 1; i <= 20; i++) {
+			latencyStatistic.record(peer1, i * 10);
+		}
+		Assert.assertEquals(190, latencyStatistic.percentile(peer1, 0.95));
+		Assert.assertEquals(100, latencyStatistic.percentile(peer1, 0.5));
+		// not enough samples of this peer, use the samples of all peers
+		latencyStatistic.record(peer2, 1000);
+		Assert.assertEquals(190, latencyStatistic.percentile(peer2, 0.9));
+	}
+
+	@Test
+	public void testHedgedRequests() throws Exception {
+		PeerDHT master = null;
+		try {
+			PeerDHT[] peers = UtilsDHT2.createNodes(5, rnd, 4001);
+			master = peers[0];
+			DistributedHashTable dht = master.distributedHashTable();
+			PeerAddress slow = peers[1].peerAddress();
+			// the peers usually reply within 20 ms
+			for (PeerDHT peer : peers) {
+				for (int i = 0; i < 8; i++) {
+					dht.latencyStatistic().record(peer.peerAddress(), 20);
+				}
+			}
+
+			// one result: the slow peer is asked first, the next peer gets a duplicate request
+			RequestP2PConfiguration config = new RequestP2PConfiguration(1, 0, 0, false, false, 1, 0.95);
+			Straggler straggler = new Straggler(slow);
+			FutureDone<Integer> result = request(master, config, straggler, peers);
+			Assert.assertEquals(Integer.valueOf(1), result.awaitUninterruptibly().object());
+			Assert.assertEquals(2, straggler.contacted.size());
+			Assert.assertTrue(straggler.canceled.get());
+
+			// two of three: the operation completes without waiting for the slow peer
+			config = new RequestP2PConfiguration(2, 0, 1, false, false, 1, 0.95);
+			straggler = new Straggler(slow);
+			result = request(master, config, straggler, peers);
+			Assert.assertEquals(Integer.valueOf(2), result.awaitUninterruptibly().object());
+			Assert.assertEquals(3, straggler.contacted.size());
+			Assert.assertTrue(straggler.canceled.get());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	private static FutureDone<Integer> request(PeerDHT master, RequestP2PConfiguration config,
+	        final Straggler straggler, PeerDHT[] peers) {
+		// the slow peer is the closest, so it is asked first
+		NavigableSet<PeerAddress> queue = new TreeSet<PeerAddress>(PeerMap.createComparator(straggler.slow
+		        .peerId()));
+		for (int i = 1; i < peers.length; i++) {
+			queue.add(peers[i].peerAddress());
+		}
+		final FutureDone<Integer> result = new FutureDone<Integer>();
+		OperationMapper<FutureGet> operation = new OperationMapper<FutureGet>() {
+			private final AtomicInteger success = new AtomicInteger();
+
+			@Override
+			public FutureResponse create(ChannelCreator channelCreator, PeerAddress remotePeer) {
+				return straggler.create(remotePeer);
+			}
+
+			@Override
+			public void response(FutureGet future) {
+				result.done(success.get());
+			}
+
+			@Override
+			public void interMediateResponse(FutureResponse futureResponse) {
+				if (futureResponse.isSuccess()) {
+					success.incrementAndGet();
+				}
+			}
+		};
+		DistributedHashTable dht = master.distributedHashTable();
+		DistributedHashTable.parallelRequests(config, new TreeSet<PeerAddress>(), queue, true, master.peer()
+		        .connectionBean().reservation().create(0, config.parallel()), operation,
+		        new FutureGet(master.get(Number160.ONE)), dht.latencyStatistic(), dht.timer());
+		return result;
+	}
+
+	/**
+	 * Replies right away, except for the slow peer, which never replies.
+	 */
+	private static class Straggler {
+		private final PeerAddress slow;
+		private final List<PeerAddress> contacted = Collections.synchronizedList(new ArrayList<PeerAddress>());
+		private final AtomicBoolean canceled = new AtomicBoolean(false);
+
+		private Straggler(PeerAddress slow) {
+			this.slow = slow;
+		}
+
+		private FutureResponse create(PeerAddress remotePeer) {
+			contacted.add(remotePeer);
+			FutureResponse futureResponse = new FutureResponse(new Message().recipient(remotePeer));
+			if (remotePeer.equals(slow)) {
+				futureResponse.addCancel(new Cancel() {
+					@Override
+					public void cancel() {
+						canceled.set(true);
+					}
+				});
+				return futureResponse;
+			}
+			return futureResponse.response(new Message().recipient(remotePeer).type(Message.Type.OK));
+		}
+	}
+}
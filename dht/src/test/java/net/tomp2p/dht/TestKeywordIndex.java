@@ -0,0 +1,112 @@
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.rpc.SimpleBloomFilter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestKeywordIndex {
+	final private static Random rnd = new Random(42L);
+
+	@Test
+	public void testEncode() {
+		int[] positions = new int[] { 0, 1, 127, 128, 20000, Integer.MAX_VALUE };
+		byte[] encoded = KeywordIndex.encode(positions);
+		Assert.assertArrayEquals(positions, KeywordIndex.decode(encoded));
+		// 1 byte count, 1+1+1+1+3+5 bytes gaps
+		Assert.assertEquals(13, encoded.length);
+		Assert.assertArrayEquals(new int[0], KeywordIndex.decode(KeywordIndex.encode(new int[0])));
+
+		Map<String, int[]> terms = KeywordIndex.termPositions("Communication Systems, communication group");
+		Assert.assertEquals(3, terms.size());
+		Assert.assertArrayEquals(new int[] { 0, 2 }, terms.get("communication"));
+	}
+
+	@Test
+	public void testFilterSize() {
+		List<Number160> candidates = new ArrayList<Number160>();
+		for (int i = 0; i < 50000; i++) {
+			candidates.add(new Number160(rnd));
+		}
+		// about 90KB at this probability, limited to what fits into the size field
+		SimpleBloomFilter<Number160> filter = KeywordIndex.filter(0.001, candidates);
+		ByteBuf buf = Unpooled.buffer();
+		filter.toByteBuf(buf);
+		Assert.assertEquals(KeywordIndex.MAX_FILTER_BYTES + SimpleBloomFilter.SIZE_HEADER, buf.readableBytes());
+		SimpleBloomFilter<Number160> decoded = new SimpleBloomFilter<Number160>(buf);
+		Assert.assertTrue(decoded.containsAll(candidates));
+		// small filters keep the probability
+		filter = KeywordIndex.filter(0.01, candidates.subList(0, 10));
+		Assert.assertEquals(0.01, filter.expectedFalsePositiveProbability(), 0.01);
+	}
+
+	@Test
+	public void testSearch() throws Exception {
+		PeerDHT master = null;
+		try {
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			KeywordIndex index = new KeywordIndex(peers[10], "docs").shards(2);
+			Number160 doc1 = Number160.createHash("doc1");
+			Number160 doc2 = Number160.createHash("doc2");
+			Number160 doc3 = Number160.createHash("doc3");
+			index.add(doc1, "communication systems group").awaitUninterruptibly();
+			index.add(doc2, "distributed systems, systems group").awaitUninterruptibly();
+			index.add(doc3, "communication networks").awaitUninterruptibly();
+
+			KeywordIndex query = new KeywordIndex(peers[55], "docs").shards(2);
+			FutureDone<SortedMap<Number160, int[]>> postings = query.postings("Systems");
+			postings.awaitUninterruptibly();
+			Assert.assertEquals(2, postings.object().size());
+			Assert.assertArrayEquals(new int[] { 1, 2 }, postings.object().get(doc2));
+
+			FutureDone<Map<Number160, Integer>> result = query.search("group", "systems");
+			result.awaitUninterruptibly();
+			Assert.assertEquals(2, result.object().size());
+			Assert.assertEquals(Integer.valueOf(2), result.object().get(doc1));
+			Assert.assertEquals(Integer.valueOf(3), result.object().get(doc2));
+
+			result = query.search("networks", "communication");
+			result.awaitUninterruptibly();
+			Assert.assertEquals(1, result.object().size());
+			Assert.assertTrue(result.object().containsKey(doc3));
+
+			result = query.search("networks", "group");
+			result.awaitUninterruptibly();
+			Assert.assertTrue(result.object().isEmpty());
+
+			// terms are indexed in lower case
+			Number160 doc4 = Number160.createHash("doc4");
+			Map<String, int[]> terms = new HashMap<String, int[]>();
+			terms.put("Peer", new int[] { 0 });
+			terms.put("peer", new int[] { 2 });
+			index.add(doc4, terms).awaitUninterruptibly();
+			postings = query.postings("PEER");
+			postings.awaitUninterruptibly();
+			Assert.assertArrayEquals(new int[] { 0, 2 }, postings.object().get(doc4));
+
+			// a failed get fails the search instead of returning an empty result
+			peers[55].shutdown().await();
+			result = query.search("systems");
+			result.awaitUninterruptibly();
+			Assert.assertTrue(result.isFailed());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package net.tomp2p.dht;
+
+import java.util.List;
+import java.util.Random;
+
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRangeIndex {
+	final private static Random rnd = new Random(42L);
+
+	@Test
+	public void testCover() {
+		RangeIndex index = new RangeIndex(null, "test", 0, 1023).height(10).minLevel(2);
+		for (int i = 0; i < 1000; i++) {
+			long s = rnd.nextInt(1024);
+			long t = s + rnd.nextInt((int) (1024 - s));
+			List<RangeIndex.Node> cover = index.cover(s, t);
+			// the nodes are ordered, disjoint and cover exactly [s..t]
+			long next = s;
+			for (RangeIndex.Node node : cover) {
+				Assert.assertTrue(node.level() >= 2);
+				Assert.assertEquals(next, Math.max(node.from(), s));
+				next = Math.min(node.to(), t) + 1;
+			}
+			Assert.assertEquals(t + 1, next);
+			Assert.assertTrue(cover.size() <= 2 * 10 + 4);
+		}
+		List<RangeIndex.Node> path = index.path(5);
+		Assert.assertEquals(9, path.size());
+		Assert.assertEquals(5, path.get(path.size() - 1).from());
+		Assert.assertEquals(5, path.get(path.size() - 1).to());
+	}
+
+	@Test
+	public void testRange() throws Exception {
+		PeerDHT master = null;
+		try {
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			RangeIndex index = new RangeIndex(peers[10], "ts", 0, 1023).height(6).minLevel(1).pageSize(3);
+			for (int i = 0; i < 20; i++) {
+				FutureDone<Void> futureDone = index.put(i * 10, new Number160(i), new Data("item" + i));
+				futureDone.awaitUninterruptibly();
+				Assert.assertTrue(futureDone.isSuccess());
+			}
+			RangeIndex query = new RangeIndex(peers[55], "ts", 0, 1023).height(6).minLevel(1).pageSize(3);
+			RangeIndex.RangeIterator iterator = query.range(15, 125);
+			long expected = 20;
+			while (iterator.hasNext()) {
+				RangeIndex.Entry entry = iterator.next();
+				Assert.assertEquals(expected, entry.position());
+				Assert.assertEquals("item" + (expected / 10), entry.data().object());
+				expected += 10;
+			}
+			Assert.assertEquals(130, expected);
+			// early termination
+			iterator = query.range(0, 1023, 2);
+			Assert.assertEquals(0, iterator.next().position());
+			Assert.assertEquals(10, iterator.next().position());
+			Assert.assertFalse(iterator.hasNext());
+			// a failed get stops the query instead of skipping the node
+			peers[55].shutdown().await();
+			iterator = new RangeIndex(peers[55], "ts", 0, 1023).height(6).minLevel(1).pageSize(3).range(15, 125);
+			try {
+				iterator.hasNext();
+				Assert.fail("the range is incomplete");
+			} catch (IllegalStateException e) {
+				Assert.assertNotNull(iterator.failedReason());
+			}
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+}
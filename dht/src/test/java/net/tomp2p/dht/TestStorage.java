@@ -8,6 +8,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.NavigableMap;
 import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.dht.StorageLayer.PutStatus;
@@ -169,6 +171,37 @@ public class TestStorage {
 		Assert.assertEquals(data1, map.firstEntry().getValue());
 	}
 
+	@Test
+	public void testGetPage() throws Exception {
+		Storage storageM = createStorage();
+		testGetPage(new StorageLayer(storageM));
+		storageM.close();
+	}
+
+	private void testGetPage(StorageLayer storage) throws IOException {
+		storage.put(key1, new Data("test1"), null, false, false);
+		storage.put(key2, new Data("test2").prepareFlag(), null, false, false);
+		storage.put(key3, new Data("test3"), null, false, false);
+		storage.put(key4, new Data("test4"), null, false, false);
+		Number640 from = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
+		Number640 to = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+		// the prepared entry is skipped, and the first entry of the next page is added
+		NavigableMap<Number640, Data> page = storage.getPage(from, to, 2, true);
+		Assert.assertEquals(3, page.size());
+		Assert.assertEquals(key1, page.firstKey());
+		Assert.assertEquals(key3, page.higherKey(key1));
+		Assert.assertEquals(key4, page.lastKey());
+		page = storage.getPage(key4, to, 2, true);
+		Assert.assertEquals(1, page.size());
+		// descending, the first entry of the next page is the lowest
+		page = storage.getPage(from, to, 2, false);
+		Assert.assertEquals(3, page.size());
+		Assert.assertEquals(key1, page.firstKey());
+		Assert.assertEquals(key4, page.lastKey());
+		page = storage.getPage(from, key1, 2, false);
+		Assert.assertEquals(1, page.size());
+	}
+
 	@Test
 	public void testPutGetDigestPrepare() throws Exception {
 		Storage storageM = createStorage();
@@ -305,6 +338,56 @@ public class TestStorage {
         Assert.assertEquals(true, tmp == null);
     }
 
+    @Test
+    public void testTTLBatch() throws Exception {
+        Storage storageM = createStorage();
+        testTTLBatch(storageM, new StorageLayer(storageM).expiryBatchSize(2));
+        storageM.close();
+    }
+
+    private void testTTLBatch(Storage storageM, StorageLayer storage) throws Exception {
+        Number640 from = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
+        Number640 to = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        storeTTL(storage, 5);
+        Thread.sleep(2000);
+        // expired entries are not returned, even if they are still stored
+        Assert.assertEquals(0, storage.get(from, to, -1, true).size());
+        Assert.assertNull(storage.get(new Number640(locationKey, domainKey, new Number160(1), Number160.ZERO)));
+        // one batch per call
+        Assert.assertTrue(storage.checkTimeout());
+        Assert.assertEquals(3, storageM.map().size());
+        Assert.assertTrue(storage.checkTimeout());
+        Assert.assertFalse(storage.checkTimeout());
+        Assert.assertEquals(0, storageM.map().size());
+    }
+
+    @Test
+    public void testTTLMaintenance() throws Exception {
+        Storage storageM = createStorage();
+        StorageLayer storage = new StorageLayer(storageM).expiryBatchSize(10);
+        storeTTL(storage, 1000);
+        Thread.sleep(2000);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            storage.start(timer, 500);
+            // one tick removes all batches
+            Thread.sleep(1000);
+            Assert.assertEquals(0, storageM.map().size());
+        } finally {
+            timer.shutdown();
+            storageM.close();
+        }
+    }
+
+    private void storeTTL(StorageLayer storage, int nr) {
+        for (int i = 0; i < nr; i++) {
+            Data data = new Data("string");
+            data.ttlSeconds(1);
+            storage.put(new Number640(locationKey, domainKey, new Number160(i + 1), Number160.ZERO), data, null,
+                    false, false);
+        }
+    }
+
     @Test
     public void testResponsibility() throws Exception {
         Storage storageM = createStorage();
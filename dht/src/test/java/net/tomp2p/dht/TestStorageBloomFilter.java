@@ -0,0 +1,89 @@
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStorageBloomFilter {
+
+    private static final int ENTRIES = 200000;
+
+    private static final int PROBES = 20000;
+
+    @Test
+    public void testGrow() {
+        Random rnd = new Random(42L);
+        StorageBloomFilter filter = new StorageBloomFilter(StorageBloomFilter.DEFAULT_EXPECTED_ENTRIES);
+        List<Number640> stored = new ArrayList<Number640>(ENTRIES);
+        int rebuilds = 0;
+        for (int i = 0; i < ENTRIES; i++) {
+            Number640 key = new Number640(rnd);
+            stored.add(key);
+            filter.add(key);
+            // what the storage layer does after a put
+            if (filter.isFull()) {
+                filter.rebuild(stored);
+                rebuilds++;
+            }
+        }
+        Assert.assertTrue(rebuilds > 0);
+        Assert.assertTrue(filter.expectedEntries() >= ENTRIES);
+        // no false negatives
+        for (Number640 key : stored) {
+            Assert.assertTrue(filter.mayContain(key));
+        }
+        // sized for 8 counters per entry, about 2% false positives
+        Assert.assertTrue(falsePositives(filter, rnd) < PROBES * 0.05);
+    }
+
+    @Test
+    public void testSaturatedWithoutGrow() {
+        Random rnd = new Random(42L);
+        StorageBloomFilter filter = new StorageBloomFilter(StorageBloomFilter.DEFAULT_EXPECTED_ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            filter.add(new Number640(rnd));
+        }
+        Assert.assertTrue(filter.isFull());
+        // the filter answers almost every lookup with maybe
+        Assert.assertTrue(falsePositives(filter, rnd) > PROBES * 0.9);
+    }
+
+    @Test
+    public void testRemoveAfterRebuild() {
+        Random rnd = new Random(42L);
+        StorageBloomFilter filter = new StorageBloomFilter(16);
+        List<Number640> stored = new ArrayList<Number640>();
+        for (int i = 0; i < 100; i++) {
+            Number640 key = new Number640(rnd);
+            stored.add(key);
+            filter.add(key);
+        }
+        Assert.assertTrue(filter.isFull());
+        filter.rebuild(stored);
+        Assert.assertFalse(filter.isFull());
+        Assert.assertEquals(200, filter.expectedEntries());
+        for (Number640 key : stored) {
+            filter.remove(key);
+        }
+        for (Number640 key : stored) {
+            Assert.assertFalse(filter.mayContain(key));
+        }
+        Assert.assertFalse(filter.mayContain(stored.get(0).locationKey()));
+    }
+
+    private static int falsePositives(StorageBloomFilter filter, Random rnd) {
+        int falsePositives = 0;
+        for (int i = 0; i < PROBES; i++) {
+            if (filter.mayContain(new Number640(new Number160(rnd), Number160.ZERO, Number160.ZERO, Number160.ZERO))) {
+                falsePositives++;
+            }
+        }
+        return falsePositives;
+    }
+}
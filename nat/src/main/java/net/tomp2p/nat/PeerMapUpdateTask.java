@@ -93,6 +93,8 @@ class PeerMapUpdateTask extends TimerTask {
 				}
 			}
 		});
+		// move away from relay peers that are much more loaded than others
+		distributedRelay.rebalance();
 		final FutureRelay futureRelay2 = new FutureRelay();
 		distributedRelay.setupRelays(futureRelay2, manualRelays, maxFail);
 		distributedRelay.peer().notifyAutomaticFutures(futureRelay2);
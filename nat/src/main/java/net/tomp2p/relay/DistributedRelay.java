@@ -3,19 +3,27 @@ package net.tomp2p.relay;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.DefaultConnectionConfiguration;
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureForkJoin;
 import net.tomp2p.futures.FuturePeerConnection;
+import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerSocketAddress;
+import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +40,15 @@ public class DistributedRelay {
 
 	final static Logger LOG = LoggerFactory.getLogger(DistributedRelay.class);
 
+	// the number of relay candidates that are pinged to get their load
+	public static final int MAX_PROBES = 10;
+	// a relay is replaced if its score is worse than HOT_FACTOR times the score of the best candidate plus
+	// MIN_DIFFERENCE, the difference avoids moving between relays with a similar, low load
+	public static final double HOT_FACTOR = 2.0;
+	public static final double MIN_DIFFERENCE = 10.0;
+	// the relays are checked at most this often, the peer map update task calls rebalance much more often
+	public static final int REBALANCE_INTERVAL_MILLIS = 60 * 1000;
+
 	final private Peer peer;
 	final private RelayRPC relayRPC;
 
@@ -43,6 +60,8 @@ public class DistributedRelay {
 
 	final private FutureChannelCreator futureChannelCreator;
 
+	private volatile long lastRebalance = 0;
+
 	/**
 	 * @param peer
 	 *            the unreachable peer
@@ -144,7 +163,21 @@ public class DistributedRelay {
 						relayCandidates = new ArrayList<PeerAddress>(manualRelays);
 					}
 					filter(relayCandidates);
-					setupPeerConnections(futureRelay, cc, relayCandidates, maxFail);
+					if (!manualRelays.isEmpty() || relayCandidates.isEmpty()
+					        || relayAddresses.size() >= PeerAddress.MAX_RELAYS) {
+						setupPeerConnections(futureRelay, cc, relayCandidates, maxFail);
+						return;
+					}
+					// prefer the candidates with the lowest load and round trip time
+					probe(first(relayCandidates, MAX_PROBES)).addListener(
+					        new BaseFutureAdapter<FutureDone<Map<PeerAddress, Double>>>() {
+						        @Override
+						        public void operationComplete(FutureDone<Map<PeerAddress, Double>> future)
+						                throws Exception {
+							        setupPeerConnections(futureRelay, cc, rank(relayCandidates, future.object()),
+							                maxFail);
+						        }
+					        });
 				} else {
 					futureRelay.failed(future);
 				}
@@ -153,6 +186,176 @@ public class DistributedRelay {
 		return futureRelay;
 	}
 
+	/**
+	 * Checks if one of the current relay peers is much more loaded than the best relay candidate. If this is the
+	 * case, the connection to the most loaded relay peer is closed, which marks it as failed and lets the
+	 * {@link RelayListener} set up a new, less loaded relay. At most one relay is replaced per call, so that the
+	 * unreachable peer does not lose all its relays at once.
+	 * <p>
+	 * The check runs at most every {@link #REBALANCE_INTERVAL_MILLIS}. Only the current relays are pinged first, the
+	 * relay candidates are only pinged if a relay is loaded by more than {@link #MIN_DIFFERENCE}, as otherwise no
+	 * candidate can be much better.
+	 * 
+	 * @return A future that is done when the check finished, with true if a relay peer has been replaced
+	 */
+	public FutureDone<Boolean> rebalance() {
+		final FutureDone<Boolean> futureDone = new FutureDone<Boolean>();
+		final long now = System.currentTimeMillis();
+		if (now - lastRebalance < REBALANCE_INTERVAL_MILLIS) {
+			return futureDone.done(false);
+		}
+		lastRebalance = now;
+		final List<PeerConnection> relays;
+		synchronized (relayAddresses) {
+			relays = new ArrayList<PeerConnection>(relayAddresses);
+		}
+		if (relays.isEmpty()) {
+			return futureDone.done(false);
+		}
+		final List<PeerAddress> relayPeers = new ArrayList<PeerAddress>(relays.size());
+		for (PeerConnection pc : relays) {
+			relayPeers.add(pc.remotePeer());
+		}
+		probe(relayPeers).addListener(new BaseFutureAdapter<FutureDone<Map<PeerAddress, Double>>>() {
+			@Override
+			public void operationComplete(FutureDone<Map<PeerAddress, Double>> future) throws Exception {
+				final Map<PeerAddress, Double> relayScores = future.object();
+				PeerConnection worst = null;
+				double worstScore = 0;
+				for (PeerConnection pc : relays) {
+					Double score = relayScores.get(pc.remotePeer());
+					if (score == null || score == Double.MAX_VALUE) {
+						// no answer, or a relay that does not advertise its load, nothing to compare
+						continue;
+					}
+					// this peer is one of the clients of its relay
+					double own = score - 1;
+					if (worst == null || own > worstScore) {
+						worst = pc;
+						worstScore = own;
+					}
+				}
+				if (worst == null || !isHot(worstScore, 0)) {
+					futureDone.done(false);
+					return;
+				}
+				final Collection<PeerAddress> relayCandidates = peer.peerBean().peerMap().all();
+				relayCandidates.removeAll(failedRelays);
+				filter(relayCandidates);
+				final PeerConnection hottest = worst;
+				final double hottestScore = worstScore;
+				probe(first(relayCandidates, MAX_PROBES)).addListener(
+				        new BaseFutureAdapter<FutureDone<Map<PeerAddress, Double>>>() {
+					        @Override
+					        public void operationComplete(FutureDone<Map<PeerAddress, Double>> future)
+					                throws Exception {
+						        double bestScore = Double.MAX_VALUE;
+						        for (Double score : future.object().values()) {
+							        bestScore = Math.min(bestScore, score);
+						        }
+						        if (bestScore < Double.MAX_VALUE && isHot(hottestScore, bestScore)) {
+							        LOG.debug("relay {} is hot ({} vs. {}), moving to another relay",
+							                hottest.remotePeer(), hottestScore, bestScore);
+							        hottest.close();
+							        futureDone.done(true);
+						        } else {
+							        futureDone.done(false);
+						        }
+					        }
+				        });
+			}
+		});
+		return futureDone;
+	}
+
+	/**
+	 * @param relayScore
+	 *            The score of a current relay peer, without this peer as its client
+	 * @param bestScore
+	 *            The score of the best relay candidate
+	 * @return True if the relay peer should be replaced by the candidate
+	 */
+	static boolean isHot(final double relayScore, final double bestScore) {
+		return relayScore > (HOT_FACTOR * bestScore) + MIN_DIFFERENCE;
+	}
+
+	/**
+	 * Pings the given peers and calculates their score from the load they advertise and the round trip time, see
+	 * {@link RelayLoad#score(net.tomp2p.message.Message, long)}.
+	 * 
+	 * @param peerAddresses
+	 *            The peers to ping
+	 * @return A future that is always successful and contains the score of the peers that answered
+	 */
+	private FutureDone<Map<PeerAddress, Double>> probe(final Collection<PeerAddress> peerAddresses) {
+		final FutureDone<Map<PeerAddress, Double>> futureDone = new FutureDone<Map<PeerAddress, Double>>();
+		final Map<PeerAddress, Double> scores = new ConcurrentHashMap<PeerAddress, Double>();
+		if (peerAddresses.isEmpty()) {
+			return futureDone.done(scores);
+		}
+		final FutureChannelCreator fcc = peer.connectionBean().reservation().create(peerAddresses.size(), 0);
+		fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(FutureChannelCreator future) throws Exception {
+				if (!future.isSuccess()) {
+					futureDone.done(scores);
+					return;
+				}
+				final ChannelCreator cc = future.channelCreator();
+				final AtomicInteger pending = new AtomicInteger(peerAddresses.size());
+				final FutureResponse[] futureResponses = new FutureResponse[peerAddresses.size()];
+				int i = 0;
+				for (final PeerAddress peerAddress : peerAddresses) {
+					final long start = System.currentTimeMillis();
+					futureResponses[i] = peer.pingRPC().pingUDP(peerAddress, cc, new DefaultConnectionConfiguration());
+					futureResponses[i++].addListener(new BaseFutureAdapter<FutureResponse>() {
+						@Override
+						public void operationComplete(FutureResponse future) throws Exception {
+							if (future.isSuccess()) {
+								scores.put(peerAddress, RelayLoad.score(future.responseMessage(),
+								        System.currentTimeMillis() - start));
+							}
+							if (pending.decrementAndGet() == 0) {
+								futureDone.done(scores);
+							}
+						}
+					});
+				}
+				Utils.addReleaseListener(cc, futureResponses);
+			}
+		});
+		return futureDone;
+	}
+
+	/**
+	 * Orders the candidates by their score, the candidates without a score keep their order and are put at the end.
+	 */
+	static List<PeerAddress> rank(final Collection<PeerAddress> relayCandidates,
+	        final Map<PeerAddress, Double> scores) {
+		final List<PeerAddress> ranked = new ArrayList<PeerAddress>(relayCandidates);
+		// the sort is stable
+		Collections.sort(ranked, new Comparator<PeerAddress>() {
+			@Override
+			public int compare(PeerAddress o1, PeerAddress o2) {
+				Double s1 = scores.get(o1);
+				Double s2 = scores.get(o2);
+				return Double.compare(s1 == null ? Double.MAX_VALUE : s1, s2 == null ? Double.MAX_VALUE : s2);
+			}
+		});
+		return ranked;
+	}
+
+	private static List<PeerAddress> first(final Collection<PeerAddress> peerAddresses, final int max) {
+		final List<PeerAddress> first = new ArrayList<PeerAddress>(Math.min(max, peerAddresses.size()));
+		for (PeerAddress peerAddress : peerAddresses) {
+			if (first.size() >= max) {
+				break;
+			}
+			first.add(peerAddress);
+		}
+		return first;
+	}
+
 	/**
 	 * remove recently failed relays, peers that are relayed themselves and
 	 * peers that are already relays
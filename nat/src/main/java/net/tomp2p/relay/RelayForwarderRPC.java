@@ -3,12 +3,17 @@ package net.tomp2p.relay;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.PeerException;
@@ -37,7 +42,10 @@ import org.slf4j.LoggerFactory;
 /**
  * The RelayForwarder is responsible for forwarding all messages that are
  * received on a relay peer, but are intended for an unreachable peer that is
- * connected to the relay peer.
+ * connected to the relay peer. If the unreachable peer announced it with the
+ * relay setup, messages are queued and forwarded in batches over the single
+ * peer connection, responses may arrive with a later batch. Otherwise, every
+ * message is forwarded on its own.
  * 
  * @author Raphael Voellmy
  * 
@@ -46,11 +54,24 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 
 	private final static Logger LOG = LoggerFactory.getLogger(RelayForwarderRPC.class);
 
+	// upper bound for the delay between polls for outstanding responses
+	private static final int MAX_POLL_MILLIS = 1000;
+
 	// connection to unreachable peer
 	private final PeerConnection peerConnection;
 	private List<Map<Number160, PeerStatatistic>> peerMap = null;
 	private volatile PeerAddress unreachablePeer;
 	private final RelayRPC relayRPC;
+	private final boolean batching;
+
+	// messages to forward and messages that wait for a response, guarded by queue
+	private final Queue<Forward> queue = new ArrayDeque<Forward>();
+	private final Map<Integer, Forward> outstanding = new HashMap<Integer, Forward>();
+	private boolean sending = false;
+	private int nextId = 0;
+	// number of polls in a row that returned nothing, used to back off
+	private int emptyPolls = 0;
+	private boolean pollScheduled = false;
 
 	/**
 	 * This variable is needed, because a relay peer overwrites every RPC of an
@@ -70,14 +91,18 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 	 *            open
 	 * @param peer
 	 *            The relay peer
+	 * @param batching
+	 *            True if the unreachable peer understands batches
 	 */
-	public RelayForwarderRPC(final PeerConnection peerConnection, final Peer peer, final RelayRPC relayRPC, RconRPC rconRPC) {
+	public RelayForwarderRPC(final PeerConnection peerConnection, final Peer peer, final RelayRPC relayRPC, RconRPC rconRPC,
+	        final boolean batching) {
 		super(peer.peerBean(), peer.connectionBean());
 		this.peerConnection = peerConnection.changeRemotePeer(peerConnection.remotePeer().changeRelayed(true));
 		peerConnection.closeFuture().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
 			@Override
             public void operationComplete(FutureDone<Void> future) throws Exception {
 				peer.peerBean().removePeerStatusListeners(RelayForwarderRPC.this);
+				relayRPC.load().clientRemoved();
 				peer.connectionBean().dispatcher().removeIoHandler(peer.peerID(), unreachablePeer.peerId());
             }
 		});
@@ -85,6 +110,8 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 		this.unreachablePeer = peerConnection.remotePeer().changeRelayed(true);
 		this.relayRPC = relayRPC;
 		this.rconRPC = rconRPC;
+		this.batching = batching;
+		relayRPC.load().clientAdded();
 		LOG.debug("created forwarder from peer {} to peer {}", peer.peerAddress(), unreachablePeer);
 	}
 	
@@ -125,8 +152,9 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 		peer.peerBean().addPeerStatusListeners(this);
 	}
 	
-	public static void register(PeerConnection peerConnection, Peer peer, RelayRPC relayRPC, RconRPC rconRPC) {
-		RelayForwarderRPC relayForwarderRPC = new RelayForwarderRPC(peerConnection, peer, relayRPC, rconRPC);
+	public static void register(PeerConnection peerConnection, Peer peer, RelayRPC relayRPC, RconRPC rconRPC,
+	        boolean batching) {
+		RelayForwarderRPC relayForwarderRPC = new RelayForwarderRPC(peerConnection, peer, relayRPC, rconRPC, batching);
 		relayForwarderRPC.register(peer);
 	}
 	
@@ -159,11 +187,25 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 
 	private void handleRelay(final Message message, final Responder responder, final PeerAddress sender)
 	        throws InvalidKeyException, SignatureException, IOException {
-		// Send message via direct message through the open connection to the
-		// unreachable peer
 		message.restoreContentReferences();
-		final Buffer buf = RelayUtils.encodeMessage(message, connectionBean().channelServer().channelServerConfiguration().signatureFactory());
+		if (!batching) {
+			handleSingle(message, responder, sender);
+			return;
+		}
+		synchronized (queue) {
+			queue.add(new Forward(message, responder));
+		}
+		sendBatch();
+	}
 
+	/**
+	 * Forwards a message on its own to an unreachable peer that does not
+	 * understand batches.
+	 */
+	private void handleSingle(final Message message, final Responder responder, final PeerAddress sender)
+	        throws InvalidKeyException, SignatureException, IOException {
+		final Buffer buf = RelayUtils.encodeMessage(message, connectionBean().channelServer().channelServerConfiguration().signatureFactory());
+		relayRPC.load().forwarded(buf.length());
 		FutureResponse fr = relayRPC.forwardMessage(peerConnection, buf);
 
 		fr.addListener(new BaseFutureAdapter<FutureResponse>() {
@@ -182,7 +224,205 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 				}
 			}
 		});
+	}
+
+	/**
+	 * Sends the queued messages to the unreachable peer. Up to
+	 * {@link RelayRPC#forwardBatchSize()} messages are sent in one frame, as
+	 * long as less than {@link RelayRPC#forwardWindow()} messages wait for a
+	 * response. Since only one request can be sent over the peer connection at
+	 * a time, the unreachable peer does not wait for slow responses, but
+	 * returns them with a later batch. Thus, a batch is also sent if nothing is
+	 * queued but responses are outstanding. Such polls back off exponentially
+	 * from {@link RelayRPC#flushMillis()} up to one second while they return
+	 * nothing. Fire-and-forget messages do not wait for a response, they are
+	 * done once the batch is sent.
+	 */
+	private void sendBatch() {
+		final Map<Integer, Message> batch = new LinkedHashMap<Integer, Message>();
+		final List<Forward> fireAndForget = new ArrayList<Forward>(0);
+		synchronized (queue) {
+			if (sending || (queue.isEmpty() && outstanding.isEmpty())) {
+				return;
+			}
+			sending = true;
+			while (!queue.isEmpty() && batch.size() < relayRPC.forwardBatchSize()
+			        && outstanding.size() < relayRPC.forwardWindow()) {
+				final Forward forward = queue.poll();
+				final int id = nextId++;
+				if (forward.message.isFireAndForget()) {
+					fireAndForget.add(forward);
+				} else {
+					outstanding.put(id, forward);
+				}
+				batch.put(id, forward.message);
+			}
+		}
+		final Buffer buf;
+		try {
+			buf = RelayUtils.encodeBatch(batch, connectionBean().channelServer().channelServerConfiguration().signatureFactory());
+		} catch (Exception e) {
+			LOG.error("cannot encode relay batch", e);
+			synchronized (queue) {
+				sending = false;
+			}
+			failAll(batch.keySet(), "Relaying message failed: " + e.getMessage());
+			fireAndForget(fireAndForget);
+			// the queue may hold more messages, or responses are outstanding
+			sendBatch();
+			return;
+		}
 
+		relayRPC.load().forwarded(buf.length());
+		FutureResponse fr = relayRPC.forwardBatch(peerConnection, buf);
+		fr.addListener(new BaseFutureAdapter<FutureResponse>() {
+			public void operationComplete(FutureResponse future) throws Exception {
+				synchronized (queue) {
+					sending = false;
+				}
+				fireAndForget(fireAndForget);
+				if (future.isSuccess()) {
+					final boolean empty = handleBatchResponse(future.responseMessage()) == 0 && batch.isEmpty();
+					expire();
+					final boolean poll;
+					synchronized (queue) {
+						emptyPolls = empty ? Math.min(emptyPolls + 1, 10) : 0;
+						poll = queue.isEmpty() && !outstanding.isEmpty() && emptyPolls > 0;
+					}
+					if (poll) {
+						schedulePoll();
+						return;
+					}
+				} else {
+					// the connection is broken, the unreachable peer will not answer anymore
+					final List<Integer> ids;
+					synchronized (queue) {
+						ids = new ArrayList<Integer>(outstanding.keySet());
+					}
+					failAll(ids, "Relaying message failed: " + future.failedReason());
+				}
+				sendBatch();
+			}
+		});
+	}
+
+	/**
+	 * Waits before asking the unreachable peer again for outstanding
+	 * responses. New messages to forward are sent without waiting.
+	 */
+	private void schedulePoll() {
+		final int delay;
+		synchronized (queue) {
+			if (pollScheduled) {
+				return;
+			}
+			pollScheduled = true;
+			delay = Math.min(relayRPC.flushMillis() << emptyPolls, MAX_POLL_MILLIS);
+		}
+		connectionBean().timer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (queue) {
+					pollScheduled = false;
+				}
+				sendBatch();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The number of responses in the batch
+	 */
+	private int handleBatchResponse(final Message batchResponse) {
+		if (batchResponse.bufferList().isEmpty()) {
+			return 0;
+		}
+		relayRPC.load().forwarded(batchResponse.buffer(0).length());
+		final Map<Integer, Buffer> responses = RelayUtils.splitBatch(batchResponse.buffer(0));
+		if (responses.isEmpty()) {
+			return 0;
+		}
+		for (Map.Entry<Integer, Buffer> entry : responses.entrySet()) {
+			final Forward forward;
+			synchronized (queue) {
+				forward = outstanding.remove(entry.getKey());
+			}
+			if (forward == null) {
+				LOG.debug("response {} from unreachable peer arrived after timeout or was not expected", entry.getKey());
+				continue;
+			}
+			if (entry.getValue().length() == 0) {
+				// the unreachable peer does not send a response for this message
+				fireAndForget(Collections.singletonList(forward));
+				continue;
+			}
+			final Message responseFromUnreachablePeer;
+			try {
+				responseFromUnreachablePeer = RelayUtils.decodeMessage(entry.getValue(), forward.message.recipientSocket(),
+				        forward.message.senderSocket(), connectionBean().channelServer().channelServerConfiguration()
+				                .signatureFactory());
+			} catch (Exception e) {
+				LOG.error("cannot decode response from unreachable peer", e);
+				forward.responder.failed(Type.USER1, "Relaying message failed: " + e.getMessage());
+				continue;
+			}
+			responseFromUnreachablePeer.restoreContentReferences();
+			responseFromUnreachablePeer.sender(unreachablePeer);
+			responseFromUnreachablePeer.recipient(forward.message.sender());
+			LOG.debug("response from unreachable peer: {}", responseFromUnreachablePeer);
+			forward.responder.response(responseFromUnreachablePeer);
+		}
+		return responses.size();
+	}
+
+	private void expire() {
+		final long timeout = System.currentTimeMillis() - relayRPC.forwardTimeoutMillis();
+		final List<Integer> ids = new ArrayList<Integer>();
+		synchronized (queue) {
+			for (Map.Entry<Integer, Forward> entry : outstanding.entrySet()) {
+				if (entry.getValue().created < timeout) {
+					ids.add(entry.getKey());
+				}
+			}
+		}
+		failAll(ids, "Relaying message timed out");
+	}
+
+	private void failAll(final Collection<Integer> ids, final String reason) {
+		for (Integer id : ids) {
+			final Forward forward;
+			synchronized (queue) {
+				forward = outstanding.remove(id);
+			}
+			if (forward != null) {
+				forward.responder.failed(Type.USER1, reason);
+			}
+		}
+	}
+
+	private static void fireAndForget(final List<Forward> forwards) {
+		for (Forward forward : forwards) {
+			try {
+				forward.responder.responseFireAndForget();
+			} catch (RuntimeException e) {
+				LOG.warn("cannot complete relayed message {}: {}", forward.message, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * A message that is forwarded to the unreachable peer, together with the
+	 * responder for the requester.
+	 */
+	private static final class Forward {
+		private final Message message;
+		private final Responder responder;
+		private final long created = System.currentTimeMillis();
+
+		private Forward(final Message message, final Responder responder) {
+			this.message = message;
+			this.responder = responder;
+		}
 	}
 
 	private void handlePing(Message message, Responder responder, PeerAddress sender) {
@@ -254,4 +494,12 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 	public PeerConnection peerConnection() {
 		return peerConnection;
 	}
+
+	/**
+	 * @return True if messages are forwarded in batches, false if the
+	 *         unreachable peer only understands single messages
+	 */
+	public boolean batching() {
+		return batching;
+	}
 }
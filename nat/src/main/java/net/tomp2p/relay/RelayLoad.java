@@ -0,0 +1,91 @@
+package net.tomp2p.relay;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.message.Message;
+import net.tomp2p.p2p.PingResponseListener;
+
+/**
+ * The load of a relay peer, which is the number of unreachable peers it serves and the number of bytes it forwarded
+ * in the last second. A relay peer advertises its load in the responses to regular pings, so that unreachable peers
+ * can choose the least loaded relays.
+ */
+public class RelayLoad implements PingResponseListener {
+
+	// one client is weighted like this many bytes per second, or this many milliseconds of round trip time
+	public static final int BYTES_PER_SECOND_WEIGHT = 10 * 1024;
+	public static final int RTT_MILLIS_WEIGHT = 100;
+
+	private final AtomicInteger clients = new AtomicInteger();
+
+	// bytes forwarded in the current and in the last second, guarded by this
+	private long second = 0;
+	private long bytesCurrent = 0;
+	private long bytesLast = 0;
+
+	public void clientAdded() {
+		clients.incrementAndGet();
+	}
+
+	public void clientRemoved() {
+		clients.decrementAndGet();
+	}
+
+	/**
+	 * @return The number of unreachable peers this relay peer serves
+	 */
+	public int clients() {
+		return clients.get();
+	}
+
+	/**
+	 * @param bytes
+	 *            The number of bytes that have been forwarded from or to an unreachable peer
+	 */
+	public synchronized void forwarded(int bytes) {
+		roll(System.currentTimeMillis() / 1000);
+		bytesCurrent += bytes;
+	}
+
+	/**
+	 * @return The number of bytes forwarded in the last full second
+	 */
+	public synchronized int bytesPerSecond() {
+		roll(System.currentTimeMillis() / 1000);
+		return (int) Math.min(Integer.MAX_VALUE, bytesLast);
+	}
+
+	private void roll(final long now) {
+		if (now != second) {
+			bytesLast = now == second + 1 ? bytesCurrent : 0;
+			bytesCurrent = 0;
+			second = now;
+		}
+	}
+
+	@Override
+	public void pingResponse(Message requestMessage, Message responseMessage) {
+		responseMessage.intValue(clients());
+		responseMessage.intValue(bytesPerSecond());
+	}
+
+	/**
+	 * Calculates the score of a relay peer from a ping response, lower is better.
+	 *
+	 * @param pingResponse
+	 *            The response to a regular ping
+	 * @param rttMillis
+	 *            The round trip time of the ping
+	 * @return The score, or {@link Double#MAX_VALUE} if the peer did not advertise its load
+	 */
+	public static double score(Message pingResponse, long rttMillis) {
+		if (pingResponse == null || pingResponse.intList().size() < 2) {
+			return Double.MAX_VALUE;
+		}
+		return score(pingResponse.intAt(0), pingResponse.intAt(1), rttMillis);
+	}
+
+	public static double score(int clients, int bytesPerSecond, long rttMillis) {
+		return clients + (bytesPerSecond / (double) BYTES_PER_SECOND_WEIGHT) + (rttMillis / (double) RTT_MILLIS_WEIGHT);
+	}
+}
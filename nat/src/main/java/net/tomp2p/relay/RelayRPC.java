@@ -2,8 +2,13 @@ package net.tomp2p.relay;
 
 import java.net.InetSocketAddress;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionConfiguration;
@@ -45,6 +50,28 @@ public class RelayRPC extends DispatchHandler {
 	 */
 	private final RconRPC rconRPC;
 
+    public static final int DEFAULT_FORWARD_WINDOW = 32;
+    public static final int DEFAULT_FORWARD_BATCH_SIZE = 8;
+    public static final int DEFAULT_FORWARD_TIMEOUT_MILLIS = 30 * 1000;
+    public static final int DEFAULT_FLUSH_MILLIS = 50;
+
+    /**
+     * Sent by the unreachable peer with the relay setup request to announce that it understands batches of forwarded
+     * messages. Relay peers forward single messages to unreachable peers that did not announce it.
+     */
+    public static final int BATCH_VERSION = 1;
+
+    private volatile int forwardWindow = DEFAULT_FORWARD_WINDOW;
+    private volatile int forwardBatchSize = DEFAULT_FORWARD_BATCH_SIZE;
+    private volatile int forwardTimeoutMillis = DEFAULT_FORWARD_TIMEOUT_MILLIS;
+    private volatile int flushMillis = DEFAULT_FLUSH_MILLIS;
+
+    // on the relay peer, the load that is advertised in ping responses
+    private final RelayLoad load = new RelayLoad();
+
+    // on the unreachable peer, the responses that wait to be sent to a relay peer
+    private final ConcurrentMap<Number160, Batches> relayBatches = new ConcurrentHashMap<Number160, Batches>();
+
 	/**
      * Register the RelayRPC. After the setup, the peer is ready to act as a
      * relay if asked by an unreachable peer.
@@ -59,6 +86,7 @@ public class RelayRPC extends DispatchHandler {
         this.peer = peer;
 		this.rconRPC = rconRPC;
         config = new DefaultConnectionConfiguration();
+        peer.pingRPC().addPingResponseListener(load);
     }
 
     /**
@@ -84,7 +112,8 @@ public class RelayRPC extends DispatchHandler {
 
     /**
      * Forward a message through the open peer connection to the unreachable
-     * peer.
+     * peer. This is used if the unreachable peer did not ask for batches when
+     * the relay connection was set up.
      * 
      * @param peerConnection
      *            The open connection to the unreachable peer
@@ -94,7 +123,27 @@ public class RelayRPC extends DispatchHandler {
      * @return
      */
     public FutureResponse forwardMessage(final PeerConnection peerConnection, final Buffer buf) {
-        final Message message = createMessage(peerConnection.remotePeer(), RPC.Commands.RELAY.getNr(), Type.REQUEST_2);
+        return forward(peerConnection, buf, Type.REQUEST_2);
+    }
+
+    /**
+     * Forward messages through the open peer connection to the unreachable
+     * peer. The unreachable peer needs to have asked for batches when the
+     * relay connection was set up, see {@link #BATCH_VERSION}.
+     * 
+     * @param peerConnection
+     *            The open connection to the unreachable peer
+     * @param buf
+     *            Buffer of the messages that need to be forwarded to the
+     *            unreachable peer, see {@link RelayUtils#encodeBatch(Map, net.tomp2p.connection.SignatureFactory)}
+     * @return
+     */
+    public FutureResponse forwardBatch(final PeerConnection peerConnection, final Buffer buf) {
+        return forward(peerConnection, buf, Type.REQUEST_4);
+    }
+
+    private FutureResponse forward(final PeerConnection peerConnection, final Buffer buf, final Type type) {
+        final Message message = createMessage(peerConnection.remotePeer(), RPC.Commands.RELAY.getNr(), type);
         message.keepAlive(true);
         message.buffer(buf);
         final FutureResponse futureResponse = new FutureResponse(message);
@@ -114,6 +163,8 @@ public class RelayRPC extends DispatchHandler {
         final FutureDone<PeerConnection> futureDone = new FutureDone<PeerConnection>();
         final Message message = createMessage(fpc.remotePeer(), RPC.Commands.RELAY.getNr(), Type.REQUEST_1);
         message.keepAlive(true);
+        // tell the relay peer that we understand batches, older relay peers ignore this
+        message.intValue(BATCH_VERSION);
         final FutureResponse futureResponse = new FutureResponse(message);
         LOG.debug("Setting up relay connection to peer {}, message {}", fpc.remotePeer(), message);
 
@@ -121,6 +172,14 @@ public class RelayRPC extends DispatchHandler {
             public void operationComplete(final FuturePeerConnection futurePeerConnection) throws Exception {
                 if (futurePeerConnection.isSuccess()) {
                 	final PeerConnection peerConnection = futurePeerConnection.object();
+                	final Number160 relayPeerId = futurePeerConnection.remotePeer().peerId();
+                	peerConnection.closeFuture().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+                		@Override
+                		public void operationComplete(FutureDone<Void> future) throws Exception {
+                			// no more batches come over this connection, drop the responses held for it
+                			relayBatches.remove(relayPeerId);
+                		}
+                	});
 					RelayUtils.sendSingle(peerConnection, futureResponse, peerBean(), connectionBean(), config).addListener(
 							new BaseFutureAdapter<FutureResponse>() {
                         public void operationComplete(FutureResponse future) throws Exception {
@@ -146,6 +205,8 @@ public class RelayRPC extends DispatchHandler {
             handleSetup(message, peerConnection, responder);
         } else if (message.type() == Type.REQUEST_2 && message.command() == RPC.Commands.RELAY.getNr()) {
             handlePiggyBackMessage(message, responder);
+        } else if (message.type() == Type.REQUEST_4 && message.command() == RPC.Commands.RELAY.getNr()) {
+            handleBatch(message, responder);
         } else if (message.type() == Type.REQUEST_3 && message.command() == RPC.Commands.RELAY.getNr()) {
             handleMap(message, responder);
         } else {
@@ -157,6 +218,70 @@ public class RelayRPC extends DispatchHandler {
         return this.peer;
     }
 
+    /**
+     * @return The load of this peer as a relay peer
+     */
+    public RelayLoad load() {
+        return load;
+    }
+
+    public int forwardWindow() {
+        return forwardWindow;
+    }
+
+    /**
+     * @param forwardWindow
+     *            The maximum number of messages a relay peer forwards to an unreachable peer without having the
+     *            response yet
+     * @return This class
+     */
+    public RelayRPC forwardWindow(int forwardWindow) {
+        this.forwardWindow = forwardWindow;
+        return this;
+    }
+
+    public int forwardBatchSize() {
+        return forwardBatchSize;
+    }
+
+    /**
+     * @param forwardBatchSize
+     *            The maximum number of messages a relay peer forwards in one frame
+     * @return This class
+     */
+    public RelayRPC forwardBatchSize(int forwardBatchSize) {
+        this.forwardBatchSize = forwardBatchSize;
+        return this;
+    }
+
+    public int forwardTimeoutMillis() {
+        return forwardTimeoutMillis;
+    }
+
+    /**
+     * @param forwardTimeoutMillis
+     *            The time after which a relay peer gives up waiting for the response of a forwarded message
+     * @return This class
+     */
+    public RelayRPC forwardTimeoutMillis(int forwardTimeoutMillis) {
+        this.forwardTimeoutMillis = forwardTimeoutMillis;
+        return this;
+    }
+
+    public int flushMillis() {
+        return flushMillis;
+    }
+
+    /**
+     * @param flushMillis
+     *            The time an unreachable peer waits for responses before it answers a batch from its relay peer
+     * @return This class
+     */
+    public RelayRPC flushMillis(int flushMillis) {
+        this.flushMillis = flushMillis;
+        return this;
+    }
+
     private void handleSetup(Message message, final PeerConnection peerConnection, Responder responder) {
         
         if (peerBean().serverPeerAddress().isRelayed()) {
@@ -166,19 +291,21 @@ public class RelayRPC extends DispatchHandler {
             return;
         }
 
-        // register relay forwarder
-        RelayForwarderRPC.register(peerConnection, peer, this, rconRPC);
+        // register relay forwarder, batches are only sent if the unreachable peer understands them
+        final boolean batching = !message.intList().isEmpty() && message.intAt(0) >= BATCH_VERSION;
+        RelayForwarderRPC.register(peerConnection, peer, this, rconRPC, batching);
 
         LOG.debug("I'll be your relay! {}", message);
         responder.response(createResponseMessage(message, Type.OK));
     }
 
+    /**
+     * Handles a single message forwarded by a relay peer that does not send batches. The response is sent back as
+     * the response to the forwarded message.
+     */
     private void handlePiggyBackMessage(Message message, final Responder responderToRelay) throws Exception {
         // TODO: check if we have right setup
-        Buffer requestBuffer = message.buffer(0);
-        Message realMessage = RelayUtils.decodeMessage(requestBuffer, new InetSocketAddress(0), new InetSocketAddress(0), connectionBean().channelServer().channelServerConfiguration().signatureFactory());
-        LOG.debug("Received message from relay peer: {}", realMessage);
-        realMessage.restoreContentReferences();
+        Message realMessage = decodeRelayed(message.buffer(0));
         
         final Message response = createResponseMessage(message, Type.OK);
         final Responder responder = new Responder() {
@@ -207,12 +334,169 @@ public class RelayRPC extends DispatchHandler {
 				responderToRelay.responseFireAndForget();
             }
         };
+        dispatchRelayed(realMessage, responder);
+    }
+
+    /**
+     * Handles a batch of messages forwarded by a relay peer. The responses that are ready within
+     * {@link #flushMillis()} are sent back with this batch, slower responses are sent back with a later batch. Thus,
+     * a slow request does not block the other requests forwarded by the same relay.
+     */
+    private void handleBatch(final Message message, final Responder responderToRelay) throws Exception {
+        // TODO: check if we have right setup
+        final Number160 relayPeerId = message.sender().peerId();
+        Batches batches = relayBatches.get(relayPeerId);
+        if (batches == null) {
+            batches = new Batches();
+            Batches old = relayBatches.putIfAbsent(relayPeerId, batches);
+            if (old != null) {
+                batches = old;
+            }
+        }
+        final Batches current = batches;
+        final Map<Integer, Buffer> requests = message.bufferList().isEmpty() ? Collections.<Integer, Buffer> emptyMap()
+                : RelayUtils.splitBatch(message.buffer(0));
+        synchronized (current) {
+            if (current.held != null) {
+                // the relay only sends one batch at a time, the old one is dead
+                current.flush();
+            }
+            current.held = responderToRelay;
+            current.heldMessage = message;
+            current.outstanding += requests.size();
+        }
+        for (Map.Entry<Integer, Buffer> entry : requests.entrySet()) {
+            dispatch(entry.getKey(), entry.getValue(), current);
+        }
+        synchronized (current) {
+            if (current.held == responderToRelay && current.outstanding == 0) {
+                current.flush();
+            }
+        }
+        connectionBean().timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (current) {
+                    if (current.held == responderToRelay) {
+                        current.flush();
+                    }
+                }
+            }
+        }, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch(final int id, final Buffer buffer, final Batches batches) {
+        final Message realMessage;
+        try {
+            realMessage = decodeRelayed(buffer);
+        } catch (Exception e) {
+            LOG.error("cannot decode message from relay peer", e);
+            // nothing to answer, the relay peer times the message out
+            batches.completed(id, null);
+            return;
+        }
+
+        final Responder responder = new Responder() {
+
+            //TODO: add reply leak handler
+            @Override
+            public void response(Message responseMessage) {
+                LOG.debug("Send reply message to relay peer: {}", responseMessage);
+                batches.completed(id, responseMessage);
+            }
+
+            @Override
+            public void failed(Type type, String reason) {
+                LOG.debug("Relayed message {} failed: {}", realMessage, reason);
+                batches.completed(id, createResponseMessage(realMessage, type));
+            }
+
+            @Override
+            public void responseFireAndForget() {
+                batches.noResponse(id);
+            }
+        };
+        dispatchRelayed(realMessage, responder);
+    }
+
+    private Message decodeRelayed(final Buffer buffer) throws Exception {
+        final Message realMessage = RelayUtils.decodeMessage(buffer, new InetSocketAddress(0), new InetSocketAddress(0),
+                connectionBean().channelServer().channelServerConfiguration().signatureFactory());
+        LOG.debug("Received message from relay peer: {}", realMessage);
+        realMessage.restoreContentReferences();
+        return realMessage;
+    }
+
+    /**
+     * Hands a message forwarded by a relay peer to the handler of this peer, as if it was received directly.
+     */
+    private void dispatchRelayed(final Message realMessage, final Responder responder) {
         // TODO: Not sure what to do with the peer connection and sign
         DispatchHandler dispatchHandler = peer.connectionBean().dispatcher().associatedHandler(realMessage);
-        if(dispatchHandler == null) {
-        	responder.failed(Type.EXCEPTION, "handler not found, probably not relaying peer anymore");
+        if (dispatchHandler == null) {
+            responder.failed(Type.EXCEPTION, "handler not found, probably not relaying peer anymore");
         } else {
-        	dispatchHandler.handleResponse(realMessage, null, false, responder);
+            try {
+                dispatchHandler.handleResponse(realMessage, null, false, responder);
+            } catch (Exception e) {
+                responder.failed(Type.EXCEPTION, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The responses for one relay peer that have not been sent yet, and the batch request of the relay peer that is
+     * waiting for them.
+     */
+    private final class Batches {
+        private final Map<Integer, Message> completed = new LinkedHashMap<Integer, Message>();
+        private Responder held;
+        private Message heldMessage;
+        private int outstanding;
+
+        private void completed(final int id, final Message responseMessage) {
+            synchronized (this) {
+                outstanding--;
+                if (responseMessage != null) {
+                    completed.put(id, responseMessage);
+                }
+                if (held != null && outstanding == 0) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Tells the relay peer that no response comes for this message, so that it does not wait for it.
+         */
+        private void noResponse(final int id) {
+            synchronized (this) {
+                outstanding--;
+                completed.put(id, null);
+                if (held != null && outstanding == 0) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Answers the held batch request with all completed responses. Needs to be called while holding the lock.
+         */
+        private void flush() {
+            final Message response = createResponseMessage(heldMessage, Type.OK);
+            if (!completed.isEmpty()) {
+                try {
+                    response.buffer(RelayUtils.encodeBatch(completed, connectionBean().channelServer()
+                            .channelServerConfiguration().signatureFactory()));
+                } catch (Exception e) {
+                    LOG.error("cannot encode responses for relay peer", e);
+                }
+                completed.clear();
+            }
+            final Responder responder = held;
+            held = null;
+            heldMessage = null;
+            responder.response(response);
         }
     }
 
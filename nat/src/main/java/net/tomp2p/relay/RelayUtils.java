@@ -1,5 +1,7 @@
 package net.tomp2p.relay;
 
+import io.netty.buffer.ByteBuf;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.security.InvalidKeyException;
@@ -8,6 +10,7 @@ import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -50,6 +53,53 @@ public class RelayUtils {
 		return d.message();
 	}
 
+	/**
+	 * Encodes several messages into one buffer, so that they can be forwarded
+	 * in one frame. Every message is prefixed with its ID and its length. A
+	 * null message is encoded with length 0, it tells the relay peer that no
+	 * response will come for this ID.
+	 * 
+	 * @param messages
+	 *            The messages by ID
+	 * @param signatureFactory
+	 *            The signature factory, received signatures are passed through
+	 * @return The buffer with all messages
+	 */
+	public static Buffer encodeBatch(Map<Integer, Message> messages, SignatureFactory signatureFactory)
+	        throws InvalidKeyException, SignatureException, IOException {
+		AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+		for (Map.Entry<Integer, Message> entry : messages.entrySet()) {
+			buf.writeInt(entry.getKey());
+			if (entry.getValue() == null) {
+				buf.writeInt(0);
+				continue;
+			}
+			final int lengthIndex = buf.writerIndex();
+			buf.writeInt(0);
+			Encoder e = new Encoder(signatureFactory);
+			e.write(buf, entry.getValue(), entry.getValue().receivedSignature());
+			buf.setInt(lengthIndex, buf.writerIndex() - lengthIndex - 4);
+		}
+		return new Buffer(buf);
+	}
+
+	/**
+	 * Splits a buffer created with {@link #encodeBatch(Map, SignatureFactory)}
+	 * without decoding the messages.
+	 * 
+	 * @return The encoded messages by ID in the order they were encoded
+	 */
+	public static Map<Integer, Buffer> splitBatch(Buffer buf) {
+		Map<Integer, Buffer> messages = new LinkedHashMap<Integer, Buffer>();
+		ByteBuf byteBuf = buf.buffer();
+		while (byteBuf.readableBytes() >= 8) {
+			final int id = byteBuf.readInt();
+			final int length = byteBuf.readInt();
+			messages.put(id, new Buffer(byteBuf.readSlice(length)));
+		}
+		return messages;
+	}
+
 	public static List<Map<Number160, PeerStatatistic>> unflatten(Collection<PeerAddress> map, PeerAddress sender) {
 		PeerMapConfiguration peerMapConfiguration = new PeerMapConfiguration(sender.peerId());
 		PeerMap peerMap = new PeerMap(peerMapConfiguration);
@@ -225,6 +225,65 @@ public class TestRelay {
     }
 
     
+    @Test
+    public void testRelaySendDirectBatch() throws Exception {
+        final Random rnd = new Random(42);
+        final int nrOfNodes = 10;
+        final int nrOfRequests = 20;
+        Peer master = null;
+        Peer unreachablePeer = null;
+        try {
+            // setup test peers
+            Peer[] peers = UtilsNAT.createNodes(nrOfNodes, rnd, 4001);
+            master = peers[0];
+            UtilsNAT.perfectRouting(peers);
+            for(Peer peer:peers) {
+            	new PeerBuilderNAT(peer).start();
+            }
+
+            // Test setting up relay peers
+         	unreachablePeer = new PeerBuilder(Number160.createHash(rnd.nextInt())).ports(13337).start();
+         	PeerNAT uNat = new PeerBuilderNAT(unreachablePeer).start();
+         	
+         	FutureRelayNAT fbn = uNat.startRelay(master.peerAddress());
+         	fbn.awaitUninterruptibly();
+         	Assert.assertTrue(fbn.isSuccess());
+         	// the unreachable peer asked for batches when setting up the relay
+         	Assert.assertTrue(RelayForwarderRPC.find(master, unreachablePeer.peerID()).batching());
+
+            // every third reply is slower than a flush, so it is returned with a later batch
+            unreachablePeer.objectDataReply(new ObjectDataReply() {
+                public Object reply(PeerAddress sender, Object request) throws Exception {
+                    if ((Integer) request % 3 == 0) {
+                        Thread.sleep(RelayRPC.DEFAULT_FLUSH_MILLIS * 4);
+                    }
+                    return request;
+                }
+            });
+            
+            peers[5].peerBean().serverPeerAddress(peers[5].peerBean().serverPeerAddress().changeRelayed(true));
+            
+            FutureDirect[] fds = new FutureDirect[nrOfRequests];
+            for (int i = 0; i < nrOfRequests; i++) {
+                fds[i] = peers[5].sendDirect(unreachablePeer.peerAddress()).object(i).start();
+            }
+            for (int i = 0; i < nrOfRequests; i++) {
+                fds[i].awaitUninterruptibly();
+                Assert.assertTrue(fds[i].isSuccess());
+                Assert.assertEquals(i, fds[i].object());
+                Assert.assertEquals(unreachablePeer.peerID(), fds[i].wrappedFuture().responseMessage().sender().peerId());
+            }
+
+        } finally {
+            if (unreachablePeer != null) {
+            	unreachablePeer.shutdown().await();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testRelaySendDirect2() throws Exception {
         final Random rnd = new Random(42);
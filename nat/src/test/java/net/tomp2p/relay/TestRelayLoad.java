@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.relay;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.tomp2p.message.Message;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRelayLoad {
+
+	@Test
+	public void testScore() {
+		// one client weighs as much as BYTES_PER_SECOND_WEIGHT bytes per second or RTT_MILLIS_WEIGHT ms
+		Assert.assertEquals(3.0, RelayLoad.score(1, RelayLoad.BYTES_PER_SECOND_WEIGHT, RelayLoad.RTT_MILLIS_WEIGHT),
+		        0.0001);
+		Assert.assertTrue(RelayLoad.score(1, 0, 10) < RelayLoad.score(2, 0, 10));
+		Assert.assertTrue(RelayLoad.score(1, 0, 10) < RelayLoad.score(1, 1024, 10));
+		Assert.assertTrue(RelayLoad.score(1, 0, 10) < RelayLoad.score(1, 0, 200));
+	}
+
+	@Test
+	public void testScoreFromPing() {
+		RelayLoad load = new RelayLoad();
+		load.clientAdded();
+		load.clientAdded();
+		load.clientRemoved();
+		Message response = new Message();
+		load.pingResponse(new Message(), response);
+		Assert.assertEquals(2, response.intList().size());
+		Assert.assertEquals(Integer.valueOf(1), response.intAt(0));
+		Assert.assertEquals(RelayLoad.score(1, response.intAt(1), 50), RelayLoad.score(response, 50), 0.0001);
+
+		// peers that do not advertise their load come last
+		Assert.assertEquals(Double.MAX_VALUE, RelayLoad.score(new Message(), 50), 0.0001);
+		Assert.assertEquals(Double.MAX_VALUE, RelayLoad.score(null, 50), 0.0001);
+	}
+
+	@Test
+	public void testRank() {
+		PeerAddress pa1 = new PeerAddress(new Number160(1));
+		PeerAddress pa2 = new PeerAddress(new Number160(2));
+		PeerAddress pa3 = new PeerAddress(new Number160(3));
+		PeerAddress pa4 = new PeerAddress(new Number160(4));
+		Map<PeerAddress, Double> scores = new HashMap<PeerAddress, Double>();
+		scores.put(pa2, 5.0);
+		scores.put(pa4, 1.0);
+
+		// candidates without a score keep their order at the end
+		List<PeerAddress> ranked = DistributedRelay.rank(Arrays.asList(pa1, pa2, pa3, pa4), scores);
+		Assert.assertEquals(Arrays.asList(pa4, pa2, pa1, pa3), ranked);
+	}
+
+	@Test
+	public void testIsHot() {
+		Assert.assertFalse(DistributedRelay.isHot(DistributedRelay.MIN_DIFFERENCE, 0));
+		Assert.assertTrue(DistributedRelay.isHot(DistributedRelay.MIN_DIFFERENCE + 1, 0));
+		// similar, low loads do not move the peer
+		Assert.assertFalse(DistributedRelay.isHot(12, 2));
+		Assert.assertTrue(DistributedRelay.isHot(25, 5));
+		Assert.assertFalse(DistributedRelay.isHot(25, 8));
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.relay;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.tomp2p.connection.DSASignatureFactory;
+import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.message.Buffer;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.RPC;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRelayUtils {
+
+	private final SignatureFactory signatureFactory = new DSASignatureFactory();
+
+	@Test
+	public void testEncodeDecodeMessage() throws Exception {
+		Message message = createMessage(42);
+		Buffer buf = RelayUtils.encodeMessage(message, signatureFactory);
+		Message decoded = RelayUtils.decodeMessage(buf, new InetSocketAddress(0), new InetSocketAddress(0),
+		        signatureFactory);
+		assertSame(message, decoded);
+	}
+
+	@Test
+	public void testEncodeSplitBatch() throws Exception {
+		Map<Integer, Message> messages = new LinkedHashMap<Integer, Message>();
+		messages.put(7, createMessage(1));
+		messages.put(3, createMessage(2));
+		messages.put(11, createMessage(3));
+		Buffer buf = RelayUtils.encodeBatch(messages, signatureFactory);
+
+		Map<Integer, Buffer> split = RelayUtils.splitBatch(buf);
+		Assert.assertArrayEquals(messages.keySet().toArray(), split.keySet().toArray());
+		for (Map.Entry<Integer, Buffer> entry : split.entrySet()) {
+			Message decoded = RelayUtils.decodeMessage(entry.getValue(), new InetSocketAddress(0),
+			        new InetSocketAddress(0), signatureFactory);
+			assertSame(messages.get(entry.getKey()), decoded);
+		}
+	}
+
+	@Test
+	public void testSplitEmptyBatch() throws Exception {
+		Buffer buf = RelayUtils.encodeBatch(new LinkedHashMap<Integer, Message>(), signatureFactory);
+		Assert.assertTrue(RelayUtils.splitBatch(buf).isEmpty());
+	}
+
+	@Test
+	public void testSplitBatchNoResponse() throws Exception {
+		Map<Integer, Message> messages = new LinkedHashMap<Integer, Message>();
+		messages.put(5, null);
+		messages.put(6, createMessage(6));
+		Buffer buf = RelayUtils.encodeBatch(messages, signatureFactory);
+
+		Map<Integer, Buffer> split = RelayUtils.splitBatch(buf);
+		Assert.assertArrayEquals(messages.keySet().toArray(), split.keySet().toArray());
+		Assert.assertEquals(0, split.get(5).length());
+		assertSame(messages.get(6), RelayUtils.decodeMessage(split.get(6), new InetSocketAddress(0),
+		        new InetSocketAddress(0), signatureFactory));
+	}
+
+	private static Message createMessage(int nr) throws UnknownHostException {
+		Message message = new Message();
+		message.sender(new PeerAddress(new Number160(nr), "127.0.0.1", 8001, 8002));
+		message.recipient(new PeerAddress(new Number160(nr + 1), "127.0.0.1", 8003, 8004));
+		message.command(RPC.Commands.DIRECT_DATA.getNr());
+		message.type(Type.REQUEST_1);
+		message.messageId(nr);
+		message.key(new Number160(nr * 31));
+		message.intValue(nr);
+		return message;
+	}
+
+	private static void assertSame(Message expected, Message actual) {
+		Assert.assertEquals(expected.messageId(), actual.messageId());
+		Assert.assertEquals(expected.command(), actual.command());
+		Assert.assertEquals(expected.type(), actual.type());
+		Assert.assertEquals(expected.sender().peerId(), actual.sender().peerId());
+		Assert.assertEquals(expected.recipient().peerId(), actual.recipient().peerId());
+		Assert.assertEquals(expected.key(0), actual.key(0));
+		Assert.assertEquals(expected.intAt(0), actual.intAt(0));
+	}
+}
@@ -30,6 +30,7 @@ import java.util.Map.Entry;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.Dispatcher;
 import net.tomp2p.connection.PeerBean;
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.RequestHandler;
@@ -86,6 +87,7 @@ public class SyncRPC extends DispatchHandler {
     public SyncRPC(final PeerBean peerBean, final ConnectionBean connectionBean, final int blockSize, StorageLayer storageLayer, ReplicationListener replicationListener) {
         super(peerBean, connectionBean);
         register(INFO_COMMAND, SYNC_COMMAND);
+        bulkhead(Dispatcher.BULKHEAD_SYNC, INFO_COMMAND, SYNC_COMMAND);
         this.blockSize = blockSize;
         this.storageLayer = storageLayer;
         this.replicationListener = replicationListener;
@@ -18,18 +18,13 @@ package net.tomp2p.storage;
 
 import java.io.File;
 import java.security.PublicKey;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentNavigableMap;
 
 import net.tomp2p.connection.SignatureFactory;
 import net.tomp2p.peers.Number160;
@@ -40,12 +35,13 @@ import net.tomp2p.peers.Number640;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 
-public class StorageDisk implements Storage {
+public class StorageDisk implements BoundedTimeoutStorage {
     // Core
     final private NavigableMap<Number640, Data> dataMap;
     // Maintenance
     final private Map<Number640, Long> timeoutMap;
-    final private ConcurrentNavigableMap<Long, Set<Number640>> timeoutMapRev;
+    // built from timeoutMap, not stored on disk
+    final private ExpiryIndex<Number640> timeoutIndex = new ExpiryIndex<Number640>();
     // Protection
     final private Map<Number320, PublicKey> protectedDomainMap;
     final private Map<Number480, PublicKey> protectedEntryMap;
@@ -63,12 +59,20 @@ public class StorageDisk implements Storage {
     	DataSerializer dataSerializer = new DataSerializer(path, signatureFactory);
     	this.dataMap = db.createTreeMap("dataMap_" + peerId.toString()).valueSerializer(dataSerializer).makeOrGet();
     	this.timeoutMap = db.createTreeMap("timeoutMap_" + peerId.toString()).makeOrGet();
-    	this.timeoutMapRev = db.createTreeMap("timeoutMapRev_" + peerId.toString()).makeOrGet();
     	this.protectedDomainMap = db.createTreeMap("protectedDomainMap_" + peerId.toString()).makeOrGet();
     	this.protectedEntryMap = db.createTreeMap("protectedEntryMap_" + peerId.toString()).makeOrGet();
     	this.responsibilityMap = db.createTreeMap("responsibilityMap_" + peerId.toString()).makeOrGet();
     	this.responsibilityMapRev = db.createTreeMap("responsibilityMapRev_" + peerId.toString()).makeOrGet();
     	this.storageCheckIntervalMillis = storageCheckIntervalMillis;
+    	for (Map.Entry<Number640, Long> entry : timeoutMap.entrySet()) {
+    		timeoutIndex.add(entry.getKey(), entry.getValue());
+    	}
+    	// the reverse timeout map of older versions is replaced by the index above
+    	final String timeoutMapRev = "timeoutMapRev_" + peerId.toString();
+    	if (db.exists(timeoutMapRev)) {
+    		db.delete(timeoutMapRev);
+    		db.commit();
+    	}
     }
     
     //set parameter to a reasonable default
@@ -172,7 +176,6 @@ public class StorageDisk implements Storage {
             	retVal.put(entry.getKey(), entry.getValue());
             }
         } else {
-            limit = Math.min(limit, tmp.size());
             Iterator<Map.Entry<Number640, Data>> iterator = ascending ? tmp.entrySet().iterator() : tmp
                     .descendingMap().entrySet().iterator();
             for (int i = 0; iterator.hasNext() && i < limit; i++) {
@@ -218,53 +221,30 @@ public class StorageDisk implements Storage {
 	@Override
 	public void addTimeout(Number640 key, long expiration) {
 		Long oldExpiration = timeoutMap.put(key, expiration);
-		putIfAbsent2(expiration, key);
-		if (oldExpiration == null) {
-			return;
+		timeoutIndex.add(key, expiration);
+		if (oldExpiration == null || oldExpiration != expiration) {
+			db.commit();
 		}
-		removeRevTimeout(key, oldExpiration);
-		db.commit();
 	}
  	
- 	private void putIfAbsent2(long expiration, Number640 key) {
-        Set<Number640> timeouts = timeoutMapRev.get(expiration);
-        if(timeouts == null) {
-        	timeouts = Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>());
-        }
-        timeouts.add(key);
-        timeoutMapRev.put(expiration, timeouts);
-    }
- 	
  	@Override
     public void removeTimeout(Number640 key) {
 		Long expiration = timeoutMap.remove(key);
         if (expiration == null) {
             return;
         }
-        removeRevTimeout(key, expiration);
+        timeoutIndex.remove(key);
         db.commit();
     }
  	
- 	private void removeRevTimeout(Number640 key, Long expiration) {
-        Set<Number640> tmp = timeoutMapRev.get(expiration);
-        if (tmp != null) {
-            tmp.remove(key);
-            if (tmp.isEmpty()) {
-                timeoutMapRev.remove(expiration);
-            } else {
-            	timeoutMapRev.put(expiration, tmp);
-            }
-        }
+ 	@Override
+    public Collection<Number640> subMapTimeout(long to) {
+		return subMapTimeout(to, -1);
     }
  	
  	@Override
-    public Collection<Number640> subMapTimeout(long to) {
-		SortedMap<Long, Set<Number640>> tmp = timeoutMapRev.subMap(0L, to);
-        Collection<Number640> toRemove = new ArrayList<Number640>();
-        for (Set<Number640> set : tmp.values()) {
-            toRemove.addAll(set);
-        }
-        return toRemove;
+    public Collection<Number640> subMapTimeout(long to, int limit) {
+		return timeoutIndex.expired(to, limit);
     }
  	
  	
@@ -1,12 +1,12 @@
 /*
  * Copyright 2012 Thomas Bocek
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
  * the License at
- * 
+ *
  * http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
@@ -16,81 +16,175 @@
 
 package net.tomp2p.task;
 
+import java.security.KeyPair;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-import net.tomp2p.connection2.ChannelCreator;
-import net.tomp2p.connection2.PeerBean;
-import net.tomp2p.connection2.Scheduler;
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.ConnectionConfiguration;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.Cancel;
 import net.tomp2p.futures.FutureAsyncTask;
+import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message.Type;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.rpc.TaskRPC;
 import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Submits tasks to remote peers and completes the futures once the results are sent back. While a task runs, the
+ * remote peer is polled for the task status, so that the future fails if the remote peer dies.
+ */
 public class AsyncTask implements TaskResultListener {
     final private static Logger logger = LoggerFactory.getLogger(AsyncTask.class);
 
+    public static final int DEFAULT_POLL_INTERVAL_MILLIS = 1000;
+
     final private TaskRPC taskRPC;
 
-    final private Scheduler scheduler;
+    final private ConnectionBean connectionBean;
+
+    final private ConnectionConfiguration connectionConfiguration;
 
-    final private PeerBean peerBean;
+    final private int pollIntervalMillis;
 
     final private Map<Number320, FutureAsyncTask> tasks = new ConcurrentHashMap<Number320, FutureAsyncTask>();
 
-    public AsyncTask(TaskRPC taskRPC, Scheduler scheduler, PeerBean peerBean) {
+    final private Map<Number320, ScheduledFuture<?>> polls = new ConcurrentHashMap<Number320, ScheduledFuture<?>>();
+
+    /**
+     * @param taskRPC
+     *            The RPC to send tasks and to poll the task status
+     * @param connectionBean
+     *            The connection bean for the timer and the reservation of the polling connections
+     * @param connectionConfiguration
+     *            The connection configuration of the polling requests
+     * @param pollIntervalMillis
+     *            The interval to poll the remote peer for the status of a running task
+     */
+    public AsyncTask(TaskRPC taskRPC, ConnectionBean connectionBean, ConnectionConfiguration connectionConfiguration,
+            int pollIntervalMillis) {
         this.taskRPC = taskRPC;
-        this.scheduler = scheduler;
-        this.peerBean = peerBean;
+        this.connectionBean = connectionBean;
+        this.connectionConfiguration = connectionConfiguration;
+        this.pollIntervalMillis = pollIntervalMillis;
     }
 
     public FutureAsyncTask submit(final PeerAddress remotePeer, ChannelCreator channelCreator, final Number160 taskId,
-            Map<Number160, Data> dataMap, Worker mapper, boolean forceUDP, boolean sign) {
-        final Number320 taskKey = new Number320(taskId, remotePeer.getPeerId());
+            Map<Number160, Data> dataMap, Worker worker, KeyPair keyPair, ConnectionConfiguration configuration,
+            boolean forceUDP) {
+        final Number320 taskKey = new Number320(taskId, remotePeer.peerId());
         final FutureAsyncTask futureAsyncTask = new FutureAsyncTask(remotePeer);
-        futureAsyncTask.addCancellation(new Cancel() {
+        futureAsyncTask.addCancel(new Cancel() {
             @Override
             public void cancel() {
                 taskFailed(taskKey);
             }
         });
         tasks.put(taskKey, futureAsyncTask);
-        FutureResponse futureResponse = taskRPC.sendTask(remotePeer, channelCreator, taskId, dataMap, mapper,
-                peerBean.getKeyPair(), forceUDP, sign);
+        FutureResponse futureResponse = taskRPC.sendTask(remotePeer, channelCreator, taskId, dataMap, worker,
+                keyPair, configuration, forceUDP);
         futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
             @Override
             public void operationComplete(FutureResponse future) throws Exception {
-                if (future.isSuccess()) {
+                if (future.isSuccess() && future.responseMessage().type() == Type.OK) {
                     // keep track of it and poll to see if its still alive
-                    scheduler.keepTrack(remotePeer, taskId, (TaskResultListener) AsyncTask.this);
+                    keepTrack(remotePeer, taskKey);
                 } else {
-                    futureAsyncTask.setFailed(future);
+                    // also if the remote peer denied the task because its queue is full
+                    tasks.remove(taskKey);
+                    if (future.isSuccess()) {
+                        futureAsyncTask.failed("task denied by " + remotePeer);
+                    } else {
+                        futureAsyncTask.failed(future);
+                    }
                 }
             }
         });
         return futureAsyncTask;
     }
 
+    private void keepTrack(final PeerAddress remotePeer, final Number320 taskKey) {
+        ScheduledFuture<?> poll = connectionBean.timer().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll(remotePeer, taskKey);
+            }
+        }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        polls.put(taskKey, poll);
+        // the result may have arrived before the poll was registered
+        if (!tasks.containsKey(taskKey)) {
+            stopKeepTrack(taskKey);
+        }
+    }
+
+    private void stopKeepTrack(Number320 taskKey) {
+        ScheduledFuture<?> poll = polls.remove(taskKey);
+        if (poll != null) {
+            poll.cancel(false);
+        }
+    }
+
+    private void poll(final PeerAddress remotePeer, final Number320 taskKey) {
+        final FutureChannelCreator futureChannelCreator = connectionBean.reservation().create(1, 0);
+        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    // try again with the next poll
+                    return;
+                }
+                FutureResponse futureResponse = taskRPC.taskStatus(remotePeer, future.channelCreator(),
+                        Collections.singleton(taskKey.locationKey()), connectionConfiguration, false);
+                Utils.addReleaseListener(future.channelCreator(), futureResponse);
+                futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                    @Override
+                    public void operationComplete(FutureResponse future) throws Exception {
+                        if (!future.isSuccess()) {
+                            taskFailed(taskKey);
+                            return;
+                        }
+                        Map<Number160, Data> dataMap = TaskRPC.dataMap(future.responseMessage());
+                        Data data = dataMap == null ? null : dataMap.get(taskKey.locationKey());
+                        TaskStatus taskStatus = data == null ? null : (TaskStatus) data.object();
+                        if (taskStatus == null || taskStatus.getStatus() == null
+                                || taskStatus.getStatus() == TaskStatus.Status.FAILED) {
+                            // the remote peer does not know the task anymore or could not send the result
+                            taskFailed(taskKey);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     @Override
     public void taskReceived(Number320 taskKey, Map<Number160, Data> dataMap) {
         if (logger.isDebugEnabled()) {
             logger.debug("Task received " + taskKey);
         }
-        scheduler.stopKeepTrack(taskKey);
+        stopKeepTrack(taskKey);
         FutureAsyncTask futureAsyncTask = tasks.remove(taskKey);
         if (futureAsyncTask == null) {
             logger.error("Task that was completed was not in the tracking list: " + taskKey);
             return;
         }
-        futureAsyncTask.setDataMap(dataMap);
+        if (dataMap == null) {
+            // the worker threw an exception, report a failure so that the task can be tried on another peer
+            futureAsyncTask.failed("task failed on remote peer");
+        } else {
+            futureAsyncTask.dataMap(dataMap);
+        }
     }
 
     @Override
@@ -98,11 +192,20 @@ public class AsyncTask implements TaskResultListener {
         if (logger.isDebugEnabled()) {
             logger.debug("Task failed " + taskKey);
         }
-        // this comes from the scheduler
+        stopKeepTrack(taskKey);
         FutureAsyncTask futureAsyncTask = tasks.remove(taskKey);
         if (futureAsyncTask == null) {
             return;
         }
-        futureAsyncTask.setFailed("polling faild, maybe peer died");
+        futureAsyncTask.failed("polling failed, maybe peer died");
+    }
+
+    /**
+     * Stops polling and fails all tasks that are still running.
+     */
+    public void shutdown() {
+        for (Number320 taskKey : tasks.keySet()) {
+            taskFailed(taskKey);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.task;
+
+import java.util.Map;
+
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+
+/**
+ * A worker that completes its result later, e.g., after DHT operations. The {@link TaskManager} calls
+ * {@link #executeAsync(PeerTask, Number160, Map)} instead of {@link #execute(PeerTask, Number160, Map)}, so the
+ * scheduler thread is free as soon as the operations are started, and the result is sent back once the future is done.
+ */
+public interface AsyncWorker extends Worker {
+    /**
+     * @param peer
+     *            The peer that runs the task
+     * @param taskId
+     *            The task ID
+     * @param inputData
+     *            The input data of the task
+     * @return The future that is done with the result, or failed if the task failed
+     */
+    public abstract FutureDone<Map<Number160, Data>> executeAsync(PeerTask peer, Number160 taskId,
+            Map<Number160, Data> inputData);
+}
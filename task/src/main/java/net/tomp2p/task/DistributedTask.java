@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.task;
+
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureAsyncTask;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureForkJoin;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.futures.FutureTask;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.p2p.DistributedRouting;
+import net.tomp2p.p2p.RequestP2PConfiguration;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class DistributedTask {
+    final private static Logger logger = LoggerFactory.getLogger(DistributedTask.class);
+
+    final private DistributedRouting routing;
+
+    final private AsyncTask asyncTask;
+
+    public DistributedTask(DistributedRouting routing, AsyncTask asyncTask) {
+        this.routing = routing;
+        this.asyncTask = asyncTask;
+    }
+
+    /**
+     * Submit a task to the DHT. The peers close to the location key get the task, the closest first. A peer with a
+     * full queue denies the task, which is then tried on the next close peer.
+     *
+     * @param builder
+     *            The location key, the worker and the configuration of the task
+     * @return The future task with the results of the remote peers
+     */
+    public FutureTask submit(final SubmitBuilder builder) {
+        final FutureTask futureTask = new FutureTask();
+        builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    final ChannelCreator channelCreator = future.channelCreator();
+                    // routing, find close peers
+                    final FutureRouting futureRouting = routing.route(builder.createBuilder(), Type.REQUEST_1,
+                            channelCreator);
+                    futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                        @Override
+                        public void operationComplete(FutureRouting future) throws Exception {
+                            if (futureRouting.isSuccess()) {
+                                // sorted by the distance to the location key
+                                NavigableSet<PeerAddress> queue = new TreeSet<PeerAddress>(
+                                        futureRouting.potentialHits());
+                                parallelRequests(builder, futureTask, queue, channelCreator);
+                            } else {
+                                futureTask.failed(futureRouting);
+                            }
+                        }
+                    });
+                    Utils.addReleaseListener(channelCreator, futureTask);
+                } else {
+                    futureTask.failed(future);
+                }
+            }
+        });
+        return futureTask;
+    }
+
+    private void parallelRequests(SubmitBuilder builder, FutureTask futureTask, NavigableSet<PeerAddress> queue,
+            ChannelCreator channelCreator) {
+        RequestP2PConfiguration requestP2PConfiguration = builder.requestP2PConfiguration();
+        FutureAsyncTask[] futures = new FutureAsyncTask[requestP2PConfiguration.parallel()];
+        loopRec(builder, queue, requestP2PConfiguration.minimumResults(), new AtomicInteger(0),
+                requestP2PConfiguration.maxFailure(), requestP2PConfiguration.parallelDiff(),
+                new AtomicReferenceArray<FutureAsyncTask>(futures), futureTask, true, channelCreator);
+    }
+
+    private void loopRec(final SubmitBuilder builder, final NavigableSet<PeerAddress> queue, final int min,
+            final AtomicInteger nrFailure, final int maxFailure, final int parallelDiff,
+            final AtomicReferenceArray<FutureAsyncTask> futures, final FutureTask futureTask,
+            final boolean cancelOnFinish, final ChannelCreator channelCreator) {
+        int active = 0;
+        for (int i = 0; i < min + parallelDiff; i++) {
+            if (futures.get(i) == null) {
+                PeerAddress next = queue.pollFirst();
+                if (next != null) {
+                    active++;
+                    FutureAsyncTask futureAsyncTask = asyncTask.submit(next, channelCreator, builder.locationKey(),
+                            builder.dataMap(), builder.worker(), builder.keyPair(), builder, builder.isForceUDP());
+                    futures.set(i, futureAsyncTask);
+                    futureTask.addRequests(futureAsyncTask);
+                }
+            } else {
+                active++;
+            }
+        }
+        if (active == 0) {
+            futureTask.done();
+            cancel(cancelOnFinish, futures);
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("fork/join status: " + min + "/" + active + " (" + parallelDiff + ")");
+        }
+        FutureForkJoin<FutureAsyncTask> fp = new FutureForkJoin<FutureAsyncTask>(Math.min(min, active), false, futures);
+        fp.addListener(new BaseFutureAdapter<FutureForkJoin<FutureAsyncTask>>() {
+            @Override
+            public void operationComplete(FutureForkJoin<FutureAsyncTask> future) throws Exception {
+                for (FutureAsyncTask futureAsyncTask : future.completed()) {
+                    futureTask.progress(futureAsyncTask);
+                }
+                // we are finished if forkjoin says so or we got too many
+                // failures
+                if (future.isSuccess() || nrFailure.incrementAndGet() > maxFailure) {
+                    cancel(cancelOnFinish, futures);
+                    futureTask.done();
+                } else {
+                    loopRec(builder, queue, min - future.successCounter(), nrFailure, maxFailure, parallelDiff,
+                            futures, futureTask, cancelOnFinish, channelCreator);
+                }
+            }
+        });
+    }
+
+    private static void cancel(final boolean cancelOnFinish, final AtomicReferenceArray<FutureAsyncTask> futures) {
+        if (!cancelOnFinish) {
+            return;
+        }
+        int len = futures.length();
+        for (int i = 0; i < len; i++) {
+            BaseFuture baseFuture = futures.get(i);
+            if (baseFuture != null) {
+                baseFuture.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.task;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.dht.FuturePut;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureTask;
+import net.tomp2p.p2p.RequestP2PConfiguration;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A MapReduce engine on top of the task module. The data is not moved to the computation:
+ * <ul>
+ * <li>A map task is submitted to the location key of each input, so it runs on a peer that stores the input. If
+ * that peer fails or does not have the data, the task is tried on the next replica.</li>
+ * <li>The output of a map task is combined with {@link MapReduceJob#reduce(Number160, Collection)} and partitioned
+ * by the hash of the intermediate key. Each partition is stored at the location of the partition, which shuffles it
+ * to the reducer peers. The partitions are stored in the domain of the job ID.</li>
+ * <li>A reduce task is submitted to the location of each partition and reduces the stored partial results locally.</li>
+ * </ul>
+ * Map and reduce tasks are idempotent, since a map task stores its partial results under its input location key,
+ * thus retries do not count twice. All peers need to be built with {@link PeerBuilderTask#PeerBuilderTask(PeerDHT)}.
+ */
+public class MapReduce {
+    final private static Logger logger = LoggerFactory.getLogger(MapReduce.class);
+
+    public static final int DEFAULT_PARTITIONS = 8;
+
+    private final PeerTask peer;
+
+    private int nrPartitions = DEFAULT_PARTITIONS;
+
+    private int replicas = 3;
+
+    private int maxRetries = 2;
+
+    private Number160 inputDomain = Number160.ZERO;
+
+    private interface Callback {
+        void done(Map<Number160, Data> result);
+
+        void failed(String reason);
+    }
+
+    public MapReduce(PeerTask peer) {
+        if (peer.peerDHT() == null) {
+            throw new IllegalArgumentException("MapReduce needs a task peer that is built on top of a DHT peer");
+        }
+        this.peer = peer;
+    }
+
+    public int getNrPartitions() {
+        return nrPartitions;
+    }
+
+    /**
+     * @param nrPartitions
+     *            The number of reduce tasks
+     * @return This class
+     */
+    public MapReduce setNrPartitions(int nrPartitions) {
+        if (nrPartitions <= 0) {
+            throw new IllegalArgumentException("need at least one partition");
+        }
+        this.nrPartitions = nrPartitions;
+        return this;
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @param replicas
+     *            The number of close peers a task is tried on before it is resubmitted
+     * @return This class
+     */
+    public MapReduce setReplicas(int replicas) {
+        this.replicas = replicas;
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries
+     *            The number of times a task is resubmitted after it failed on all replicas
+     * @return This class
+     */
+    public MapReduce setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public Number160 getInputDomain() {
+        return inputDomain;
+    }
+
+    public MapReduce setInputDomain(Number160 inputDomain) {
+        this.inputDomain = inputDomain;
+        return this;
+    }
+
+    /**
+     * Runs a job.
+     *
+     * @param jobId
+     *            The unique ID of this job. The intermediate data is stored in this domain.
+     * @param inputLocationKeys
+     *            The location keys of the input data
+     * @param job
+     *            The map and reduce functions
+     * @return The future with the reduced values by intermediate key
+     */
+    public FutureDone<Map<Number160, Data>> start(final Number160 jobId, final Collection<Number160> inputLocationKeys,
+            final MapReduceJob job) {
+        final FutureDone<Map<Number160, Data>> futureDone = new FutureDone<Map<Number160, Data>>();
+        final AtomicInteger pending = new AtomicInteger(inputLocationKeys.size());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final Callback mapDone = new Callback() {
+            @Override
+            public void done(Map<Number160, Data> result) {
+                if (pending.decrementAndGet() == 0 && !failed.get()) {
+                    reduce(jobId, inputLocationKeys.size(), job, futureDone);
+                }
+            }
+
+            @Override
+            public void failed(String reason) {
+                if (failed.compareAndSet(false, true)) {
+                    futureDone.failed("map failed: " + reason);
+                }
+            }
+        };
+        if (inputLocationKeys.isEmpty()) {
+            reduce(jobId, 0, job, futureDone);
+        }
+        for (Number160 locationKey : inputLocationKeys) {
+            submit(locationKey, new MapWorker(jobId, job, nrPartitions, inputDomain), maxRetries, mapDone);
+        }
+        return futureDone;
+    }
+
+    private void reduce(final Number160 jobId, final int expectedMaps, final MapReduceJob job,
+            final FutureDone<Map<Number160, Data>> futureDone) {
+        final Map<Number160, Data> results = new ConcurrentHashMap<Number160, Data>();
+        final AtomicInteger pending = new AtomicInteger(nrPartitions);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final Callback reduceDone = new Callback() {
+            @Override
+            public void done(Map<Number160, Data> result) {
+                results.putAll(result);
+                if (pending.decrementAndGet() == 0 && !failed.get()) {
+                    cleanup(jobId);
+                    futureDone.done(results);
+                }
+            }
+
+            @Override
+            public void failed(String reason) {
+                if (failed.compareAndSet(false, true)) {
+                    cleanup(jobId);
+                    futureDone.failed("reduce failed: " + reason);
+                }
+            }
+        };
+        for (int i = 0; i < nrPartitions; i++) {
+            submit(partitionLocation(jobId, i), new ReduceWorker(jobId, job, expectedMaps), maxRetries, reduceDone);
+        }
+    }
+
+    private void submit(final Number160 locationKey, final Worker worker, final int retriesLeft,
+            final Callback callback) {
+        // the task loop tries the next close peer if a peer fails, these are the replicas of the location key
+        FutureTask futureTask = peer.submit(locationKey, worker)
+                .requestP2PConfiguration(new RequestP2PConfiguration(1, Math.max(0, replicas - 1), 0)).start();
+        futureTask.addListener(new BaseFutureAdapter<FutureTask>() {
+            @Override
+            public void operationComplete(FutureTask future) throws Exception {
+                Map<Number160, Data> result = null;
+                if (future.isSuccess()) {
+                    for (Map<Number160, Data> dataMap : future.rawDataMap().values()) {
+                        if (dataMap != null) {
+                            result = dataMap;
+                            break;
+                        }
+                    }
+                }
+                if (result != null) {
+                    callback.done(result);
+                } else if (retriesLeft > 0) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("retry task " + locationKey + ": " + future.failedReason());
+                    }
+                    submit(locationKey, worker, retriesLeft - 1, callback);
+                } else {
+                    callback.failed(locationKey + ": " + future.failedReason());
+                }
+            }
+        });
+    }
+
+    private void cleanup(Number160 jobId) {
+        for (int i = 0; i < nrPartitions; i++) {
+            peer.peerDHT().remove(partitionLocation(jobId, i)).domainKey(jobId).all().start();
+        }
+    }
+
+    static Number160 partitionLocation(Number160 jobId, int partition) {
+        // hash, so that the partitions are spread over the whole key space
+        return Number160.createHash(jobId.toString() + "/" + partition);
+    }
+
+    static int partition(Number160 key, int nrPartitions) {
+        return (key.hashCode() & Integer.MAX_VALUE) % nrPartitions;
+    }
+
+    private static PeerDHT peerDHT(PeerTask peer) throws IOException {
+        if (peer.peerDHT() == null) {
+            throw new IOException("peer " + peer.peerID() + " does not run a DHT");
+        }
+        return peer.peerDHT();
+    }
+
+    private static NavigableMap<Number640, Data> stored(PeerDHT peerDHT, Number160 locationKey, Number160 domainKey) {
+        return peerDHT.storageLayer().get(new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO),
+                new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE), -1, true);
+    }
+
+    /**
+     * Runs on a peer that stores the input location key. Maps the local data, combines the output and stores one
+     * partial result per partition. The task is done when all partitions are stored, no scheduler thread waits for
+     * the puts. If the task is not run by the {@link TaskManager}, {@link #execute(PeerTask, Number160, Map)}
+     * blocks until the puts are done.
+     */
+    private static class MapWorker implements AsyncWorker {
+        private static final long serialVersionUID = -2360734420553012958L;
+
+        private final Number160 jobId;
+
+        private final MapReduceJob job;
+
+        private final int nrPartitions;
+
+        private final Number160 inputDomain;
+
+        private MapWorker(Number160 jobId, MapReduceJob job, int nrPartitions, Number160 inputDomain) {
+            this.jobId = jobId;
+            this.job = job;
+            this.nrPartitions = nrPartitions;
+            this.inputDomain = inputDomain;
+        }
+
+        @Override
+        public Map<Number160, Data> execute(PeerTask peer, Number160 taskId, Map<Number160, Data> inputData)
+                throws Exception {
+            FutureDone<Map<Number160, Data>> futureDone = executeAsync(peer, taskId, inputData);
+            futureDone.awaitUninterruptibly();
+            if (!futureDone.isSuccess()) {
+                throw new IOException(futureDone.failedReason());
+            }
+            return futureDone.object();
+        }
+
+        @Override
+        public FutureDone<Map<Number160, Data>> executeAsync(PeerTask peer, Number160 taskId,
+                Map<Number160, Data> inputData) {
+            final FutureDone<Map<Number160, Data>> futureDone = new FutureDone<Map<Number160, Data>>();
+            try {
+                map(peerDHT(peer), taskId, futureDone);
+            } catch (Exception e) {
+                futureDone.failed(e.toString());
+            }
+            return futureDone;
+        }
+
+        private void map(PeerDHT peerDHT, final Number160 locationKey,
+                final FutureDone<Map<Number160, Data>> futureDone) throws Exception {
+            NavigableMap<Number640, Data> stored = stored(peerDHT, locationKey, inputDomain);
+            if (stored.isEmpty()
+                    && !peerDHT.storageLayer().findContentForResponsiblePeerID(peerDHT.peerID())
+                            .contains(locationKey)) {
+                // let the next replica do the work
+                throw new IOException("peer " + peerDHT.peerID() + " does not store " + locationKey);
+            }
+            Map<Number160, Data> input = new HashMap<Number160, Data>(stored.size() * 2);
+            for (Map.Entry<Number640, Data> entry : stored.entrySet()) {
+                // ascending, so the latest version wins
+                input.put(entry.getKey().contentKey(), entry.getValue());
+            }
+            final Map<Number160, List<Data>> emitted = new HashMap<Number160, List<Data>>();
+            job.map(locationKey, input, new MapReduceJob.Emitter() {
+                @Override
+                public void emit(Number160 key, Data value) {
+                    List<Data> values = emitted.get(key);
+                    if (values == null) {
+                        values = new ArrayList<Data>(1);
+                        emitted.put(key, values);
+                    }
+                    values.add(value);
+                }
+            });
+            // combine locally before the shuffle
+            List<HashMap<Number160, Data>> partitions = new ArrayList<HashMap<Number160, Data>>(nrPartitions);
+            for (int i = 0; i < nrPartitions; i++) {
+                partitions.add(new HashMap<Number160, Data>());
+            }
+            for (Map.Entry<Number160, List<Data>> entry : emitted.entrySet()) {
+                List<Data> values = entry.getValue();
+                Data combined = values.size() == 1 ? values.get(0) : job.reduce(entry.getKey(), values);
+                partitions.get(partition(entry.getKey(), nrPartitions)).put(entry.getKey(), combined);
+            }
+            // shuffle, empty partitions are stored as well so that the reducer knows that this map task is done
+            final Map<Number160, Data> retVal = new HashMap<Number160, Data>(2);
+            retVal.put(locationKey, new Data(emitted.size()));
+            final AtomicInteger pending = new AtomicInteger(nrPartitions);
+            for (int i = 0; i < nrPartitions; i++) {
+                Map<Number160, Data> dataMap = new HashMap<Number160, Data>(2);
+                dataMap.put(locationKey, new Data(partitions.get(i)));
+                peerDHT.put(partitionLocation(jobId, i)).domainKey(jobId).dataMapContent(dataMap).start()
+                        .addListener(new BaseFutureAdapter<FuturePut>() {
+                            @Override
+                            public void operationComplete(FuturePut future) throws Exception {
+                                if (!future.isSuccess()) {
+                                    futureDone.failed("could not shuffle map output: " + future.failedReason());
+                                } else if (pending.decrementAndGet() == 0) {
+                                    futureDone.done(retVal);
+                                }
+                            }
+                        });
+            }
+        }
+    }
+
+    /**
+     * Runs on a peer that stores a partition. Reduces the partial results of all map tasks.
+     */
+    private static class ReduceWorker implements Worker {
+        private static final long serialVersionUID = 7311418096315233471L;
+
+        private final Number160 jobId;
+
+        private final MapReduceJob job;
+
+        private final int expectedMaps;
+
+        private ReduceWorker(Number160 jobId, MapReduceJob job, int expectedMaps) {
+            this.jobId = jobId;
+            this.job = job;
+            this.expectedMaps = expectedMaps;
+        }
+
+        @Override
+        public Map<Number160, Data> execute(PeerTask peer, Number160 taskId, Map<Number160, Data> inputData)
+                throws Exception {
+            // one partial result per map task, stored under the input location key of the map task
+            Map<Number160, Data> partials = new HashMap<Number160, Data>();
+            for (Map.Entry<Number640, Data> entry : stored(peerDHT(peer), taskId, jobId).entrySet()) {
+                partials.put(entry.getKey().contentKey(), entry.getValue());
+            }
+            if (partials.size() < expectedMaps) {
+                // let a replica with all partial results do the work
+                throw new IOException("only " + partials.size() + " of " + expectedMaps + " map results on "
+                        + peer.peerID());
+            }
+            Map<Number160, List<Data>> grouped = new HashMap<Number160, List<Data>>();
+            for (Data data : partials.values()) {
+                @SuppressWarnings("unchecked")
+                Map<Number160, Data> partial = (Map<Number160, Data>) data.object();
+                for (Map.Entry<Number160, Data> entry : partial.entrySet()) {
+                    List<Data> values = grouped.get(entry.getKey());
+                    if (values == null) {
+                        values = new ArrayList<Data>();
+                        grouped.put(entry.getKey(), values);
+                    }
+                    values.add(entry.getValue());
+                }
+            }
+            Map<Number160, Data> retVal = new HashMap<Number160, Data>(grouped.size() * 2);
+            for (Map.Entry<Number160, List<Data>> entry : grouped.entrySet()) {
+                retVal.put(entry.getKey(), job.reduce(entry.getKey(), entry.getValue()));
+            }
+            return retVal;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.task;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+
+/**
+ * The user code of a {@link MapReduce} job. The job is serialized and shipped to the peers that store the input.
+ */
+public interface MapReduceJob extends Serializable {
+
+    /**
+     * Collects the intermediate key value pairs of the map function.
+     */
+    public interface Emitter {
+        public abstract void emit(Number160 key, Data value) throws Exception;
+    }
+
+    /**
+     * Called on a peer that stores the location key.
+     * 
+     * @param locationKey
+     *            The input location key
+     * @param input
+     *            The data stored locally under this location key, by content key
+     * @param emitter
+     *            Collects the intermediate key value pairs
+     */
+    public abstract void map(Number160 locationKey, Map<Number160, Data> input, Emitter emitter) throws Exception;
+
+    /**
+     * Reduces all values with the same key. This is also used to combine the output of a map task before it is sent
+     * over the network, so it must be associative and accept its own output as input.
+     * 
+     * @param key
+     *            The intermediate key
+     * @param values
+     *            The values emitted or already combined for this key
+     * @return The reduced value
+     */
+    public abstract Data reduce(Number160 key, Collection<Data> values) throws Exception;
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.task;
+
+import net.tomp2p.connection.ConnectionConfiguration;
+import net.tomp2p.connection.DefaultConnectionConfiguration;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.Shutdown;
+
+public class PeerBuilderTask {
+
+    private final Peer peer;
+    private final PeerDHT peerDHT;
+
+    private int threads = -1;
+    private int maxQueued = -1;
+    private int pollIntervalMillis = -1;
+    private ConnectionConfiguration connectionConfiguration = null;
+
+    public PeerBuilderTask(Peer peer) {
+        this.peer = peer;
+        this.peerDHT = null;
+    }
+
+    /**
+     * Builds the task peer on top of a DHT peer, so that workers can access the DHT, e.g., for {@link MapReduce}.
+     *
+     * @param peerDHT
+     *            The DHT peer
+     */
+    public PeerBuilderTask(PeerDHT peerDHT) {
+        this.peer = peerDHT.peer();
+        this.peerDHT = peerDHT;
+    }
+
+    public PeerTask start() {
+        if (threads == -1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        if (maxQueued == -1) {
+            maxQueued = TaskManager.DEFAULT_MAX_QUEUED;
+        }
+        if (pollIntervalMillis == -1) {
+            pollIntervalMillis = AsyncTask.DEFAULT_POLL_INTERVAL_MILLIS;
+        }
+        if (connectionConfiguration == null) {
+            connectionConfiguration = new DefaultConnectionConfiguration();
+        }
+
+        TaskManager taskManager = new TaskManager(peer.connectionBean(), threads, maxQueued);
+        TaskRPC taskRPC = new TaskRPC(peer.peerBean(), peer.connectionBean(), taskManager);
+        AsyncTask asyncTask = new AsyncTask(taskRPC, peer.connectionBean(), connectionConfiguration,
+                pollIntervalMillis);
+        // the results of the tasks we submitted come in as task RPCs
+        taskManager.addListener(asyncTask);
+        DistributedTask distributedTask = new DistributedTask(peer.distributedRouting(), asyncTask);
+
+        final PeerTask peerTask = new PeerTask(peer, peerDHT, taskManager, taskRPC, asyncTask, distributedTask);
+        taskManager.init(peerTask);
+        peer.addShutdownListener(new Shutdown() {
+            @Override
+            public BaseFuture shutdown() {
+                peerTask.shutdown();
+                return new FutureDone<Void>().done();
+            }
+        });
+        return peerTask;
+    }
+
+    public int threads() {
+        return threads;
+    }
+
+    /**
+     * @param threads
+     *            The number of threads that run tasks
+     * @return This class
+     */
+    public PeerBuilderTask threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public int maxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * @param maxQueued
+     *            The number of tasks that can wait to be run. If the queue is full, new tasks are rejected.
+     * @return This class
+     */
+    public PeerBuilderTask maxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    public int pollIntervalMillis() {
+        return pollIntervalMillis;
+    }
+
+    /**
+     * @param pollIntervalMillis
+     *            The interval to poll a remote peer for the status of a task it runs for us
+     * @return This class
+     */
+    public PeerBuilderTask pollIntervalMillis(int pollIntervalMillis) {
+        this.pollIntervalMillis = pollIntervalMillis;
+        return this;
+    }
+
+    public ConnectionConfiguration connectionConfiguration() {
+        return connectionConfiguration;
+    }
+
+    public PeerBuilderTask connectionConfiguration(ConnectionConfiguration connectionConfiguration) {
+        this.connectionConfiguration = connectionConfiguration;
+        return this;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.task;
+
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+
+public class PeerTask {
+
+    private final Peer peer;
+    private final PeerDHT peerDHT;
+    private final TaskManager taskManager;
+    private final TaskRPC taskRPC;
+    private final AsyncTask asyncTask;
+    private final DistributedTask distributedTask;
+
+    public PeerTask(Peer peer, PeerDHT peerDHT, TaskManager taskManager, TaskRPC taskRPC, AsyncTask asyncTask,
+            DistributedTask distributedTask) {
+        this.peer = peer;
+        this.peerDHT = peerDHT;
+        this.taskManager = taskManager;
+        this.taskRPC = taskRPC;
+        this.asyncTask = asyncTask;
+        this.distributedTask = distributedTask;
+    }
+
+    public Peer peer() {
+        return peer;
+    }
+
+    /**
+     * @return The DHT of this peer, or null if the task peer was not built on top of a DHT peer
+     */
+    public PeerDHT peerDHT() {
+        return peerDHT;
+    }
+
+    public TaskManager taskManager() {
+        return taskManager;
+    }
+
+    public TaskRPC taskRPC() {
+        return taskRPC;
+    }
+
+    public AsyncTask asyncTask() {
+        return asyncTask;
+    }
+
+    public DistributedTask distributedTask() {
+        return distributedTask;
+    }
+
+    public Number160 peerID() {
+        return peer.peerID();
+    }
+
+    public PeerAddress peerAddress() {
+        return peer.peerAddress();
+    }
+
+    public SubmitBuilder submit(Number160 locationKey, Worker worker) {
+        return new SubmitBuilder(this, locationKey, worker);
+    }
+
+    public void shutdown() {
+        asyncTask.shutdown();
+        taskManager.shutdown();
+    }
+}
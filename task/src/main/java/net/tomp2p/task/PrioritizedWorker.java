@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.task;
+
+/**
+ * A worker with scheduling hints. The hints are serialized with the worker, so they reach the remote peer without
+ * changes to the task messages.
+ */
+public interface PrioritizedWorker extends Worker {
+    /**
+     * @return The priority from 0 to {@link TaskScheduler#PRIORITIES} - 1, higher priorities run first
+     */
+    public abstract int getPriority();
+
+    /**
+     * @return The time in milliseconds the task may wait in the queue of the remote peer, or 0 to wait forever
+     */
+    public abstract long getMaxQueueTimeMillis();
+}
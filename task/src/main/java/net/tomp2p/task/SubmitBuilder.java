@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.task;
+
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.Map;
+
+import net.tomp2p.connection.DefaultConnectionConfiguration;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureTask;
+import net.tomp2p.p2p.RequestP2PConfiguration;
+import net.tomp2p.p2p.RoutingConfiguration;
+import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+
+public class SubmitBuilder extends DefaultConnectionConfiguration {
+    private final static FutureTask FUTURE_TASK_SHUTDOWN = new FutureTask().failed("Peer is shutting down");
+
+    private final Number160 locationKey;
+
+    private final Worker worker;
+
+    private final PeerTask peer;
+
+    //
+    private Map<Number160, Data> dataMap;
+
+    private RoutingConfiguration routingConfiguration;
+
+    private RequestP2PConfiguration requestP2PConfiguration;
+
+    private FutureChannelCreator futureChannelCreator;
+
+    private KeyPair keyPair = null;
+
+    //
+    public SubmitBuilder(PeerTask peer, Number160 locationKey, Worker worker) {
+        this.peer = peer;
+        this.locationKey = locationKey;
+        this.worker = worker;
+    }
+
+    public Number160 locationKey() {
+        return locationKey;
+    }
+
+    public Worker worker() {
+        return worker;
+    }
+
+    public Map<Number160, Data> dataMap() {
+        return dataMap;
+    }
+
+    public SubmitBuilder dataMap(Map<Number160, Data> dataMap) {
+        this.dataMap = dataMap;
+        return this;
+    }
+
+    public RoutingConfiguration routingConfiguration() {
+        return routingConfiguration;
+    }
+
+    public SubmitBuilder routingConfiguration(RoutingConfiguration routingConfiguration) {
+        this.routingConfiguration = routingConfiguration;
+        return this;
+    }
+
+    public RequestP2PConfiguration requestP2PConfiguration() {
+        return requestP2PConfiguration;
+    }
+
+    public SubmitBuilder requestP2PConfiguration(RequestP2PConfiguration requestP2PConfiguration) {
+        this.requestP2PConfiguration = requestP2PConfiguration;
+        return this;
+    }
+
+    public FutureChannelCreator futureChannelCreator() {
+        return futureChannelCreator;
+    }
+
+    public SubmitBuilder futureChannelCreator(FutureChannelCreator futureChannelCreator) {
+        this.futureChannelCreator = futureChannelCreator;
+        return this;
+    }
+
+    /**
+     * @return Set to true if the message should be signed
+     */
+    public boolean isSign() {
+        return keyPair != null;
+    }
+
+    /**
+     * @param signMessage
+     *            Set to true if the message should be signed
+     * @return This class
+     */
+    public SubmitBuilder sign(final boolean signMessage) {
+        if (signMessage) {
+            sign();
+        } else {
+            this.keyPair = null;
+        }
+        return this;
+    }
+
+    /**
+     * Signs the message with the key pair of the peer.
+     *
+     * @return This class
+     */
+    public SubmitBuilder sign() {
+        this.keyPair = peer.peer().peerBean().keyPair();
+        return this;
+    }
+
+    /**
+     * @return The current keypair to sign the message. If null, no signature is applied.
+     */
+    public KeyPair keyPair() {
+        return keyPair;
+    }
+
+    /**
+     * @param keyPair
+     *            The keyPair to sign the message
+     * @return This class
+     */
+    public SubmitBuilder keyPair(KeyPair keyPair) {
+        this.keyPair = keyPair;
+        return this;
+    }
+
+    public RoutingBuilder createBuilder() {
+        RoutingBuilder routingBuilder = new RoutingBuilder();
+        routingBuilder.setLocationKey(locationKey);
+        routingBuilder.setParallel(routingConfiguration.parallel());
+        routingBuilder.setMaxNoNewInfo(routingConfiguration.maxNoNewInfo(requestP2PConfiguration.minimumResults()));
+        routingBuilder.setMaxDirectHits(routingConfiguration.maxDirectHits());
+        routingBuilder.setMaxFailures(routingConfiguration.maxFailures());
+        routingBuilder.setMaxSuccess(routingConfiguration.maxSuccess());
+        return routingBuilder;
+    }
+
+    public FutureTask start() {
+        if (peer.peer().isShutdown()) {
+            return FUTURE_TASK_SHUTDOWN;
+        }
+        if (dataMap == null) {
+            dataMap = Collections.emptyMap();
+        }
+        if (routingConfiguration == null) {
+            routingConfiguration = new RoutingConfiguration(5, 10, 2);
+        }
+        if (requestP2PConfiguration == null) {
+            requestP2PConfiguration = new RequestP2PConfiguration(1, 0, 1);
+        }
+        if (futureChannelCreator == null) {
+            futureChannelCreator = peer.peer().connectionBean().reservation()
+                    .create(routingConfiguration, requestP2PConfiguration, this);
+        }
+        return peer.distributedTask().submit(this);
+    }
+}
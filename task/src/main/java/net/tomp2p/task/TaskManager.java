@@ -16,27 +16,27 @@
 
 package net.tomp2p.task;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import net.tomp2p.connection2.ConnectionBean;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.DefaultConnectionConfiguration;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
-import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.DigestInfo;
-import net.tomp2p.rpc.TaskRPC;
 import net.tomp2p.storage.Data;
+import net.tomp2p.task.TaskScheduler.ScheduledTask;
 import net.tomp2p.task.TaskStatus.Status;
+import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,22 +44,27 @@ import org.slf4j.LoggerFactory;
 public class TaskManager {
     final private static Logger logger = LoggerFactory.getLogger(TaskManager.class);
 
+    public static final int DEFAULT_MAX_QUEUED = 10000;
+
     final private ConnectionBean connectionBean;
 
-    final private Object lock = new Object();
+    final private DefaultConnectionConfiguration connectionConfiguration = new DefaultConnectionConfiguration();
 
-    final private ThreadPoolExecutor executor;
+    final private TaskScheduler scheduler;
 
     // may grow
-    final private Map<Number320, Status> status = new HashMap<Number320, Status>();
+    final private Map<Number320, Status> status = new ConcurrentHashMap<Number320, Status>();
+
+    final private Map<Number320, String> exceptions = new ConcurrentHashMap<Number320, String>();
 
-    final private Map<Number320, String> exceptions = new HashMap<Number320, String>();
+    // the tasks that wait in the scheduler, for the queue position
+    final private Map<Number320, Task> queued = new ConcurrentHashMap<Number320, Task>();
 
-    final private Collection<TaskResultListener> listeners = new ArrayList<TaskResultListener>();
+    final private Collection<TaskResultListener> listeners = new CopyOnWriteArrayList<TaskResultListener>();
 
-    private TaskRPC taskRPC;
+    private PeerTask peer;
 
-    private class Task implements Runnable {
+    private class Task extends ScheduledTask {
         private final Number160 taskId;
 
         private final Worker mapper;
@@ -70,19 +75,18 @@ public class TaskManager {
 
         private final boolean sign;
 
-        private final Peer peer;
-
         final Number320 taskKey;
 
-        public Task(Peer peer, Number160 taskId, Worker mapper, Map<Number160, Data> inputData,
-                PeerAddress senderAddress, boolean sign) {
-            this.peer = peer;
+        public Task(Number160 taskId, Worker mapper, Map<Number160, Data> inputData, PeerAddress senderAddress,
+                boolean sign, int priority, long deadline) {
+            super(priority, deadline);
             this.taskId = taskId;
             this.mapper = mapper;
             this.inputData = inputData;
             this.senderAddress = senderAddress;
             this.sign = sign;
-            this.taskKey = new Number320(taskId, peer.getPeerID());
+            // the requester asks for the status of its tasks, so the key is the task ID and the ID of the requester
+            this.taskKey = new Number320(taskId, senderAddress.peerId());
         }
 
         @Override
@@ -92,40 +96,64 @@ public class TaskManager {
                 logger.debug("started task " + taskId + " which came from " + senderAddress);
             }
 
-            synchronized (lock) {
-                status.put(taskKey, Status.STARTED);
+            queued.remove(taskKey);
+            status.put(taskKey, Status.STARTED);
+            if (mapper instanceof AsyncWorker) {
+                // the thread is released right away, the result is sent once the worker is done
+                final FutureDone<Map<Number160, Data>> futureDone;
+                try {
+                    futureDone = ((AsyncWorker) mapper).executeAsync(peer, taskId, inputData);
+                } catch (Exception e) {
+                    registerException(taskKey, e.toString());
+                    sendResult(null);
+                    return;
+                }
+                futureDone.addListener(new BaseFutureAdapter<FutureDone<Map<Number160, Data>>>() {
+                    @Override
+                    public void operationComplete(FutureDone<Map<Number160, Data>> future) throws Exception {
+                        if (future.isSuccess()) {
+                            sendResult(nonNull(future.object()));
+                        } else {
+                            registerException(taskKey, future.failedReason());
+                            sendResult(null);
+                        }
+                    }
+                });
+                return;
             }
             Map<Number160, Data> outputData = null;
             try {
-                outputData = mapper.execute(peer, taskId, inputData);
+                outputData = nonNull(mapper.execute(peer, taskId, inputData));
             } catch (Exception e) {
                 outputData = null;
                 registerException(taskKey, e.toString());
             }
-            synchronized (lock) {
-                status.put(taskKey, Status.SUCCESS_RESULT_NOT_SENT);
-            }
-            final Map<Number160, Data> outputData2 = outputData;
-            FutureChannelCreator futureChannelCreator = connectionBean.getConnectionReservation().reserve(1);
+            sendResult(outputData);
+        }
+
+        /**
+         * @param outputData
+         *            The result of the worker, or null if the worker failed
+         */
+        private void sendResult(final Map<Number160, Data> outputData) {
+            status.put(taskKey, Status.SUCCESS_RESULT_NOT_SENT);
+            FutureChannelCreator futureChannelCreator = connectionBean.reservation().create(0, 1);
             futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
                 @Override
                 public void operationComplete(final FutureChannelCreator futureChannelCreator) throws Exception {
                     if (futureChannelCreator.isSuccess()) {
                         FutureResponse futureResponse = getTaskRPC().sendResult(senderAddress,
-                                futureChannelCreator.getChannelCreator(), taskId, outputData2,
-                                peer.getPeerBean().getKeyPair(), false, sign);
+                                futureChannelCreator.channelCreator(), taskId, outputData,
+                                sign ? peer.peer().peerBean().keyPair() : null, connectionConfiguration, false);
+                        Utils.addReleaseListener(futureChannelCreator.channelCreator(), futureResponse);
                         futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
                             @Override
                             public void operationComplete(FutureResponse future) throws Exception {
                                 if (future.isSuccess()) {
-                                    synchronized (lock) {
-                                        status.put(taskKey, Status.SUCCESS_RESULT_SENT);
-                                    }
+                                    status.put(taskKey, Status.SUCCESS_RESULT_SENT);
                                 } else {
                                     registerException(taskKey, "could not send result back");
                                 }
-                                connectionBean.getConnectionReservation().release(
-                                        futureChannelCreator.getChannelCreator());
                             }
                         });
                     } else {
@@ -134,12 +162,29 @@ public class TaskManager {
                 }
             });
         }
+
+        @Override
+        public void expired() {
+            queued.remove(taskKey);
+            registerException(taskKey, "deadline expired while queued");
+        }
     }
 
     public TaskManager(ConnectionBean connectionBean, int threads) {
+        this(connectionBean, threads, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * @param connectionBean
+     *            The connection bean
+     * @param threads
+     *            The number of threads that run tasks
+     * @param maxQueued
+     *            The number of tasks that can wait to be run. If the queue is full, new tasks are rejected.
+     */
+    public TaskManager(ConnectionBean connectionBean, int threads, int maxQueued) {
         this.connectionBean = connectionBean;
-        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>());
+        this.scheduler = new TaskScheduler(threads, maxQueued);
     }
 
     public void addListener(TaskResultListener taskResultListener) {
@@ -156,23 +201,24 @@ public class TaskManager {
         }
     }
 
-    public void init(TaskRPC taskRPC) {
-        this.taskRPC = taskRPC;
+    /**
+     * @param peer
+     *            The peer that is handed to the workers and that sends the results
+     */
+    public void init(PeerTask peer) {
+        this.peer = peer;
     }
 
     public TaskRPC getTaskRPC() {
-        if (taskRPC == null) {
+        if (peer == null) {
             throw new IllegalStateException("init() was not called yet");
         }
-        return taskRPC;
+        return peer.taskRPC();
     }
 
     public TaskStatus taskStatus(Number320 taskKey) {
         TaskStatus statusResult = new TaskStatus();
-        String exception;
-        synchronized (lock) {
-            exception = exceptions.get(taskKey);
-        }
+        String exception = exceptions.get(taskKey);
         if (exception != null) {
             statusResult.setFaildeReason(exception);
             statusResult.setStatus(TaskStatus.Status.FAILED);
@@ -181,57 +227,71 @@ public class TaskManager {
             }
             return statusResult;
         }
-
-        int pos = 0;
-        Task taskFound = null;
-        for (Runnable runnable : executor.getQueue()) {
-            Task task = (Task) runnable;
-            if (task.taskKey.equals(taskKey)) {
-                taskFound = task;
-                break;
-            }
-            pos++;
-        }
+        Task taskFound = queued.get(taskKey);
         if (taskFound != null) {
-            statusResult.setQueuePosition(pos);
+            statusResult.setQueuePosition(scheduler.queuePosition(taskFound));
             statusResult.setStatus(TaskStatus.Status.QUEUE);
             if (logger.isDebugEnabled()) {
                 logger.debug("finished task queue for task with ID " + taskKey);
             }
             return statusResult;
         }
-        synchronized (lock) {
-            statusResult.setStatus(status.get(taskKey));
-        }
+        statusResult.setStatus(status.get(taskKey));
         if (logger.isDebugEnabled()) {
             logger.debug("finished task status for task with ID " + taskKey);
         }
         return statusResult;
     }
 
-    public int submitTask(Peer peer, Number160 taskId, Worker mapper, Map<Number160, Data> data,
-            PeerAddress senderAddress, boolean sign) {
-        final Number320 taskKey = new Number320(taskId, peer.getPeerID());
-        synchronized (lock) {
-            status.put(taskKey, TaskStatus.Status.QUEUE);
+    /**
+     * Queues a task.
+     * 
+     * @return The number of queued tasks, or -1 if the task was rejected because the queue is full
+     */
+    public int submitTask(Number160 taskId, Worker mapper, Map<Number160, Data> data, PeerAddress senderAddress,
+            boolean sign) {
+        final Number320 taskKey = new Number320(taskId, senderAddress.peerId());
+        int priority = TaskScheduler.DEFAULT_PRIORITY;
+        long deadline = 0;
+        if (mapper instanceof PrioritizedWorker) {
+            PrioritizedWorker prioritizedWorker = (PrioritizedWorker) mapper;
+            priority = prioritizedWorker.getPriority();
+            if (prioritizedWorker.getMaxQueueTimeMillis() > 0) {
+                deadline = System.currentTimeMillis() + prioritizedWorker.getMaxQueueTimeMillis();
+            }
+        }
+        Task task = new Task(taskId, mapper, data, senderAddress, sign, priority, deadline);
+        status.put(taskKey, TaskStatus.Status.QUEUE);
+        queued.put(taskKey, task);
+        if (!scheduler.submit(task)) {
+            queued.remove(taskKey);
+            status.remove(taskKey);
+            if (logger.isDebugEnabled()) {
+                logger.debug("rejected task with ID " + taskKey + ", queue is full");
+            }
+            return -1;
         }
-        Task task = new Task(peer, taskId, mapper, data, senderAddress, sign);
-        executor.execute(task);
-        return executor.getQueue().size();
+        return scheduler.queueSize();
     }
 
     private void registerException(Number320 taskKey, String string) {
-        synchronized (lock) {
-            exceptions.put(taskKey, string);
+        exceptions.put(taskKey, string);
+    }
+
+    private static Map<Number160, Data> nonNull(Map<Number160, Data> outputData) {
+        // a null result is sent as failure, thus a worker without output sends an empty map
+        if (outputData == null) {
+            return Collections.emptyMap();
         }
+        return outputData;
     }
 
     public DigestInfo digest() {
-        return new DigestInfo(executor.getQueue().size());
+        return new DigestInfo(scheduler.queueSize());
     }
 
     public void shutdown() {
-        List<Runnable> jobs = executor.shutdownNow();
+        List<ScheduledTask> jobs = scheduler.shutdown();
         if (jobs.size() > 0 && logger.isWarnEnabled()) {
             logger.warn("shutting down and not executing " + jobs.size() + " jobs");
         }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.task;
+
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.ConnectionConfiguration;
+import net.tomp2p.connection.PeerBean;
+import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.connection.RequestHandler;
+import net.tomp2p.connection.Responder;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Buffer;
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DispatchHandler;
+import net.tomp2p.rpc.RPC;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TaskRPC extends DispatchHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(TaskRPC.class);
+
+    private final TaskManager taskManager;
+
+    public TaskRPC(PeerBean peerBean, ConnectionBean connectionBean, TaskManager taskManager) {
+        super(peerBean, connectionBean);
+        this.taskManager = taskManager;
+        register(RPC.Commands.TASK.getNr());
+    }
+
+    /**
+     * Sends a task to a remote peer. This is an RPC.
+     *
+     * @param remotePeer
+     *            The remote peer to send this request
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @param taskId
+     *            The ID of the task
+     * @param dataMap
+     *            The input data of the task
+     * @param worker
+     *            The worker that is serialized and run on the remote peer
+     * @param keyPair
+     *            The key pair to sign the message, or null if the message is not signed
+     * @param configuration
+     *            The connection configuration
+     * @param forceUDP
+     *            Set to true if the communication should be UDP, default is TCP
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse sendTask(final PeerAddress remotePeer, ChannelCreator channelCreator, Number160 taskId,
+            Map<Number160, Data> dataMap, Worker worker, KeyPair keyPair, ConnectionConfiguration configuration,
+            boolean forceUDP) {
+        final Message message = createRequestMessage(remotePeer, RPC.Commands.TASK.getNr(), Type.REQUEST_1);
+        final FutureResponse futureResponse = new FutureResponse(message);
+        try {
+            byte[] me = Utils.encodeJavaObject(worker);
+            message.buffer(new Buffer(Unpooled.wrappedBuffer(me)));
+        } catch (IOException ioe) {
+            LOG.error("could not serialize worker", ioe);
+            return futureResponse.failed(ioe);
+        }
+        message.key(taskId);
+        message.setDataMap(new DataMap(taskId, Number160.ZERO, Number160.ZERO, dataMap));
+        if (keyPair != null) {
+            message.publicKeyAndSign(keyPair);
+        }
+        LOG.debug("send task {}", message);
+        return send(futureResponse, configuration, channelCreator, forceUDP);
+    }
+
+    public FutureResponse sendResult(final PeerAddress remotePeer, ChannelCreator channelCreator, Number160 taskId,
+            Map<Number160, Data> dataMap, KeyPair keyPair, ConnectionConfiguration configuration, boolean forceUDP) {
+        final Message message = createRequestMessage(remotePeer, RPC.Commands.TASK.getNr(), Type.REQUEST_3);
+        message.key(taskId);
+        if (dataMap != null) {
+            message.setDataMap(new DataMap(taskId, Number160.ZERO, Number160.ZERO, dataMap));
+        }
+        if (keyPair != null) {
+            message.publicKeyAndSign(keyPair);
+        }
+        LOG.debug("send result {}", message);
+        return send(new FutureResponse(message), configuration, channelCreator, forceUDP);
+    }
+
+    public FutureResponse taskStatus(final PeerAddress remotePeer, ChannelCreator channelCreator,
+            Collection<Number160> taskIDs, ConnectionConfiguration configuration, boolean forceTCP) {
+        final Message message = createRequestMessage(remotePeer, RPC.Commands.TASK.getNr(), Type.REQUEST_2);
+        for (Number160 taskId : taskIDs) {
+            message.key(taskId);
+        }
+        return send(new FutureResponse(message), configuration, channelCreator, !forceTCP);
+    }
+
+    private FutureResponse send(FutureResponse futureResponse, ConnectionConfiguration configuration,
+            ChannelCreator channelCreator, boolean udp) {
+        final RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), configuration);
+        if (udp) {
+            return requestHandler.sendUDP(channelCreator);
+        } else {
+            return requestHandler.sendTCP(channelCreator);
+        }
+    }
+
+    /**
+     * @param message
+     *            The message with the task data
+     * @return The task data by content key, or null if the message does not contain any
+     */
+    public static Map<Number160, Data> dataMap(Message message) {
+        DataMap dataMap = message.dataMap(0);
+        if (dataMap == null) {
+            return null;
+        }
+        if (dataMap.isConvert()) {
+            return dataMap.dataMapConvert();
+        }
+        Map<Number160, Data> retVal = new HashMap<Number160, Data>(dataMap.size() * 2);
+        for (Map.Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
+            retVal.put(entry.getKey().contentKey(), entry.getValue());
+        }
+        return retVal;
+    }
+
+    @Override
+    public void handleResponse(final Message message, PeerConnection peerConnection, final boolean sign,
+            Responder responder) throws Exception {
+        if (!((message.type() == Type.REQUEST_1 || message.type() == Type.REQUEST_2 || message.type() == Type.REQUEST_3) && message
+                .command() == RPC.Commands.TASK.getNr())) {
+            throw new IllegalArgumentException("Message content is wrong");
+        }
+        LOG.debug("task - received {}", message);
+        final Message responseMessage = createResponseMessage(message, Type.OK);
+        if (message.type() == Type.REQUEST_1) {
+            Number160 taskId = message.key(0);
+            // request 1 is task creation
+            Map<Number160, Data> dataMap = dataMap(message);
+            Worker worker = (Worker) message.buffer(0).object();
+            int queuePosition = taskManager.submitTask(taskId, worker, dataMap, message.sender(), sign);
+            if (queuePosition < 0) {
+                // the queue is full, the requester should try another peer
+                responseMessage.type(Type.DENIED);
+            } else {
+                responseMessage.intValue(queuePosition);
+            }
+        } else if (message.type() == Type.REQUEST_2) {
+            Map<Number160, Data> dataMap = new HashMap<Number160, Data>();
+            for (Number160 taskId : message.keyList()) {
+                Number320 taskKey = new Number320(taskId, message.sender().peerId());
+                TaskStatus taskStatus = taskManager.taskStatus(taskKey);
+                dataMap.put(taskId, new Data(taskStatus));
+            }
+            responseMessage.setDataMap(new DataMap(Number160.ZERO, Number160.ZERO, Number160.ZERO, dataMap));
+            LOG.debug("finished task status for tasks {}", message.keyList());
+        } else {
+            Number160 taskId = message.key(0);
+            Number320 taskKey = new Number320(taskId, message.sender().peerId());
+            taskManager.notifyListeners(taskKey, dataMap(message));
+        }
+        if (sign) {
+            responseMessage.publicKeyAndSign(peerBean().keyPair());
+        }
+        responder.response(responseMessage);
+    }
+}
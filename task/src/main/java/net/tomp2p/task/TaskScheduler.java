@@ -0,0 +1,275 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the tasks of the {@link TaskManager}. Every thread has its own deque per priority. A thread takes the tasks
+ * from its own deques and steals from the other threads if its deques are empty, but a task with a higher priority is
+ * always taken first. Tasks submitted from a scheduler thread stay on that thread. The number of queued tasks is
+ * bounded, tasks that do not fit are rejected.
+ */
+public class TaskScheduler {
+    final private static Logger logger = LoggerFactory.getLogger(TaskScheduler.class);
+
+    public static final int PRIORITIES = 3;
+
+    public static final int DEFAULT_PRIORITY = 1;
+
+    /**
+     * A task that can be run by the scheduler.
+     */
+    public static abstract class ScheduledTask implements Runnable {
+        private final int priority;
+
+        private final long deadline;
+
+        private long sequence;
+
+        /**
+         * @param priority
+         *            The priority from 0 to {@link TaskScheduler#PRIORITIES} - 1, higher priorities run first
+         * @param deadline
+         *            The time in milliseconds after which the task will not be started anymore, or 0 for no deadline
+         */
+        public ScheduledTask(int priority, long deadline) {
+            this.priority = Math.max(0, Math.min(PRIORITIES - 1, priority));
+            this.deadline = deadline;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Called instead of {@link #run()} if the deadline passed while the task was queued.
+         */
+        public void expired() {
+        }
+    }
+
+    private class SchedulerThread extends Thread {
+        @SuppressWarnings("unchecked")
+        private final ConcurrentLinkedDeque<ScheduledTask>[] deques = new ConcurrentLinkedDeque[PRIORITIES];
+
+        private final int index;
+
+        private SchedulerThread(int index) {
+            super("task-scheduler " + index);
+            this.index = index;
+            for (int i = 0; i < PRIORITIES; i++) {
+                deques[i] = new ConcurrentLinkedDeque<ScheduledTask>();
+            }
+            setDaemon(true);
+        }
+
+        private TaskScheduler scheduler() {
+            return TaskScheduler.this;
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                try {
+                    queued.acquire();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                ScheduledTask task;
+                // the permit guarantees a task, but another thread may be about to take the one we looked at, and
+                // shutdown removes the tasks without taking the permits
+                while ((task = take(index)) == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    Thread.yield();
+                }
+                queueSize.decrementAndGet();
+                taken.incrementAndGet();
+                try {
+                    if (task.getDeadline() > 0 && System.currentTimeMillis() > task.getDeadline()) {
+                        task.expired();
+                    } else {
+                        task.run();
+                    }
+                } catch (Throwable t) {
+                    logger.error("task failed", t);
+                }
+            }
+        }
+    }
+
+    private final SchedulerThread[] threads;
+
+    private final int maxQueued;
+
+    private final Semaphore queued = new Semaphore(0);
+
+    private final AtomicInteger queueSize = new AtomicInteger();
+
+    private final AtomicInteger nextThread = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+
+    private final AtomicLong taken = new AtomicLong();
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param nrThreads
+     *            The number of threads that run the tasks
+     * @param maxQueued
+     *            The maximum number of tasks that wait to be run
+     */
+    public TaskScheduler(int nrThreads, int maxQueued) {
+        if (nrThreads <= 0) {
+            throw new IllegalArgumentException("need at least one thread");
+        }
+        this.maxQueued = maxQueued;
+        this.threads = new SchedulerThread[nrThreads];
+        for (int i = 0; i < nrThreads; i++) {
+            threads[i] = new SchedulerThread(i);
+        }
+        for (SchedulerThread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @param task
+     *            The task to run
+     * @return False if the queue is full or the scheduler is shut down and the task has been rejected
+     */
+    public boolean submit(ScheduledTask task) {
+        if (shutdown) {
+            return false;
+        }
+        if (queueSize.incrementAndGet() > maxQueued) {
+            queueSize.decrementAndGet();
+            return false;
+        }
+        task.sequence = admitted.incrementAndGet();
+        final Thread current = Thread.currentThread();
+        final SchedulerThread thread;
+        if (current instanceof SchedulerThread && ((SchedulerThread) current).scheduler() == this) {
+            thread = (SchedulerThread) current;
+        } else {
+            thread = threads[(nextThread.getAndIncrement() & Integer.MAX_VALUE) % threads.length];
+        }
+        thread.deques[task.getPriority()].addLast(task);
+        queued.release();
+        return true;
+    }
+
+    /**
+     * Takes the task with the highest priority, from the own deque first.
+     */
+    private ScheduledTask take(int index) {
+        for (int priority = PRIORITIES - 1; priority >= 0; priority--) {
+            ScheduledTask task = threads[index].deques[priority].pollFirst();
+            if (task != null) {
+                return task;
+            }
+            for (int i = 1; i < threads.length; i++) {
+                task = threads[(index + i) % threads.length].deques[priority].pollLast();
+                if (task != null) {
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of tasks that wait to be run
+     */
+    public int queueSize() {
+        return queueSize.get();
+    }
+
+    /**
+     * Estimates the queue position of a task in constant time. The estimate is the number of tasks admitted before
+     * this task that have not been started yet, which ignores the priorities.
+     *
+     * @param task
+     *            A queued task
+     * @return The estimated number of tasks that run before this task
+     */
+    public int queuePosition(ScheduledTask task) {
+        final long position = task.sequence - taken.get() - 1;
+        return (int) Math.max(0, Math.min(position, queueSize.get() - 1));
+    }
+
+    /**
+     * Stops all threads.
+     *
+     * @return The tasks that have not been run
+     */
+    public List<ScheduledTask> shutdown() {
+        shutdown = true;
+        List<ScheduledTask> remaining = new ArrayList<ScheduledTask>();
+        for (SchedulerThread thread : threads) {
+            thread.interrupt();
+            for (ConcurrentLinkedDeque<ScheduledTask> deque : thread.deques) {
+                ScheduledTask task;
+                while ((task = deque.pollFirst()) != null) {
+                    remaining.add(task);
+                }
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Waits until all threads have stopped after {@link #shutdown()}. A running task is finished first.
+     *
+     * @param timeoutMillis
+     *            The maximum time to wait in milliseconds
+     * @return True if all threads have stopped
+     * @throws InterruptedException
+     *             If the waiting thread is interrupted
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeoutMillis;
+        for (SchedulerThread thread : threads) {
+            final long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return !thread.isAlive();
+            }
+            thread.join(remaining);
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,77 @@
+package net.tomp2p.task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+import net.tomp2p.dht.FuturePut;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+
+import org.junit.Test;
+
+public class TestMapReduce {
+    final private static Random rnd = new Random(42L);
+
+    @Test
+    public void testWordCount() throws Exception {
+        PeerTask master = null;
+        try {
+            // setup
+            PeerTask[] peers = UtilsTask.createNodes(100, rnd, 4001, true);
+            master = peers[0];
+            UtilsTask.perfectRouting(peers);
+            // store the words of three documents
+            String[][] documents = { { "a", "b", "a" }, { "b", "c" }, { "a" } };
+            List<Number160> inputs = new ArrayList<Number160>();
+            for (String[] document : documents) {
+                Number160 locationKey = new Number160(rnd);
+                inputs.add(locationKey);
+                for (String word : document) {
+                    FuturePut futurePut = peers[rnd.nextInt(100)].peerDHT().put(locationKey)
+                            .data(new Number160(rnd), new Data(word)).start();
+                    futurePut.awaitUninterruptibly();
+                    Assert.assertEquals(true, futurePut.isSuccess());
+                }
+            }
+            // do testing
+            FutureDone<Map<Number160, Data>> futureDone = new MapReduce(peers[12]).setNrPartitions(3).start(
+                    new Number160(rnd), inputs, new WordCount());
+            futureDone.awaitUninterruptibly();
+            Assert.assertEquals(true, futureDone.isSuccess());
+            Map<Number160, Data> result = futureDone.object();
+            Assert.assertEquals(3, result.size());
+            Assert.assertEquals(3, result.get(Number160.createHash("a")).object());
+            Assert.assertEquals(2, result.get(Number160.createHash("b")).object());
+            Assert.assertEquals(1, result.get(Number160.createHash("c")).object());
+        } finally {
+            if (master != null) {
+                master.peer().shutdown().await();
+            }
+        }
+    }
+}
+
+class WordCount implements MapReduceJob {
+    private static final long serialVersionUID = -4387421838396530592L;
+
+    @Override
+    public void map(Number160 locationKey, Map<Number160, Data> input, Emitter emitter) throws Exception {
+        for (Data data : input.values()) {
+            emitter.emit(Number160.createHash((String) data.object()), new Data(1));
+        }
+    }
+
+    @Override
+    public Data reduce(Number160 key, Collection<Data> values) throws Exception {
+        int sum = 0;
+        for (Data data : values) {
+            sum += (Integer) data.object();
+        }
+        return new Data(sum);
+    }
+}
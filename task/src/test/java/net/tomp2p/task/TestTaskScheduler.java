@@ -0,0 +1,113 @@
+package net.tomp2p.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import net.tomp2p.task.TaskScheduler.ScheduledTask;
+
+import org.junit.Test;
+
+public class TestTaskScheduler {
+
+    @Test
+    public void testPriorityAndRejection() throws Exception {
+        TaskScheduler scheduler = new TaskScheduler(1, 3);
+        try {
+            final CountDownLatch blocker = new CountDownLatch(1);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(3);
+            final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+            Assert.assertTrue(scheduler.submit(new ScheduledTask(TaskScheduler.DEFAULT_PRIORITY, 0) {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        blocker.await();
+                    } catch (InterruptedException e) {
+                        // done
+                    }
+                }
+            }));
+            started.await();
+            for (int i = 0; i < TaskScheduler.PRIORITIES; i++) {
+                final int priority = i;
+                Assert.assertTrue(scheduler.submit(new ScheduledTask(priority, 0) {
+                    @Override
+                    public void run() {
+                        order.add(priority);
+                        done.countDown();
+                    }
+                }));
+            }
+            // the queue is full
+            Assert.assertFalse(scheduler.submit(new ScheduledTask(0, 0) {
+                @Override
+                public void run() {
+                }
+            }));
+            Assert.assertEquals(3, scheduler.queueSize());
+            blocker.countDown();
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(2, order.get(0).intValue());
+            Assert.assertEquals(1, order.get(1).intValue());
+            Assert.assertEquals(0, order.get(2).intValue());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeadlineAndStealing() throws Exception {
+        TaskScheduler scheduler = new TaskScheduler(4, 1000);
+        try {
+            final AtomicInteger expired = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(101);
+            scheduler.submit(new ScheduledTask(0, System.currentTimeMillis() - 1) {
+                @Override
+                public void run() {
+                    Assert.fail("deadline passed");
+                }
+
+                @Override
+                public void expired() {
+                    expired.incrementAndGet();
+                    done.countDown();
+                }
+            });
+            for (int i = 0; i < 100; i++) {
+                scheduler.submit(new ScheduledTask(i % TaskScheduler.PRIORITIES, 0) {
+                    @Override
+                    public void run() {
+                        done.countDown();
+                    }
+                });
+            }
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1, expired.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownWithQueuedTasks() throws Exception {
+        // a thread may hold the permit of a task that shutdown has removed, it must stop anyway
+        for (int i = 0; i < 50; i++) {
+            TaskScheduler scheduler = new TaskScheduler(4, 1000);
+            for (int j = 0; j < 1000; j++) {
+                scheduler.submit(new ScheduledTask(j % TaskScheduler.PRIORITIES, 0) {
+                    @Override
+                    public void run() {
+                    }
+                });
+            }
+            scheduler.shutdown();
+            Assert.assertTrue(scheduler.awaitTermination(5000));
+        }
+    }
+}
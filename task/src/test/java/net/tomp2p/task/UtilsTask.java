@@ -0,0 +1,81 @@
+package net.tomp2p.task;
+
+import java.util.Random;
+
+import net.tomp2p.connection.Bindings;
+import net.tomp2p.dht.PeerBuilderDHT;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapConfiguration;
+
+public class UtilsTask {
+
+    /**
+     * Creates peers for testing. The first peer (peer[0]) will be used as the master. This means that shutting down
+     * peer[0] will shut down all other peers
+     * 
+     * @param nrOfPeers
+     *            The number of peers to create including the master
+     * @param rnd
+     *            The random object to create random peer IDs
+     * @param port
+     *            The port where the master peer will listen to
+     * @return All the peers, with the master peer at position 0 -> peer[0]
+     * @throws Exception
+     *             If the creation of nodes fail.
+     */
+    public static PeerTask[] createNodes(int nrOfPeers, Random rnd, int port) throws Exception {
+        return createNodes(nrOfPeers, rnd, port, false);
+    }
+
+    /**
+     * Creates peers for testing, see {@link #createNodes(int, Random, int)}.
+     * 
+     * @param dht
+     *            Set to true to build the task peers on top of DHT peers
+     */
+    public static PeerTask[] createNodes(int nrOfPeers, Random rnd, int port, boolean dht) throws Exception {
+        if (nrOfPeers < 1) {
+            throw new IllegalArgumentException("Cannot create less than 1 peer");
+        }
+        Bindings bindings = new Bindings().addInterface("lo");
+        PeerTask[] peers = new PeerTask[nrOfPeers];
+        Number160 masterId = new Number160(rnd);
+        final Peer master = new PeerBuilder(masterId).enableMaintenance(false).externalBindings(bindings)
+                .peerMap(new PeerMap(new PeerMapConfiguration(masterId))).ports(port).start();
+        peers[0] = createNode(master, dht);
+        for (int i = 1; i < nrOfPeers; i++) {
+            Number160 peerId = new Number160(rnd);
+            Peer peer = new PeerBuilder(peerId).enableMaintenance(false).externalBindings(bindings)
+                    .peerMap(new PeerMap(new PeerMapConfiguration(peerId).peerNoVerification()))
+                    .masterPeer(master).start();
+            peers[i] = createNode(peer, dht);
+        }
+        System.err.println("peers created.");
+        return peers;
+    }
+
+    private static PeerTask createNode(Peer peer, boolean dht) {
+        PeerBuilderTask peerBuilderTask = dht ? new PeerBuilderTask(new PeerBuilderDHT(peer).start())
+                : new PeerBuilderTask(peer);
+        return peerBuilderTask.threads(1).start();
+    }
+
+    /**
+     * Perfect routing, where each neighbor has contacted each other. This means that for small number of peers, every
+     * peer knows every other peer.
+     * 
+     * @param peers
+     *            The peers taking part in the p2p network.
+     */
+    public static void perfectRouting(PeerTask... peers) {
+        for (int i = 0; i < peers.length; i++) {
+            for (int j = 0; j < peers.length; j++) {
+                peers[i].peer().peerBean().peerMap().peerFound(peers[j].peerAddress(), null, null);
+            }
+        }
+        System.err.println("perfect routing done.");
+    }
+}
@@ -15,7 +15,6 @@
  */
 package net.tomp2p.tracker;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -44,7 +43,6 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
-import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
@@ -82,9 +80,7 @@ public class DistributedTracker {
 					        .domainKey()));
 					NavigableSet<PeerAddress> queue = new TreeSet<PeerAddress>(PeerMap.createComparator(stableRandom));
 					if(peers != null && peers.peerAddresses()!=null) {
-						for (PeerStatatistic peerAddress : peers.peerAddresses().keySet()) {
-							queue.add(peerAddress.peerAddress());
-						}
+						queue.addAll(peers.peerAddresses().keySet());
 					}
 
 					if (queue.size() > MIN_TRACKER_PEERS) {
@@ -121,7 +117,7 @@ public class DistributedTracker {
 	private void startLoop(final GetTrackerBuilder builder, final FutureTracker futureTracker,
 	        final NavigableSet<PeerAddress> queueToAsk, final ChannelCreator cc) {
 		loop(builder.locationKey(), builder.domainKey(), queueToAsk, builder.trackerConfiguration(),
-		        futureTracker, true, builder.knownPeers(), new Operation() {
+		        futureTracker, true, builder.knownPeers(), builder.maxPeers(), new Operation() {
 			        @Override
 			        public FutureResponse create(PeerAddress remotePeer, boolean primary) {
 				        LOG.debug("tracker get: {} location= {}", remotePeer, builder.locationKey());
@@ -148,7 +144,7 @@ public class DistributedTracker {
 								LOG.debug("found potential hits for tracker add: {}", futureRouting.potentialHits());
 								loop(builder.locationKey(), builder.domainKey(), futureRouting.potentialHits(),
 								        builder.trackerConfiguration(), futureTracker, false,
-								        builder.knownPeers(), new Operation() {
+								        builder.knownPeers(), Integer.MAX_VALUE, new Operation() {
 									        @Override
 									        public FutureResponse create(PeerAddress remotePeer, boolean primary) {
 										        LOG.debug("tracker add (me={}): {} location={}",
@@ -175,7 +171,7 @@ public class DistributedTracker {
 
 	private void loop(Number160 locationKey, final Number160 domainKey, NavigableSet<PeerAddress> queueToAsk,
 	        TrackerConfiguration trackerConfiguration, FutureTracker futureTracker, boolean isGet,
-	        final Set<Number160> knownPeers, Operation operation) {
+	        final Set<Number160> knownPeers, final int maxPeers, Operation operation) {
 		FutureResponse[] futureResponses = new FutureResponse[trackerConfiguration.parallel()];
 		NavigableSet<PeerAddress> secondaryQueue = new TreeSet<PeerAddress>(PeerMap.createComparator(stableRandom));
 		loopRec(locationKey, domainKey, queueToAsk, secondaryQueue, new HashSet<PeerAddress>(),
@@ -184,7 +180,8 @@ public class DistributedTracker {
 		        new AtomicInteger(0), trackerConfiguration.maxFullTrackers(), new AtomicInteger(0),
 		        trackerConfiguration.atLeastSucessfulRequestes(), trackerConfiguration.atLeastEntriesFromTrackers(),
 		        new AtomicInteger(0), trackerConfiguration.maxPrimaryTrackers(),
-		        new AtomicReferenceArray<FutureResponse>(futureResponses), futureTracker, knownPeers, isGet);
+		        new AtomicReferenceArray<FutureResponse>(futureResponses), futureTracker, knownPeers,
+		        new HashSet<Number160>(), maxPeers, isGet);
 	}
 
 	private void loopRec(final Number160 locationKey, final Number160 domainKey,
@@ -195,7 +192,8 @@ public class DistributedTracker {
 	        final int maxTrackerFull, final AtomicInteger successfulRequests, final int atLeastSuccessfullRequests,
 	        final int atLeastEntriesFromTrackers, final AtomicInteger primaryTracker, final int maxPrimaryTracker,
 	        final AtomicReferenceArray<FutureResponse> futureResponses, final FutureTracker futureTracker,
-	        final Set<Number160> knownPeers, final boolean isGet) {
+	        final Set<Number160> knownPeers, final Set<Number160> distinctPeers, final int maxPeers,
+	        final boolean isGet) {
 		// if its a get, we cancel connections, because we have what we want.
 		// For a put, we want to store on many peers, thus there we don't
 		// cancel.
@@ -260,16 +258,15 @@ public class DistributedTracker {
 					}
 					TrackerData newDataMap = futureResponse.responseMessage().trackerData(0);
 					if (newDataMap != null) {
-						Collection<PeerStatatistic> newPeers = newDataMap.peerAddresses().keySet();
+						Collection<PeerAddress> newPeers = newDataMap.peerAddresses().keySet();
 						mergeDiff(secondaryQueue, newPeers, alreadyAsked, queueToAsk);
-						storeResult(peerOnTracker, newDataMap, futureResponse.request().recipient(), knownPeers);
-						for(PeerStatatistic peerStatatistic:newPeers) {
-							secondaryQueue.add(peerStatatistic.peerAddress());
-						}
+						storeResult(peerOnTracker, newDataMap, futureResponse.request().recipient(), knownPeers,
+						        distinctPeers);
 					}
 					int successRequests = isFull ? successfulRequests.get() : successfulRequests.incrementAndGet();
 					finished = evaluate(peerOnTracker, successRequests, atLeastSuccessfullRequests,
-					        atLeastEntriesFromTrackers, isGet);
+					        atLeastEntriesFromTrackers, isGet)
+					        || (isGet && distinctPeers.size() >= maxPeers);
 
 					LOG.debug("evaluation result: finished={}, {} / {}", finished, peerOnTracker.size(),
 					        atLeastEntriesFromTrackers);
@@ -303,7 +300,8 @@ public class DistributedTracker {
 					loopRec(locationKey, domainKey, queueToAsk, secondaryQueue, alreadyAsked, successAsked,
 					        peerOnTracker, operation, parallel, nrFailures, maxFailures, trackerFull, maxTrackerFull,
 					        successfulRequests, atLeastSuccessfullRequests, atLeastEntriesFromTrackers, primaryTracker,
-					        maxPrimaryTracker, futureResponses, futureTracker, knownPeers, isGet);
+					        maxPrimaryTracker, futureResponses, futureTracker, knownPeers, distinctPeers, maxPeers,
+					        isGet);
 				}
 			}
 		});
@@ -355,13 +353,23 @@ public class DistributedTracker {
 	 *            The list of known peers. The list of know peers will be
 	 *            updated for every peer with get reports from and from its
 	 *            entries. This set is a bloomfilter, so there is no problem
-	 *            with growth, but it might result in false positives.
+	 *            with growth, but it might result in false positives. Since the
+	 *            set is sent with the next request, it acts as the cursor for
+	 *            trackers that can provide more data.
+	 * @param distinctPeers
+	 *            The peer IDs we got from all trackers so far
 	 */
 	private static void storeResult(Map<PeerAddress, TrackerData> peerOnTracker, TrackerData newDataMap,
-	        PeerAddress newDataProvider, Set<Number160> knownPeers) {
+	        PeerAddress newDataProvider, Set<Number160> knownPeers, Set<Number160> distinctPeers) {
 		if (knownPeers != null) {
 			knownPeers.add(newDataProvider.peerId());
 		}
+		for (PeerAddress peerAddress : newDataMap.peerAddresses().keySet()) {
+			distinctPeers.add(peerAddress.peerId());
+			if (knownPeers != null) {
+				knownPeers.add(peerAddress.peerId());
+			}
+		}
 		peerOnTracker.put(newDataProvider, newDataMap);
 	}
 
@@ -381,21 +389,17 @@ public class DistributedTracker {
 	 *            Those peer we have already asked or are already in the queue
 	 * @return True, if new information has been added to queueToAsk
 	 */
-	private static boolean mergeDiff(Set<PeerAddress> queueToAsk, Collection<PeerStatatistic> newPeers,
+	private static boolean mergeDiff(Set<PeerAddress> queueToAsk, Collection<PeerAddress> newPeers,
 	        Collection<PeerAddress> knownPeers1, Collection<PeerAddress> knownPeers2) {
-		// result will be small, so we chose an array list.
-
-		Collection<PeerAddress> newPeers2 = new ArrayList<PeerAddress>();
-		for (PeerStatatistic peerStatatistic : newPeers) {
-			newPeers2.add(peerStatatistic.peerAddress());
+		boolean added = false;
+		for (PeerAddress peerAddress : newPeers) {
+			if (!knownPeers1.contains(peerAddress) && !knownPeers2.contains(peerAddress)) {
+				added |= queueToAsk.add(peerAddress);
+			}
 		}
-
-		@SuppressWarnings("unchecked")
-		final Collection<PeerAddress> result = Utils.difference(newPeers2, new ArrayList<PeerAddress>(), knownPeers1,
-		        knownPeers2);
 		// if result contains only elements that queueToAsk already has, false
 		// will be returned.
-		return queueToAsk.addAll(result);
+		return added;
 	}
 
 	/**
@@ -30,6 +30,8 @@ public class GetTrackerBuilder extends TrackerBuilder<GetTrackerBuilder> {
 
     private boolean expectAttachement = false;
 
+    private int maxPeers = Integer.MAX_VALUE;
+
     public GetTrackerBuilder(PeerTracker peer, Number160 locationKey) {
         super(peer, locationKey);
         self(this);
@@ -58,6 +60,21 @@ public class GetTrackerBuilder extends TrackerBuilder<GetTrackerBuilder> {
         return this;
     }
 
+    public int maxPeers() {
+        return maxPeers;
+    }
+
+    /**
+     * @param maxPeers
+     *            The number of distinct peers we are looking for. Trackers return at most this many peers per request
+     *            and the get stops as soon as this many distinct peers have been collected.
+     * @return This class
+     */
+    public GetTrackerBuilder maxPeers(int maxPeers) {
+        this.maxPeers = maxPeers;
+        return this;
+    }
+
     public FutureTracker start() {
         if (peer.peer().isShutdown()) {
             return FUTURE_TRACKER_SHUTDOWN;
@@ -18,6 +18,7 @@ package net.tomp2p.tracker;
 import java.security.PublicKey;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
@@ -33,7 +34,6 @@ import net.tomp2p.message.TrackerData;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.rpc.DispatchHandler;
 import net.tomp2p.rpc.RPC;
 import net.tomp2p.rpc.SimpleBloomFilter;
@@ -48,8 +48,13 @@ public class TrackerRPC extends DispatchHandler {
 
 	public static final int MAX_MSG_SIZE_UDP = 35;
 
+	// the number of tracker entries is encoded in one byte
+	public static final int MAX_MSG_SIZE_TCP = 255;
+
 	final private TrackerStorage trackerStorage;
 
+	final private Random rnd = new Random();
+
 	/**
 	 * @param peerBean
 	 * @param connectionBean
@@ -79,12 +84,12 @@ public class TrackerRPC extends DispatchHandler {
 		RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(futureResponse, peerBean(),
 		        connectionBean(), builder);
 
-		TrackerData trackerData = new TrackerData(new HashMap<PeerStatatistic, Data>());
+		TrackerData trackerData = new TrackerData(new HashMap<PeerAddress, Data>());
 		PeerAddress peerAddressToAnnounce = builder.peerAddressToAnnounce();
 		if (peerAddressToAnnounce == null) {
 			peerAddressToAnnounce = peerBean().serverPeerAddress();
 		}
-		trackerData.put(new PeerStatatistic(peerAddressToAnnounce), builder.attachement());
+		trackerData.put(peerAddressToAnnounce, builder.attachement());
 		trackerData = UtilsTracker.limit(trackerData, TrackerRPC.MAX_MSG_SIZE_UDP);
 		message.trackerData(trackerData);
 
@@ -109,6 +114,8 @@ public class TrackerRPC extends DispatchHandler {
 		if (builder.knownPeers() != null && (builder.knownPeers() instanceof SimpleBloomFilter)) {
 			message.bloomFilter((SimpleBloomFilter<Number160>) builder.knownPeers());
 		}
+		final boolean tcp = builder.isExpectAttachement() || builder.isForceTCP();
+		message.intValue(Math.min(builder.maxPeers(), tcp ? MAX_MSG_SIZE_TCP : MAX_MSG_SIZE_UDP));
 
 		FutureResponse futureResponse = new FutureResponse(message);
 		addTrackerDataListener(futureResponse, new Number320(builder.locationKey(), builder.domainKey()));
@@ -116,7 +123,7 @@ public class TrackerRPC extends DispatchHandler {
 		RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(futureResponse, peerBean(),
 		        connectionBean(), builder);
 
-		if ((builder.isExpectAttachement() || builder.isForceTCP())) {
+		if (tcp) {
 			return requestHandler.sendTCP(channelCreator);
 		} else {
 			return requestHandler.sendUDP(channelCreator);
@@ -138,11 +145,11 @@ public class TrackerRPC extends DispatchHandler {
 						return;
 					}
 
-					for (Map.Entry<PeerStatatistic, Data> trackerData : tmp.peerAddresses().entrySet()) {
+					for (Map.Entry<PeerAddress, Data> trackerData : tmp.peerAddresses().entrySet()) {
 						// we don't know the public key, since this is not first
 						// hand information. TTL will be set in tracker storage,
 						// so don't worry about it here.
-						trackerStorage.put(key, trackerData.getKey().peerAddress(), null, trackerData.getValue());
+						trackerStorage.put(key, trackerData.getKey(), null, trackerData.getValue());
 					}
 				} else {
 					LOG.warn("add tracker failed: {}", future.failedReason());
@@ -175,13 +182,15 @@ public class TrackerRPC extends DispatchHandler {
 
 		boolean couldProvideMoreData = false;
 		if (meshPeers != null) {
-			if (knownPeers != null) {
-				meshPeers = UtilsTracker.disjunction(meshPeers, knownPeers);
+			// return a random page of the peers the requester does not know yet. The requester adds the returned
+			// peers to its bloom filter, so the next request returns the next page.
+			int size = message.isUdp() ? MAX_MSG_SIZE_UDP : MAX_MSG_SIZE_TCP;
+			Integer requested = message.intAt(0);
+			if (requested != null && requested >= 0) {
+				size = Math.min(size, requested);
 			}
-			int size = meshPeers.size();
-
-			meshPeers = UtilsTracker.limit(meshPeers, TrackerRPC.MAX_MSG_SIZE_UDP);
-			couldProvideMoreData = size > meshPeers.size();
+			meshPeers = UtilsTracker.sample(meshPeers, knownPeers, size, rnd);
+			couldProvideMoreData = meshPeers.couldProvideMoreData();
 			responseMessage.trackerData(meshPeers);
 		}
 
@@ -194,8 +203,8 @@ public class TrackerRPC extends DispatchHandler {
 			if (trackerData.size() != 1) {
 				responseMessage.type(Message.Type.EXCEPTION);
 			} else {
-				Map.Entry<PeerStatatistic, Data> entry = trackerData.peerAddresses().entrySet().iterator().next();
-				if (!trackerStorage.put(new Number320(locationKey, domainKey), entry.getKey().peerAddress(), publicKey,
+				Map.Entry<PeerAddress, Data> entry = trackerData.peerAddresses().entrySet().iterator().next();
+				if (!trackerStorage.put(new Number320(locationKey, domainKey), entry.getKey(), publicKey,
 				        entry.getValue())) {
 					responseMessage.type(Message.Type.DENIED);
 					LOG.debug("tracker NOT put on({}) locationKey:{}, domainKey:{}, address:{}", peerBean()
@@ -3,10 +3,14 @@ package net.tomp2p.tracker;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.PeerException;
@@ -18,7 +22,7 @@ import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerMapChangeListener;
-import net.tomp2p.peers.PeerStatatistic;
+import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.storage.Data;
@@ -30,6 +34,13 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 	public static final int TRACKER_CACHE_SIZE = 1000;
 	final private Map<Number320, TrackerData> dataMapUnverified;
 	final private Map<Number320, TrackerData> dataMap;
+	// secondary index from peer ID to the tracker keys the peer is stored under. Stale keys are removed on lookup and
+	// the index expires like the tracker data.
+	final private Map<Number160, Set<Number320>> peerKeysUnverified;
+	final private Map<Number160, Set<Number320>> peerKeys;
+	// the statistics of the unverified peers and the queue ordered by the time the next check is due
+	final private Map<Number160, PeerStatistic> unverifiedPeers;
+	final private PriorityQueue<MaintenanceEntry> maintenanceQueue = new PriorityQueue<MaintenanceEntry>();
 	final private boolean verifyPeersOnTracker;
 	private final int[] intervalSeconds;
 	private final ConcurrentCacheMap<Number160, Boolean> peerOffline;
@@ -45,6 +56,12 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		dataMapUnverified = new ConcurrentCacheMap<Number320, TrackerData>(trackerTimoutSeconds, TRACKER_CACHE_SIZE,
 		        true);
 		dataMap = new ConcurrentCacheMap<Number320, TrackerData>(trackerTimoutSeconds, TRACKER_CACHE_SIZE, true);
+		peerKeysUnverified = new ConcurrentCacheMap<Number160, Set<Number320>>(trackerTimoutSeconds,
+		        TRACKER_CACHE_SIZE * TRACKER_CACHE_SIZE, true);
+		peerKeys = new ConcurrentCacheMap<Number160, Set<Number320>>(trackerTimoutSeconds, TRACKER_CACHE_SIZE
+		        * TRACKER_CACHE_SIZE, true);
+		unverifiedPeers = new ConcurrentCacheMap<Number160, PeerStatistic>(trackerTimoutSeconds,
+		        TRACKER_CACHE_SIZE * TRACKER_CACHE_SIZE, true);
 		peerOffline = new ConcurrentCacheMap<Number160, Boolean>(trackerTimoutSeconds * 5, TRACKER_CACHE_SIZE, false);
 		this.trackerTimoutSeconds = trackerTimoutSeconds;
 		this.intervalSeconds = intervalSeconds;
@@ -59,7 +76,7 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 			return false;
 		}
 		// security check
-		Data oldDataUnverified = findOld(key, peerAddress, dataMapUnverified);
+		Data oldDataUnverified = findOld(key, peerAddress.peerId(), dataMapUnverified, peerKeysUnverified);
 		boolean isUnverified = false;
 		boolean isVerified = false;
 		if(oldDataUnverified != null) {
@@ -69,7 +86,7 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 			}
 			isUnverified = true;
 		} else {
-			Data oldData = findOld(key, peerAddress, dataMap);
+			Data oldData = findOld(key, peerAddress.peerId(), dataMap, peerKeys);
 			if(oldData != null) {
 				//security check
 				if (oldData.publicKey()!=null && !oldData.publicKey().equals(publicKey)) {
@@ -84,29 +101,51 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		}
 		// now store
 		attachement.publicKey(publicKey);
-		final Map<Number320, TrackerData> dataMapToStore;
-		if(isUnverified) {
-			dataMapToStore = dataMapUnverified;
-		} else if (isVerified) {
-			dataMapToStore = dataMap;
-		} else if(verifyPeersOnTracker) {
-			dataMapToStore = dataMapUnverified;
-		} else {
-			dataMapToStore = dataMap;
+		if (isVerified || (!isUnverified && !verifyPeersOnTracker)) {
+			return add(key, peerAddress, dataMap, peerKeys, attachement);
+		}
+		if (!add(key, peerAddress, dataMapUnverified, peerKeysUnverified, attachement)) {
+			return false;
+		}
+		final PeerStatistic peerStatistic = new PeerStatistic(peerAddress);
+		if (unverifiedPeers.putIfAbsent(peerAddress.peerId(), peerStatistic) == null) {
+			schedule(peerStatistic);
 		}
-		return add(key, new PeerStatatistic(peerAddress), dataMapToStore, attachement);
+		return true;
 	}
 
-	private Data findOld(Number320 key, PeerAddress peerAddress, Map<Number320, TrackerData> dataMap) {
-		for (Map.Entry<Number320, TrackerData> entry : dataMap.entrySet()) {
-			for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-				if (entry2.getKey().peerAddress().equals(peerAddress)) {
-					return entry2.getValue();
-				}
+	/**
+	 * Finds the data a peer has stored on this tracker. The given key is checked first, then all the other keys of
+	 * this peer from the index.
+	 */
+	private Data findOld(Number320 key, Number160 peerId, Map<Number320, TrackerData> dataMap,
+	        Map<Number160, Set<Number320>> index) {
+		final Data data = find(key, peerId, dataMap);
+		if (data != null) {
+			return data;
+		}
+		final Set<Number320> keys = index.get(peerId);
+		if (keys == null) {
+			return null;
+		}
+		for (Number320 otherKey : keys) {
+			final Data otherData = find(otherKey, peerId, dataMap);
+			if (otherData != null) {
+				return otherData;
 			}
+			keys.remove(otherKey);
 		}
 		return null;
 	}
+
+	private static Data find(Number320 key, Number160 peerId, Map<Number320, TrackerData> dataMap) {
+		final TrackerData trackerData = dataMap.get(key);
+		if (trackerData == null) {
+			return null;
+		}
+		final Map.Entry<PeerAddress, Data> entry = trackerData.get(peerId);
+		return entry == null ? null : entry.getValue();
+	}
 	
 	public PeerExchange peerExchange() {
 		return peerExchange;
@@ -118,15 +157,42 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 	}
 
 	@Override
-	public PeerStatatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses) {
-		for (Map.Entry<Number320, TrackerData> entry : dataMapUnverified.entrySet()) {
-			for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-				if (DefaultMaintenance.needMaintenance(entry2.getKey(), intervalSeconds)) {
-					return entry2.getKey();
+	public PeerStatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses) {
+		final long now = System.currentTimeMillis();
+		final List<MaintenanceEntry> skipped = new ArrayList<MaintenanceEntry>(0);
+		PeerStatistic retVal = null;
+		synchronized (maintenanceQueue) {
+			MaintenanceEntry entry;
+			while ((entry = maintenanceQueue.peek()) != null && entry.nextCheck < now) {
+				maintenanceQueue.poll();
+				final PeerStatistic peerStatistic = entry.peerStatistic;
+				if (unverifiedPeers.get(peerStatistic.peerAddress().peerId()) != peerStatistic) {
+					// verified, failed, or expired in the meantime
+					continue;
+				}
+				final long nextCheck = DefaultMaintenance.nextMaintenance(peerStatistic, intervalSeconds);
+				if (nextCheck != entry.nextCheck) {
+					maintenanceQueue.add(new MaintenanceEntry(nextCheck, peerStatistic));
+					continue;
+				}
+				// keep the peer in the queue until it is verified or failed
+				skipped.add(entry);
+				if (notInterestedAddresses == null || !notInterestedAddresses.contains(peerStatistic.peerAddress())) {
+					retVal = peerStatistic;
+					break;
 				}
 			}
+			maintenanceQueue.addAll(skipped);
+		}
+		return retVal;
+	}
+
+	private void schedule(PeerStatistic peerStatistic) {
+		final MaintenanceEntry entry = new MaintenanceEntry(DefaultMaintenance.nextMaintenance(peerStatistic,
+		        intervalSeconds), peerStatistic);
+		synchronized (maintenanceQueue) {
+			maintenanceQueue.add(entry);
 		}
-		return null;
 	}
 
 	@Override
@@ -137,14 +203,14 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 	}
 
 	@Override
-	public void peerRemoved(PeerAddress remotePeer, PeerStatatistic storedPeerAddress) {
+	public void peerRemoved(PeerAddress remotePeer, PeerStatistic storedPeerAddress) {
 		// unlikely to happen, but we will remove the peer from the tracker.
 		// Most likely close peers are not part of the tracker
 		checkCloserRemoved(remotePeer, self);
 	}
 
 	@Override
-	public void peerUpdated(PeerAddress peerAddress, PeerStatatistic storedPeerAddress) {
+	public void peerUpdated(PeerAddress peerAddress, PeerStatistic storedPeerAddress) {
 		// nothing to do
 	}
 
@@ -195,25 +261,33 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		return tmp.headSet(peerAddress).size() < replicationFactor;
 	}
 
-	private boolean add(Number320 key, PeerStatatistic stat, Map<Number320, TrackerData> map, Data attachement) {
+	private boolean add(Number320 key, PeerAddress peerAddress, Map<Number320, TrackerData> map,
+	        Map<Number160, Set<Number320>> index, Data attachement) {
 		TrackerData trackerData = map.get(key);
 		if (trackerData == null) {
-			trackerData = new TrackerData(new ConcurrentCacheMap<PeerStatatistic, Data>(trackerTimoutSeconds,
+			trackerData = new TrackerData(new ConcurrentCacheMap<PeerAddress, Data>(trackerTimoutSeconds,
 			        TRACKER_CACHE_SIZE, true));
 			map.put(key, trackerData);
 		}
 		if (trackerData.size() < TRACKER_CACHE_SIZE) {
-			trackerData.put(stat, attachement);
+			trackerData.put(peerAddress, attachement);
+			Set<Number320> keys = Collections.newSetFromMap(new ConcurrentHashMap<Number320, Boolean>());
+			// putIfAbsent refreshes the timeout of an existing entry. Empty sets are not removed, they expire.
+			final Set<Number320> oldKeys = index.putIfAbsent(peerAddress.peerId(), keys);
+			if (oldKeys != null) {
+				keys = oldKeys;
+			}
+			keys.add(key);
 			return true;
 		} else {
 			return false;
 		}
 	}
 
-	private boolean remove(Number320 key, PeerStatatistic stat, Map<Number320, TrackerData> map) {
+	private boolean remove(Number320 key, Number160 peerId, Map<Number320, TrackerData> map) {
 		TrackerData trackerData = map.get(key);
 		if (trackerData != null) {
-			boolean retVal = trackerData.remove(stat.peerAddress().peerId()) != null;
+			boolean retVal = trackerData.remove(peerId) != null;
 			if(trackerData.peerAddresses().size() == 0) {
 				map.remove(key);
 			}
@@ -232,32 +306,21 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 
 	@Override
 	public boolean peerFailed(PeerAddress remotePeer, PeerException reason) {
-		peerOffline.put(remotePeer.peerId(), Boolean.TRUE);
-		Number320 keyToRemove = null;
-		PeerStatatistic statToRemove = null;
-		for (Map.Entry<Number320, TrackerData> entry : dataMapUnverified.entrySet()) {
-			for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-				if (entry2.getKey().peerAddress().equals(remotePeer)) {
-					keyToRemove = entry.getKey();
-					statToRemove = entry2.getKey();
-				}
+		final Number160 peerId = remotePeer.peerId();
+		peerOffline.put(peerId, Boolean.TRUE);
+		unverifiedPeers.remove(peerId);
+		final Set<Number320> keysUnverified = peerKeysUnverified.remove(peerId);
+		if (keysUnverified != null) {
+			for (Number320 key : keysUnverified) {
+				remove(key, peerId, dataMapUnverified);
 			}
 		}
-		if(keyToRemove !=null) {
-			remove(keyToRemove, statToRemove, dataMapUnverified);
-		}
-		//
-		for (Map.Entry<Number320, TrackerData> entry : dataMap.entrySet()) {
-			for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-				if (entry2.getKey().peerAddress().equals(remotePeer)) {
-					keyToRemove = entry.getKey();
-					statToRemove = entry2.getKey();
-				}
+		final Set<Number320> keys = peerKeys.remove(peerId);
+		if (keys != null) {
+			for (Number320 key : keys) {
+				remove(key, peerId, dataMap);
 			}
 		}
-		if(keyToRemove !=null) {
-			remove(keyToRemove, statToRemove, dataMap);
-		}
 		return true;
 	}
 
@@ -265,26 +328,30 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 	public boolean peerFound(PeerAddress remotePeer, PeerAddress referrer, PeerConnection peerConnection) {
 		boolean firsthand = referrer == null;
 		if (firsthand) {
-			peerOffline.remove(remotePeer.peerId());
-			Number320 keyToRemove = null;
-			PeerStatatistic statToRemove = null;
-			for (Map.Entry<Number320, TrackerData> entry : dataMapUnverified.entrySet()) {
-				for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-					PeerAddress tmp = entry2.getKey().peerAddress(); 
-					if (tmp.equals(remotePeer)) {
-						if (add(entry.getKey(), entry2.getKey(), dataMap, entry2.getValue())) {
-							// only remove from unverified if we could store to
-							// verified
-							keyToRemove = entry.getKey();
-							statToRemove = entry2.getKey();
-							statToRemove.successfullyChecked();
-							// TODO: here we can break to the if statement below
-						}
-					}
+			final Number160 peerId = remotePeer.peerId();
+			peerOffline.remove(peerId);
+			final Set<Number320> keys = peerKeysUnverified.get(peerId);
+			if (keys == null) {
+				return true;
+			}
+			for (Number320 key : keys) {
+				final TrackerData trackerData = dataMapUnverified.get(key);
+				final Map.Entry<PeerAddress, Data> entry = trackerData == null ? null : trackerData.get(peerId);
+				if (entry == null) {
+					keys.remove(key);
+				} else if (add(key, entry.getKey(), dataMap, peerKeys, entry.getValue())) {
+					// only remove from unverified if we could store to verified
+					remove(key, peerId, dataMapUnverified);
+					keys.remove(key);
 				}
 			}
-			if (keyToRemove != null && statToRemove != null) {
-				remove(keyToRemove, statToRemove, dataMapUnverified);
+			final PeerStatistic peerStatistic = unverifiedPeers.get(peerId);
+			if (keys.isEmpty()) {
+				peerKeysUnverified.remove(peerId);
+				unverifiedPeers.remove(peerId);
+			} else if (peerStatistic != null) {
+				// some keys are full, the queue entry is rescheduled with the new statistics
+				peerStatistic.successfullyChecked();
 			}
 		}
 		return true;
@@ -305,17 +372,32 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		TrackerData trackerData = dataMap.get(new Number320(locationKey, domainKey));
 		if(trackerData!=null) {
 			if(contentKey!=null) {
-				Map.Entry<PeerStatatistic, Data> entry = trackerData.get(contentKey);
+				Map.Entry<PeerAddress, Data> entry = trackerData.get(contentKey);
 				if(entry!=null) {
 					return new DigestInfo(Number160.ZERO, contentKey, 1);
 				}
 			} else {
-				for(PeerStatatistic peerStatatistic: trackerData.peerAddresses().keySet()) {
-					contentDigest = contentDigest.xor(peerStatatistic.peerAddress().peerId());
+				for(PeerAddress peerAddress: trackerData.peerAddresses().keySet()) {
+					contentDigest = contentDigest.xor(peerAddress.peerId());
 					counter++;
 				}
 			}
 		}
 		return new DigestInfo(Number160.ZERO, contentKey, counter);
     }
+
+	private static final class MaintenanceEntry implements Comparable<MaintenanceEntry> {
+		private final long nextCheck;
+		private final PeerStatistic peerStatistic;
+
+		private MaintenanceEntry(long nextCheck, PeerStatistic peerStatistic) {
+			this.nextCheck = nextCheck;
+			this.peerStatistic = peerStatistic;
+		}
+
+		@Override
+		public int compareTo(MaintenanceEntry o) {
+			return nextCheck < o.nextCheck ? -1 : (nextCheck == o.nextCheck ? 0 : 1);
+		}
+	}
 }
@@ -1,32 +1,66 @@
 package net.tomp2p.tracker;
 
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
 
 import net.tomp2p.message.TrackerData;
 import net.tomp2p.peers.Number160;
-import net.tomp2p.peers.PeerStatatistic;
+import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.Data;
 
 public class UtilsTracker {
+	private static final Random RND = new Random();
+
 	public static TrackerData limit(TrackerData peers, int size) {
-		Map<PeerStatatistic, Data> map = new HashMap<PeerStatatistic, Data>(peers.peerAddresses());
-		Map<PeerStatatistic, Data> retVal = new HashMap<PeerStatatistic, Data>(size);
-		int i = 0;
-		for (Iterator<Map.Entry<PeerStatatistic, Data>> it = map.entrySet().iterator(); it.hasNext() && i++ < size;) {
-			Map.Entry<PeerStatatistic, Data> entry = it.next();
-			retVal.put(entry.getKey(), entry.getValue());
+		return sample(peers, null, size, RND);
+	}
+
+	/**
+	 * Selects a uniform random subset of the peers with reservoir sampling. The peers are iterated once and only the
+	 * selected peers are copied, so this is cheap for large swarms.
+	 *
+	 * @param peers
+	 *            The peers to select from
+	 * @param knownPeers
+	 *            The peers the requester already knows and are skipped, may be null
+	 * @param size
+	 *            The maximum number of peers to return
+	 * @param rnd
+	 *            The random number generator
+	 * @return The selected peers. If there were more peers than returned, {@link TrackerData#couldProvideMoreData()}
+	 *         is set.
+	 */
+	public static TrackerData sample(TrackerData peers, SimpleBloomFilter<Number160> knownPeers, int size,
+	        Random rnd) {
+		final int capacity = Math.max(0, Math.min(size, peers.size()));
+		final PeerAddress[] reservoir = new PeerAddress[capacity];
+		final Data[] attachements = new Data[capacity];
+		int seen = 0;
+		for (Map.Entry<PeerAddress, Data> entry : peers.peerAddresses().entrySet()) {
+			if (knownPeers != null && knownPeers.contains(entry.getKey().peerId())) {
+				continue;
+			}
+			final int index = seen < capacity ? seen : rnd.nextInt(seen + 1);
+			if (index < capacity) {
+				reservoir[index] = entry.getKey();
+				attachements[index] = entry.getValue();
+			}
+			seen++;
+		}
+		final int selected = Math.min(seen, capacity);
+		final TrackerData trackerData = new TrackerData(new HashMap<PeerAddress, Data>(2 * selected), seen > selected);
+		for (int i = 0; i < selected; i++) {
+			trackerData.put(reservoir[i], attachements[i]);
 		}
-		TrackerData data = new TrackerData(retVal);
-		return data;
+		return trackerData;
 	}
 
 	public static TrackerData disjunction(TrackerData meshPeers, SimpleBloomFilter<Number160> knownPeers) {
-		TrackerData trackerData = new TrackerData(new HashMap<PeerStatatistic, Data>());
-		for (Map.Entry<PeerStatatistic, Data> entry : meshPeers.peerAddresses().entrySet()) {
-			if (!knownPeers.contains(entry.getKey().peerAddress().peerId())) {
+		TrackerData trackerData = new TrackerData(new HashMap<PeerAddress, Data>());
+		for (Map.Entry<PeerAddress, Data> entry : meshPeers.peerAddresses().entrySet()) {
+			if (!knownPeers.contains(entry.getKey().peerId())) {
 				trackerData.put(entry.getKey(), entry.getValue());
 			}
 		}
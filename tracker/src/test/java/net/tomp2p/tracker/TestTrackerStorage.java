@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Random;
 
 import net.tomp2p.connection.PeerException;
 import net.tomp2p.message.TrackerData;
@@ -12,7 +14,8 @@ import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerMapConfiguration;
-import net.tomp2p.peers.PeerStatatistic;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.Data;
 
 import org.junit.Assert;
@@ -136,7 +139,7 @@ public class TestTrackerStorage {
 		Number320 n320 = new Number320(Number160.ZERO, Number160.ZERO);
 
 		trackerStorage.put(n320, selfAddress, null, new Data("test"));
-		PeerStatatistic ps = trackerStorage.nextForMaintenance(null);
+		PeerStatistic ps = trackerStorage.nextForMaintenance(null);
 		Assert.assertEquals(ps.peerAddress().peerId(), self);	
 	}
 	
@@ -151,9 +154,57 @@ public class TestTrackerStorage {
 		Number320 n320 = new Number320(Number160.ZERO, Number160.ZERO);
 
 		trackerStorage.put(n320, selfAddress, null, new Data("test"));
-		PeerStatatistic ps = trackerStorage.nextForMaintenance(null);
+		PeerStatistic ps = trackerStorage.nextForMaintenance(null);
 		trackerStorage.peerFound(selfAddress, null, null);
 		ps = trackerStorage.nextForMaintenance(null);
 		Assert.assertNull(ps);
 	}
+
+	@Test
+	public void testTrackerIndex() throws IOException {
+		Number160 self = Number160.ONE;
+		PeerAddress selfAddress = new PeerAddress(self);
+		PeerMapConfiguration pmc = new PeerMapConfiguration(self);
+		PeerMap pm = new PeerMap(pmc);
+		TrackerStorage trackerStorage = new TrackerStorage(10, new int[] { 10 }, 1, pm, selfAddress, true);
+
+		PeerAddress other = new PeerAddress(new Number160(2));
+		Number320 n320a = new Number320(Number160.ZERO, Number160.ZERO);
+		Number320 n320b = new Number320(Number160.ONE, Number160.ZERO);
+		trackerStorage.put(n320a, other, null, new Data("test"));
+		trackerStorage.put(n320b, other, null, new Data("test"));
+		Assert.assertEquals(2, trackerStorage.sizeUnverified());
+		// both keys are moved to the verified map
+		trackerStorage.peerFound(other, null, null);
+		Assert.assertEquals(0, trackerStorage.sizeUnverified());
+		Assert.assertEquals(2, trackerStorage.size());
+		Assert.assertTrue(trackerStorage.peers(n320b).containsKey(other.peerId()));
+		Assert.assertNull(trackerStorage.nextForMaintenance(null));
+		// and removed from both keys
+		trackerStorage.peerFailed(other, new PeerException(PeerException.AbortCause.PEER_ABORT, ""));
+		Assert.assertEquals(0, trackerStorage.size());
+	}
+
+	@Test
+	public void testSamplePeers() {
+		TrackerData trackerData = new TrackerData(new HashMap<PeerAddress, Data>());
+		for (int i = 0; i < 100; i++) {
+			trackerData.put(new PeerAddress(new Number160(i + 1)), new Data());
+		}
+		SimpleBloomFilter<Number160> knownPeers = new SimpleBloomFilter<Number160>(1024, 1024);
+		Random rnd = new Random(42);
+		int total = 0;
+		TrackerData page;
+		do {
+			page = UtilsTracker.sample(trackerData, knownPeers, 30, rnd);
+			Assert.assertTrue(page.size() <= 30);
+			for (PeerAddress peerAddress : page.peerAddresses().keySet()) {
+				Assert.assertFalse(knownPeers.contains(peerAddress.peerId()));
+				knownPeers.add(peerAddress.peerId());
+			}
+			total += page.size();
+		} while (page.couldProvideMoreData());
+		// a bloom filter may have false positives, so we may get a few less
+		Assert.assertTrue(total > 90 && total <= 100);
+	}
 }